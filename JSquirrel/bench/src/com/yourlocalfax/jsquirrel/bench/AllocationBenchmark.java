@@ -0,0 +1,129 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * The same script call made through the {@link Squirrel} methods and through the {@link JSqVM} instance methods.
+ * <br><br>
+ * Run with {@code -prof gc}, the instance methods should report a {@code gc.alloc.rate.norm} of 0 bytes per
+ * operation on both backends.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	JSqVM m_vm;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		Squirrel.sq_compilebuffer(m_vm, "function add(a, b) { return a + b; } class A {}", "bench", true);
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_call(m_vm, 1, false, true);
+		Squirrel.sq_poptop(m_vm);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Benchmark
+	public int staticCall() {
+		JSqVM v = m_vm;
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushstring(v, "add");
+		if (Squirrel.SQ_FAILED(Squirrel.sq_get(v, -2)))
+			return -1;
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushinteger(v, 1);
+		Squirrel.sq_pushinteger(v, 2);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, 3, true, true)))
+			return -1;
+		int res = Squirrel.sq_getinteger(v, -1);
+		Squirrel.sq_pop(v, 3);
+		return res;
+	}
+	
+	@Benchmark
+	public int instanceCall() {
+		JSqVM v = m_vm;
+		v.pushRootTable();
+		v.pushString("add");
+		if (v.get(-2) < 0)
+			return -1;
+		v.pushRootTable();
+		v.pushInteger(1);
+		v.pushInteger(2);
+		if (v.call(3, true, true) < 0)
+			return -1;
+		int res = v.getInt(-1);
+		v.pop(3);
+		return res;
+	}
+	
+	@Benchmark
+	public Object staticTypeTag() {
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_pushstring(m_vm, "A");
+		Squirrel.sq_get(m_vm, -2);
+		Object res = Squirrel.sq_gettypetag(m_vm, -1);
+		Squirrel.sq_pop(m_vm, 2);
+		return res;
+	}
+	
+	@Benchmark
+	public long instanceTypeTag() {
+		m_vm.pushRootTable();
+		m_vm.pushString("A");
+		m_vm.get(-2);
+		long res = m_vm.getTypeTag(-1);
+		m_vm.pop(2);
+		return res;
+	}
+	
+}
@@ -0,0 +1,104 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqBatch;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Calling a script function with one {@link Squirrel} method per stack operation against the same operations
+ * recorded once in a {@link JSqBatch} and run with {@link Squirrel#sq_runbatch(JSqVM, JSqBatch)}.
+ * <br><br>
+ * The native backend needs the JSquirrel native library on {@code java.library.path}.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BatchBenchmark {
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	JSqVM m_vm;
+	JSqBatch m_batch;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		Squirrel.sq_compilebuffer(m_vm, "function add(a, b, c) { return a + b + c; }", "bench", true);
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_call(m_vm, 1, false, true);
+		Squirrel.sq_poptop(m_vm);
+		
+		m_batch = new JSqBatch();
+		m_batch.pushRootTable().pushString("add").get(-2)
+			.pushRootTable().pushInteger(1).pushInteger(2).pushInteger(3).call(4, true, true)
+			.getInteger(-1).pop(3);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Benchmark
+	public int perCall() {
+		JSqVM v = m_vm;
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushstring(v, "add");
+		Squirrel.sq_get(v, -2);
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushinteger(v, 1);
+		Squirrel.sq_pushinteger(v, 2);
+		Squirrel.sq_pushinteger(v, 3);
+		Squirrel.sq_call(v, 4, true, true);
+		int res = Squirrel.sq_getinteger(v, -1);
+		Squirrel.sq_pop(v, 3);
+		return res;
+	}
+	
+	@Benchmark
+	public int batch() {
+		Squirrel.sq_runbatch(m_vm, m_batch);
+		return m_batch.nextInteger();
+	}
+	
+}
@@ -0,0 +1,113 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqBudget;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * The overhead of a {@link JSqBudget} on a script running a loop with a function call in each iteration:
+ * without a budget, with a budget installed but not armed, and with an armed budget that never runs out,
+ * which also reads the CPU time of the thread. The script is compiled with debug info, so the native debug hook
+ * gets line events like it would in production.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BudgetBenchmark {
+	
+	private static final String SCRIPT =
+			"function add(a, b) {\n" +
+			"\treturn a + b;\n" +
+			"}\n" +
+			"return function(n) {\n" +
+			"\tlocal s = 0;\n" +
+			"\tfor (local i = 0; i < n; i++)\n" +
+			"\t\ts = add(s, i);\n" +
+			"\treturn s;\n" +
+			"}\n";
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	@Param({ "none", "installed", "armed" })
+	public String budget;
+	
+	@Param({ "10000" })
+	public int iterations;
+	
+	JSqVM m_vm;
+	JSqBudget m_budget;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		Squirrel.sq_enabledebuginfo(m_vm, true);
+		Squirrel.sq_compilebuffer(m_vm, SCRIPT, "bench", true);
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_call(m_vm, 1, true, true);
+		Squirrel.sq_remove(m_vm, -2);
+		if (!budget.equals("none"))
+			m_budget = new JSqBudget(m_vm);
+		if (budget.equals("armed"))
+			m_budget.arm(Long.MAX_VALUE - 1, TimeUnit.HOURS.toNanos(1), TimeUnit.NANOSECONDS);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (m_budget != null)
+			m_budget.remove();
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Benchmark
+	public int loop() {
+		JSqVM v = m_vm;
+		Squirrel.sq_push(v, 1);
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushinteger(v, iterations);
+		Squirrel.sq_call(v, 2, true, true);
+		int res = Squirrel.sq_getinteger(v, -1);
+		Squirrel.sq_pop(v, 2);
+		return res;
+	}
+	
+}
@@ -0,0 +1,93 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Calling a script function with a number of arguments. The function is kept at the bottom of the stack,
+ * so only pushing the arguments, the call and reading the return value are measured.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallBenchmark {
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	@Param({ "0", "1", "2", "4", "8" })
+	public int args;
+	
+	JSqVM m_vm;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		StringBuilder sb = new StringBuilder("return function(");
+		for (int i = 0; i < args; i++)
+			sb.append(i == 0 ? "a" : ", a").append(i);
+		sb.append(") { return ").append(args).append("; }");
+		Squirrel.sq_compilebuffer(m_vm, sb.toString(), "bench", true);
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_call(m_vm, 1, true, true);
+		Squirrel.sq_remove(m_vm, -2);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Benchmark
+	public int call() {
+		JSqVM v = m_vm;
+		Squirrel.sq_push(v, 1);
+		Squirrel.sq_pushroottable(v);
+		for (int i = 0; i < args; i++)
+			Squirrel.sq_pushinteger(v, i);
+		Squirrel.sq_call(v, args + 1, true, true);
+		int res = Squirrel.sq_getinteger(v, -1);
+		Squirrel.sq_pop(v, 2);
+		return res;
+	}
+	
+}
@@ -0,0 +1,102 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqCompiler;
+import com.yourlocalfax.jsquirrel.JSqFunctionProto;
+import com.yourlocalfax.jsquirrel.JSqResult;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Compile throughput of the Java compiler, on its own and behind {@link Squirrel#sq_compilebuffer(JSqVM, String, String, boolean)},
+ * against the native compiler.
+ * <br><br>
+ * The native benchmark needs the JSquirrel native library on {@code java.library.path}.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompilerBenchmark {
+	
+	@Param({ "100", "1000", "10000", "100000" })
+	public int lines;
+	
+	String m_source;
+	JSqCompiler m_compiler;
+	JSqVM m_vm;
+	JSqVM m_javaVm;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_source = Scripts.generate(lines);
+		m_compiler = new JSqCompiler();
+		m_javaVm = Squirrel.sq_open(1024, JSqBackend.Java);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (m_vm != null)
+			Squirrel.sq_close(m_vm);
+		Squirrel.sq_close(m_javaVm);
+	}
+	
+	@Benchmark
+	public JSqFunctionProto javaCompile() throws Exception {
+		return m_compiler.compile(m_source, "bench");
+	}
+	
+	@Benchmark
+	public JSqResult javaCompileBuffer() {
+		JSqResult res = Squirrel.sq_compilebuffer(m_javaVm, m_source, "bench", false);
+		Squirrel.sq_poptop(m_javaVm);
+		return res;
+	}
+	
+	@Benchmark
+	public JSqResult nativeCompile() throws Exception {
+		if (m_vm == null)
+			m_vm = Squirrel.sq_open(1024);
+		JSqResult res = Squirrel.sq_compilebuffer(m_vm, m_source, "bench", false);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+}
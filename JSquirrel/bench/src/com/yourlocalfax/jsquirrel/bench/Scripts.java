@@ -0,0 +1,81 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+/**
+ * Generates synthetic Squirrel scripts of a given size for the benchmarks.
+ * @author Christopher Foster
+ */
+public final class Scripts {
+	
+	private Scripts() {
+	}
+	
+	/**
+	 * Builds a script of roughly {@code lines} lines mixing functions, classes, tables and loops
+	 * in the proportions found in typical game and service scripts.
+	 * @param lines
+	 * @return The script source.
+	 */
+	public static String generate(int lines) {
+		StringBuilder sb = new StringBuilder(lines * 32);
+		int n = 0, i = 0;
+		while (n < lines) {
+			switch (i % 4) {
+				case 0:
+					sb.append("function f").append(i).append("(a, b = 2) {\n");
+					sb.append("\tlocal s = 0;\n");
+					sb.append("\tfor (local k = 0; k < a; k++)\n");
+					sb.append("\t\ts += k * b;\n");
+					sb.append("\treturn s;\n");
+					sb.append("}\n");
+					n += 6;
+					break;
+				case 1:
+					sb.append("class C").append(i).append(" {\n");
+					sb.append("\tconstructor(v) { m_value = v; }\n");
+					sb.append("\tfunction get() { return m_value; }\n");
+					sb.append("\tm_value = null;\n");
+					sb.append("}\n");
+					n += 5;
+					break;
+				case 2:
+					sb.append("t").append(i).append(" <- { name = \"entry").append(i).append("\", values = [1, 2.5, \"x\"], nested = { a = 1 } };\n");
+					n += 1;
+					break;
+				case 3:
+					sb.append("foreach (k, v in t").append(i - 1).append(") {\n");
+					sb.append("\tif (typeof v == \"string\") continue;\n");
+					sb.append("\telse v = k;\n");
+					sb.append("}\n");
+					n += 4;
+					break;
+			}
+			i++;
+		}
+		return sb.toString();
+	}
+	
+}
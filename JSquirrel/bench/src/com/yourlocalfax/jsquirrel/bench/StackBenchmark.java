@@ -0,0 +1,109 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqObjectType;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Pushing a value and reading it back, for each primitive type.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StackBenchmark {
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	JSqVM m_vm;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Benchmark
+	public int integer() {
+		Squirrel.sq_pushinteger(m_vm, 42);
+		int res = Squirrel.sq_getinteger(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+	@Benchmark
+	public float floatingPoint() {
+		Squirrel.sq_pushfloat(m_vm, 4.2f);
+		float res = Squirrel.sq_getfloat(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+	@Benchmark
+	public boolean bool() {
+		Squirrel.sq_pushbool(m_vm, true);
+		boolean res = Squirrel.sq_getbool(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+	@Benchmark
+	public String string() {
+		Squirrel.sq_pushstring(m_vm, "benchmark");
+		String res = Squirrel.sq_getstring(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+	@Benchmark
+	public JSqObjectType nullType() {
+		Squirrel.sq_pushnull(m_vm);
+		JSqObjectType res = Squirrel.sq_gettype(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+}
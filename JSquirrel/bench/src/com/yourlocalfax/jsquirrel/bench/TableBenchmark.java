@@ -0,0 +1,116 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Setting, getting and iterating the slots of a table kept at the bottom of the stack.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TableBenchmark {
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	@Param({ "16", "1024" })
+	public int size;
+	
+	JSqVM m_vm;
+	String[] m_keys;
+	int m_next;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		m_keys = new String[size];
+		Squirrel.sq_newtable(m_vm);
+		for (int i = 0; i < size; i++) {
+			m_keys[i] = "key" + i;
+			Squirrel.sq_pushstring(m_vm, m_keys[i]);
+			Squirrel.sq_pushinteger(m_vm, i);
+			Squirrel.sq_newslot(m_vm, 1, false);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	private String nextKey() {
+		if (++m_next == size)
+			m_next = 0;
+		return m_keys[m_next];
+	}
+	
+	@Benchmark
+	public void newSlot() {
+		Squirrel.sq_pushstring(m_vm, nextKey());
+		Squirrel.sq_pushinteger(m_vm, m_next);
+		Squirrel.sq_newslot(m_vm, 1, false);
+	}
+	
+	@Benchmark
+	public int get() {
+		Squirrel.sq_pushstring(m_vm, nextKey());
+		Squirrel.sq_get(m_vm, 1);
+		int res = Squirrel.sq_getinteger(m_vm, -1);
+		Squirrel.sq_poptop(m_vm);
+		return res;
+	}
+	
+	@Benchmark
+	public int iterate() {
+		JSqVM v = m_vm;
+		int sum = 0;
+		Squirrel.sq_pushnull(v);
+		while (Squirrel.SQ_SUCCEDED(Squirrel.sq_next(v, 1))) {
+			sum += Squirrel.sq_getinteger(v, -1);
+			Squirrel.sq_pop(v, 2);
+		}
+		Squirrel.sq_poptop(v);
+		return sum;
+	}
+	
+}
@@ -0,0 +1,155 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package com.yourlocalfax.jsquirrel.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqNativeFunction;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Calling Java from a script with a number of integer arguments, through a closure created from a MethodHandle
+ * and through a hand written JSqNativeFunction reading the same arguments. A script loop makes the calls,
+ * the time is per call.
+ * @author Christopher Foster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UpcallBenchmark {
+	
+	static final int CALLS = 1000;
+	
+	@Param({ "Native", "Java" })
+	public JSqBackend backend;
+	
+	@Param({ "0", "1", "2", "3", "4", "5", "6" })
+	public int args;
+	
+	JSqVM m_vm;
+	
+	public static int sum(int a, int b, int c, int d, int e, int f) {
+		return a + b + c + d + e + f;
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		m_vm = Squirrel.sq_open(1024, backend);
+		
+		MethodHandle h = MethodHandles.lookup().findStatic(UpcallBenchmark.class, "sum",
+				MethodType.methodType(int.class, int.class, int.class, int.class, int.class, int.class, int.class));
+		Object[] unused = new Object[6 - args];
+		Arrays.fill(unused, 0);
+		h = MethodHandles.insertArguments(h, args, unused);
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_pushstring(m_vm, "handleSum");
+		Squirrel.sq_newclosure(m_vm, h);
+		Squirrel.sq_newslot(m_vm, -3, false);
+		Squirrel.sq_pushstring(m_vm, "nativeSum");
+		final int n = args;
+		Squirrel.sq_newclosure(m_vm, new JSqNativeFunction() {
+			
+			@Override
+			public int call(JSqVM v) {
+				int sum = 0;
+				for (int i = 0; i < n; i++)
+					sum += v.getInt(i + 2);
+				v.pushInteger(sum);
+				return 1;
+			}
+			
+		}, 0);
+		Squirrel.sq_newslot(m_vm, -3, false);
+		Squirrel.sq_pop(m_vm, 1);
+		
+		pushLoop("handleSum");
+		pushLoop("nativeSum");
+	}
+	
+	/**
+	 * Pushes a function calling {@code name} {@link #CALLS} times.
+	 */
+	private void pushLoop(String name) {
+		StringBuilder sb = new StringBuilder("return function() { local s = 0; for (local i = 0; i < ");
+		sb.append(CALLS).append("; i++) s += ").append(name).append('(');
+		for (int i = 0; i < args; i++)
+			sb.append(i == 0 ? "i" : ", i");
+		sb.append("); return s; }");
+		if (Squirrel.SQ_FAILED(Squirrel.sq_compilebuffer(m_vm, sb.toString(), "bench", true)))
+			throw new IllegalStateException("Could not compile the loop calling " + name);
+		Squirrel.sq_pushroottable(m_vm);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_call(m_vm, 1, true, true)))
+			throw new IllegalStateException("Could not create the loop calling " + name);
+		Squirrel.sq_remove(m_vm, -2);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	private int run(int idx) {
+		JSqVM v = m_vm;
+		Squirrel.sq_push(v, idx);
+		Squirrel.sq_pushroottable(v);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, 1, true, true))) {
+			Squirrel.sq_pop(v, 1);
+			return -1;
+		}
+		int res = Squirrel.sq_getinteger(v, -1);
+		Squirrel.sq_pop(v, 2);
+		return res;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(CALLS)
+	public int handle() {
+		return run(1);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(CALLS)
+	public int nativeFunction() {
+		return run(2);
+	}
+	
+}
@@ -0,0 +1,126 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.JSquirrelException;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that the calls of {@link AllocationBenchmark} made through the {@link JSqVM} instance methods allocate
+ * nothing, by counting the bytes the test thread allocates while making them.
+ * @author Christopher Foster
+ */
+public class AllocationTest {
+	
+	private static final int WARMUP = 200000;
+	private static final int CALLS = 100000;
+	
+	private final com.sun.management.ThreadMXBean m_threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private final AllocationBenchmark m_bench = new AllocationBenchmark();
+	
+	@After
+	public void tearDown() {
+		if (m_bench.m_vm != null)
+			m_bench.tearDown();
+	}
+	
+	@Test
+	public void javaInstanceCall() throws Exception {
+		open(JSqBackend.Java);
+		assertEquals(0, allocatedByInstanceCalls());
+	}
+	
+	@Test
+	public void javaInstanceTypeTag() throws Exception {
+		open(JSqBackend.Java);
+		assertEquals(0, allocatedByInstanceTypeTags());
+	}
+	
+	@Test
+	public void nativeInstanceCall() throws Exception {
+		open(JSqBackend.Native);
+		assertEquals(0, allocatedByInstanceCalls());
+	}
+	
+	@Test
+	public void nativeInstanceTypeTag() throws Exception {
+		open(JSqBackend.Native);
+		assertEquals(0, allocatedByInstanceTypeTags());
+	}
+	
+	private void open(JSqBackend backend) throws Exception {
+		assumeTrue(m_threads.isThreadAllocatedMemorySupported());
+		m_threads.setThreadAllocatedMemoryEnabled(true);
+		m_bench.backend = backend;
+		try {
+			m_bench.setup();
+		}
+		catch (JSquirrelException e) {
+			assumeNoException(e); // the native library isn't available
+		}
+	}
+	
+	/**
+	 * @return The bytes allocated by {@value #CALLS} calls after a warmup, less what reading the count allocates.
+	 */
+	private long allocatedByInstanceCalls() {
+		for (int i = 0; i < WARMUP; i++)
+			assertEquals(3, m_bench.instanceCall());
+		long id = Thread.currentThread().getId();
+		long overhead = m_threads.getThreadAllocatedBytes(id);
+		overhead = m_threads.getThreadAllocatedBytes(id) - overhead;
+		long start = m_threads.getThreadAllocatedBytes(id);
+		int sum = 0;
+		for (int i = 0; i < CALLS; i++)
+			sum += m_bench.instanceCall();
+		long allocated = m_threads.getThreadAllocatedBytes(id) - start - overhead;
+		assertEquals(3 * CALLS, sum);
+		return allocated;
+	}
+	
+	private long allocatedByInstanceTypeTags() {
+		for (int i = 0; i < WARMUP; i++)
+			m_bench.instanceTypeTag();
+		long id = Thread.currentThread().getId();
+		long overhead = m_threads.getThreadAllocatedBytes(id);
+		overhead = m_threads.getThreadAllocatedBytes(id) - overhead;
+		long start = m_threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < CALLS; i++)
+			m_bench.instanceTypeTag();
+		return m_threads.getThreadAllocatedBytes(id) - start - overhead;
+	}
+	
+}
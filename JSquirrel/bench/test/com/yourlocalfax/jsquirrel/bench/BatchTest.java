@@ -0,0 +1,167 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqBatch;
+import com.yourlocalfax.jsquirrel.JSqConverter;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that a {@link JSqBatch} leaves a VM in the same state and reads the same values as making the same calls
+ * one at a time.
+ * @author Christopher Foster
+ */
+public class BatchTest {
+	
+	private static final String SETUP = "function add(a, b) { return a + b; } ::data <- { n = 4, name = \"x\" };";
+	
+	private JSqVM m_batched;
+	private JSqVM m_single;
+	
+	@Before
+	public void setup() throws Exception {
+		m_batched = TestScripts.open();
+		m_single = TestScripts.open();
+		TestScripts.eval(m_batched, SETUP);
+		TestScripts.eval(m_single, SETUP);
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_batched);
+		Squirrel.sq_close(m_single);
+	}
+	
+	@Test
+	public void mixedOperationsMatchSingleCalls() {
+		JSqBatch batch = new JSqBatch(64);
+		batch.pushRootTable()
+				.pushString("add").get(-2).pushRootTable().pushInteger(2).pushInteger(3).call(3, true, true)
+				.getInteger(-1).getType(-1).remove(-2)
+				.pushString("data").rawGet(-3).pushString("n").get(-2).getInteger(-1).pop(1)
+				.pushString("name").pushString("\u00fcber").set(-3).pushString("name").rawGet(-2).getString(-1).pop(1)
+				.pushString("list").newArray(0).pushFloat(1.5f).arrayAppend(-2).pushBool(true).arrayAppend(-2).pushNull().arrayAppend(-2)
+				.newSlot(-3, false)
+				.newTable(4).pushString("k").pushInteger(7).newSlot(-3, false)
+				.getValue(-2).getValue(-1).getBool(-1)
+				.push(-2).getTop().setTop(4).getTop();
+		assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_runbatch(m_batched, batch)));
+		assertEquals(-1, batch.getFailedOperation());
+		
+		JSqVM v = m_single;
+		JSqConverter converter = new JSqConverter();
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushstring(v, "add");
+		Squirrel.sq_get(v, -2);
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushinteger(v, 2);
+		Squirrel.sq_pushinteger(v, 3);
+		Squirrel.sq_call(v, 3, true, true);
+		assertEquals(Squirrel.sq_getinteger(v, -1), batch.nextInteger());
+		assertEquals(Squirrel.sq_gettype(v, -1), batch.nextType());
+		Squirrel.sq_remove(v, -2);
+		Squirrel.sq_pushstring(v, "data");
+		Squirrel.sq_rawget(v, -3);
+		Squirrel.sq_pushstring(v, "n");
+		Squirrel.sq_get(v, -2);
+		assertEquals(Squirrel.sq_getinteger(v, -1), batch.nextInteger());
+		Squirrel.sq_pop(v, 1);
+		Squirrel.sq_pushstring(v, "name");
+		Squirrel.sq_pushstring(v, "\u00fcber");
+		Squirrel.sq_set(v, -3);
+		Squirrel.sq_pushstring(v, "name");
+		Squirrel.sq_rawget(v, -2);
+		assertEquals(Squirrel.sq_getstring(v, -1), batch.nextString());
+		Squirrel.sq_pop(v, 1);
+		Squirrel.sq_pushstring(v, "list");
+		Squirrel.sq_newarray(v, 0);
+		Squirrel.sq_pushfloat(v, 1.5f);
+		Squirrel.sq_arrayappend(v, -2);
+		Squirrel.sq_pushbool(v, true);
+		Squirrel.sq_arrayappend(v, -2);
+		Squirrel.sq_pushnull(v);
+		Squirrel.sq_arrayappend(v, -2);
+		Squirrel.sq_newslot(v, -3, false);
+		Squirrel.sq_newtable(v);
+		Squirrel.sq_pushstring(v, "k");
+		Squirrel.sq_pushinteger(v, 7);
+		Squirrel.sq_newslot(v, -3, false);
+		assertEquals(converter.get(v, -2), batch.nextValue());
+		assertEquals(converter.get(v, -1), batch.nextValue());
+		assertEquals(Squirrel.sq_getbool(v, -1), batch.nextBool());
+		Squirrel.sq_push(v, -2);
+		assertEquals(Squirrel.sq_gettop(v), batch.nextInteger());
+		Squirrel.sq_settop(v, 4);
+		assertEquals(Squirrel.sq_gettop(v), batch.nextInteger());
+		assertFalse(batch.hasNext());
+		
+		// both VMs end up with the same stack
+		assertEquals(Squirrel.sq_gettop(m_single), Squirrel.sq_gettop(m_batched));
+		for (int i = 1; i <= Squirrel.sq_gettop(m_single); i++) {
+			assertEquals(Squirrel.sq_gettype(m_single, i), Squirrel.sq_gettype(m_batched, i));
+			assertEquals(converter.get(m_single, i), converter.get(m_batched, i));
+		}
+	}
+	
+	@Test
+	public void stopsAtTheFailingOperation() {
+		JSqBatch batch = new JSqBatch();
+		batch.pushRootTable().pushString("missing").get(-2).pushInteger(1);
+		int top = Squirrel.sq_gettop(m_batched);
+		assertTrue(Squirrel.SQ_FAILED(Squirrel.sq_runbatch(m_batched, batch)));
+		assertEquals(2, batch.getFailedOperation());
+		// the root table stays pushed, the failed get popped its key and the integer was never pushed
+		assertEquals(top + 1, Squirrel.sq_gettop(m_batched));
+	}
+	
+	@Test
+	public void runsAgainWithResultsLargerThanTheBuffer() {
+		JSqBatch batch = new JSqBatch(64);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			sb.append((char) ('a' + i % 26));
+		String s = sb.toString();
+		for (int i = 0; i < 20; i++)
+			batch.pushString(s + i).getString(-1).pop(1);
+		for (int run = 0; run < 2; run++) {
+			assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_runbatch(m_batched, batch)));
+			for (int i = 0; i < 20; i++)
+				assertEquals(s + i, batch.nextString());
+			assertFalse(batch.hasNext());
+		}
+		assertEquals(0, Squirrel.sq_gettop(m_batched));
+	}
+	
+}
@@ -0,0 +1,135 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqBudget;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that a {@link JSqBudget} stops scripts on the {@link com.yourlocalfax.jsquirrel.JSqBackend#Java Java}
+ * backend once they run out of steps or CPU time, and that the VM stays usable.
+ * @author Christopher Foster
+ */
+public class BudgetTest {
+	
+	private JSqVM m_vm;
+	private JSqBudget m_budget;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+		m_budget = new JSqBudget(m_vm);
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Test
+	public void stopsAnEndlessLoop() {
+		m_budget.arm(100000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		assertEquals(JSqBudget.ERROR, TestScripts.error(m_vm, "while (true) {}"));
+		assertTrue(m_budget.isExhausted());
+		assertTrue(m_budget.getUsedSteps() >= 100000);
+	}
+	
+	@Test
+	public void stopsOnCpuTime() {
+		m_budget.arm(Long.MAX_VALUE, 50, TimeUnit.MILLISECONDS);
+		assertEquals(JSqBudget.ERROR, TestScripts.error(m_vm, "local i = 0; while (true) i++;"));
+		assertTrue(m_budget.isExhausted());
+	}
+	
+	@Test
+	public void scriptsCannotCatchTheError() {
+		m_budget.arm(100000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		assertEquals(JSqBudget.ERROR, TestScripts.error(m_vm,
+				"function spin() { while (true) {} }"
+				+ "for (;;) { try { spin(); } catch (e) {} }"));
+	}
+	
+	@Test
+	public void stopsEndlessRecursion() {
+		m_budget.arm(100000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		assertEquals(JSqBudget.ERROR, TestScripts.error(m_vm, "function f(n) { return f(n + 1); } f(0);"));
+	}
+	
+	@Test
+	public void vmIsUsableAfterwards() throws Exception {
+		m_budget.arm(100000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		assertEquals(JSqBudget.ERROR, TestScripts.error(m_vm, "while (true) {}"));
+		
+		m_budget.disarm();
+		assertEquals(2, TestScripts.eval(m_vm, "try { throw 1; } catch (e) { return e + 1; }"));
+		
+		m_budget.arm(1000000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		assertEquals(49995000, TestScripts.eval(m_vm, "local s = 0; for (local i = 0; i < 10000; i++) s += i; return s;"));
+		assertFalse(m_budget.isExhausted());
+		assertTrue(m_budget.getUsedSteps() > 0);
+		m_budget.disarm();
+	}
+	
+	@Test
+	public void callArmsForTheCall() throws Exception {
+		TestScripts.eval(m_vm, "function spin() { while (true) {} }");
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_pushstring(m_vm, "spin");
+		assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_get(m_vm, -2)));
+		Squirrel.sq_pushroottable(m_vm);
+		assertTrue(Squirrel.SQ_FAILED(m_budget.call(1, false, true, 100000, Long.MAX_VALUE, TimeUnit.NANOSECONDS)));
+		Squirrel.sq_getlasterror(m_vm);
+		assertEquals(JSqBudget.ERROR, Squirrel.sq_getstring(m_vm, -1));
+		Squirrel.sq_settop(m_vm, 0);
+		assertTrue(m_budget.isExhausted());
+		assertEquals(3, TestScripts.eval(m_vm, "return 1 + 2;"));
+	}
+	
+	@Test
+	public void oneBudgetPerVM() {
+		try {
+			new JSqBudget(m_vm);
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		m_budget.remove();
+		m_budget = new JSqBudget(m_vm);
+	}
+	
+}
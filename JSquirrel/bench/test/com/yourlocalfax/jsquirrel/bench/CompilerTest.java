@@ -0,0 +1,155 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqCompilerErrorHandler;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that scripts compiled by the Java compiler behave as Squirrel defines the language.
+ * @author Christopher Foster
+ */
+public class CompilerTest {
+	
+	private JSqVM m_vm;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Test
+	public void classes() throws Exception {
+		assertEquals("b:3:7", TestScripts.eval(m_vm,
+				"class A {\n" +
+				"	x = 1;\n" +
+				"	static s = 5;\n" +
+				"	constructor(v) { x = v; }\n" +
+				"	function name() { return \"a\"; }\n" +
+				"	function get() { return x; }\n" +
+				"}\n" +
+				"class B extends A {\n" +
+				"	constructor(v) { base.constructor(v + 1); }\n" +
+				"	function name() { return \"b\"; }\n" +
+				"}\n" +
+				"local b = B(2);\n" +
+				"return b.name() + \":\" + b.get() + \":\" + (B.s + (b instanceof A ? 2 : 0));"));
+	}
+	
+	@Test
+	public void generators() throws Exception {
+		assertEquals(Arrays.<Object>asList(1, 4, 9, 16), TestScripts.eval(m_vm,
+				"function squares(n) { for (local i = 1; i <= n; i++) yield i * i; }\n" +
+				"local res = [];\n" +
+				"foreach (v in squares(4)) res.append(v);\n" +
+				"return res;"));
+		assertEquals("1,2,dead", TestScripts.eval(m_vm,
+				"function g() { yield 1; yield 2; }\n" +
+				"local it = g();\n" +
+				"local a = resume it, b = resume it;\n" +
+				"resume it;\n" +
+				"return a + \",\" + b + \",\" + it.getstatus();"));
+	}
+	
+	@Test
+	public void closures() throws Exception {
+		assertEquals(Arrays.<Object>asList(3, 1, 2), TestScripts.eval(m_vm,
+				"function counter() { local n = 0; return function() { return ++n; }; }\n" +
+				"local a = counter(), b = counter();\n" +
+				"a(); a();\n" +
+				"local fs = [];\n" +
+				"for (local i = 1; i <= 2; i++) { local j = i; fs.append(function() { return j; }); }\n" +
+				"return [a(), b(), fs[1]() + fs[0]() - 1];"));
+		assertEquals(12, TestScripts.eval(m_vm,
+				"local k = 10;\n" +
+				"local f = @(x) x + k;\n" +
+				"k = 11;\n" +
+				"return f(1);"));
+	}
+	
+	@Test
+	public void switchStatement() throws Exception {
+		assertEquals("one,two three,other,s", TestScripts.eval(m_vm,
+				"function pick(v) {\n" +
+				"	local r = \"\";\n" +
+				"	switch (v) {\n" +
+				"		case 1: return \"one\";\n" +
+				"		case 2: r += \"two \";\n" +
+				"		case 3: r += \"three\"; break;\n" +
+				"		case \"s\": return \"s\";\n" +
+				"		default: r = \"other\";\n" +
+				"	}\n" +
+				"	return r;\n" +
+				"}\n" +
+				"return pick(1) + \",\" + pick(2) + \",\" + pick(9) + \",\" + pick(\"s\");"));
+	}
+	
+	@Test
+	public void exceptions() throws Exception {
+		assertEquals("caught boom;7", TestScripts.eval(m_vm,
+				"local log = \"\";\n" +
+				"try { throw \"boom\"; log = \"not reached\"; }\n" +
+				"catch (e) { log = \"caught \" + e; }\n" +
+				"function nested() { try { throw { code = 7 }; } catch (e) { throw e; } }\n" +
+				"local code = 0;\n" +
+				"try { nested(); } catch (e) { code = e.code; }\n" +
+				"return log + \";\" + code;"));
+		assertEquals("the index 'missing' does not exist", TestScripts.error(m_vm, "local t = {}; return t.missing;"));
+	}
+	
+	@Test
+	public void tableConstructors() throws Exception {
+		assertEquals(10, TestScripts.eval(m_vm, "local t = { \"a\": 1, b = 2, [\"c\"] = 3, function d() { return 4; } }; return t.a + t.b + t.c + t.d();"));
+	}
+	
+	@Test
+	public void compileErrorsReportTheLine() {
+		final int[] line = new int[1];
+		Squirrel.sq_setcompilererrorhandler(m_vm, new JSqCompilerErrorHandler() {
+			@Override
+			public void error(JSqVM v, String desc, String source, int l, int column) {
+				line[0] = l;
+			}
+		});
+		assertEquals("expression expected", TestScripts.error(m_vm, "local a = 1;\nlocal b = ;\n"));
+		assertEquals(2, line[0]);
+	}
+	
+}
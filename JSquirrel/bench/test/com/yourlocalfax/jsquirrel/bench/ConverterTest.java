@@ -0,0 +1,195 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqConverter;
+import com.yourlocalfax.jsquirrel.JSqObjectType;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that values pushed by a {@link JSqConverter} read back the same, with and without a schema.
+ * @author Christopher Foster
+ */
+public class ConverterTest {
+	
+	private JSqVM m_vm;
+	private JSqConverter m_converter;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+		m_converter = new JSqConverter();
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	private Object roundTrip(Object value) {
+		assertTrue(Squirrel.SQ_SUCCEDED(m_converter.push(m_vm, value)));
+		Object res = m_converter.get(m_vm, -1);
+		Squirrel.sq_pop(m_vm, 1);
+		return res;
+	}
+	
+	@Test
+	public void primitivesRoundTrip() {
+		assertNull(roundTrip(null));
+		assertEquals(42, roundTrip(42));
+		assertEquals(-7, roundTrip((short) -7));
+		assertEquals(1.5f, roundTrip(1.5));
+		assertEquals(true, roundTrip(true));
+		assertEquals("x", roundTrip('x'));
+		assertEquals("\u00fcber", roundTrip(new StringBuilder("\u00fcber")));
+		// Squirrel integers are 32 bits wide
+		assertEquals((int) (1L << 33 | 5), roundTrip(1L << 33 | 5));
+	}
+	
+	@Test
+	public void nestedValuesRoundTrip() {
+		Map<String, Object> inner = new LinkedHashMap<String, Object>();
+		inner.put("flag", false);
+		inner.put("list", Arrays.asList(1, "two", 3.0f, null));
+		Map<String, Object> outer = new LinkedHashMap<String, Object>();
+		outer.put("name", "outer");
+		outer.put("inner", inner);
+		outer.put("array", new Object[] { inner, 9 });
+		
+		Object res = roundTrip(outer);
+		assertEquals(outer.keySet(), ((Map<?, ?>) res).keySet());
+		assertEquals("outer", ((Map<?, ?>) res).get("name"));
+		assertEquals(inner, ((Map<?, ?>) res).get("inner"));
+		assertEquals(Arrays.asList(inner, 9), ((Map<?, ?>) res).get("array"));
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+	}
+	
+	@Test
+	public void scriptValuesReadAsJava() throws Exception {
+		Object res = TestScripts.eval(m_vm, "return { a = [1, 2.5, \"s\"], b = { c = true } };");
+		assertEquals(Arrays.asList(1, 2.5f, "s"), ((Map<?, ?>) res).get("a"));
+		assertEquals(true, ((Map<?, ?>) ((Map<?, ?>) res).get("b")).get("c"));
+	}
+	
+	@Test
+	public void schemaRoundTrip() throws Exception {
+		JSqConverter.Schema point = new JSqConverter.Schema().field("x", JSqObjectType.Integer).field("y", JSqObjectType.Float);
+		JSqConverter.Schema schema = new JSqConverter.Schema()
+				.field("id", JSqObjectType.Integer)
+				.field("name", JSqObjectType.String)
+				.field("on", JSqObjectType.Bool)
+				.field("at", point)
+				.field("extra", JSqObjectType.Array);
+		Map<String, Object> at = new LinkedHashMap<String, Object>();
+		at.put("x", 3L);
+		at.put("y", 0.25);
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("id", 12);
+		map.put("name", "pt");
+		map.put("on", true);
+		map.put("at", at);
+		map.put("extra", Arrays.asList("e"));
+		
+		assertTrue(Squirrel.SQ_SUCCEDED(m_converter.push(m_vm, map, schema)));
+		Map<String, Object> res = m_converter.get(m_vm, -1, schema);
+		assertEquals(Arrays.asList("id", "name", "on", "at", "extra"), Arrays.asList(res.keySet().toArray()));
+		assertEquals(12, res.get("id"));
+		assertEquals("pt", res.get("name"));
+		assertEquals(true, res.get("on"));
+		assertEquals(3, ((Map<?, ?>) res.get("at")).get("x"));
+		assertEquals(0.25f, ((Map<?, ?>) res.get("at")).get("y"));
+		assertEquals(Arrays.asList("e"), res.get("extra"));
+		assertEquals(1, Squirrel.sq_gettop(m_vm));
+		
+		// the pushed table is an ordinary Squirrel table
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_pushstring(m_vm, "t");
+		Squirrel.sq_push(m_vm, -3);
+		Squirrel.sq_newslot(m_vm, -3, false);
+		Squirrel.sq_settop(m_vm, 0);
+		assertEquals(3.25f, TestScripts.eval(m_vm, "return t.at.x + t.at.y;"));
+	}
+	
+	@Test
+	public void schemaGetFailsOnMissingField() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("a", 1);
+		assertTrue(Squirrel.SQ_SUCCEDED(m_converter.push(m_vm, map)));
+		JSqConverter.Schema schema = new JSqConverter.Schema().field("a", JSqObjectType.Integer).field("b", JSqObjectType.String);
+		assertNull(m_converter.get(m_vm, -1, schema));
+		assertEquals(1, Squirrel.sq_gettop(m_vm));
+	}
+	
+	@Test
+	public void schemaMismatchLeavesStackUnchanged() {
+		Squirrel.sq_pushinteger(m_vm, 1);
+		JSqConverter.Schema schema = new JSqConverter.Schema().field("a", JSqObjectType.Integer);
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("a", "not a number");
+		try {
+			m_converter.push(m_vm, map, schema);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("field a is declared Integer but holds java.lang.String", e.getMessage());
+		}
+		assertEquals(1, Squirrel.sq_gettop(m_vm));
+		
+		// the converter is still usable afterwards
+		map.put("a", 5);
+		assertTrue(Squirrel.SQ_SUCCEDED(m_converter.push(m_vm, map, schema)));
+		assertEquals(5, m_converter.get(m_vm, -1, schema).get("a"));
+	}
+	
+	@Test
+	public void unsupportedValueIsRejected() {
+		List<Object> list = Arrays.<Object>asList(1, new Object());
+		try {
+			m_converter.push(m_vm, list);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("cannot convert java.lang.Object to a Squirrel value", e.getMessage());
+		}
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+	}
+	
+}
@@ -0,0 +1,151 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqCursor;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that a {@link JSqCursor} visits every entry once, whether it's read chunk by chunk or fetched and split.
+ * @author Christopher Foster
+ */
+public class CursorTest {
+	
+	private static final int COUNT = 1000;
+	private static final long SUM = COUNT * (COUNT + 1L) / 2;
+	
+	private JSqVM m_vm;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+		TestScripts.eval(m_vm, "::list <- []; ::map <- {}; for (local i = 1; i <= " + COUNT + "; i++) { list.append(i); map[\"k\" + i] <- i; }");
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	private void pushRootSlot(String name) {
+		Squirrel.sq_pushroottable(m_vm);
+		Squirrel.sq_pushstring(m_vm, name);
+		assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_rawget(m_vm, -2)));
+	}
+	
+	@Test
+	public void readsArrayInChunks() {
+		pushRootSlot("list");
+		JSqCursor c = m_vm.cursor(-1, 7);
+		assertEquals(-1, c.remaining());
+		int expected = 0;
+		while (c.next()) {
+			assertEquals(expected, c.getKeyInt());
+			assertEquals(expected + 1, c.getInt());
+			expected++;
+		}
+		assertEquals(COUNT, expected);
+		assertFalse(c.next());
+	}
+	
+	@Test
+	public void readsTableInChunks() {
+		pushRootSlot("map");
+		JSqCursor c = m_vm.cursor(-1, 10);
+		long sum = 0;
+		int count = 0;
+		while (c.next()) {
+			assertEquals("k" + c.getInt(), c.getKeyString());
+			sum += c.getInt();
+			count++;
+		}
+		assertEquals(COUNT, count);
+		assertEquals(SUM, sum);
+	}
+	
+	@Test
+	public void splitPartsAddUpToTheWhole() {
+		pushRootSlot("map");
+		JSqCursor c = m_vm.cursor(-1, 16);
+		// part of the entries are read before fetching the rest
+		assertTrue(c.next());
+		long sum = c.getInt();
+		c.fetchAll();
+		assertEquals(COUNT - 1, c.remaining());
+		Squirrel.sq_settop(m_vm, 0); // the fetched cursor no longer reads the VM
+		
+		List<JSqCursor> parts = new ArrayList<JSqCursor>();
+		parts.add(c);
+		for (int i = 0; i < parts.size(); i++) {
+			JSqCursor split;
+			while ((split = parts.get(i).trySplit()) != null)
+				parts.add(split);
+		}
+		int remaining = 0;
+		for (JSqCursor part : parts) {
+			assertTrue(part.remaining() <= 1);
+			remaining += part.remaining();
+		}
+		assertEquals(COUNT - 1, remaining);
+		
+		int count = 1;
+		for (JSqCursor part : parts) {
+			while (part.next()) {
+				sum += part.getInt();
+				count++;
+			}
+			assertEquals(0, part.remaining());
+		}
+		assertEquals(COUNT, count);
+		assertEquals(SUM, sum);
+	}
+	
+	@Test
+	public void splitsOnlyOnceFetched() {
+		pushRootSlot("list");
+		JSqCursor c = m_vm.cursor(-1);
+		assertNull(c.trySplit());
+		JSqCursor split = c.fetchAll().trySplit();
+		assertEquals(COUNT / 2, c.remaining());
+		assertEquals(COUNT / 2, split.remaining());
+		assertTrue(split.next());
+		assertEquals(COUNT / 2, split.getKeyInt());
+	}
+	
+}
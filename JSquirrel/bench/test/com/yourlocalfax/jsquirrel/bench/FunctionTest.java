@@ -0,0 +1,129 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqFunction;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.JSquirrelException;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that a {@link JSqFunction} calls the function its name is bound to, following it when a script binds the
+ * name to another function.
+ * @author Christopher Foster
+ */
+public class FunctionTest {
+	
+	private JSqVM m_vm;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+		TestScripts.eval(m_vm, "function scale(a, b) { return a * b; }");
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Test
+	public void invokesWithIntegersAndFloats() throws Exception {
+		JSqFunction f = new JSqFunction(m_vm, "scale");
+		assertEquals(12, f.invoke(3, 4));
+		assertEquals(-6, f.invoke(2, -3));
+		assertEquals(1.25, f.invoke(2.5, 0.5), 0);
+		assertEquals(20, f.invoke(4, 5));
+		assertEquals(0, f.getRebinds());
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+		f.release();
+	}
+	
+	@Test
+	public void followsRebinds() throws Exception {
+		JSqFunction f = new JSqFunction(m_vm, "scale");
+		assertEquals(12, f.invoke(3, 4));
+		
+		TestScripts.eval(m_vm, "::scale <- function(a, b) { return a + b; };");
+		assertEquals(7, f.invoke(3, 4));
+		assertEquals(1, f.getRebinds());
+		assertEquals(9, f.invoke(4, 5));
+		assertEquals(1, f.getRebinds());
+		
+		// the float batch is recorded against the new closure too
+		TestScripts.eval(m_vm, "::scale <- function(a, b) { return a - b; };");
+		assertEquals(-1.5, f.invoke(1.0, 2.5), 0);
+		assertEquals(2, f.getRebinds());
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+		f.release();
+	}
+	
+	@Test
+	public void failsOnceUnbound() throws Exception {
+		JSqFunction f = new JSqFunction(m_vm, "scale");
+		TestScripts.eval(m_vm, "delete ::scale;");
+		try {
+			f.invoke(1, 2);
+			fail();
+		}
+		catch (JSquirrelException e) {
+			assertEquals("The function scale is not bound.", e.getMessage());
+		}
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+		f.release();
+		
+		try {
+			new JSqFunction(m_vm, "scale");
+			fail();
+		}
+		catch (JSquirrelException e) {
+			assertEquals("The function scale is not bound.", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void reportsScriptErrors() throws Exception {
+		TestScripts.eval(m_vm, "function fail(a) { throw \"bad \" + a; }");
+		JSqFunction f = new JSqFunction(m_vm, "fail");
+		try {
+			f.invoke(3);
+			fail();
+		}
+		catch (JSquirrelException e) {
+			assertEquals("The call to fail failed: bad 3", e.getMessage());
+		}
+		assertEquals(0, Squirrel.sq_gettop(m_vm));
+		f.release();
+	}
+	
+}
@@ -0,0 +1,110 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks the runtime behavior of the interpreter of the Java backend.
+ * @author Christopher Foster
+ */
+public class InterpreterTest {
+	
+	private JSqVM m_vm;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Test
+	public void deepRecursion() throws Exception {
+		assertEquals(50005000, TestScripts.eval(m_vm,
+				"function sum(n) { return n == 0 ? 0 : n + sum(n - 1); }\n" +
+				"return sum(10000);"));
+	}
+	
+	@Test
+	public void tailCallsDontNest() throws Exception {
+		assertEquals(1000000, TestScripts.eval(m_vm,
+				"function count(n, acc) { if (n == 0) return acc; return count(n - 1, acc + 1); }\n" +
+				"return count(1000000, 0);"));
+	}
+	
+	@Test
+	public void stackOverflowIsCatchable() throws Exception {
+		assertEquals("stack overflow", TestScripts.eval(m_vm,
+				"function down(n) { return 1 + down(n + 1); }\n" +
+				"try { down(0); } catch (e) { return e; }"));
+		// the VM is still usable afterwards
+		assertEquals(3, TestScripts.eval(m_vm, "return 1 + 2;"));
+		assertEquals("stack overflow", TestScripts.error(m_vm, "function down() { return 1 + down(); } down();"));
+	}
+	
+	@Test
+	public void metamethods() throws Exception {
+		assertEquals("v(4,6):5:x", TestScripts.eval(m_vm,
+				"class V {\n" +
+				"	x = 0; y = 0;\n" +
+				"	constructor(a, b) { x = a; y = b; }\n" +
+				"	function _add(o) { return V(x + o.x, y + o.y); }\n" +
+				"	function _tostring() { return \"v(\" + x + \",\" + y + \")\"; }\n" +
+				"	function _get(k) { if (k == \"len\") return 5; throw null; }\n" +
+				"}\n" +
+				"local t = { _get = function(k) { return k; } };\n" +
+				"local d = {}.setdelegate(t);\n" +
+				"return (V(1, 2) + V(3, 4)).tostring() + \":\" + V(0, 0).len + \":\" + d.x;"));
+		assertEquals("the index 'nope' does not exist", TestScripts.error(m_vm,
+				"class W { function _get(k) { throw null; } } return W().nope;"));
+	}
+	
+	@Test
+	public void errorsUnwindThroughFrames() throws Exception {
+		assertEquals("3:inner", TestScripts.eval(m_vm,
+				"local depth = 0;\n" +
+				"function f(n) { depth++; if (n == 0) throw \"inner\"; return f(n - 1) + 1; }\n" +
+				"try { f(2); } catch (e) { return depth + \":\" + e; }"));
+	}
+	
+	@Test
+	public void integerAndFloatArithmetic() throws Exception {
+		assertEquals("3,3.5,-2,1,8", TestScripts.eval(m_vm,
+				"return (7 / 2) + \",\" + (7 / 2.0) + \",\" + (-7 / 3) + \",\" + (-7 % 3 + 2) + \",\" + (1 << 3);"));
+	}
+	
+}
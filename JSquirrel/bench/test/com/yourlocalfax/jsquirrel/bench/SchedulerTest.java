@@ -0,0 +1,193 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yourlocalfax.jsquirrel.JSqConverter;
+import com.yourlocalfax.jsquirrel.JSqScheduler;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.JSquirrelException;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that every wait of a {@link JSqScheduler} thread ends exactly once, by its timer or by a wakeup,
+ * even when both race.
+ * @author Christopher Foster
+ */
+public class SchedulerTest {
+	
+	private static final int TASKS = 8;
+	private static final int WAITS = 300;
+	
+	private JSqVM m_vm;
+	private ExecutorService m_executor;
+	private ScheduledExecutorService m_timer;
+	private JSqScheduler m_scheduler;
+	
+	private final Map<JSqScheduler.Task, Object> m_results = new ConcurrentHashMap<JSqScheduler.Task, Object>();
+	private CountDownLatch m_finished;
+	
+	private final JSqScheduler.Listener m_listener = new JSqScheduler.Listener() {
+		@Override
+		public void finished(JSqScheduler.Task task, JSqVM thread) {
+			Object res = task.isFailed() ? "failed" : new JSqConverter().get(thread, -1);
+			m_results.put(task, res != null ? res : "null");
+			m_finished.countDown();
+		}
+	};
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+		m_executor = Executors.newFixedThreadPool(2);
+		m_timer = Executors.newScheduledThreadPool(2);
+		m_scheduler = new JSqScheduler(m_vm, m_executor, m_timer);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		m_executor.shutdown();
+		m_timer.shutdown();
+		assertTrue(m_executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(m_timer.awaitTermination(10, TimeUnit.SECONDS));
+		Squirrel.sq_close(m_vm);
+	}
+	
+	/**
+	 * Spawns a thread running each script, from within the scheduler since the first one gives it work.
+	 */
+	private List<JSqScheduler.Task> spawn(final String... sources) throws Exception {
+		final List<JSqScheduler.Task> tasks = new ArrayList<JSqScheduler.Task>();
+		final CountDownLatch spawned = new CountDownLatch(1);
+		m_scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String source : sources) {
+						if (Squirrel.SQ_FAILED(Squirrel.sq_compilebuffer(m_vm, source, "test", true)))
+							return;
+						Squirrel.sq_pushroottable(m_vm);
+						tasks.add(m_scheduler.spawn(256, 1, m_listener));
+					}
+				}
+				catch (JSquirrelException e) {
+				}
+				finally {
+					spawned.countDown();
+				}
+			}
+		});
+		assertTrue(spawned.await(10, TimeUnit.SECONDS));
+		assertEquals(sources.length, tasks.size());
+		return tasks;
+	}
+	
+	@Test
+	public void resumesOnTimerAndWakeup() throws Exception {
+		m_finished = new CountDownLatch(2);
+		List<JSqScheduler.Task> tasks = spawn("return [::suspend(5), ::suspend(0)];", "return ::suspend() + 1;");
+		JSqScheduler.Task timed = tasks.get(0);
+		JSqScheduler.Task woken = tasks.get(1);
+		while (!woken.isWaiting())
+			Thread.yield();
+		assertTrue(woken.wakeup(41));
+		assertFalse(woken.wakeup(0));
+		assertTrue(m_finished.await(10, TimeUnit.SECONDS));
+		
+		assertEquals(42, m_results.get(woken));
+		List<Object> nulls = new ArrayList<Object>();
+		nulls.add(null);
+		nulls.add(null);
+		assertEquals(nulls, m_results.get(timed));
+		assertTrue(timed.isDone());
+		assertFalse(timed.isFailed());
+		assertEquals(0, m_scheduler.getTaskCount());
+	}
+	
+	@Test
+	public void eachWaitEndsOnce() throws Exception {
+		m_finished = new CountDownLatch(TASKS);
+		String source = "local res = []; for (local i = 0; i < " + WAITS + "; i++) res.append(::suspend(i % 2)); return res;";
+		String[] sources = new String[TASKS];
+		Arrays.fill(sources, source);
+		List<JSqScheduler.Task> tasks = spawn(sources);
+		
+		// one thread per task wakes every wait it can, racing the timers
+		final Map<JSqScheduler.Task, List<Object>> delivered = new ConcurrentHashMap<JSqScheduler.Task, List<Object>>();
+		List<Thread> wakers = new ArrayList<Thread>();
+		for (final JSqScheduler.Task task : tasks) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					List<Object> values = new ArrayList<Object>();
+					for (int value = 0; !task.isDone(); ) {
+						if (task.isWaiting() && task.wakeup(value))
+							values.add(value++);
+					}
+					delivered.put(task, values);
+				}
+			};
+			t.start();
+			wakers.add(t);
+		}
+		assertTrue(m_finished.await(60, TimeUnit.SECONDS));
+		for (Thread t : wakers)
+			t.join();
+		
+		for (JSqScheduler.Task task : tasks) {
+			assertFalse(task.isFailed());
+			List<?> res = (List<?>) m_results.get(task);
+			assertEquals(WAITS, res.size());
+			// the values that were delivered come back in order, every other wait ended by its timer
+			List<Object> woken = new ArrayList<Object>();
+			for (Object o : res) {
+				if (o != null)
+					woken.add(o);
+			}
+			assertEquals(delivered.get(task), woken);
+		}
+		assertEquals(0, m_scheduler.getTaskCount());
+	}
+	
+}
@@ -0,0 +1,185 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.yourlocalfax.jsquirrel.JSqConverter;
+import com.yourlocalfax.jsquirrel.JSqScriptCache;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Checks that closures survive {@link Squirrel#sq_writeclosure} and {@link Squirrel#sq_readclosure}, and that
+ * {@link JSqScriptCache} reuses its entries.
+ * @author Christopher Foster
+ */
+public class SerializationTest {
+	
+	private static final String SCRIPT =
+			"const LIMIT = 3;\n" +
+			"enum Color { Red, Green = 5 }\n" +
+			"class Box { v = 0.5; constructor(x) { v = x; } function twice() { return v * 2; } }\n" +
+			"function join(a, b = \"-\") { return a + b; }\n" +
+			"function count(...) { return vargv.len(); }\n" +
+			"local gen = function() { for (local i = 0; i < LIMIT; i++) yield i; };\n" +
+			"local sum = 0;\n" +
+			"foreach (i in gen()) sum += i;\n" +
+			"return [sum, Color.Green, Box(1.25).twice(), join(\"x\"), join(\"a\", \"+\") + count(1, 2), \"\u00e9t\u00e9\"];";
+	
+	@Rule
+	public final TemporaryFolder m_folder = new TemporaryFolder();
+	
+	private JSqVM m_vm;
+	
+	@Before
+	public void setup() throws Exception {
+		m_vm = TestScripts.open();
+	}
+	
+	@After
+	public void tearDown() {
+		Squirrel.sq_setscriptcache(null);
+		Squirrel.sq_close(m_vm);
+	}
+	
+	@Test
+	public void roundTrip() throws Exception {
+		Object expected = TestScripts.eval(m_vm, SCRIPT);
+		assertEquals(Arrays.<Object>asList(3, 5, 2.5f, "x-", "a+2", "\u00e9t\u00e9"), expected);
+		byte[] written = write(SCRIPT);
+		
+		// read back from a channel and from a buffer, each into a fresh VM
+		JSqVM v = TestScripts.open();
+		try {
+			assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_readclosure(v, Channels.newChannel(new ByteArrayInputStream(written)))));
+			assertEquals(expected, call(v));
+		}
+		finally {
+			Squirrel.sq_close(v);
+		}
+		v = TestScripts.open();
+		try {
+			assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_readclosure(v, ByteBuffer.wrap(written))));
+			assertEquals(expected, call(v));
+			// writing the closure that was read gives the same bytes
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Squirrel.sq_compilebuffer(v, SCRIPT, "test", true);
+			Squirrel.sq_writeclosure(v, Channels.newChannel(out));
+			assertArrayEquals(written, out.toByteArray());
+		}
+		finally {
+			Squirrel.sq_close(v);
+		}
+	}
+	
+	@Test
+	public void truncatedStreamFails() throws Exception {
+		byte[] written = write("return 1;");
+		int top = Squirrel.sq_gettop(m_vm);
+		assertTrue(Squirrel.SQ_FAILED(Squirrel.sq_readclosure(m_vm, ByteBuffer.wrap(written, 0, written.length / 2))));
+		assertEquals(top, Squirrel.sq_gettop(m_vm));
+	}
+	
+	@Test
+	public void cacheMissStoresAndHitLoads() throws Exception {
+		int closureSize = write("return 1 + 2;").length;
+		byte[] other = write("return 42;");
+		File dir = m_folder.newFolder("cache");
+		Squirrel.sq_setscriptcache(new JSqScriptCache(dir.toPath()));
+		assertEquals(3, TestScripts.eval(m_vm, "return 1 + 2;"));
+		File[] entries = dir.listFiles();
+		assertEquals(1, entries.length);
+		
+		// Swap the closure in the entry for another one behind the same header, a hit runs the swapped closure
+		byte[] entry = Files.readAllBytes(entries[0].toPath());
+		int header = entry.length - closureSize;
+		byte[] swapped = Arrays.copyOf(entry, header + other.length);
+		System.arraycopy(other, 0, swapped, header, other.length);
+		Files.write(entries[0].toPath(), swapped);
+		assertEquals(42, TestScripts.eval(m_vm, "return 1 + 2;"));
+		
+		// another source misses and gets an entry of its own
+		assertEquals(7, TestScripts.eval(m_vm, "return 3 + 4;"));
+		assertEquals(2, dir.listFiles().length);
+	}
+	
+	@Test
+	public void brokenCacheEntryIsReplaced() throws Exception {
+		File dir = m_folder.newFolder("cache");
+		Squirrel.sq_setscriptcache(new JSqScriptCache(dir.toPath()));
+		assertEquals(3, TestScripts.eval(m_vm, "return 1 + 2;"));
+		File entry = dir.listFiles()[0];
+		byte[] bytes = Files.readAllBytes(entry.toPath());
+		Files.write(entry.toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+		assertEquals(3, TestScripts.eval(m_vm, "return 1 + 2;"));
+		assertArrayEquals(bytes, Files.readAllBytes(entry.toPath()));
+	}
+	
+	/**
+	 * @return The closure compiled from {@code source} as written by sq_writeclosure.
+	 */
+	private byte[] write(String source) throws Exception {
+		int top = Squirrel.sq_gettop(m_vm);
+		try {
+			assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_compilebuffer(m_vm, source, "test", true)));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_writeclosure(m_vm, Channels.newChannel(out))));
+			return out.toByteArray();
+		}
+		finally {
+			Squirrel.sq_settop(m_vm, top);
+		}
+	}
+	
+	/**
+	 * Calls the closure on top of the stack and pops it.
+	 */
+	private static Object call(JSqVM v) {
+		Squirrel.sq_pushroottable(v);
+		assertTrue(Squirrel.SQ_SUCCEDED(Squirrel.sq_call(v, 1, true, true)));
+		Object res = new JSqConverter().get(v, -1);
+		Squirrel.sq_pop(v, 2);
+		return res;
+	}
+	
+}
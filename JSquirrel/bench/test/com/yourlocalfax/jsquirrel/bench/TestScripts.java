@@ -0,0 +1,88 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+
+package com.yourlocalfax.jsquirrel.bench;
+
+import com.yourlocalfax.jsquirrel.JSqBackend;
+import com.yourlocalfax.jsquirrel.JSqConverter;
+import com.yourlocalfax.jsquirrel.JSqObjectType;
+import com.yourlocalfax.jsquirrel.JSqVM;
+import com.yourlocalfax.jsquirrel.JSquirrelException;
+import com.yourlocalfax.jsquirrel.Squirrel;
+
+/**
+ * Runs scripts on {@link JSqBackend#Java Java} backend VMs for the tests, which don't need the native library.
+ * @author Christopher Foster
+ */
+final class TestScripts {
+	
+	private TestScripts() {
+	}
+	
+	static JSqVM open() throws JSquirrelException {
+		return Squirrel.sq_open(1024, JSqBackend.Java);
+	}
+	
+	/**
+	 * Compiles {@code source} and calls it with the root table as {@code this}.
+	 * @return The return value as read by {@link JSqConverter#get(JSqVM, int)}.
+	 * @throws JSquirrelException With the error of the script if compiling or running it failed.
+	 */
+	static Object eval(JSqVM v, String source) throws JSquirrelException {
+		int top = Squirrel.sq_gettop(v);
+		try {
+			if (Squirrel.SQ_FAILED(Squirrel.sq_compilebuffer(v, source, "test", true)))
+				throw new JSquirrelException(lastError(v));
+			Squirrel.sq_pushroottable(v);
+			if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, 1, true, true)))
+				throw new JSquirrelException(lastError(v));
+			return new JSqConverter().get(v, -1);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	/**
+	 * @return The error compiling or running {@code source} raised, null if it didn't raise one.
+	 */
+	static String error(JSqVM v, String source) {
+		try {
+			eval(v, source);
+			return null;
+		}
+		catch (JSquirrelException e) {
+			return e.getMessage();
+		}
+	}
+	
+	private static String lastError(JSqVM v) {
+		Squirrel.sq_getlasterror(v);
+		String error = Squirrel.sq_gettype(v, -1) == JSqObjectType.String ? Squirrel.sq_getstring(v, -1) : String.valueOf(new JSqConverter().get(v, -1));
+		Squirrel.sq_pop(v, 1);
+		return error;
+	}
+	
+}
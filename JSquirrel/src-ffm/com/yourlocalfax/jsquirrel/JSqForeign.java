@@ -0,0 +1,117 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to native memory owned by a Squirrel VM as {@link MemorySegment}s. Needs Java 22.
+ * <br><br>
+ * Works with native VMs on either bridge. VMs on the {@link JSqBackend#Java Java} backend have no native memory.
+ * @author Christopher Foster
+ */
+public final class JSqForeign {
+	
+	private JSqForeign() {
+	}
+	
+	/**
+	 * Creates a new userdata and pushes it on the stack.
+	 * @param v The target Squirrel VM.
+	 * @param size The size of the userdata in bytes.
+	 * @return The memory of the userdata, valid while the userdata is alive.
+	 */
+	public static MemorySegment sq_newuserdata(JSqVM v, long size) {
+		checkNative(v);
+		return MemorySegment.ofAddress(Squirrel.NATIVE.sq_newuserdata(v.m_nativeHandle, size)).reinterpret(size);
+	}
+	
+	/**
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @return The memory of the userdata at {@code idx}, valid while the userdata is alive,
+	 * or {@link MemorySegment#NULL} if it isn't a userdata.
+	 */
+	public static MemorySegment sq_getuserdata(JSqVM v, int idx) {
+		checkNative(v);
+		long p = Squirrel.NATIVE.sq_getuserdata(v.m_nativeHandle, idx)[0];
+		if (p == 0)
+			return MemorySegment.NULL;
+		return MemorySegment.ofAddress(p).reinterpret(Squirrel.NATIVE.sq_getsize(v.m_nativeHandle, idx));
+	}
+	
+	/**
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @return The user pointer at {@code idx} as a zero length segment.
+	 */
+	public static MemorySegment sq_getuserpointer(JSqVM v, int idx) {
+		checkNative(v);
+		return MemorySegment.ofAddress(Squirrel.NATIVE.sq_getuserpointer(v.m_nativeHandle, idx));
+	}
+	
+	/**
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @param typetag The type tag the class of the instance must have, or {@link MemorySegment#NULL} to accept any.
+	 * @return The user pointer of the instance at {@code idx} as a zero length segment.
+	 */
+	public static MemorySegment sq_getinstanceup(JSqVM v, int idx, MemorySegment typetag) {
+		checkNative(v);
+		return MemorySegment.ofAddress(Squirrel.NATIVE.sq_getinstanceup(v.m_nativeHandle, idx, typetag.address()));
+	}
+	
+	/**
+	 * Pushes a string given as UTF-8 bytes. Native segments are read in place without copying them first.
+	 * @param v The target Squirrel VM.
+	 * @param utf8 The bytes of the string.
+	 * @see Squirrel#sq_pushstring(JSqVM, ByteBuffer)
+	 */
+	public static void sq_pushstring(JSqVM v, MemorySegment utf8) {
+		Squirrel.sq_pushstring(v, utf8.asByteBuffer());
+	}
+	
+	/**
+	 * Borrows the string at {@code idx} as read-only UTF-8 bytes, without copying them.
+	 * The segment is only valid while the string is alive and the VM isn't otherwise changed.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @return The bytes of the string, or {@link MemorySegment#NULL} if it isn't a string.
+	 * @see Squirrel#sq_getstringview(JSqVM, int)
+	 */
+	public static MemorySegment sq_getstring(JSqVM v, int idx) {
+		checkNative(v);
+		ByteBuffer view = Squirrel.NATIVE.sq_getstringview(v.m_nativeHandle, idx);
+		return view == null ? MemorySegment.NULL : MemorySegment.ofBuffer(view);
+	}
+	
+	private static void checkNative(JSqVM v) {
+		v.checkOwner();
+		if (v.m_interp != null)
+			throw new IllegalArgumentException("VMs on the Java backend have no native memory");
+	}
+	
+}
@@ -0,0 +1,2217 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The FFM bridge, calling the Squirrel C API of a {@code libsquirrel} shared library through
+ * {@code java.lang.foreign} downcall handles, without the JSquirrel JNI library. Needs Java 22.
+ * <br><br>
+ * The library is found with the {@code jsquirrel.ffm.library} system property, a library name looked up like
+ * {@code dlopen} does or a path, {@code squirrel} by default. Squirrel must be built with 8 bit {@code SQChar} and
+ * 32 bit {@code SQFloat}; set {@code jsquirrel.ffm.sq64} to true for a library built with {@code _SQ64}.
+ * <br><br>
+ * Calls that can't run a script or a metamethod use critical linkage, so they cost little more than a Java call.
+ * {@code HSQUIRRELVM} and other pointers are passed as {@code long}, which limits the bridge to 64 bit platforms.
+ * @author Christopher Foster
+ */
+final class JSqForeignBridge extends JSqNativeBridge {
+	
+	static final String LIBRARY_PROPERTY = "jsquirrel.ffm.library";
+	static final String SQ64_PROPERTY = "jsquirrel.ffm.sq64";
+	
+	private static final Linker LINKER = Linker.nativeLinker();
+	private static final SymbolLookup LIBRARY = openLibrary(System.getProperty(LIBRARY_PROPERTY, "squirrel"));
+	
+	private static final Linker.Option CRITICAL = Linker.Option.critical(false);
+	private static final Linker.Option CRITICAL_HEAP = Linker.Option.critical(true);
+	
+	/** SQInteger, SQUnsignedInteger, SQBool, SQHash and SQRESULT. */
+	private static final ValueLayout SQINTEGER = Boolean.getBoolean(SQ64_PROPERTY) ? JAVA_LONG : JAVA_INT;
+	
+	/** HSQOBJECT, an SQObjectType and the value union. */
+	private static final MemoryLayout HSQOBJECT = MemoryLayout.structLayout(
+			JAVA_INT.withName("_type"), MemoryLayout.paddingLayout(4), JAVA_LONG.withName("_unVal"));
+	
+	private static final MethodHandle MALLOC = LINKER.downcallHandle(LINKER.defaultLookup().find("malloc").orElseThrow(),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle FREE = LINKER.downcallHandle(LINKER.defaultLookup().find("free").orElseThrow(),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	
+	/** Room for the out parameters of a call, SQFunctionInfo being the largest. */
+	private static final ThreadLocal<MemorySegment> SCRATCH = ThreadLocal.withInitial(() -> Arena.ofAuto().allocate(32, 8));
+	
+	private static final ThreadLocal<ByteArrayOutputStream> WRITE_TARGET = new ThreadLocal<>();
+	private static final ThreadLocal<long[]> READ_SOURCE = new ThreadLocal<>(); // address and bytes left
+	private static final MemorySegment WRITE_FUNC = upcall("write");
+	private static final MemorySegment READ_FUNC = upcall("read");
+	/** The SQFUNCTION of every closure created by sq_newclosure. */
+	private static final MemorySegment CLOSURE_FUNC = closureUpcall();
+	/** The SQDEBUGHOOK installed by sq_setnativedebughook, counting steps for JSqBudget. */
+	private static final MemorySegment DEBUG_HOOK = debugHookUpcall();
+	
+	private static final MethodHandle SQ_OPEN = downcall("sq_open", MethodType.methodType(long.class, int.class),
+			FunctionDescriptor.of(JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_NEWTHREAD = downcall("sq_newthread", MethodType.methodType(long.class, long.class, int.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_CLOSE = downcall("sq_close", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG));
+	private static final MethodHandle SQ_SUSPENDVM = downcall("sq_suspendvm", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_WAKEUPVM = downcall("sq_wakeupvm", MethodType.methodType(int.class, long.class, boolean.class, boolean.class, boolean.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_GETVMSTATE = downcall("sq_getvmstate", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETVERSION = downcall("sq_getversion", MethodType.methodType(int.class),
+			FunctionDescriptor.of(SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_COMPILEBUFFER = downcall("sq_compilebuffer", MethodType.methodType(int.class, long.class, long.class, int.class, long.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG, SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_ENABLEDEBUGINFO = downcall("sq_enabledebuginfo", MethodType.methodType(void.class, long.class, boolean.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_SETNATIVEDEBUGHOOK = downcall("sq_setnativedebughook", MethodType.methodType(void.class, long.class, MemorySegment.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, ADDRESS), CRITICAL);
+	private static final MethodHandle SQ_NOTIFYALLEXCEPTIONS = downcall("sq_notifyallexceptions", MethodType.methodType(void.class, long.class, boolean.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_PUSH = downcall("sq_push", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_POP = downcall("sq_pop", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_POPTOP = downcall("sq_poptop", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_REMOVE = downcall("sq_remove", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_GETTOP = downcall("sq_gettop", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_SETTOP = downcall("sq_settop", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_RESERVESTACK = downcall("sq_reservestack", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_CMP = downcall("sq_cmp", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_MOVE = downcall("sq_move", MethodType.methodType(void.class, long.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_NEWUSERDATA = downcall("sq_newuserdata", MethodType.methodType(long.class, long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_NEWTABLE = downcall("sq_newtable", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_NEWTABLEEX = downcall("sq_newtableex", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_NEWARRAY = downcall("sq_newarray", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_NEWCLOSURE = downcall("sq_newclosure", MethodType.methodType(void.class, long.class, MemorySegment.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, ADDRESS, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_SETPARAMSCHECK = downcall("sq_setparamscheck", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_BINDENV = downcall("sq_bindenv", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_PUSHSTRING = downcall("sq_pushstring", MethodType.methodType(void.class, long.class, MemorySegment.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, ADDRESS, SQINTEGER), CRITICAL_HEAP);
+	private static final MethodHandle SQ_PUSHFLOAT = downcall("sq_pushfloat", MethodType.methodType(void.class, long.class, float.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, JAVA_FLOAT), CRITICAL);
+	private static final MethodHandle SQ_PUSHINTEGER = downcall("sq_pushinteger", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_PUSHBOOL = downcall("sq_pushbool", MethodType.methodType(void.class, long.class, boolean.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_PUSHSERPOINTER = downcall("sq_pushuserpointer", MethodType.methodType(void.class, long.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_PUSHNULL = downcall("sq_pushnull", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETTYPE = downcall("sq_gettype", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(JAVA_INT, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_TYPEOF = downcall("sq_typeof", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GETSIZE = downcall("sq_getsize", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_GETHASH = downcall("sq_gethash", MethodType.methodType(long.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_GETBASE = downcall("sq_getbase", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_INSTANCEOF = downcall("sq_instanceof", MethodType.methodType(boolean.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_TOSTRING = downcall("sq_tostring", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_TOBOOL = downcall("sq_tobool", MethodType.methodType(void.class, long.class, int.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETSTRING = downcall("sq_getstring", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETINTEGER = downcall("sq_getinteger", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETFLOAT = downcall("sq_getfloat", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETBOOL = downcall("sq_getbool", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETTHREAD = downcall("sq_getthread", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETUSERPOINTER = downcall("sq_getuserpointer", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETUSERDATA = downcall("sq_getuserdata", MethodType.methodType(int.class, long.class, int.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_SETTYPETAG = downcall("sq_settypetag", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETTYPETAG = downcall("sq_gettypetag", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETFUNCTIONINFO = downcall("sq_getfunctioninfo", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_GETCLOSUREINFO = downcall("sq_getclosureinfo", MethodType.methodType(int.class, long.class, int.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETCLOSURENAME = downcall("sq_getclosurename", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_SETNATIVECLOSURENAME = downcall("sq_setnativeclosurename", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_SETINSTANCEUP = downcall("sq_setinstanceup", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETINSTANCEUP = downcall("sq_getinstanceup", MethodType.methodType(int.class, long.class, int.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_SETCLASSUDSIZE = downcall("sq_setclassudsize", MethodType.methodType(int.class, long.class, int.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_NEWCLASS = downcall("sq_newclass", MethodType.methodType(int.class, long.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_CREATEINSTANCE = downcall("sq_createinstance", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_SETATTRIBUTES = downcall("sq_setattributes", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GETATTRIBUTES = downcall("sq_getattributes", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GETCLASS = downcall("sq_getclass", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_WEAKREF = downcall("sq_weakref", MethodType.methodType(void.class, long.class, int.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_GETDEFAULTDELEGATE = downcall("sq_getdefaultdelegate", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_INT), CRITICAL);
+	private static final MethodHandle SQ_GETMEMBERHANDLE = downcall("sq_getmemberhandle", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_GETBYHANDLE = downcall("sq_getbyhandle", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_SETBYHANDLE = downcall("sq_setbyhandle", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_PUSHROOTTABLE = downcall("sq_pushroottable", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_PUSHREGISTRYTABLE = downcall("sq_pushregistrytable", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_PUSHCONSTTABLE = downcall("sq_pushconsttable", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_SETROOTTABLE = downcall("sq_setroottable", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_SETCONSTTABLE = downcall("sq_setconsttable", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_NEWSLOT = downcall("sq_newslot", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_DELETESLOT = downcall("sq_deleteslot", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_SET = downcall("sq_set", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GET = downcall("sq_get", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_RAWSET = downcall("sq_rawset", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_RAWGET = downcall("sq_rawget", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_RAWDELETESLOT = downcall("sq_rawdeleteslot", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_NEWMEMBER = downcall("sq_newmember", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_RAWNEWMEMBER = downcall("sq_rawnewmember", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_ARRAYAPPEND = downcall("sq_arrayappend", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_ARRAYPOP = downcall("sq_arraypop", MethodType.methodType(int.class, long.class, int.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_ARRAYRESIZE = downcall("sq_arrayresize", MethodType.methodType(int.class, long.class, int.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_ARRAYREVERSE = downcall("sq_arrayreverse", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_ARRAYREMOVE = downcall("sq_arrayremove", MethodType.methodType(int.class, long.class, int.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_ARRAYINSERT = downcall("sq_arrayinsert", MethodType.methodType(int.class, long.class, int.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_SETDELEGATE = downcall("sq_setdelegate", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GETDELEGATE = downcall("sq_getdelegate", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_CLONE = downcall("sq_clone", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_SETFREEVARIABLE = downcall("sq_setfreevariable", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_NEXT = downcall("sq_next", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_GETWEAKREFVAL = downcall("sq_getweakrefval", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_CLEAR = downcall("sq_clear", MethodType.methodType(int.class, long.class, int.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER));
+	private static final MethodHandle SQ_CALL = downcall("sq_call", MethodType.methodType(int.class, long.class, int.class, boolean.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_RESUME = downcall("sq_resume", MethodType.methodType(int.class, long.class, boolean.class, boolean.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, SQINTEGER));
+	private static final MethodHandle SQ_GETLOCAL = downcall("sq_getlocal", MethodType.methodType(long.class, long.class, long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, SQINTEGER, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_GETCALLEE = downcall("sq_getcallee", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETFREEVARIABLE = downcall("sq_getfreevariable", MethodType.methodType(long.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, SQINTEGER, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_THROWERROR = downcall("sq_throwerror", MethodType.methodType(int.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG));
+	private static final MethodHandle SQ_THROWOBJECT = downcall("sq_throwobject", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_RESETERROR = downcall("sq_reseterror", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETLASTERROR = downcall("sq_getlasterror", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETSTACKOBJ = downcall("sq_getstackobj", MethodType.methodType(int.class, long.class, int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_PUSHOBJECT = downcall("sq_pushobject", MethodType.methodType(void.class, long.class, MemorySegment.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, HSQOBJECT), CRITICAL);
+	private static final MethodHandle SQ_ADDREF = downcall("sq_addref", MethodType.methodType(void.class, long.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_RELEASE = downcall("sq_release", MethodType.methodType(boolean.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG));
+	private static final MethodHandle SQ_GETREFCOUNT = downcall("sq_getrefcount", MethodType.methodType(long.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_RESETOBJECT = downcall("sq_resetobject", MethodType.methodType(void.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_OBJTOSTRING = downcall("sq_objtostring", MethodType.methodType(long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_OBJTOBOOL = downcall("sq_objtobool", MethodType.methodType(boolean.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_OBJTOINTEGER = downcall("sq_objtointeger", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_OBJTOFLOAT = downcall("sq_objtofloat", MethodType.methodType(float.class, long.class),
+			FunctionDescriptor.of(JAVA_FLOAT, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_OBJTOUSERPOINTER = downcall("sq_objtouserpointer", MethodType.methodType(long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_GETOBJTYPETAG = downcall("sq_getobjtypetag", MethodType.methodType(int.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG), CRITICAL);
+	private static final MethodHandle SQ_COLLECTGARBAGE = downcall("sq_collectgarbage", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_RESURRECTUNREACHABLE = downcall("sq_resurrectunreachable", MethodType.methodType(int.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG));
+	private static final MethodHandle SQ_WRITECLOSURE = downcall("sq_writeclosure", MethodType.methodType(int.class, long.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG, JAVA_LONG));
+	private static final MethodHandle SQ_READCLOSURE = downcall("sq_readclosure", MethodType.methodType(int.class, long.class, long.class, long.class),
+			FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG, JAVA_LONG));
+	private static final MethodHandle SQ_MALLOC = downcall("sq_malloc", MethodType.methodType(long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_REALLOC = downcall("sq_realloc", MethodType.methodType(long.class, long.class, long.class, long.class),
+			FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, SQINTEGER, SQINTEGER), CRITICAL);
+	private static final MethodHandle SQ_FREE = downcall("sq_free", MethodType.methodType(void.class, long.class, long.class),
+			FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER), CRITICAL);
+	
+	// SquirrelVM
+	
+	@Override
+	long sq_open(int initialStackSize) {
+		try {
+			return (long) SQ_OPEN.invokeExact(initialStackSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_newthread(long v, int initialStackSize) {
+		try {
+			return (long) SQ_NEWTHREAD.invokeExact(v, initialStackSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_close(long v) {
+		try {
+			SQ_CLOSE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_suspendvm(long v) {
+		try {
+			return (int) SQ_SUSPENDVM.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_wakeupvm(long v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError) {
+		try {
+			return (int) SQ_WAKEUPVM.invokeExact(v, resumedRet, retVal, raiseError, throwError);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getvmstate(long v) {
+		try {
+			return (int) SQ_GETVMSTATE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getversion() {
+		try {
+			return (int) SQ_GETVERSION.invokeExact();
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Compiler
+	
+	@Override
+	int sq_compilebuffer(long v, String source, String sourceName, boolean raiseError) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment s = arena.allocateFrom(source);
+			return (int) SQ_COMPILEBUFFER.invokeExact(v, s.address(), (int) s.byteSize() - 1, cString(arena, sourceName), raiseError);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_enabledebuginfo(long v, boolean enable) {
+		try {
+			SQ_ENABLEDEBUGINFO.invokeExact(v, enable);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_setnativedebughook(long v, boolean enable) {
+		MemorySegment hook = enable ? DEBUG_HOOK : MemorySegment.NULL;
+		try {
+			SQ_SETNATIVEDEBUGHOOK.invokeExact(v, hook);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_notifyallexceptions(long v, boolean enable) {
+		try {
+			SQ_NOTIFYALLEXCEPTIONS.invokeExact(v, enable);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Stack Operations
+	
+	@Override
+	void sq_push(long v, int idx) {
+		try {
+			SQ_PUSH.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pop(long v, int numElementsToPop) {
+		try {
+			SQ_POP.invokeExact(v, numElementsToPop);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_poptop(long v) {
+		try {
+			SQ_POPTOP.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_remove(long v, int idx) {
+		try {
+			SQ_REMOVE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_gettop(long v) {
+		try {
+			return (int) SQ_GETTOP.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_settop(long v, int newtop) {
+		try {
+			SQ_SETTOP.invokeExact(v, newtop);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_reservestack(long v, int nSize) {
+		try {
+			return (int) SQ_RESERVESTACK.invokeExact(v, nSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_cmp(long v) {
+		try {
+			return (int) SQ_CMP.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_move(long v1, long v2, int idx) {
+		try {
+			SQ_MOVE.invokeExact(v1, v2, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Object Creation Handling
+	
+	@Override
+	long sq_newuserdata(long v, long size) {
+		try {
+			return (long) SQ_NEWUSERDATA.invokeExact(v, size);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_newtable(long v) {
+		try {
+			SQ_NEWTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_newtableex(long v, int initialCapacity) {
+		try {
+			SQ_NEWTABLEEX.invokeExact(v, initialCapacity);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_newarray(long v, int size) {
+		try {
+			SQ_NEWARRAY.invokeExact(v, size);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_newclosure(long v, int nfreevars) {
+		try {
+			SQ_NEWCLOSURE.invokeExact(v, CLOSURE_FUNC, nfreevars);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setparamscheck(long v, int nParamsCheck, String typeMask) {
+		try (Arena arena = Arena.ofConfined()) {
+			return (int) SQ_SETPARAMSCHECK.invokeExact(v, nParamsCheck, cString(arena, typeMask));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_bindenv(long v, int idx) {
+		try {
+			return (int) SQ_BINDENV.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushstring(long v, String s, int len) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8); // len counts chars, Squirrel wants bytes
+		try {
+			SQ_PUSHSTRING.invokeExact(v, MemorySegment.ofArray(bytes), bytes.length);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushstring(long v, ByteBuffer utf8, int len) {
+		try {
+			SQ_PUSHSTRING.invokeExact(v, MemorySegment.ofBuffer(utf8.duplicate().clear()), len);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushfloat(long v, float f) {
+		try {
+			SQ_PUSHFLOAT.invokeExact(v, f);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushinteger(long v, int i) {
+		try {
+			SQ_PUSHINTEGER.invokeExact(v, i);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushbool(long v, boolean b) {
+		try {
+			SQ_PUSHBOOL.invokeExact(v, b);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushserpointer(long v, long up) {
+		try {
+			SQ_PUSHSERPOINTER.invokeExact(v, up);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushnull(long v) {
+		try {
+			SQ_PUSHNULL.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_gettype(long v, int idx) {
+		try {
+			return (int) SQ_GETTYPE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_typeof(long v, int idx) {
+		try {
+			return (int) SQ_TYPEOF.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getsize(long v, int idx) {
+		try {
+			return (int) SQ_GETSIZE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_getclassid(long v, int idx) {
+		try {
+			int type = (int) SQ_GETTYPE.invokeExact(v, idx);
+			if (type == JSqTypes.OT_CLASS)
+				return (long) SQ_GETHASH.invokeExact(v, idx);
+			if (type != JSqTypes.OT_INSTANCE || (int) SQ_GETCLASS.invokeExact(v, idx) < 0)
+				return 0;
+			long id = (long) SQ_GETHASH.invokeExact(v, -1);
+			SQ_POP.invokeExact(v, 1);
+			return id;
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_gethash(long v, int idx) {
+		try {
+			return (long) SQ_GETHASH.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getbase(long v, int idx) {
+		try {
+			return (int) SQ_GETBASE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	boolean sq_instanceof(long v) {
+		try {
+			return (boolean) SQ_INSTANCEOF.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_tostring(long v, int idx) {
+		try {
+			return (int) SQ_TOSTRING.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	boolean sq_tobool(long v, int idx) {
+		MemorySegment out = scratch();
+		try {
+			SQ_TOBOOL.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return getInteger(out, 0) != 0;
+	}
+	
+	@Override
+	String sq_getstring(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETSTRING.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? null : toJavaString(out.get(JAVA_LONG, 0));
+	}
+	
+	@Override
+	ByteBuffer sq_getstringview(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETSTRING.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (res < 0)
+			return null;
+		return MemorySegment.ofAddress(out.get(JAVA_LONG, 0)).reinterpret(sq_getsize(v, idx)).asReadOnly().asByteBuffer();
+	}
+	
+	@Override
+	int sq_getinteger(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETINTEGER.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? 0 : getInteger(out, 0);
+	}
+	
+	@Override
+	float sq_getfloat(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETFLOAT.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? 0f : out.get(JAVA_FLOAT, 0);
+	}
+	
+	@Override
+	boolean sq_getbool(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETBOOL.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res >= 0 && getInteger(out, 0) != 0;
+	}
+	
+	@Override
+	long sq_getthread(long v, int idx) {
+		return getPointer(SQ_GETTHREAD, v, idx);
+	}
+	
+	@Override
+	long sq_getuserpointer(long v, int idx) {
+		return getPointer(SQ_GETUSERPOINTER, v, idx);
+	}
+	
+	@Override
+	long[] sq_getuserdata(long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETUSERDATA.invokeExact(v, idx, out.address(), out.address() + 8);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (res < 0)
+			return new long[2];
+		return new long[] { out.get(JAVA_LONG, 0), out.get(JAVA_LONG, 8) };
+	}
+	
+	@Override
+	int sq_settypetag(long v, int idx) {
+		try {
+			return (int) SQ_SETTYPETAG.invokeExact(v, idx, 0L);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_gettypetag(long v, int idx) {
+		return getPointer(SQ_GETTYPETAG, v, idx);
+	}
+	
+	@Override
+	long sq_getfunctioninfo(long v, int idx, JSqFunctionInfo info) {
+		MemorySegment out = scratch(); // SQFunctionInfo is funcid, name and source
+		int res;
+		try {
+			res = (int) SQ_GETFUNCTIONINFO.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (res < 0)
+			return 0;
+		info.m_name = toJavaString(out.get(JAVA_LONG, 8));
+		info.m_source = toJavaString(out.get(JAVA_LONG, 16));
+		return out.get(JAVA_LONG, 0);
+	}
+	
+	@Override
+	int[] sq_getclosureinfo(long v, int idx) {
+		MemorySegment out = scratch();
+		try {
+			int res = (int) SQ_GETCLOSUREINFO.invokeExact(v, idx, out.address(), out.address() + 8);
+			if (res < 0)
+				return new int[2];
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return new int[] { getInteger(out, 0), getInteger(out, 8) };
+	}
+	
+	@Override
+	int sq_getclosurename(long v, int idx) {
+		try {
+			return (int) SQ_GETCLOSURENAME.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setnativeclosurename(long v, int idx, String name) {
+		try (Arena arena = Arena.ofConfined()) {
+			return (int) SQ_SETNATIVECLOSURENAME.invokeExact(v, idx, cString(arena, name));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setinstanceup(long v, int idx, long up) {
+		try {
+			return (int) SQ_SETINSTANCEUP.invokeExact(v, idx, up);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_getinstanceup(long v, int idx, long typetag) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETINSTANCEUP.invokeExact(v, idx, out.address(), typetag);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? 0 : out.get(JAVA_LONG, 0);
+	}
+	
+	@Override
+	int sq_setclassudsize(long vmHaldne, int idx, int udSize) {
+		try {
+			return (int) SQ_SETCLASSUDSIZE.invokeExact(vmHaldne, idx, udSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_newclass(long v, boolean hasBase) {
+		try {
+			return (int) SQ_NEWCLASS.invokeExact(v, hasBase);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_createinstance(long v, int idx) {
+		try {
+			return (int) SQ_CREATEINSTANCE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setattributes(long v, int idx) {
+		try {
+			return (int) SQ_SETATTRIBUTES.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getattributes(long v, int idx) {
+		try {
+			return (int) SQ_GETATTRIBUTES.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getclass(long v, int idx) {
+		try {
+			return (int) SQ_GETCLASS.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_weakref(long v, int idx) {
+		try {
+			SQ_WEAKREF.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getdefaultdelegate(long v, int tag) {
+		try {
+			return (int) SQ_GETDEFAULTDELEGATE.invokeExact(v, tag);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_getmemberhandle(long v, int idx) {
+		MemorySegment out = scratch(); // HSQMEMBERHANDLE is _static and _index
+		int res;
+		try {
+			res = (int) SQ_GETMEMBERHANDLE.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		if (res < 0)
+			return -1;
+		return ((long) getInteger(out, 0) << 32) | (getInteger(out, SQINTEGER.byteSize()) & 0xFFFFFFFFL);
+	}
+	
+	@Override
+	int sq_getbyhandle(long v, int idx, long member) {
+		try {
+			return (int) SQ_GETBYHANDLE.invokeExact(v, idx, memberHandle(member));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setbyhandle(long v, int idx, long member) {
+		try {
+			return (int) SQ_SETBYHANDLE.invokeExact(v, idx, memberHandle(member));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Object Manipulation
+	
+	@Override
+	void sq_pushroottable(long v) {
+		try {
+			SQ_PUSHROOTTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushregistrytable(long v) {
+		try {
+			SQ_PUSHREGISTRYTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_pushconsttable(long v) {
+		try {
+			SQ_PUSHCONSTTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setroottable(long v) {
+		try {
+			return (int) SQ_SETROOTTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setconsttable(long v) {
+		try {
+			return (int) SQ_SETCONSTTABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_newslot(long v, int idx, boolean bStatic) {
+		try {
+			return (int) SQ_NEWSLOT.invokeExact(v, idx, bStatic);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_deleteslot(long v, int idx, boolean pushVal) {
+		try {
+			return (int) SQ_DELETESLOT.invokeExact(v, idx, pushVal);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_set(long v, int idx) {
+		try {
+			return (int) SQ_SET.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_get(long v, int idx) {
+		try {
+			return (int) SQ_GET.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_rawset(long v, int idx) {
+		try {
+			return (int) SQ_RAWSET.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_rawget(long v, int idx) {
+		try {
+			return (int) SQ_RAWGET.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_rawdeleteslot(long v, int idx, boolean pushVal) {
+		try {
+			return (int) SQ_RAWDELETESLOT.invokeExact(v, idx, pushVal);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_newmember(long v, int idx, boolean bStatic) {
+		try {
+			return (int) SQ_NEWMEMBER.invokeExact(v, idx, bStatic);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_rawnewmember(long v, int idx, boolean bStatic) {
+		try {
+			return (int) SQ_RAWNEWMEMBER.invokeExact(v, idx, bStatic);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arrayappend(long v, int idx) {
+		try {
+			return (int) SQ_ARRAYAPPEND.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arraypop(long v, int idx, boolean pushVal) {
+		try {
+			return (int) SQ_ARRAYPOP.invokeExact(v, idx, pushVal);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arrayresize(long v, int idx, int newSize) {
+		try {
+			return (int) SQ_ARRAYRESIZE.invokeExact(v, idx, newSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arrayreverse(long v, int idx) {
+		try {
+			return (int) SQ_ARRAYREVERSE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arrayremove(long v, int idx, int itemIdx) {
+		try {
+			return (int) SQ_ARRAYREMOVE.invokeExact(v, idx, itemIdx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_arrayinsert(long v, int idx, int destPos) {
+		try {
+			return (int) SQ_ARRAYINSERT.invokeExact(v, idx, destPos);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setdelegate(long v, int idx) {
+		try {
+			return (int) SQ_SETDELEGATE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getdelegate(long v, int idx) {
+		try {
+			return (int) SQ_GETDELEGATE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_clone(long v, int idx) {
+		try {
+			return (int) SQ_CLONE.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_setfreevariable(long v, int idx, long nVal) {
+		try {
+			return (int) SQ_SETFREEVARIABLE.invokeExact(v, idx, nVal);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_next(long v, int idx) {
+		try {
+			return (int) SQ_NEXT.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getweakrefval(long v, int idx) {
+		try {
+			return (int) SQ_GETWEAKREFVAL.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_clear(long v, int idx) {
+		try {
+			return (int) SQ_CLEAR.invokeExact(v, idx);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Calls
+	
+	@Override
+	int sq_call(long v, int numParams, boolean retval, boolean raiseError) {
+		try {
+			return (int) SQ_CALL.invokeExact(v, numParams, retval, raiseError);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_resume(long v, boolean retval, boolean raiseError) {
+		try {
+			return (int) SQ_RESUME.invokeExact(v, retval, raiseError);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	String sq_getlocal(long v, long level, long idx) {
+		try {
+			return toJavaString((long) SQ_GETLOCAL.invokeExact(v, level, idx));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_getcallee(long v) {
+		try {
+			return (int) SQ_GETCALLEE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	String sq_getfreevariable(long v, int idx, long nVal) {
+		try {
+			return toJavaString((long) SQ_GETFREEVARIABLE.invokeExact(v, idx, nVal));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_throwerror(long v, String err) {
+		try (Arena arena = Arena.ofConfined()) {
+			return (int) SQ_THROWERROR.invokeExact(v, cString(arena, err));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_throwobject(long v) {
+		try {
+			return (int) SQ_THROWOBJECT.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_reseterror(long v) {
+		try {
+			SQ_RESETERROR.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_getlasterror(long v) {
+		try {
+			SQ_GETLASTERROR.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Raw Object Handling
+	
+	@Override
+	long sq_getstackobj(long v, int idx) {
+		long obj = malloc(HSQOBJECT.byteSize());
+		if (obj == 0)
+			return 0;
+		int res;
+		try {
+			res = (int) SQ_GETSTACKOBJ.invokeExact(v, idx, obj);
+		}
+		catch (Throwable t) {
+			free(obj);
+			throw rethrow(t);
+		}
+		if (res < 0) {
+			free(obj);
+			return 0;
+		}
+		// The handle keeps its object alive until it's released
+		try {
+			SQ_ADDREF.invokeExact(v, obj);
+		}
+		catch (Throwable t) {
+			free(obj);
+			throw rethrow(t);
+		}
+		return obj;
+	}
+	
+	@Override
+	void sq_pushobject(long v, long obj) {
+		try {
+			SQ_PUSHOBJECT.invokeExact(v, MemorySegment.ofAddress(obj).reinterpret(HSQOBJECT.byteSize()));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	boolean sq_release(long v, long obj) {
+		try {
+			return (boolean) SQ_RELEASE.invokeExact(v, obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_releaseobjects(long v, long[] objs, int count) {
+		int deleted = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				if ((boolean) SQ_RELEASE.invokeExact(v, objs[i]))
+					deleted++;
+				free(objs[i]);
+			}
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return deleted;
+	}
+	
+	@Override
+	long sq_getrefcount(long v, long obj) {
+		try {
+			return (long) SQ_GETREFCOUNT.invokeExact(v, obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_resetobject(long obj) {
+		try {
+			SQ_RESETOBJECT.invokeExact(obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	String sq_objtostring(long obj) {
+		try {
+			return toJavaString((long) SQ_OBJTOSTRING.invokeExact(obj));
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	boolean sq_objtobool(long obj) {
+		try {
+			return (boolean) SQ_OBJTOBOOL.invokeExact(obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_objtointeger(long obj) {
+		try {
+			return (int) SQ_OBJTOINTEGER.invokeExact(obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	float sq_objtofloat(long obj) {
+		try {
+			return (float) SQ_OBJTOFLOAT.invokeExact(obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_objtouserpointer(long obj) {
+		try {
+			return (long) SQ_OBJTOUSERPOINTER.invokeExact(obj);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_getobjtypetag(long obj) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) SQ_GETOBJTYPETAG.invokeExact(obj, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? 0 : out.get(JAVA_LONG, 0);
+	}
+	
+	// GC
+	
+	@Override
+	int sq_collectgarbage(long v) {
+		try {
+			return (int) SQ_COLLECTGARBAGE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	int sq_resurrectunreachable(long v) {
+		try {
+			return (int) SQ_RESURRECTUNREACHABLE.invokeExact(v);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	// Serialization
+	
+	@Override
+	byte[] sq_writeclosure(long v) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WRITE_TARGET.set(out);
+		try {
+			if ((int) SQ_WRITECLOSURE.invokeExact(v, WRITE_FUNC.address(), 0L) < 0)
+				return null;
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		finally {
+			WRITE_TARGET.remove();
+		}
+		return out.toByteArray();
+	}
+	
+	@Override
+	int sq_readclosure(long v, ByteBuffer buf, int len) {
+		long[] source = { MemorySegment.ofBuffer(buf.duplicate().clear()).address(), len };
+		READ_SOURCE.set(source);
+		try {
+			return (int) SQ_READCLOSURE.invokeExact(v, READ_FUNC.address(), 0L);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		finally {
+			READ_SOURCE.remove();
+		}
+	}
+	
+	// Bulk Arrays
+	
+	/**
+	 * libsquirrel has no bulk array calls, so the elements are appended one by one. Every call involved is a
+	 * critical downcall, which costs far less than a crossing through JNI.
+	 */
+	@Override
+	int sq_newarray(long v, ByteBuffer values, int type, int count) {
+		return newArrayEach(v, values, type, count);
+	}
+	
+	@Override
+	int sq_getarray(long v, int idx, ByteBuffer dst, int type, int count) {
+		return getArrayEach(v, idx, dst, type, count);
+	}
+	
+	// Memory Allocation
+	
+	@Override
+	long sq_malloc(long size) {
+		try {
+			return (long) SQ_MALLOC.invokeExact(size);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	long sq_realloc(long p, long oldSize, long newSize) {
+		try {
+			return (long) SQ_REALLOC.invokeExact(p, oldSize, newSize);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_free(long p, long size) {
+		try {
+			SQ_FREE.invokeExact(p, size);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	@Override
+	void sq_copymemory(long dst, long src, long size) {
+		MemorySegment.copy(MemorySegment.ofAddress(src).reinterpret(size), 0, MemorySegment.ofAddress(dst).reinterpret(size), 0, size);
+	}
+	
+	// Batching
+	
+	/**
+	 * Runs a batch the way {@link JSqBatch} does on the Java backend, but pushes strings straight from the
+	 * operation buffer and copies strings straight into the result buffer.
+	 */
+	@Override
+	int sq_runbatch(long v, ByteBuffer commands, int len, ByteBuffer results, int capacity) {
+		MemorySegment cmds = MemorySegment.ofBuffer(commands.duplicate().clear());
+		MemorySegment res = MemorySegment.ofBuffer(results.duplicate().clear());
+		int pc = results.getInt(JSqBatch.STATE_COMMAND);
+		int out = results.getInt(JSqBatch.STATE_RESULTS);
+		int executed = results.getInt(JSqBatch.STATE_EXECUTED);
+		int status = JSqBatch.RUN_OK;
+		while (pc < len) {
+			int op = commands.getInt(pc);
+			int a = pc + 4 < len ? commands.getInt(pc + 4) : 0;
+			int next = pc + 8;
+			int r = 0;
+			switch (op) {
+				case JSqBatch.PUSH: sq_push(v, a); break;
+				case JSqBatch.POP: sq_pop(v, a); break;
+				case JSqBatch.REMOVE: sq_remove(v, a); break;
+				case JSqBatch.SETTOP: sq_settop(v, a); break;
+				case JSqBatch.PUSHROOTTABLE: sq_pushroottable(v); next = pc + 4; break;
+				case JSqBatch.PUSHREGISTRYTABLE: sq_pushregistrytable(v); next = pc + 4; break;
+				case JSqBatch.PUSHCONSTTABLE: sq_pushconsttable(v); next = pc + 4; break;
+				case JSqBatch.PUSHNULL: sq_pushnull(v); next = pc + 4; break;
+				case JSqBatch.PUSHINTEGER: sq_pushinteger(v, a); break;
+				case JSqBatch.PUSHFLOAT: sq_pushfloat(v, Float.intBitsToFloat(a)); break;
+				case JSqBatch.PUSHBOOL: sq_pushbool(v, a != 0); break;
+				case JSqBatch.PUSHSTRING:
+					try {
+						SQ_PUSHSTRING.invokeExact(v, cmds.asSlice(pc + 12, a), a);
+					}
+					catch (Throwable t) {
+						throw rethrow(t);
+					}
+					next = pc + 12 + ((a + 3) & ~3);
+					break;
+				case JSqBatch.NEWTABLE: sq_newtable(v); next = pc + 4; break;
+				case JSqBatch.NEWTABLEEX: sq_newtableex(v, a); break;
+				case JSqBatch.NEWARRAY: sq_newarray(v, a); break;
+				case JSqBatch.GET: r = sq_get(v, a); break;
+				case JSqBatch.SET: r = sq_set(v, a); break;
+				case JSqBatch.RAWGET: r = sq_rawget(v, a); break;
+				case JSqBatch.RAWSET: r = sq_rawset(v, a); break;
+				case JSqBatch.NEWSLOT: r = sq_newslot(v, a, commands.getInt(pc + 8) != 0); next = pc + 12; break;
+				case JSqBatch.ARRAYAPPEND: r = sq_arrayappend(v, a); break;
+				case JSqBatch.CALL:
+					r = sq_call(v, a, commands.getInt(pc + 8) != 0, commands.getInt(pc + 12) != 0);
+					next = pc + 16;
+					break;
+				case JSqBatch.GETSTRING: {
+					MemorySegment str = scratch();
+					int got;
+					try {
+						got = (int) SQ_GETSTRING.invokeExact(v, a, str.address());
+					}
+					catch (Throwable t) {
+						throw rethrow(t);
+					}
+					int length = got < 0 ? -1 : sq_getsize(v, a);
+					int size = 4 + (length < 0 ? 0 : (length + 3) & ~3);
+					if (out + size > capacity) {
+						status = JSqBatch.RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, length);
+					if (length > 0)
+						MemorySegment.copy(MemorySegment.ofAddress(str.get(JAVA_LONG, 0)).reinterpret(length), 0, res, out + 4, length);
+					out += size;
+					break;
+				}
+				case JSqBatch.GETVALUE: {
+					int top = sq_gettop(v);
+					int end = dumpValue(v, a < 0 ? top + a + 1 : a, res, out, capacity, 0);
+					sq_settop(v, top);
+					if (end == JSqBatch.RUN_FAILED)
+						r = -1;
+					else if (end == JSqBatch.RUN_RESULTS_FULL)
+						status = JSqBatch.RUN_RESULTS_FULL;
+					else
+						out = end;
+					break;
+				}
+				case JSqBatch.NEXTCHUNK: {
+					int top = sq_gettop(v);
+					int end = dumpChunk(v, a < 0 ? top + a + 1 : a, commands.getInt(pc + 8), commands.getInt(pc + 12), res, out, capacity);
+					sq_settop(v, top);
+					if (end == JSqBatch.RUN_FAILED)
+						r = -1;
+					else if (end == JSqBatch.RUN_RESULTS_FULL)
+						status = JSqBatch.RUN_RESULTS_FULL;
+					else
+						out = end;
+					next = pc + 16;
+					break;
+				}
+				case JSqBatch.SAMEOBJECT: {
+					MemorySegment held = MemorySegment.ofAddress((commands.getInt(pc + 12) & 0xFFFFFFFFL) | ((long) commands.getInt(pc + 16) << 32))
+							.reinterpret(HSQOBJECT.byteSize());
+					MemorySegment got = scratch();
+					try {
+						r = (int) SQ_GETSTACKOBJ.invokeExact(v, a, got.address());
+					}
+					catch (Throwable t) {
+						throw rethrow(t);
+					}
+					if (r >= 0 && (got.get(JAVA_INT, 0) != held.get(JAVA_INT, 0) || got.get(JAVA_LONG, 8) != held.get(JAVA_LONG, 8)))
+						r = -1;
+					next = pc + 20;
+					break;
+				}
+				default: {
+					int value;
+					switch (op) {
+						case JSqBatch.GETTOP: value = sq_gettop(v); next = pc + 4; break;
+						case JSqBatch.GETTYPE: value = sq_gettype(v, a); break;
+						case JSqBatch.GETINTEGER: value = sq_getinteger(v, a); break;
+						case JSqBatch.GETFLOAT: value = Float.floatToRawIntBits(sq_getfloat(v, a)); break;
+						case JSqBatch.GETBOOL: value = sq_getbool(v, a) ? 1 : 0; break;
+						default: throw new IllegalStateException("unknown batch operation " + op);
+					}
+					if (out + 4 > capacity) {
+						status = JSqBatch.RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, value);
+					out += 4;
+				}
+			}
+			if (status == JSqBatch.RUN_OK && r < 0)
+				status = JSqBatch.RUN_FAILED;
+			if (status != JSqBatch.RUN_OK)
+				break;
+			pc = next;
+			executed++;
+		}
+		results.putInt(JSqBatch.STATE_COMMAND, pc).putInt(JSqBatch.STATE_RESULTS, out).putInt(JSqBatch.STATE_EXECUTED, executed);
+		return status;
+	}
+	
+	/**
+	 * Writes entries of the table or array at the absolute index {@code idx} in the format of
+	 * {@link JSqBatch#NEXTCHUNK}, continuing from a native sq_next iterator. The caller restores the stack top.
+	 */
+	private int dumpChunk(long v, int idx, int iterator, int count, MemorySegment res, int out, int capacity) {
+		int t = sq_gettype(v, idx);
+		if (t != JSqTypes.OT_TABLE && t != JSqTypes.OT_ARRAY)
+			return JSqBatch.RUN_FAILED;
+		if (out + 8 > capacity)
+			return JSqBatch.RUN_RESULTS_FULL;
+		int start = out;
+		out += 8;
+		int n = 0;
+		sq_pushinteger(v, iterator);
+		while (n < count && out >= 0) {
+			if (sq_next(v, idx) < 0) {
+				iterator = -1;
+				break;
+			}
+			int top = sq_gettop(v);
+			out = dumpValue(v, top - 1, res, out, capacity, 1);
+			if (out >= 0)
+				out = dumpValue(v, top, res, out, capacity, 1);
+			sq_pop(v, 2);
+			n++;
+		}
+		if (out < 0)
+			return out;
+		if (iterator >= 0)
+			iterator = sq_getinteger(v, -1);
+		res.set(JAVA_INT, start, iterator);
+		res.set(JAVA_INT, start + 4, n);
+		return out;
+	}
+	
+	/**
+	 * Writes the value at the absolute index {@code idx} in the format of {@link JSqBatch#GETVALUE}, iterating tables
+	 * and arrays with sq_next. The caller restores the stack top.
+	 */
+	private int dumpValue(long v, int idx, MemorySegment res, int out, int capacity, int depth) {
+		if (out + 8 > capacity)
+			return JSqBatch.RUN_RESULTS_FULL;
+		int t = sq_gettype(v, idx);
+		res.set(JAVA_INT, out, t);
+		out += 4;
+		switch (t) {
+			case JSqTypes.OT_INTEGER:
+				res.set(JAVA_INT, out, sq_getinteger(v, idx));
+				return out + 4;
+			case JSqTypes.OT_FLOAT:
+				res.set(JAVA_FLOAT, out, sq_getfloat(v, idx));
+				return out + 4;
+			case JSqTypes.OT_BOOL:
+				res.set(JAVA_INT, out, sq_getbool(v, idx) ? 1 : 0);
+				return out + 4;
+			case JSqTypes.OT_STRING: {
+				MemorySegment str = scratch();
+				int got;
+				try {
+					got = (int) SQ_GETSTRING.invokeExact(v, idx, str.address());
+				}
+				catch (Throwable th) {
+					throw rethrow(th);
+				}
+				int length = got < 0 ? 0 : sq_getsize(v, idx);
+				if (out + 4 + ((length + 3) & ~3) > capacity)
+					return JSqBatch.RUN_RESULTS_FULL;
+				res.set(JAVA_INT, out, length);
+				if (length > 0)
+					MemorySegment.copy(MemorySegment.ofAddress(str.get(JAVA_LONG, 0)).reinterpret(length), 0, res, out + 4, length);
+				return out + 4 + ((length + 3) & ~3);
+			}
+			case JSqTypes.OT_TABLE:
+			case JSqTypes.OT_ARRAY: {
+				if (depth == JSqBatch.MAX_DEPTH)
+					return JSqBatch.RUN_FAILED;
+				res.set(JAVA_INT, out, sq_getsize(v, idx));
+				out += 4;
+				sq_pushnull(v);
+				while (out >= 0 && sq_next(v, idx) >= 0) {
+					int top = sq_gettop(v);
+					if (t == JSqTypes.OT_TABLE)
+						out = dumpValue(v, top - 1, res, out, capacity, depth + 1);
+					if (out >= 0)
+						out = dumpValue(v, top, res, out, capacity, depth + 1);
+					sq_pop(v, 2);
+				}
+				sq_pop(v, 1);
+				return out;
+			}
+			default:
+				return out;
+		}
+	}
+	
+	// Utility Macro, these only read the type of the HSQOBJECT
+	
+	@Override
+	boolean sq_isnumeric(long o) {
+		return JSqTypes.isNumeric(sq_type(o));
+	}
+	
+	@Override
+	boolean sq_istable(long o) {
+		return sq_type(o) == JSqTypes.OT_TABLE;
+	}
+	
+	@Override
+	boolean sq_isarray(long o) {
+		return sq_type(o) == JSqTypes.OT_ARRAY;
+	}
+	
+	@Override
+	boolean sq_isfunction(long o) {
+		return sq_type(o) == JSqTypes.OT_FUNCPROTO;
+	}
+	
+	@Override
+	boolean sq_isclosure(long o) {
+		return sq_type(o) == JSqTypes.OT_CLOSURE;
+	}
+	
+	@Override
+	boolean sq_isgenerator(long o) {
+		return sq_type(o) == JSqTypes.OT_GENERATOR;
+	}
+	
+	@Override
+	boolean sq_isnativeclosure(long o) {
+		return sq_type(o) == JSqTypes.OT_NATIVECLOSURE;
+	}
+	
+	@Override
+	boolean sq_isstring(long o) {
+		return sq_type(o) == JSqTypes.OT_STRING;
+	}
+	
+	@Override
+	boolean sq_isinteger(long o) {
+		return sq_type(o) == JSqTypes.OT_INTEGER;
+	}
+	
+	@Override
+	boolean sq_isfloat(long o) {
+		return sq_type(o) == JSqTypes.OT_FLOAT;
+	}
+	
+	@Override
+	boolean sq_isuserpointer(long o) {
+		return sq_type(o) == JSqTypes.OT_USERPOINTER;
+	}
+	
+	@Override
+	boolean sq_isuserdata(long o) {
+		return sq_type(o) == JSqTypes.OT_USERDATA;
+	}
+	
+	@Override
+	boolean sq_isthread(long o) {
+		return sq_type(o) == JSqTypes.OT_THREAD;
+	}
+	
+	@Override
+	boolean sq_isnull(long o) {
+		return sq_type(o) == JSqTypes.OT_NULL;
+	}
+	
+	@Override
+	boolean sq_isclass(long o) {
+		return sq_type(o) == JSqTypes.OT_CLASS;
+	}
+	
+	@Override
+	boolean sq_isinstance(long o) {
+		return sq_type(o) == JSqTypes.OT_INSTANCE;
+	}
+	
+	@Override
+	boolean sq_isbool(long o) {
+		return sq_type(o) == JSqTypes.OT_BOOL;
+	}
+	
+	@Override
+	boolean sq_isweakref(long o) {
+		return sq_type(o) == JSqTypes.OT_WEAKREF;
+	}
+	
+	@Override
+	int sq_type(long o) {
+		return MemorySegment.ofAddress(o).reinterpret(HSQOBJECT.byteSize()).get(JAVA_INT, 0);
+	}
+	
+	// Helpers
+	
+	private static SymbolLookup openLibrary(String name) {
+		if (ADDRESS.byteSize() != 8)
+			throw new UnsupportedOperationException("the FFM bridge needs a 64 bit JVM");
+		if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+			return SymbolLookup.libraryLookup(Path.of(name), Arena.global());
+		return SymbolLookup.libraryLookup(System.mapLibraryName(name), Arena.global());
+	}
+	
+	private static MethodHandle downcall(String name, MethodType type, FunctionDescriptor desc, Linker.Option... options) {
+		MemorySegment symbol = LIBRARY.find(name).orElseThrow(() -> new UnsatisfiedLinkError("libsquirrel has no " + name));
+		return MethodHandles.explicitCastArguments(LINKER.downcallHandle(symbol, desc, options), type);
+	}
+	
+	/**
+	 * Creates the SQWRITEFUNC or SQREADFUNC, both taking the user pointer, the data and its size and returning
+	 * the bytes handled.
+	 */
+	private static MemorySegment upcall(String name) {
+		try {
+			MethodHandle target = MethodHandles.lookup().findStatic(JSqForeignBridge.class, name,
+					MethodType.methodType(long.class, long.class, long.class, long.class));
+			Class<?> integer = SQINTEGER.carrier();
+			target = MethodHandles.explicitCastArguments(target, MethodType.methodType(integer, long.class, long.class, integer));
+			return LINKER.upcallStub(target, FunctionDescriptor.of(SQINTEGER, JAVA_LONG, JAVA_LONG, SQINTEGER), Arena.global());
+		}
+		catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private static MemorySegment closureUpcall() {
+		try {
+			MethodHandle target = MethodHandles.lookup().findStatic(JSqForeignBridge.class, "closure",
+					MethodType.methodType(long.class, long.class));
+			target = MethodHandles.explicitCastArguments(target, MethodType.methodType(SQINTEGER.carrier(), long.class));
+			return LINKER.upcallStub(target, FunctionDescriptor.of(SQINTEGER, JAVA_LONG), Arena.global());
+		}
+		catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Creates the SQDEBUGHOOK, taking the VM, the event type, the source name, the line and the function name.
+	 */
+	private static MemorySegment debugHookUpcall() {
+		try {
+			MethodHandle target = MethodHandles.lookup().findStatic(JSqForeignBridge.class, "debugHook",
+					MethodType.methodType(void.class, long.class));
+			target = MethodHandles.dropArguments(target, 1, SQINTEGER.carrier(), long.class, SQINTEGER.carrier(), long.class);
+			return LINKER.upcallStub(target, FunctionDescriptor.ofVoid(JAVA_LONG, SQINTEGER, JAVA_LONG, SQINTEGER, JAVA_LONG), Arena.global());
+		}
+		catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private static void debugHook(long v) {
+		try {
+			JSqBudget.hook(v);
+		}
+		catch (Throwable t) {
+			// an upcall must not throw
+		}
+	}
+	
+	/**
+	 * Pops the JSqUpcall id, the last free variable of the closure, and calls its function.
+	 */
+	private static long closure(long v) {
+		try {
+			int top = (int) SQ_GETTOP.invokeExact(v);
+			MemorySegment out = scratch();
+			int res = (int) SQ_GETINTEGER.invokeExact(v, top, out.address());
+			SQ_POP.invokeExact(v, 1);
+			return res < 0 ? -1 : JSqUpcall.call(v, getInteger(out, 0));
+		}
+		catch (Throwable t) {
+			return -1; // an upcall must not throw
+		}
+	}
+	
+	private static long write(long up, long data, long size) {
+		try {
+			WRITE_TARGET.get().write(MemorySegment.ofAddress(data).reinterpret(size).toArray(ValueLayout.JAVA_BYTE));
+			return size;
+		}
+		catch (Throwable t) {
+			return -1; // an upcall must not throw, Squirrel fails the write instead
+		}
+	}
+	
+	private static long read(long up, long dest, long size) {
+		long[] source = READ_SOURCE.get();
+		long n = Math.min(size, source[1]);
+		if (n <= 0)
+			return -1;
+		MemorySegment.copy(MemorySegment.ofAddress(source[0]).reinterpret(n), 0, MemorySegment.ofAddress(dest).reinterpret(n), 0, n);
+		source[0] += n;
+		source[1] -= n;
+		return n;
+	}
+	
+	private static MemorySegment scratch() {
+		return SCRATCH.get();
+	}
+	
+	private static int getInteger(MemorySegment seg, long offset) {
+		return SQINTEGER == JAVA_LONG ? (int) seg.get(JAVA_LONG, offset) : seg.get(JAVA_INT, offset);
+	}
+	
+	private static long getPointer(MethodHandle getter, long v, int idx) {
+		MemorySegment out = scratch();
+		int res;
+		try {
+			res = (int) getter.invokeExact(v, idx, out.address());
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+		return res < 0 ? 0 : out.get(JAVA_LONG, 0);
+	}
+	
+	/**
+	 * Writes a member handle encoded like the Java backend's, static flag high and index low, as a HSQMEMBERHANDLE.
+	 */
+	private static long memberHandle(long member) {
+		MemorySegment handle = scratch();
+		if (SQINTEGER == JAVA_LONG) {
+			handle.set(JAVA_LONG, 0, member >>> 32);
+			handle.set(JAVA_LONG, 8, (int) member);
+		}
+		else {
+			handle.set(JAVA_INT, 0, (int) (member >>> 32));
+			handle.set(JAVA_INT, 4, (int) member);
+		}
+		return handle.address();
+	}
+	
+	private static long cString(Arena arena, String s) {
+		return s != null ? arena.allocateFrom(s).address() : 0;
+	}
+	
+	private static String toJavaString(long p) {
+		return p != 0 ? MemorySegment.ofAddress(p).reinterpret(Long.MAX_VALUE).getString(0) : null;
+	}
+	
+	private static long malloc(long size) {
+		try {
+			return (long) MALLOC.invokeExact(size);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	private static void free(long p) {
+		try {
+			FREE.invokeExact(p);
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+	
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		throw new IllegalStateException(t);
+	}
+	
+}
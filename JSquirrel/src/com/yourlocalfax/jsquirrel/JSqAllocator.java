@@ -0,0 +1,86 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * Hands out native memory for the per VM {@link JSqHostArena}s, which hold the buffers the host allocates for a VM.
+ * <br><br>
+ * Set the allocator the arenas use with {@link Squirrel#sq_setallocator(JSqAllocator)}. Sizes are passed to
+ * every call, so an allocator doesn't have to keep them. Memory Squirrel allocates for its own objects is not
+ * affected, that is done inside libsquirrel or on the Java heap.
+ * @author Christopher Foster
+ */
+public abstract class JSqAllocator {
+	
+	/** Squirrel's own sq_malloc, sq_realloc and sq_free. */
+	public static final JSqAllocator SYSTEM = new JSqAllocator() {
+		
+		@Override
+		public long malloc(long size) {
+			checkNative();
+			return Squirrel.NATIVE.sq_malloc(size);
+		}
+		
+		@Override
+		public long realloc(long p, long oldSize, long newSize) {
+			checkNative();
+			return Squirrel.NATIVE.sq_realloc(p, oldSize, newSize);
+		}
+		
+		@Override
+		public void free(long p, long size) {
+			checkNative();
+			Squirrel.NATIVE.sq_free(p, size);
+		}
+		
+		private void checkNative() {
+			if (!Squirrel.NATIVE_AVAILABLE)
+				throw new IllegalStateException("Native memory needs the JSquirrel native library");
+		}
+		
+	};
+	
+	/**
+	 * @param size
+	 * @return The address of the new block, 0 if it couldn't be allocated.
+	 */
+	public abstract long malloc(long size);
+	
+	/**
+	 * @param p A block from this allocator.
+	 * @param oldSize The size {@code p} was allocated with.
+	 * @param newSize
+	 * @return The address of the resized block, which may have moved, or 0 if it couldn't be resized.
+	 * {@code p} stays valid then.
+	 */
+	public abstract long realloc(long p, long oldSize, long newSize);
+	
+	/**
+	 * @param p A block from this allocator.
+	 * @param size The size {@code p} was allocated with.
+	 */
+	public abstract void free(long p, long size);
+	
+}
@@ -0,0 +1,171 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * The Java backend's Squirrel array, a growable list of tagged values.
+ * @author Christopher Foster
+ */
+final class JSqArray {
+	
+	int[] m_types;
+	int[] m_values;
+	Object[] m_refs;
+	int m_size;
+	
+	JSqArray(int size) {
+		int capacity = Math.max(size, 4);
+		m_types = new int[capacity];
+		m_values = new int[capacity];
+		m_refs = new Object[capacity];
+		fillNull(0, size);
+		m_size = size;
+	}
+	
+	void reserve(int capacity) {
+		if (capacity > m_types.length) {
+			int[] t = new int[capacity];
+			int[] v = new int[capacity];
+			Object[] r = new Object[capacity];
+			System.arraycopy(m_types, 0, t, 0, m_size);
+			System.arraycopy(m_values, 0, v, 0, m_size);
+			System.arraycopy(m_refs, 0, r, 0, m_size);
+			m_types = t;
+			m_values = v;
+			m_refs = r;
+		}
+	}
+	
+	void append(int t, int v, Object r) {
+		if (m_size == m_types.length)
+			reserve(m_size << 1);
+		m_types[m_size] = t;
+		m_values[m_size] = v;
+		m_refs[m_size] = r;
+		m_size++;
+	}
+	
+	/**
+	 * @return The slots the next append adds to the capacity.
+	 */
+	int growth() {
+		return m_size == m_types.length ? m_size : 0;
+	}
+	
+	/**
+	 * @return The slots growing to {@code size} elements adds to the capacity.
+	 */
+	int growth(int size) {
+		return Math.max(0, size - m_types.length);
+	}
+	
+	boolean set(int idx, int t, int v, Object r) {
+		if (idx < 0 || idx >= m_size)
+			return false;
+		m_types[idx] = t;
+		m_values[idx] = v;
+		m_refs[idx] = r;
+		return true;
+	}
+	
+	boolean insert(int idx, int t, int v, Object r) {
+		if (idx < 0 || idx > m_size)
+			return false;
+		append(OT_NULL, 0, null);
+		int n = m_size - 1 - idx;
+		System.arraycopy(m_types, idx, m_types, idx + 1, n);
+		System.arraycopy(m_values, idx, m_values, idx + 1, n);
+		System.arraycopy(m_refs, idx, m_refs, idx + 1, n);
+		return set(idx, t, v, r);
+	}
+	
+	boolean remove(int idx) {
+		if (idx < 0 || idx >= m_size)
+			return false;
+		int n = m_size - 1 - idx;
+		System.arraycopy(m_types, idx + 1, m_types, idx, n);
+		System.arraycopy(m_values, idx + 1, m_values, idx, n);
+		System.arraycopy(m_refs, idx + 1, m_refs, idx, n);
+		pop();
+		return true;
+	}
+	
+	void pop() {
+		m_size--;
+		m_types[m_size] = 0;
+		m_values[m_size] = 0;
+		m_refs[m_size] = null;
+	}
+	
+	void resize(int size) {
+		if (size > m_size) {
+			reserve(size);
+			fillNull(m_size, size);
+		}
+		else {
+			for (int i = size; i < m_size; i++) {
+				m_types[i] = 0;
+				m_values[i] = 0;
+				m_refs[i] = null;
+			}
+		}
+		m_size = size;
+	}
+	
+	void reverse() {
+		for (int i = 0, j = m_size - 1; i < j; i++, j--) {
+			int t = m_types[i];
+			int v = m_values[i];
+			Object r = m_refs[i];
+			m_types[i] = m_types[j];
+			m_values[i] = m_values[j];
+			m_refs[i] = m_refs[j];
+			m_types[j] = t;
+			m_values[j] = v;
+			m_refs[j] = r;
+		}
+	}
+	
+	JSqArray cloneArray() {
+		JSqArray a = new JSqArray(0);
+		a.reserve(m_size);
+		System.arraycopy(m_types, 0, a.m_types, 0, m_size);
+		System.arraycopy(m_values, 0, a.m_values, 0, m_size);
+		System.arraycopy(m_refs, 0, a.m_refs, 0, m_size);
+		a.m_size = m_size;
+		return a;
+	}
+	
+	private void fillNull(int from, int to) {
+		for (int i = from; i < to; i++) {
+			m_types[i] = OT_NULL;
+			m_values[i] = 0;
+			m_refs[i] = null;
+		}
+	}
+	
+}
@@ -0,0 +1,995 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqInterpreter.*;
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * The Java backend's port of sqbaselib.cpp: the base functions registered in every root table
+ * and the default delegates of the built in types.
+ * <br><br>
+ * Every function is a {@link Builtin} dispatched on an id, so registering the library
+ * doesn't need a class per function.
+ * @author Christopher Foster
+ */
+final class JSqBaseLib {
+	
+	// Base functions
+	private static final int SETERRORHANDLER = 0;
+	private static final int SETDEBUGHOOK = 1;
+	private static final int ENABLEDEBUGINFO = 2;
+	private static final int GETSTACKINFOS = 3;
+	private static final int GETROOTTABLE = 4;
+	private static final int SETROOTTABLE = 5;
+	private static final int GETCONSTTABLE = 6;
+	private static final int SETCONSTTABLE = 7;
+	private static final int ASSERT = 8;
+	private static final int PRINT = 9;
+	private static final int ERROR = 10;
+	private static final int COMPILESTRING = 11;
+	private static final int NEWTHREAD = 12;
+	private static final int SUSPEND = 13;
+	private static final int ARRAY = 14;
+	private static final int TYPE = 15;
+	private static final int CALLEE = 16;
+	private static final int DUMMY = 17;
+	private static final int COLLECTGARBAGE = 18;
+	private static final int RESURRECTUNREACHABLE = 19;
+	
+	// Shared by several delegates
+	private static final int OBJ_LEN = 20;
+	private static final int OBJ_RAWGET = 21;
+	private static final int OBJ_RAWSET = 22;
+	private static final int OBJ_RAWIN = 23;
+	private static final int OBJ_WEAKREF = 24;
+	private static final int OBJ_TOSTRING = 25;
+	private static final int OBJ_CLEAR = 26;
+	private static final int OBJ_TOINTEGER = 27;
+	private static final int OBJ_TOFLOAT = 28;
+	
+	// Table
+	private static final int TABLE_RAWDELETE = 30;
+	private static final int TABLE_SETDELEGATE = 31;
+	private static final int TABLE_GETDELEGATE = 32;
+	
+	// Array
+	private static final int ARRAY_APPEND = 40;
+	private static final int ARRAY_EXTEND = 41;
+	private static final int ARRAY_POP = 42;
+	private static final int ARRAY_TOP = 43;
+	private static final int ARRAY_INSERT = 44;
+	private static final int ARRAY_REMOVE = 45;
+	private static final int ARRAY_RESIZE = 46;
+	private static final int ARRAY_REVERSE = 47;
+	private static final int ARRAY_SORT = 48;
+	private static final int ARRAY_SLICE = 49;
+	private static final int ARRAY_MAP = 50;
+	private static final int ARRAY_APPLY = 51;
+	private static final int ARRAY_REDUCE = 52;
+	private static final int ARRAY_FILTER = 53;
+	private static final int ARRAY_FIND = 54;
+	
+	// String and number
+	private static final int STRING_SLICE = 60;
+	private static final int STRING_FIND = 61;
+	private static final int STRING_TOLOWER = 62;
+	private static final int STRING_TOUPPER = 63;
+	private static final int NUMBER_TOCHAR = 64;
+	
+	// Closure
+	private static final int CLOSURE_CALL = 70;
+	private static final int CLOSURE_PCALL = 71;
+	private static final int CLOSURE_ACALL = 72;
+	private static final int CLOSURE_PACALL = 73;
+	private static final int CLOSURE_BINDENV = 74;
+	private static final int CLOSURE_GETINFOS = 75;
+	
+	// Generator and thread
+	private static final int GENERATOR_GETSTATUS = 80;
+	private static final int THREAD_CALL = 81;
+	private static final int THREAD_WAKEUP = 82;
+	private static final int THREAD_GETSTATUS = 83;
+	private static final int THREAD_GETSTACKINFOS = 84;
+	
+	// Class, instance and weakref
+	private static final int CLASS_GETATTRIBUTES = 90;
+	private static final int CLASS_SETATTRIBUTES = 91;
+	private static final int CLASS_NEWMEMBER = 92;
+	private static final int CLASS_RAWNEWMEMBER = 93;
+	private static final int CLASS_INSTANCE = 94;
+	private static final int INSTANCE_GETCLASS = 95;
+	private static final int WEAKREF_REF = 96;
+	
+	private JSqBaseLib() {
+	}
+	
+	/**
+	 * A function of the base library.
+	 */
+	static final class Builtin extends JSqNativeClosure {
+		
+		private final int m_id;
+		
+		Builtin(String name, int id, int nparamsCheck, String typeMask) {
+			m_name = name;
+			m_id = id;
+			m_nparamsCheck = nparamsCheck;
+			if (typeMask != null)
+				m_typeCheck = compileTypeMask(typeMask);
+		}
+		
+		@Override
+		int call(JSqInterpreter v) {
+			return dispatch(m_id, v);
+		}
+		
+	}
+	
+	private static void reg(JSqTable t, String name, int id, int nparamsCheck, String typeMask) {
+		t.newSlot(name, OT_NATIVECLOSURE, 0, new Builtin(name, id, nparamsCheck, typeMask));
+	}
+	
+	static void registerBase(JSqTable root) {
+		reg(root, "seterrorhandler", SETERRORHANDLER, 2, null);
+		reg(root, "setdebughook", SETDEBUGHOOK, 2, null);
+		reg(root, "enabledebuginfo", ENABLEDEBUGINFO, 2, null);
+		reg(root, "getstackinfos", GETSTACKINFOS, 2, ".n");
+		reg(root, "getroottable", GETROOTTABLE, 1, null);
+		reg(root, "setroottable", SETROOTTABLE, 2, null);
+		reg(root, "getconsttable", GETCONSTTABLE, 1, null);
+		reg(root, "setconsttable", SETCONSTTABLE, 2, null);
+		reg(root, "assert", ASSERT, 2, null);
+		reg(root, "print", PRINT, 2, null);
+		reg(root, "error", ERROR, 2, null);
+		reg(root, "compilestring", COMPILESTRING, -2, ".ss");
+		reg(root, "newthread", NEWTHREAD, 2, ".c");
+		reg(root, "suspend", SUSPEND, -1, null);
+		reg(root, "array", ARRAY, -2, ".n");
+		reg(root, "type", TYPE, 2, null);
+		reg(root, "callee", CALLEE, 0, null);
+		reg(root, "dummy", DUMMY, 0, null);
+		reg(root, "collectgarbage", COLLECTGARBAGE, 0, null);
+		reg(root, "resurrectunreachable", RESURRECTUNREACHABLE, 0, null);
+		root.newSlot("_versionnumber_", OT_INTEGER, VERSION_NUMBER, null);
+		root.newSlot("_version_", OT_STRING, 0, VERSION);
+		root.newSlot("_charsize_", OT_INTEGER, 2, null);
+		root.newSlot("_intsize_", OT_INTEGER, 4, null);
+		root.newSlot("_floatsize_", OT_INTEGER, 4, null);
+	}
+	
+	static JSqTable tableDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "len", OBJ_LEN, 1, "t");
+		reg(t, "rawget", OBJ_RAWGET, 2, "t");
+		reg(t, "rawset", OBJ_RAWSET, 3, "t");
+		reg(t, "rawdelete", TABLE_RAWDELETE, 2, "t");
+		reg(t, "rawin", OBJ_RAWIN, 2, "t");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "clear", OBJ_CLEAR, 1, ".");
+		reg(t, "setdelegate", TABLE_SETDELEGATE, 2, ".t|o");
+		reg(t, "getdelegate", TABLE_GETDELEGATE, 1, ".");
+		return t;
+	}
+	
+	static JSqTable arrayDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "len", OBJ_LEN, 1, "a");
+		reg(t, "append", ARRAY_APPEND, 2, "a");
+		reg(t, "extend", ARRAY_EXTEND, 2, "aa");
+		reg(t, "push", ARRAY_APPEND, 2, "a");
+		reg(t, "pop", ARRAY_POP, 1, "a");
+		reg(t, "top", ARRAY_TOP, 1, "a");
+		reg(t, "insert", ARRAY_INSERT, 3, "an");
+		reg(t, "remove", ARRAY_REMOVE, 2, "an");
+		reg(t, "resize", ARRAY_RESIZE, -2, "an");
+		reg(t, "reverse", ARRAY_REVERSE, 1, "a");
+		reg(t, "sort", ARRAY_SORT, -1, "ac");
+		reg(t, "slice", ARRAY_SLICE, -1, "ann");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "clear", OBJ_CLEAR, 1, ".");
+		reg(t, "map", ARRAY_MAP, 2, "ac");
+		reg(t, "apply", ARRAY_APPLY, 2, "ac");
+		reg(t, "reduce", ARRAY_REDUCE, 2, "ac");
+		reg(t, "filter", ARRAY_FILTER, 2, "ac");
+		reg(t, "find", ARRAY_FIND, 2, "a.");
+		return t;
+	}
+	
+	static JSqTable stringDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "len", OBJ_LEN, 1, "s");
+		reg(t, "tointeger", OBJ_TOINTEGER, 1, "s");
+		reg(t, "tofloat", OBJ_TOFLOAT, 1, "s");
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "slice", STRING_SLICE, -1, " s n  n");
+		reg(t, "find", STRING_FIND, -2, "s s n ");
+		reg(t, "tolower", STRING_TOLOWER, 1, "s");
+		reg(t, "toupper", STRING_TOUPPER, 1, "s");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		return t;
+	}
+	
+	static JSqTable numberDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "tointeger", OBJ_TOINTEGER, 1, "n|b");
+		reg(t, "tofloat", OBJ_TOFLOAT, 1, "n|b");
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "tochar", NUMBER_TOCHAR, 1, "n|b");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		return t;
+	}
+	
+	static JSqTable closureDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "call", CLOSURE_CALL, -1, "c");
+		reg(t, "pcall", CLOSURE_PCALL, -1, "c");
+		reg(t, "acall", CLOSURE_ACALL, 2, "ca");
+		reg(t, "pacall", CLOSURE_PACALL, 2, "ca");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "bindenv", CLOSURE_BINDENV, 2, "c x|y|t");
+		reg(t, "getinfos", CLOSURE_GETINFOS, 1, "c");
+		return t;
+	}
+	
+	static JSqTable generatorDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "getstatus", GENERATOR_GETSTATUS, 1, "g");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		return t;
+	}
+	
+	static JSqTable threadDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "call", THREAD_CALL, -1, "v");
+		reg(t, "wakeup", THREAD_WAKEUP, -1, "v");
+		reg(t, "getstatus", THREAD_GETSTATUS, 1, "v");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "getstackinfos", THREAD_GETSTACKINFOS, 2, "vn");
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		return t;
+	}
+	
+	static JSqTable classDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "getattributes", CLASS_GETATTRIBUTES, 2, "y.");
+		reg(t, "setattributes", CLASS_SETATTRIBUTES, 3, "y..");
+		reg(t, "rawget", OBJ_RAWGET, 2, "y");
+		reg(t, "rawset", OBJ_RAWSET, 3, "y");
+		reg(t, "rawin", OBJ_RAWIN, 2, "y");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		reg(t, "newmember", CLASS_NEWMEMBER, -3, "y");
+		reg(t, "rawnewmember", CLASS_RAWNEWMEMBER, -3, "y");
+		reg(t, "instance", CLASS_INSTANCE, 1, "y");
+		return t;
+	}
+	
+	static JSqTable instanceDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "getclass", INSTANCE_GETCLASS, 1, "x");
+		reg(t, "rawget", OBJ_RAWGET, 2, "x");
+		reg(t, "rawset", OBJ_RAWSET, 3, "x");
+		reg(t, "rawin", OBJ_RAWIN, 2, "x");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		return t;
+	}
+	
+	static JSqTable weakRefDelegate() {
+		JSqTable t = new JSqTable(0);
+		reg(t, "ref", WEAKREF_REF, 1, "r");
+		reg(t, "weakref", OBJ_WEAKREF, 1, null);
+		reg(t, "tostring", OBJ_TOSTRING, 1, ".");
+		return t;
+	}
+	
+	// Type masks
+	
+	/**
+	 * Compiles a sq_setparamscheck type mask, one int per parameter, -1 meaning any type.
+	 * @return The masks, or null if the string is invalid.
+	 */
+	static int[] compileTypeMask(String typeMask) {
+		int[] res = new int[typeMask.length()];
+		int n = 0;
+		int mask = 0;
+		for (int i = 0; i < typeMask.length(); i++) {
+			char c = typeMask.charAt(i);
+			switch (c) {
+				case ' ': continue;
+				case 'o': mask |= Squirrel.RT_NULL; break;
+				case 'i': mask |= Squirrel.RT_INTEGER; break;
+				case 'f': mask |= Squirrel.RT_FLOAT; break;
+				case 'n': mask |= Squirrel.RT_FLOAT | Squirrel.RT_INTEGER; break;
+				case 's': mask |= Squirrel.RT_STRING; break;
+				case 't': mask |= Squirrel.RT_TABLE; break;
+				case 'a': mask |= Squirrel.RT_ARRAY; break;
+				case 'u': mask |= Squirrel.RT_USERDATA; break;
+				case 'c': mask |= Squirrel.RT_CLOSURE | Squirrel.RT_NATIVECLOSURE; break;
+				case 'b': mask |= Squirrel.RT_BOOL; break;
+				case 'g': mask |= Squirrel.RT_GENERATOR; break;
+				case 'p': mask |= Squirrel.RT_USERPOINTER; break;
+				case 'v': mask |= Squirrel.RT_THREAD; break;
+				case 'x': mask |= Squirrel.RT_INSTANCE; break;
+				case 'y': mask |= Squirrel.RT_CLASS; break;
+				case 'r': mask |= Squirrel.RT_WEAKREF; break;
+				case '.':
+					res[n++] = -1;
+					mask = 0;
+					continue;
+				default:
+					return null;
+			}
+			if (i + 1 < typeMask.length() && typeMask.charAt(i + 1) == '|') {
+				i++;
+				if (i + 1 == typeMask.length())
+					return null;
+				continue;
+			}
+			res[n++] = mask;
+			mask = 0;
+		}
+		return java.util.Arrays.copyOf(res, n);
+	}
+	
+	static String typeMaskToString(int mask) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 24; i++) {
+			int bit = 1 << i;
+			if ((mask & bit) != 0) {
+				if (sb.length() != 0)
+					sb.append('|');
+				sb.append(typeName(bit));
+			}
+		}
+		return sb.toString();
+	}
+	
+	// Dispatch
+	
+	private static int dispatch(int id, JSqInterpreter v) {
+		switch (id) {
+			case SETERRORHANDLER:
+				v.setErrorHandler();
+				return 0;
+			case SETDEBUGHOOK:
+				// The Java backend doesn't call debug hooks yet, the hook is only stored
+				v.m_debugHookType = v.type(2);
+				v.m_debugHook = v.ref(2);
+				return 0;
+			case ENABLEDEBUGINFO:
+				v.m_ss.m_debugInfo = v.toBool(2);
+				return 0;
+			case GETSTACKINFOS:
+				if (v.pushStackInfos(v.getInteger(-1) + 1, v))
+					return 1;
+				return 0;
+			case GETROOTTABLE:
+				v.pushRoot();
+				return 1;
+			case SETROOTTABLE: {
+				JSqTable old = v.m_root;
+				if (v.setRootTable() < 0)
+					return SQ_ERROR;
+				if (old != null)
+					v.push(OT_TABLE, 0, old);
+				else
+					v.push(OT_NULL, 0, null);
+				return 1;
+			}
+			case GETCONSTTABLE:
+				v.push(OT_TABLE, 0, v.m_ss.m_consts);
+				return 1;
+			case SETCONSTTABLE: {
+				JSqTable old = v.m_ss.m_consts;
+				if (v.setConstTable() < 0)
+					return SQ_ERROR;
+				v.push(OT_TABLE, 0, old);
+				return 1;
+			}
+			case ASSERT:
+				if (!v.toBool(2))
+					return v.throwError("assertion failed");
+				return 0;
+			case PRINT:
+			case ERROR:
+				// There is no print function to forward to, like a native VM without sq_setprintfunc
+				v.toStringIdx(2);
+				return 0;
+			case COMPILESTRING: {
+				String src = v.getString(2);
+				String name = v.getTop() > 2 ? v.getString(3) : "unnamedbuffer";
+				if (v.compileBuffer(src, name, false) < 0)
+					return SQ_ERROR;
+				return 1;
+			}
+			case NEWTHREAD: {
+				int f = v.stackIndex(2);
+				int size = MIN_STACK_OVERHEAD + 2;
+				if (v.m_stackTypes[f] == OT_CLOSURE)
+					size = Math.max(size, (((JSqClosure) v.m_stackRefs[f]).m_function.m_stackSize << 1) + 2);
+				JSqInterpreter t = v.newThread(size);
+				t.move(v, -2);
+				return 1;
+			}
+			case SUSPEND:
+				return v.suspendVM();
+			case ARRAY: {
+				int size = v.getInteger(2);
+				if (!v.tryCharge(JSqMemoryMeter.arrayBytes(size)))
+					return SQ_ERROR;
+				JSqArray a = new JSqArray(size);
+				if (v.getTop() > 2) {
+					int f = v.stackIndex(3);
+					for (int i = 0; i < size; i++)
+						a.set(i, v.m_stackTypes[f], v.m_stackValues[f], v.m_stackRefs[f]);
+				}
+				v.push(OT_ARRAY, 0, a);
+				return 1;
+			}
+			case TYPE:
+				v.push(OT_STRING, 0, typeName(v.type(2)));
+				return 1;
+			case CALLEE:
+				return v.getCallee() < 0 ? SQ_ERROR : 1;
+			case DUMMY:
+				return 0;
+			case COLLECTGARBAGE:
+				v.push(OT_INTEGER, 0, null);
+				return 1;
+			case RESURRECTUNREACHABLE:
+				return 0;
+				
+			case OBJ_LEN:
+				v.push(OT_INTEGER, v.getSize(1), null);
+				return 1;
+			case OBJ_RAWGET:
+				return v.rawGet(-2) < 0 ? SQ_ERROR : 1;
+			case OBJ_RAWSET:
+				return v.rawSet(-3);
+			case OBJ_RAWIN:
+				if (v.rawGet(-2) >= 0) {
+					v.pop(1);
+					v.push(OT_BOOL, 1, null);
+				}
+				else {
+					v.push(OT_BOOL, 0, null);
+				}
+				return 1;
+			case OBJ_WEAKREF:
+				v.weakRef(1);
+				return 1;
+			case OBJ_TOSTRING:
+				v.toStringIdx(1);
+				return 1;
+			case OBJ_CLEAR:
+				return v.clear(-1);
+			case OBJ_TOINTEGER:
+			case OBJ_TOFLOAT:
+				return toNumber(v, id == OBJ_TOFLOAT);
+				
+			case TABLE_RAWDELETE:
+				return v.rawDeleteSlot(1, true) < 0 ? SQ_ERROR : 1;
+			case TABLE_SETDELEGATE:
+				if (v.setDelegate(-2) < 0)
+					return SQ_ERROR;
+				v.pushCopy(v.m_top - 1);
+				return 1;
+			case TABLE_GETDELEGATE:
+				return v.getDelegate(-1) < 0 ? SQ_ERROR : 1;
+				
+			case ARRAY_APPEND:
+				return v.arrayAppend(-2);
+			case ARRAY_EXTEND: {
+				JSqArray a = (JSqArray) v.ref(1);
+				JSqArray b = (JSqArray) v.ref(2);
+				int n = b.m_size;
+				if (!v.tryCharge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth(a.m_size + n)))
+					return SQ_ERROR;
+				for (int i = 0; i < n; i++)
+					a.append(b.m_types[i], b.m_values[i], b.m_refs[i]);
+				return 0;
+			}
+			case ARRAY_POP:
+				return v.arrayPop(1, true) < 0 ? SQ_ERROR : 1;
+			case ARRAY_TOP: {
+				JSqArray a = (JSqArray) v.ref(1);
+				if (a.m_size > 0) {
+					int last = a.m_size - 1;
+					v.push(a.m_types[last], a.m_values[last], a.m_refs[last]);
+					return 1;
+				}
+				return v.throwError("top() on a empty array");
+			}
+			case ARRAY_INSERT: {
+				JSqArray a = (JSqArray) v.ref(1);
+				int val = v.stackIndex(3);
+				if (!v.tryCharge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth()))
+					return SQ_ERROR;
+				if (!a.insert(v.getInteger(2), v.m_stackTypes[val], v.m_stackValues[val], v.m_stackRefs[val]))
+					return v.throwError("index out of range");
+				return 0;
+			}
+			case ARRAY_REMOVE: {
+				JSqArray a = (JSqArray) v.ref(1);
+				int idx = v.getInteger(2);
+				if (idx < 0 || idx >= a.m_size)
+					return v.throwError("idx out of range");
+				int t = a.m_types[idx], val = a.m_values[idx];
+				Object r = a.m_refs[idx];
+				a.remove(idx);
+				v.push(t, val, r);
+				return 1;
+			}
+			case ARRAY_RESIZE: {
+				JSqArray a = (JSqArray) v.ref(1);
+				int size = v.getInteger(2);
+				if (size < 0)
+					return v.throwError("negative size");
+				if (!v.tryCharge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth(size)))
+					return SQ_ERROR;
+				int old = a.m_size;
+				a.resize(size);
+				if (v.getTop() > 2) {
+					int f = v.stackIndex(3);
+					for (int i = old; i < size; i++)
+						a.set(i, v.m_stackTypes[f], v.m_stackValues[f], v.m_stackRefs[f]);
+				}
+				return 0;
+			}
+			case ARRAY_REVERSE:
+				return v.arrayReverse(-1);
+			case ARRAY_SORT: {
+				JSqArray a = (JSqArray) v.ref(1);
+				if (a.m_size > 1)
+					heapSort(v, a, v.getTop() == 2 ? 2 : -1);
+				return 0;
+			}
+			case ARRAY_SLICE:
+			case STRING_SLICE:
+				return slice(v, id == STRING_SLICE);
+			case ARRAY_MAP:
+			case ARRAY_APPLY: {
+				JSqArray src = (JSqArray) v.ref(1);
+				JSqArray dest = id == ARRAY_MAP ? new JSqArray(src.m_size) : src;
+				int size = src.m_size;
+				for (int i = 0; i < size; i++) {
+					v.push(OT_ARRAY, 0, src);
+					v.push(src.m_types[i], src.m_values[i], src.m_refs[i]);
+					if (v.call(2, true, false) < 0)
+						return SQ_ERROR;
+					int r = v.m_top - 1;
+					dest.set(i, v.m_stackTypes[r], v.m_stackValues[r], v.m_stackRefs[r]);
+					v.pop(1);
+				}
+				if (id == ARRAY_APPLY)
+					return 0;
+				v.push(OT_ARRAY, 0, dest);
+				return 1;
+			}
+			case ARRAY_REDUCE: {
+				JSqArray a = (JSqArray) v.ref(1);
+				int size = a.m_size;
+				if (size == 0)
+					return 0;
+				int rt = a.m_types[0], rv = a.m_values[0];
+				Object rr = a.m_refs[0];
+				for (int i = 1; i < size; i++) {
+					v.push(OT_ARRAY, 0, a);
+					v.push(rt, rv, rr);
+					v.push(a.m_types[i], a.m_values[i], a.m_refs[i]);
+					if (v.call(3, true, false) < 0)
+						return SQ_ERROR;
+					int r = v.m_top - 1;
+					rt = v.m_stackTypes[r];
+					rv = v.m_stackValues[r];
+					rr = v.m_stackRefs[r];
+					v.pop(1);
+				}
+				v.push(rt, rv, rr);
+				return 1;
+			}
+			case ARRAY_FILTER: {
+				JSqArray a = (JSqArray) v.ref(1);
+				JSqArray res = new JSqArray(0);
+				int size = a.m_size;
+				for (int i = 0; i < size; i++) {
+					int t = a.m_types[i], val = a.m_values[i];
+					Object r = a.m_refs[i];
+					v.push(OT_ARRAY, 0, a);
+					v.push(OT_INTEGER, i, null);
+					v.push(t, val, r);
+					if (v.call(3, true, false) < 0)
+						return SQ_ERROR;
+					if (v.toBool(-1))
+						res.append(t, val, r);
+					v.pop(1);
+				}
+				v.push(OT_ARRAY, 0, res);
+				return 1;
+			}
+			case ARRAY_FIND: {
+				JSqArray a = (JSqArray) v.ref(1);
+				int o = v.stackIndex(2);
+				for (int i = 0; i < a.m_size; i++) {
+					if (isEqual(a.m_types[i], a.m_values[i], a.m_refs[i], v.m_stackTypes[o], v.m_stackValues[o], v.m_stackRefs[o])) {
+						v.push(OT_INTEGER, i, null);
+						return 1;
+					}
+				}
+				return 0;
+			}
+				
+			case STRING_FIND: {
+				if (v.getTop() < 2 || v.getString(1) == null || v.getString(2) == null)
+					return v.throwError("invalid param");
+				String s = v.getString(1);
+				int start = v.getTop() > 2 ? v.getInteger(3) : 0;
+				if (s.length() > start && start >= 0) {
+					int res = s.indexOf(v.getString(2), start);
+					if (res >= 0) {
+						v.push(OT_INTEGER, res, null);
+						return 1;
+					}
+				}
+				return 0;
+			}
+			case STRING_TOLOWER:
+				v.push(OT_STRING, 0, v.getString(1).toLowerCase(java.util.Locale.ROOT));
+				return 1;
+			case STRING_TOUPPER:
+				v.push(OT_STRING, 0, v.getString(1).toUpperCase(java.util.Locale.ROOT));
+				return 1;
+			case NUMBER_TOCHAR:
+				v.push(OT_STRING, 0, String.valueOf((char) toInteger(v.type(1) == OT_BOOL ? OT_INTEGER : v.type(1), v.m_stackValues[v.stackIndex(1)])));
+				return 1;
+				
+			case CLOSURE_CALL:
+			case CLOSURE_PCALL:
+				return v.call(v.getTop() - 1, true, id == CLOSURE_CALL) < 0 ? SQ_ERROR : 1;
+			case CLOSURE_ACALL:
+			case CLOSURE_PACALL: {
+				JSqArray params = (JSqArray) v.ref(2);
+				v.pushCopy(v.stackIndex(1));
+				for (int i = 0; i < params.m_size; i++)
+					v.push(params.m_types[i], params.m_values[i], params.m_refs[i]);
+				return v.call(params.m_size, true, id == CLOSURE_ACALL) < 0 ? SQ_ERROR : 1;
+			}
+			case CLOSURE_BINDENV:
+				return v.bindEnv(1) < 0 ? SQ_ERROR : 1;
+			case CLOSURE_GETINFOS:
+				v.push(OT_TABLE, 0, closureInfos(v.type(1), v.ref(1)));
+				return 1;
+				
+			case GENERATOR_GETSTATUS: {
+				int state = ((JSqGenerator) v.ref(1)).m_state;
+				v.push(OT_STRING, 0, state == JSqGenerator.DEAD ? "dead" : state == JSqGenerator.SUSPENDED ? "suspended" : "running");
+				return 1;
+			}
+			case THREAD_CALL: {
+				JSqInterpreter t = (JSqInterpreter) v.ref(1);
+				int nparams = v.getTop();
+				t.pushRoot();
+				for (int i = 2; i < nparams + 1; i++)
+					t.move(v, i);
+				if (t.call(nparams, true, false) >= 0) {
+					v.move(t, -1);
+					t.pop(1);
+					return 1;
+				}
+				copyLastError(t, v);
+				return SQ_ERROR;
+			}
+			case THREAD_WAKEUP: {
+				JSqInterpreter t = (JSqInterpreter) v.ref(1);
+				int state = t.getVMState();
+				if (state == SQ_VMSTATE_IDLE)
+					return v.throwError("cannot wakeup a idle thread");
+				if (state == SQ_VMSTATE_RUNNING)
+					return v.throwError("cannot wakeup a running thread");
+				boolean wakeupRet = v.getTop() > 1;
+				if (wakeupRet)
+					t.move(v, 2);
+				if (t.wakeupVM(wakeupRet, true, true, false) >= 0) {
+					v.move(t, -1);
+					t.pop(1);
+					if (t.getVMState() == SQ_VMSTATE_IDLE)
+						t.setTop(1);
+					return 1;
+				}
+				t.setTop(1);
+				copyLastError(t, v);
+				return SQ_ERROR;
+			}
+			case THREAD_GETSTATUS: {
+				int state = ((JSqInterpreter) v.ref(1)).getVMState();
+				v.push(OT_STRING, 0, state == SQ_VMSTATE_IDLE ? "idle" : state == SQ_VMSTATE_RUNNING ? "running" : "suspended");
+				return 1;
+			}
+			case THREAD_GETSTACKINFOS: {
+				JSqInterpreter t = (JSqInterpreter) v.ref(1);
+				if (t.pushStackInfos(v.getInteger(2), v))
+					return 1;
+				return 0;
+			}
+				
+			case CLASS_GETATTRIBUTES:
+				return v.getAttributes(-2) < 0 ? SQ_ERROR : 1;
+			case CLASS_SETATTRIBUTES:
+				return v.setAttributes(-3) < 0 ? SQ_ERROR : 1;
+			case CLASS_NEWMEMBER:
+			case CLASS_RAWNEWMEMBER: {
+				int top = v.getTop();
+				boolean isStatic = false;
+				if (top == 5) {
+					isStatic = v.toBool(-1);
+					v.pop(1);
+				}
+				if (top < 4)
+					v.push(OT_NULL, 0, null);
+				return v.newMember(-4, isStatic, id == CLASS_RAWNEWMEMBER) < 0 ? SQ_ERROR : 1;
+			}
+			case CLASS_INSTANCE:
+				return v.createInstance(-1) < 0 ? SQ_ERROR : 1;
+			case INSTANCE_GETCLASS:
+				return v.getClassIdx(1) < 0 ? SQ_ERROR : 1;
+			case WEAKREF_REF:
+				return v.getWeakRefVal(1) < 0 ? SQ_ERROR : 1;
+				
+			default:
+				throw new AssertionError(id);
+		}
+	}
+	
+	private static void copyLastError(JSqInterpreter from, JSqInterpreter to) {
+		to.m_errType = from.m_errType;
+		to.m_errValue = from.m_errValue;
+		to.m_errRef = from.m_errRef;
+	}
+	
+	private static int toNumber(JSqInterpreter v, boolean toFloat) {
+		int i = v.stackIndex(1);
+		int t = v.m_stackTypes[i];
+		int val = v.m_stackValues[i];
+		switch (t) {
+			case OT_STRING: {
+				String s = (String) v.m_stackRefs[i];
+				Number n = parseNumber(s);
+				if (n == null)
+					return v.throwError("cannot convert the string");
+				if (toFloat)
+					v.push(OT_FLOAT, Float.floatToRawIntBits(n.floatValue()), null);
+				else
+					v.push(OT_INTEGER, n.intValue(), null);
+				break;
+			}
+			case OT_INTEGER:
+			case OT_FLOAT:
+				if (toFloat)
+					v.push(OT_FLOAT, Float.floatToRawIntBits(JSqTypes.toFloat(t, val)), null);
+				else
+					v.push(OT_INTEGER, JSqTypes.toInteger(t, val), null);
+				break;
+			case OT_BOOL:
+				if (toFloat)
+					v.push(OT_FLOAT, Float.floatToRawIntBits(val != 0 ? 1f : 0f), null);
+				else
+					v.push(OT_INTEGER, val != 0 ? 1 : 0, null);
+				break;
+			default:
+				v.push(OT_NULL, 0, null);
+				break;
+		}
+		return 1;
+	}
+	
+	/**
+	 * Parses the leading number of a string like strtol/strtod, a '.' anywhere in the string selects a float.
+	 * @return The number, or null if the string doesn't start with one.
+	 */
+	private static Number parseNumber(String s) {
+		int i = 0, n = s.length();
+		while (i < n && Character.isWhitespace(s.charAt(i)))
+			i++;
+		int start = i;
+		if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+			i++;
+		int digits = i;
+		if (s.indexOf('.') >= 0) {
+			while (i < n && Character.isDigit(s.charAt(i)))
+				i++;
+			if (i < n && s.charAt(i) == '.') {
+				i++;
+				while (i < n && Character.isDigit(s.charAt(i)))
+					i++;
+			}
+			if (i == digits || (i == digits + 1 && s.charAt(digits) == '.'))
+				return null;
+			if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+				int e = i + 1;
+				if (e < n && (s.charAt(e) == '+' || s.charAt(e) == '-'))
+					e++;
+				if (e < n && Character.isDigit(s.charAt(e))) {
+					while (e < n && Character.isDigit(s.charAt(e)))
+						e++;
+					i = e;
+				}
+			}
+			return Double.valueOf(s.substring(start, i));
+		}
+		while (i < n && Character.isDigit(s.charAt(i)))
+			i++;
+		if (i == digits)
+			return null;
+		try {
+			return Integer.valueOf((int) Long.parseLong(s.substring(start, i)));
+		}
+		catch (NumberFormatException e) {
+			return Integer.valueOf(s.charAt(start) == '-' ? Integer.MIN_VALUE : Integer.MAX_VALUE);
+		}
+	}
+	
+	private static int slice(JSqInterpreter v, boolean string) {
+		int top = v.getTop();
+		int sidx = 0, eidx;
+		if (top > 1 && isNumeric(v.type(2)))
+			sidx = v.getInteger(2);
+		if (top > 2)
+			eidx = isNumeric(v.type(3)) ? v.getInteger(3) : 0;
+		else
+			eidx = v.getSize(1);
+		int len = v.getSize(1);
+		if (sidx < 0)
+			sidx = len + sidx;
+		if (eidx < 0)
+			eidx = len + eidx;
+		if (eidx < sidx)
+			return v.throwError("wrong indexes");
+		if (eidx > len || sidx < 0)
+			return v.throwError("slice out of range");
+		if (!v.tryCharge(string ? JSqMemoryMeter.stringBytes(eidx - sidx) : JSqMemoryMeter.arrayBytes(eidx - sidx)))
+			return SQ_ERROR;
+		if (string) {
+			v.push(OT_STRING, 0, v.getString(1).substring(sidx, eidx));
+		}
+		else {
+			JSqArray a = (JSqArray) v.ref(1);
+			JSqArray res = new JSqArray(eidx - sidx);
+			for (int i = sidx; i < eidx; i++)
+				res.set(i - sidx, a.m_types[i], a.m_values[i], a.m_refs[i]);
+			v.push(OT_ARRAY, 0, res);
+		}
+		return 1;
+	}
+	
+	private static JSqTable closureInfos(int t, Object r) {
+		JSqTable res = new JSqTable(6);
+		if (t == OT_CLOSURE) {
+			JSqClosure c = (JSqClosure) r;
+			JSqFunctionProto f = c.m_function;
+			JSqArray params = new JSqArray(f.m_parameters.length);
+			for (int i = 0; i < f.m_parameters.length; i++)
+				params.set(i, OT_STRING, 0, f.m_parameters[i]);
+			JSqArray defParams = new JSqArray(c.m_defaultTypes.length);
+			for (int i = 0; i < c.m_defaultTypes.length; i++)
+				defParams.set(i, c.m_defaultTypes[i], c.m_defaultValues[i], c.m_defaultRefs[i]);
+			res.newSlot("native", OT_BOOL, 0, null);
+			putString(res, "name", f.m_name);
+			putString(res, "src", f.m_sourceName);
+			res.newSlot("parameters", OT_ARRAY, 0, params);
+			res.newSlot("varargs", OT_BOOL, f.m_varParams ? 1 : 0, null);
+			res.newSlot("defparams", OT_ARRAY, 0, defParams);
+		}
+		else {
+			JSqNativeClosure nc = (JSqNativeClosure) r;
+			res.newSlot("native", OT_BOOL, 1, null);
+			putString(res, "name", nc.m_name);
+			res.newSlot("paramscheck", OT_INTEGER, nc.m_nparamsCheck, null);
+			if (nc.m_typeCheck != null) {
+				JSqArray typeCheck = new JSqArray(nc.m_typeCheck.length);
+				for (int i = 0; i < nc.m_typeCheck.length; i++)
+					typeCheck.set(i, OT_INTEGER, nc.m_typeCheck[i], null);
+				res.newSlot("typecheck", OT_ARRAY, 0, typeCheck);
+			}
+			else {
+				res.newSlot("typecheck", OT_NULL, 0, null);
+			}
+		}
+		return res;
+	}
+	
+	private static void putString(JSqTable t, String key, String value) {
+		if (value != null)
+			t.newSlot(key, OT_STRING, 0, value);
+		else
+			t.newSlot(key, OT_NULL, 0, null);
+	}
+	
+	// array.sort(), the same heap sort as sqbaselib.cpp so compare functions see the same calls
+	
+	private static int sortCompare(JSqInterpreter v, JSqArray a, int i, int j, int func) {
+		if (func < 0)
+			return v.objCmp(a.m_types[i], a.m_values[i], a.m_refs[i], a.m_types[j], a.m_values[j], a.m_refs[j]);
+		int top = v.getTop();
+		v.pushCopy(v.stackIndex(func));
+		v.pushRoot();
+		v.push(a.m_types[i], a.m_values[i], a.m_refs[i]);
+		v.push(a.m_types[j], a.m_values[j], a.m_refs[j]);
+		if (v.call(3, true, false) < 0) {
+			if (v.m_errType != OT_STRING)
+				throw v.raise("compare func failed");
+			throw v.rethrow();
+		}
+		if (!isNumeric(v.type(-1)))
+			throw v.raise("numeric value expected as return value of the compare function");
+		int ret = v.getInteger(-1);
+		v.setTop(top);
+		return ret;
+	}
+	
+	private static void swap(JSqArray a, int i, int j) {
+		int t = a.m_types[i], val = a.m_values[i];
+		Object r = a.m_refs[i];
+		a.m_types[i] = a.m_types[j];
+		a.m_values[i] = a.m_values[j];
+		a.m_refs[i] = a.m_refs[j];
+		a.m_types[j] = t;
+		a.m_values[j] = val;
+		a.m_refs[j] = r;
+	}
+	
+	private static void siftDown(JSqInterpreter v, JSqArray a, int root, int bottom, int func) {
+		int root2;
+		while ((root2 = root * 2) <= bottom) {
+			int maxChild;
+			if (root2 == bottom)
+				maxChild = root2;
+			else
+				maxChild = sortCompare(v, a, root2, root2 + 1, func) > 0 ? root2 : root2 + 1;
+			if (sortCompare(v, a, root, maxChild, func) >= 0)
+				return;
+			if (root == maxChild)
+				throw v.raise("inconsistent compare function");
+			swap(a, root, maxChild);
+			root = maxChild;
+		}
+	}
+	
+	private static void heapSort(JSqInterpreter v, JSqArray a, int func) {
+		int size = a.m_size;
+		for (int i = size / 2; i >= 0; i--)
+			siftDown(v, a, i, size - 1, func);
+		for (int i = size - 1; i >= 1; i--) {
+			swap(a, 0, i);
+			siftDown(v, a, 0, i - 1, func);
+		}
+	}
+	
+}
@@ -0,0 +1,743 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recorded sequence of stack operations run by {@link Squirrel#sq_runbatch(JSqVM, JSqBatch)} in a single call
+ * into the VM, instead of one native call and one {@link JSqResult} per operation.
+ * <br><br>
+ * Operations are encoded into a direct buffer as they're added and stay recorded until {@link #clear()}, so a batch
+ * can be built once and run any number of times. The values read by the {@code get} operations are written into a
+ * second direct buffer by each run and read back in order with the {@code next} methods.
+ * <pre>
+ * batch.pushRootTable().pushString("add").get(-2).pushRootTable().pushInteger(1).pushInteger(2)
+ *      .call(3, true, true).getInteger(-1).pop(3);
+ * if (Squirrel.SQ_SUCCEDED(Squirrel.sq_runbatch(v, batch)))
+ *     int sum = batch.nextInteger();
+ * </pre>
+ * A batch is not thread safe, but it can be run on any VM. On the Java backend there are no native calls to save,
+ * so batching only pays off on native VMs.
+ * @author Christopher Foster
+ */
+public final class JSqBatch {
+	
+	// Operations, each an int followed by int arguments
+	static final int PUSH = 0;
+	static final int POP = 1;
+	static final int REMOVE = 2;
+	static final int SETTOP = 3;
+	static final int PUSHROOTTABLE = 4;
+	static final int PUSHREGISTRYTABLE = 5;
+	static final int PUSHCONSTTABLE = 6;
+	static final int PUSHNULL = 7;
+	static final int PUSHINTEGER = 8;
+	static final int PUSHFLOAT = 9; // raw float bits
+	static final int PUSHBOOL = 10;
+	static final int PUSHSTRING = 11; // byte length, index in the string table, UTF-8 bytes padded to 4
+	static final int NEWTABLE = 12;
+	static final int NEWARRAY = 13;
+	static final int GET = 14;
+	static final int SET = 15;
+	static final int RAWGET = 16;
+	static final int RAWSET = 17;
+	static final int NEWSLOT = 18;
+	static final int ARRAYAPPEND = 19;
+	static final int CALL = 20; // params, retval, raiseerror
+	static final int GETTOP = 21;
+	static final int GETTYPE = 22;
+	static final int GETINTEGER = 23;
+	static final int GETFLOAT = 24;
+	static final int GETBOOL = 25;
+	static final int GETSTRING = 26; // result is a byte length, -1 for null, and UTF-8 bytes padded to 4
+	static final int NEWTABLEEX = 27; // initial capacity
+	static final int GETVALUE = 28; // result is a tree, each value a type followed by its content, see dumpValue
+	static final int NEXTCHUNK = 29; // idx, iterator, count; result is the next iterator (-1 at the end), the number of entries and each key and value as GETVALUE writes them
+	static final int SAMEOBJECT = 30; // idx, index in the object table, native handle as two ints, low first; fails unless the value at idx is the object itself
+	
+	/** How deep GETVALUE follows nested tables and arrays before failing, which also stops it at cycles. */
+	static final int MAX_DEPTH = 64;
+	
+	// The result buffer starts with the state of the run, so a run can be continued in a larger buffer
+	static final int STATE_COMMAND = 0; // offset of the next operation
+	static final int STATE_RESULTS = 4; // end of the written results
+	static final int STATE_EXECUTED = 8; // operations completed
+	static final int RESULTS_START = 16;
+	
+	// Run status
+	static final int RUN_OK = 0;
+	static final int RUN_FAILED = -1;
+	static final int RUN_RESULTS_FULL = -2;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	ByteBuffer m_commands;
+	ByteBuffer m_results;
+	/** The pushed strings, so the Java backend doesn't decode them again on every run. */
+	private String[] m_strings = new String[8];
+	private int m_stringCount = 0;
+	/** The objects compared by SAMEOBJECT, for the Java backend. */
+	private JSqObject[] m_objects = new JSqObject[4];
+	private int m_objectCount = 0;
+	private int m_count = 0;
+	private int m_failed = -1;
+	private int m_read = RESULTS_START;
+	private int m_resultsEnd = RESULTS_START;
+	
+	public JSqBatch() {
+		this(1024);
+	}
+	
+	/**
+	 * @param capacity The initial size in bytes of the operation and result buffers, both grow as needed.
+	 */
+	public JSqBatch(int capacity) {
+		m_commands = ByteBuffer.allocateDirect(Math.max(capacity, 64)).order(ByteOrder.nativeOrder());
+		m_results = ByteBuffer.allocateDirect(Math.max(capacity, 64)).order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * Removes every recorded operation and result.
+	 */
+	public JSqBatch clear() {
+		((Buffer) m_commands).clear();
+		Arrays.fill(m_strings, 0, m_stringCount, null);
+		m_stringCount = 0;
+		Arrays.fill(m_objects, 0, m_objectCount, null);
+		m_objectCount = 0;
+		m_count = 0;
+		m_failed = -1;
+		m_read = m_resultsEnd = RESULTS_START;
+		return this;
+	}
+	
+	/**
+	 * @return The number of recorded operations.
+	 */
+	public int size() {
+		return m_count;
+	}
+	
+	public JSqBatch push(int idx) {
+		return op(PUSH, idx);
+	}
+	
+	public JSqBatch pop(int numElementsToPop) {
+		return op(POP, numElementsToPop);
+	}
+	
+	public JSqBatch remove(int idx) {
+		return op(REMOVE, idx);
+	}
+	
+	public JSqBatch setTop(int newtop) {
+		return op(SETTOP, newtop);
+	}
+	
+	public JSqBatch pushRootTable() {
+		return op(PUSHROOTTABLE);
+	}
+	
+	public JSqBatch pushRegistryTable() {
+		return op(PUSHREGISTRYTABLE);
+	}
+	
+	public JSqBatch pushConstTable() {
+		return op(PUSHCONSTTABLE);
+	}
+	
+	public JSqBatch pushNull() {
+		return op(PUSHNULL);
+	}
+	
+	public JSqBatch pushInteger(int i) {
+		return op(PUSHINTEGER, i);
+	}
+	
+	public JSqBatch pushFloat(float f) {
+		return op(PUSHFLOAT, Float.floatToRawIntBits(f));
+	}
+	
+	public JSqBatch pushBool(boolean b) {
+		return op(PUSHBOOL, b ? 1 : 0);
+	}
+	
+	public JSqBatch pushString(String s) {
+		byte[] bytes = s.getBytes(UTF_8);
+		ensureCommands(12 + pad(bytes.length));
+		if (m_stringCount == m_strings.length)
+			m_strings = Arrays.copyOf(m_strings, m_stringCount << 1);
+		m_strings[m_stringCount] = s;
+		m_commands.putInt(PUSHSTRING).putInt(bytes.length).putInt(m_stringCount++).put(bytes);
+		((Buffer) m_commands).position(m_commands.position() + pad(bytes.length) - bytes.length);
+		m_count++;
+		return this;
+	}
+	
+	public JSqBatch newTable() {
+		return op(NEWTABLE);
+	}
+	
+	/**
+	 * Adds a new table with room for {@code initialCapacity} slots, so filling it doesn't rehash.
+	 */
+	public JSqBatch newTable(int initialCapacity) {
+		return op(NEWTABLEEX, initialCapacity);
+	}
+	
+	public JSqBatch newArray(int size) {
+		return op(NEWARRAY, size);
+	}
+	
+	public JSqBatch get(int idx) {
+		return op(GET, idx);
+	}
+	
+	public JSqBatch set(int idx) {
+		return op(SET, idx);
+	}
+	
+	public JSqBatch rawGet(int idx) {
+		return op(RAWGET, idx);
+	}
+	
+	public JSqBatch rawSet(int idx) {
+		return op(RAWSET, idx);
+	}
+	
+	public JSqBatch newSlot(int idx, boolean bStatic) {
+		ensureCommands(12);
+		m_commands.putInt(NEWSLOT).putInt(idx).putInt(bStatic ? 1 : 0);
+		m_count++;
+		return this;
+	}
+	
+	/**
+	 * Adds a check failing the batch unless the value at {@code idx} is {@code obj} itself, not just equal to it.
+	 * @param obj An object taken with {@link Squirrel#sq_getstackobj(JSqVM, int)} from the VM the batch runs on.
+	 */
+	public JSqBatch sameObject(int idx, JSqObject obj) {
+		ensureCommands(20);
+		if (m_objectCount == m_objects.length)
+			m_objects = Arrays.copyOf(m_objects, m_objectCount << 1);
+		m_objects[m_objectCount] = obj;
+		m_commands.putInt(SAMEOBJECT).putInt(idx).putInt(m_objectCount++).putInt((int) obj.m_nativeHandle).putInt((int) (obj.m_nativeHandle >>> 32));
+		m_count++;
+		return this;
+	}
+	
+	public JSqBatch arrayAppend(int idx) {
+		return op(ARRAYAPPEND, idx);
+	}
+	
+	public JSqBatch call(int numParams, boolean retval, boolean raiseError) {
+		ensureCommands(16);
+		m_commands.putInt(CALL).putInt(numParams).putInt(retval ? 1 : 0).putInt(raiseError ? 1 : 0);
+		m_count++;
+		return this;
+	}
+	
+	/**
+	 * Adds the stack top as a result, read with {@link #nextInteger()}.
+	 */
+	public JSqBatch getTop() {
+		return op(GETTOP);
+	}
+	
+	/**
+	 * Adds the type of the value at {@code idx} as a result, read with {@link #nextType()}.
+	 */
+	public JSqBatch getType(int idx) {
+		return op(GETTYPE, idx);
+	}
+	
+	/**
+	 * Adds the value at {@code idx} as a result, read with {@link #nextInteger()}.
+	 */
+	public JSqBatch getInteger(int idx) {
+		return op(GETINTEGER, idx);
+	}
+	
+	/**
+	 * Adds the value at {@code idx} as a result, read with {@link #nextFloat()}.
+	 */
+	public JSqBatch getFloat(int idx) {
+		return op(GETFLOAT, idx);
+	}
+	
+	/**
+	 * Adds the value at {@code idx} as a result, read with {@link #nextBool()}.
+	 */
+	public JSqBatch getBool(int idx) {
+		return op(GETBOOL, idx);
+	}
+	
+	/**
+	 * Adds the value at {@code idx} as a result, read with {@link #nextString()}.
+	 */
+	public JSqBatch getString(int idx) {
+		return op(GETSTRING, idx);
+	}
+	
+	/**
+	 * Adds the value at {@code idx} as a result, read with {@link #nextValue()}. The contents of tables and arrays are
+	 * read along with them, up to {@value #MAX_DEPTH} levels deep. The operation fails on anything nested deeper,
+	 * which includes tables that contain themselves.
+	 */
+	public JSqBatch getValue(int idx) {
+		return op(GETVALUE, idx);
+	}
+	
+	/**
+	 * @return The index of the operation that failed in the last run, or -1 if every operation succeeded.
+	 */
+	public int getFailedOperation() {
+		return m_failed;
+	}
+	
+	/**
+	 * @return True if there are results of the last run that haven't been read.
+	 */
+	public boolean hasNext() {
+		return m_read < m_resultsEnd;
+	}
+	
+	public int nextInteger() {
+		int res = m_results.getInt(checkNext(4));
+		m_read += 4;
+		return res;
+	}
+	
+	public float nextFloat() {
+		float res = m_results.getFloat(checkNext(4));
+		m_read += 4;
+		return res;
+	}
+	
+	public boolean nextBool() {
+		return nextInteger() != 0;
+	}
+	
+	public JSqObjectType nextType() {
+		return JSqObjectType.getFromValue(nextInteger());
+	}
+	
+	public String nextString() {
+		int len = nextInteger();
+		if (len < 0)
+			return null;
+		byte[] bytes = new byte[len];
+		ByteBuffer buf = m_results.duplicate();
+		((Buffer) buf).position(checkNext(len));
+		buf.get(bytes);
+		m_read += pad(len);
+		return new String(bytes, UTF_8);
+	}
+	
+	/**
+	 * Adds up to {@code count} entries of the table or array at {@code idx}, starting at the sq_next iterator
+	 * {@code iterator}, as a result. Only used by {@link JSqCursor}, which reads the result itself.
+	 */
+	JSqBatch nextChunk(int idx, int iterator, int count) {
+		ensureCommands(16);
+		m_commands.putInt(NEXTCHUNK).putInt(idx).putInt(iterator).putInt(count);
+		m_count++;
+		return this;
+	}
+	
+	/**
+	 * Reads a value added with {@link #getValue(int)}.
+	 * @return An Integer, Float, Boolean or String, a {@link Map} in iteration order for a table, a {@link List} for
+	 * an array, or null for null and for any other type of value.
+	 */
+	public Object nextValue() {
+		int[] pos = { checkNext(4) };
+		Object value = readValue(m_results, pos);
+		m_read = pos[0];
+		return value;
+	}
+	
+	/**
+	 * Decodes a value written by {@link #dumpValue(int, int, Object, ByteBuffer, int, int, int)}.
+	 * @param pos The offset of the value, advanced past it.
+	 */
+	static Object readValue(ByteBuffer buf, int[] pos) {
+		int p = pos[0];
+		int type = buf.getInt(p);
+		pos[0] = p + 8;
+		switch (type) {
+			case JSqTypes.OT_INTEGER: return buf.getInt(p + 4);
+			case JSqTypes.OT_FLOAT: return buf.getFloat(p + 4);
+			case JSqTypes.OT_BOOL: return buf.getInt(p + 4) != 0;
+			case JSqTypes.OT_STRING:
+				pos[0] = p + 8 + pad(buf.getInt(p + 4));
+				return readString(buf, p + 4);
+			case JSqTypes.OT_TABLE: {
+				int count = buf.getInt(p + 4);
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>(count * 4 / 3 + 1);
+				for (int i = 0; i < count; i++) {
+					Object key = readValue(buf, pos);
+					map.put(key, readValue(buf, pos));
+				}
+				return map;
+			}
+			case JSqTypes.OT_ARRAY: {
+				int count = buf.getInt(p + 4);
+				List<Object> list = new ArrayList<Object>(count);
+				for (int i = 0; i < count; i++)
+					list.add(readValue(buf, pos));
+				return list;
+			}
+			default:
+				pos[0] = p + 4;
+				return null;
+		}
+	}
+	
+	/**
+	 * @return The offset after the value written by dumpValue at {@code pos}.
+	 */
+	static int skipValue(ByteBuffer buf, int pos) {
+		switch (buf.getInt(pos)) {
+			case JSqTypes.OT_INTEGER:
+			case JSqTypes.OT_FLOAT:
+			case JSqTypes.OT_BOOL:
+				return pos + 8;
+			case JSqTypes.OT_STRING:
+				return pos + 8 + pad(buf.getInt(pos + 4));
+			case JSqTypes.OT_TABLE: {
+				int count = buf.getInt(pos + 4) << 1;
+				pos += 8;
+				for (int i = 0; i < count; i++)
+					pos = skipValue(buf, pos);
+				return pos;
+			}
+			case JSqTypes.OT_ARRAY: {
+				int count = buf.getInt(pos + 4);
+				pos += 8;
+				for (int i = 0; i < count; i++)
+					pos = skipValue(buf, pos);
+				return pos;
+			}
+			default:
+				return pos + 4;
+		}
+	}
+	
+	/**
+	 * Decodes a byte length followed by UTF-8 bytes.
+	 */
+	static String readString(ByteBuffer buf, int pos) {
+		byte[] bytes = new byte[buf.getInt(pos)];
+		ByteBuffer b = buf.duplicate();
+		((Buffer) b).position(pos + 4);
+		b.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+	
+	private int checkNext(int size) {
+		if (m_read + size > m_resultsEnd)
+			throw new IllegalStateException("there are no more results");
+		return m_read;
+	}
+	
+	/**
+	 * Runs the recorded operations until one fails, continuing in a larger result buffer whenever it fills up.
+	 * @return The result of the last operation run.
+	 */
+	JSqResult run(JSqVM v) {
+		int len = m_commands.position();
+		m_results.putInt(STATE_COMMAND, 0).putInt(STATE_RESULTS, RESULTS_START).putInt(STATE_EXECUTED, 0);
+		int status;
+		while (true) {
+			if (v.m_interp != null)
+				status = run(v.m_interp, m_commands, len, m_results, m_strings, m_objects);
+			else
+				status = Squirrel.runBatch(v, m_commands, len, m_results);
+			if (status != RUN_RESULTS_FULL)
+				break;
+			ByteBuffer grown = ByteBuffer.allocateDirect(m_results.capacity() << 1).order(ByteOrder.nativeOrder());
+			((Buffer) m_results).clear();
+			grown.put(m_results);
+			m_results = grown;
+		}
+		m_failed = status == RUN_OK ? -1 : m_results.getInt(STATE_EXECUTED);
+		m_read = RESULTS_START;
+		m_resultsEnd = m_results.getInt(STATE_RESULTS);
+		return new JSqResult(status == RUN_OK ? 0 : -1);
+	}
+	
+	/**
+	 * The Java backend's implementation of a run, following the same contract as the native one:
+	 * operations are run from the state stored at the start of {@code results} and the state is updated on return.
+	 * @return {@link #RUN_OK}, {@link #RUN_FAILED} or {@link #RUN_RESULTS_FULL}.
+	 */
+	static int run(JSqInterpreter v, ByteBuffer commands, int len, ByteBuffer results, String[] strings, JSqObject[] objects) {
+		int pc = results.getInt(STATE_COMMAND);
+		int out = results.getInt(STATE_RESULTS);
+		int executed = results.getInt(STATE_EXECUTED);
+		int limit = results.capacity();
+		int status = RUN_OK;
+		while (pc < len) {
+			int op = commands.getInt(pc);
+			int a = pc + 4 < len ? commands.getInt(pc + 4) : 0;
+			int next = pc + 8;
+			int res = 0;
+			switch (op) {
+				case PUSH: v.pushCopy(v.stackIndex(a)); break;
+				case POP: v.pop(a); break;
+				case REMOVE: v.remove(a); break;
+				case SETTOP: v.setTop(a); break;
+				case PUSHROOTTABLE: v.pushRoot(); next = pc + 4; break;
+				case PUSHREGISTRYTABLE: v.push(JSqTypes.OT_TABLE, 0, v.m_ss.m_registry); next = pc + 4; break;
+				case PUSHCONSTTABLE: v.push(JSqTypes.OT_TABLE, 0, v.m_ss.m_consts); next = pc + 4; break;
+				case PUSHNULL: v.push(JSqTypes.OT_NULL, 0, null); next = pc + 4; break;
+				case PUSHINTEGER: v.push(JSqTypes.OT_INTEGER, a, null); break;
+				case PUSHFLOAT: v.push(JSqTypes.OT_FLOAT, a, null); break;
+				case PUSHBOOL: v.push(JSqTypes.OT_BOOL, a != 0 ? 1 : 0, null); break;
+				case PUSHSTRING:
+					v.pushString(strings[commands.getInt(pc + 8)]);
+					next = pc + 12 + pad(a);
+					break;
+				case NEWTABLE: res = v.newTable(0); next = pc + 4; break;
+				case NEWTABLEEX: res = v.newTable(a); break;
+				case NEWARRAY: res = v.newArray(a); break;
+				case GET: res = v.getIdx(a); break;
+				case SET: res = v.setIdx(a); break;
+				case RAWGET: res = v.rawGet(a); break;
+				case RAWSET: res = v.rawSet(a); break;
+				case NEWSLOT: res = v.newSlotIdx(a, commands.getInt(pc + 8) != 0); next = pc + 12; break;
+				case ARRAYAPPEND: res = v.arrayAppend(a); break;
+				case CALL:
+					res = v.call(a, commands.getInt(pc + 8) != 0, commands.getInt(pc + 12) != 0);
+					next = pc + 16;
+					break;
+				case GETSTRING: {
+					String s = v.getString(a);
+					byte[] bytes = s != null ? s.getBytes(UTF_8) : null;
+					int size = bytes != null ? 4 + pad(bytes.length) : 4;
+					if (out + size > limit) {
+						status = RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, bytes != null ? bytes.length : -1);
+					if (bytes != null) {
+						ByteBuffer buf = results.duplicate();
+						((Buffer) buf).position(out + 4);
+						buf.put(bytes);
+					}
+					out += size;
+					break;
+				}
+				case GETVALUE: {
+					int i = v.stackIndex(a);
+					int end = dumpValue(v.m_stackTypes[i], v.m_stackValues[i], v.m_stackRefs[i], results, out, limit, 0);
+					if (end == RUN_FAILED)
+						res = -1;
+					else if (end == RUN_RESULTS_FULL)
+						status = RUN_RESULTS_FULL;
+					else
+						out = end;
+					break;
+				}
+				case NEXTCHUNK: {
+					int i = v.stackIndex(a);
+					int end = dumpChunk(v.m_stackTypes[i], v.m_stackRefs[i], commands.getInt(pc + 8), commands.getInt(pc + 12), results, out, limit);
+					if (end == RUN_FAILED)
+						res = -1;
+					else if (end == RUN_RESULTS_FULL)
+						status = RUN_RESULTS_FULL;
+					else
+						out = end;
+					next = pc + 16;
+					break;
+				}
+				case SAMEOBJECT: {
+					int i = v.stackIndex(a);
+					JSqObject o = objects[commands.getInt(pc + 8)];
+					if (v.m_stackTypes[i] != o.m_type || v.m_stackRefs[i] != o.m_ref || (o.m_ref == null && v.m_stackValues[i] != o.m_value))
+						res = -1;
+					next = pc + 20;
+					break;
+				}
+				default: {
+					int value;
+					switch (op) {
+						case GETTOP: value = v.getTop(); next = pc + 4; break;
+						case GETTYPE: value = v.type(a); break;
+						case GETINTEGER: value = v.getInteger(a); break;
+						case GETFLOAT: value = Float.floatToRawIntBits(v.getFloat(a)); break;
+						case GETBOOL: value = v.getBool(a) ? 1 : 0; break;
+						default: throw new IllegalStateException("unknown batch operation " + op);
+					}
+					if (out + 4 > limit) {
+						status = RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, value);
+					out += 4;
+				}
+			}
+			if (status == RUN_OK && res < 0)
+				status = RUN_FAILED;
+			if (status != RUN_OK)
+				break;
+			pc = next;
+			executed++;
+		}
+		results.putInt(STATE_COMMAND, pc).putInt(STATE_RESULTS, out).putInt(STATE_EXECUTED, executed);
+		return status;
+	}
+	
+	/**
+	 * Writes the entries of a table or array for {@link #NEXTCHUNK}. The iterator is a slot for tables and an index
+	 * for arrays, like the native one.
+	 * @return The end of the written entries, {@link #RUN_RESULTS_FULL} or {@link #RUN_FAILED} if the value can't be
+	 * iterated or an entry is nested too deep.
+	 */
+	private static int dumpChunk(int t, Object r, int iterator, int count, ByteBuffer results, int out, int limit) {
+		if (t != JSqTypes.OT_TABLE && t != JSqTypes.OT_ARRAY)
+			return RUN_FAILED;
+		if (out + 8 > limit)
+			return RUN_RESULTS_FULL;
+		int start = out;
+		out += 8;
+		int n = 0;
+		if (t == JSqTypes.OT_TABLE) {
+			JSqTable table = (JSqTable) r;
+			for (iterator = table.next(iterator); iterator >= 0 && n < count && out >= 0; iterator = table.next(iterator + 1), n++) {
+				out = dumpValue(table.m_keyTypes[iterator], table.m_keyValues[iterator], table.m_keyRefs[iterator], results, out, limit, 1);
+				if (out >= 0)
+					out = dumpValue(table.m_types[iterator], table.m_values[iterator], table.m_refs[iterator], results, out, limit, 1);
+			}
+		}
+		else {
+			JSqArray array = (JSqArray) r;
+			for (; iterator < array.m_size && n < count && out >= 0; iterator++, n++) {
+				out = dumpValue(JSqTypes.OT_INTEGER, iterator, null, results, out, limit, 1);
+				if (out >= 0)
+					out = dumpValue(array.m_types[iterator], array.m_values[iterator], array.m_refs[iterator], results, out, limit, 1);
+			}
+			if (iterator >= array.m_size)
+				iterator = -1;
+		}
+		if (out < 0)
+			return out;
+		results.putInt(start, iterator).putInt(start + 4, n);
+		return out;
+	}
+	
+	/**
+	 * Writes a value for {@link #GETVALUE}: its type, then an int for integers, floats and bools, a byte length and
+	 * UTF-8 bytes padded to 4 for strings, a count and the keys and values for tables, a count and the elements for
+	 * arrays, and nothing for any other type.
+	 * @return The end of the written value, {@link #RUN_RESULTS_FULL} or {@link #RUN_FAILED} if it's nested too deep.
+	 */
+	private static int dumpValue(int t, int val, Object r, ByteBuffer results, int out, int limit, int depth) {
+		if (out + 8 > limit)
+			return RUN_RESULTS_FULL;
+		results.putInt(out, t);
+		out += 4;
+		switch (t) {
+			case JSqTypes.OT_INTEGER:
+			case JSqTypes.OT_FLOAT:
+			case JSqTypes.OT_BOOL:
+				results.putInt(out, val);
+				return out + 4;
+			case JSqTypes.OT_STRING: {
+				byte[] bytes = ((String) r).getBytes(UTF_8);
+				if (out + 4 + pad(bytes.length) > limit)
+					return RUN_RESULTS_FULL;
+				results.putInt(out, bytes.length);
+				ByteBuffer buf = results.duplicate();
+				((Buffer) buf).position(out + 4);
+				buf.put(bytes);
+				return out + 4 + pad(bytes.length);
+			}
+			case JSqTypes.OT_TABLE: {
+				if (depth == MAX_DEPTH)
+					return RUN_FAILED;
+				JSqTable table = (JSqTable) r;
+				results.putInt(out, table.size());
+				out += 4;
+				for (int i = table.next(0); i >= 0 && out >= 0; i = table.next(i + 1)) {
+					out = dumpValue(table.m_keyTypes[i], table.m_keyValues[i], table.m_keyRefs[i], results, out, limit, depth + 1);
+					if (out >= 0)
+						out = dumpValue(table.m_types[i], table.m_values[i], table.m_refs[i], results, out, limit, depth + 1);
+				}
+				return out;
+			}
+			case JSqTypes.OT_ARRAY: {
+				if (depth == MAX_DEPTH)
+					return RUN_FAILED;
+				JSqArray array = (JSqArray) r;
+				results.putInt(out, array.m_size);
+				out += 4;
+				for (int i = 0; i < array.m_size && out >= 0; i++)
+					out = dumpValue(array.m_types[i], array.m_values[i], array.m_refs[i], results, out, limit, depth + 1);
+				return out;
+			}
+			default:
+				return out;
+		}
+	}
+	
+	private JSqBatch op(int op) {
+		ensureCommands(4);
+		m_commands.putInt(op);
+		m_count++;
+		return this;
+	}
+	
+	private JSqBatch op(int op, int arg) {
+		ensureCommands(8);
+		m_commands.putInt(op).putInt(arg);
+		m_count++;
+		return this;
+	}
+	
+	private void ensureCommands(int size) {
+		if (m_commands.remaining() >= size)
+			return;
+		ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(m_commands.capacity() << 1, m_commands.position() + size)).order(ByteOrder.nativeOrder());
+		((Buffer) m_commands).flip();
+		grown.put(m_commands);
+		m_commands = grown;
+	}
+	
+	private static int pad(int len) {
+		return (len + 3) & ~3;
+	}
+	
+}
@@ -0,0 +1,379 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@link JSqClassBinding} for every class marked with {@link SqClass}, named after the class with
+ * {@code SqBinding} appended and placed in the same package. The generated code reads fields, arguments and
+ * results with plain field accesses and calls, and the type masks of the methods are worked out at compile time.
+ * <br><br>
+ * The processor is registered as a service, so having the library on the class path of javac is enough.
+ * @author Christopher Foster
+ */
+public class JSqBindingProcessor extends AbstractProcessor {
+	
+	private static final String VM = "com.yourlocalfax.jsquirrel.JSqVM";
+	
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		Set<String> types = new HashSet<String>();
+		types.add(SqClass.class.getName());
+		types.add(SqField.class.getName());
+		types.add(SqMethod.class.getName());
+		return Collections.unmodifiableSet(types);
+	}
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+		for (Element e : env.getElementsAnnotatedWith(SqField.class))
+			if (e.getEnclosingElement().getAnnotation(SqClass.class) == null)
+				error(e, "@SqField outside of a class marked with @SqClass");
+		for (Element e : env.getElementsAnnotatedWith(SqMethod.class))
+			if (e.getEnclosingElement().getAnnotation(SqClass.class) == null)
+				error(e, "@SqMethod outside of a class marked with @SqClass");
+		for (TypeElement type : ElementFilter.typesIn(env.getElementsAnnotatedWith(SqClass.class))) {
+			try {
+				generate(type);
+			}
+			catch (IOException e) {
+				error(type, "could not write the binding: " + e.getMessage());
+			}
+		}
+		return true;
+	}
+	
+	private void error(Element e, String msg) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+	}
+	
+	/**
+	 * @return The character of a parameter in a type mask, 0 if values of the type can't be read from the stack.
+	 */
+	private static char maskOf(TypeMirror t) {
+		switch (t.getKind()) {
+			case INT:
+			case LONG:
+			case FLOAT:
+			case DOUBLE:
+				return 'n';
+			case BOOLEAN:
+				return 'b';
+			case DECLARED:
+				return t.toString().equals("java.lang.String") ? 's' : 0;
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * @return The expression reading a value of type {@code t} at stack index {@code idx}.
+	 */
+	private static String getter(TypeMirror t, String idx) {
+		switch (t.getKind()) {
+			case INT:
+			case LONG:
+				return "v.getInt(" + idx + ")";
+			case FLOAT:
+			case DOUBLE:
+				return "v.getFloat(" + idx + ")";
+			case BOOLEAN:
+				return "v.getBool(" + idx + ")";
+			default:
+				return "v.getString(" + idx + ")";
+		}
+	}
+	
+	/**
+	 * @return The statement pushing the value of {@code expr}.
+	 */
+	private static String pusher(TypeMirror t, String expr) {
+		switch (t.getKind()) {
+			case INT:
+				return "v.pushInteger(" + expr + ");";
+			case LONG:
+				return "v.pushInteger((int) " + expr + ");";
+			case FLOAT:
+				return "v.pushFloat(" + expr + ");";
+			case DOUBLE:
+				return "v.pushFloat((float) " + expr + ");";
+			case BOOLEAN:
+				return "v.pushBool(" + expr + ");";
+			default:
+				return "if (" + expr + " != null) v.pushString(" + expr + "); else v.pushNull();";
+		}
+	}
+	
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\');
+			sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+	
+	private void generate(TypeElement type) throws IOException {
+		if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.PRIVATE)
+				|| (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+				|| type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+			error(type, "@SqClass must be on a top level or static nested class that isn't private");
+			return;
+		}
+		if (!type.getTypeParameters().isEmpty()) {
+			error(type, "@SqClass can't be on a generic class");
+			return;
+		}
+		boolean ok = true;
+		
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		for (VariableElement f : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			if (f.getAnnotation(SqField.class) == null)
+				continue;
+			if (f.getModifiers().contains(Modifier.PRIVATE) || f.getModifiers().contains(Modifier.STATIC)) {
+				error(f, "@SqField can't be on a private or static field");
+				ok = false;
+			}
+			else if (maskOf(f.asType()) == 0) {
+				error(f, "@SqField can't be on a field of type " + f.asType());
+				ok = false;
+			}
+			fields.add(f);
+		}
+		
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		List<String> masks = new ArrayList<String>();
+		boolean instanceMethods = false;
+		for (ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			if (m.getAnnotation(SqMethod.class) == null)
+				continue;
+			if (m.getModifiers().contains(Modifier.PRIVATE) || !m.getTypeParameters().isEmpty()) {
+				error(m, "@SqMethod can't be on a private or generic method");
+				ok = false;
+			}
+			boolean isStatic = m.getModifiers().contains(Modifier.STATIC);
+			instanceMethods |= !isStatic;
+			StringBuilder mask = new StringBuilder(isStatic ? "." : "x");
+			for (VariableElement p : m.getParameters()) {
+				if (p.asType().toString().equals(VM))
+					continue;
+				char c = maskOf(p.asType());
+				if (c == 0) {
+					error(p, "parameters of type " + p.asType() + " can't be read from the stack");
+					ok = false;
+				}
+				mask.append(c);
+			}
+			TypeMirror r = m.getReturnType();
+			if (r.getKind() != TypeKind.VOID && maskOf(r) == 0) {
+				error(m, "results of type " + r + " can't be pushed on the stack");
+				ok = false;
+			}
+			methods.add(m);
+			masks.add(mask.toString());
+		}
+		
+		boolean hasConstructor = false;
+		for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE))
+				hasConstructor = true;
+		boolean needsObjects = !fields.isEmpty() || instanceMethods;
+		if (needsObjects && (!hasConstructor || type.getModifiers().contains(Modifier.ABSTRACT))) {
+			error(type, "@SqClass with fields or instance methods needs a constructor without parameters that isn't private");
+			ok = false;
+		}
+		if (!ok)
+			return;
+		
+		String pkg = ((PackageElement) outermost(type).getEnclosingElement()).getQualifiedName().toString();
+		String javaName = type.getQualifiedName().toString();
+		String bindingName = bindingName(type);
+		SqClass sqClass = type.getAnnotation(SqClass.class);
+		String sqName = sqClass.value().isEmpty() ? type.getSimpleName().toString() : sqClass.value();
+		
+		StringBuilder src = new StringBuilder();
+		if (!pkg.isEmpty())
+			src.append("package ").append(pkg).append(";\n\n");
+		src.append("import com.yourlocalfax.jsquirrel.JSqClassBinding;\n");
+		src.append("import com.yourlocalfax.jsquirrel.JSqVM;\n");
+		src.append("import com.yourlocalfax.jsquirrel.JSquirrelException;\n\n");
+		src.append("/**\n * Binds {@link ").append(javaName).append("} to the script class ").append(sqName).append(".\n");
+		src.append(" * Generated by ").append(JSqBindingProcessor.class.getName()).append(", don't edit.\n */\n");
+		src.append("public final class ").append(bindingName).append(" extends JSqClassBinding<").append(javaName).append("> {\n\t\n");
+		
+		src.append("\tprivate ").append(bindingName).append("() {\n\t\tsuper(").append(quote(sqName)).append(",\n\t\t\t\tnew String[] {");
+		for (int i = 0; i < fields.size(); i++)
+			src.append(i == 0 ? " " : ", ").append(quote(memberName(fields.get(i).getAnnotation(SqField.class).value(), fields.get(i))));
+		src.append(" }, new boolean[] {");
+		for (int i = 0; i < fields.size(); i++)
+			src.append(i == 0 ? " " : ", ").append(fields.get(i).getModifiers().contains(Modifier.FINAL));
+		src.append(" },\n\t\t\t\tnew String[] {");
+		for (int i = 0; i < methods.size(); i++)
+			src.append(i == 0 ? " " : ", ").append(quote(memberName(methods.get(i).getAnnotation(SqMethod.class).value(), methods.get(i))));
+		src.append(" }, new String[] {");
+		for (int i = 0; i < masks.size(); i++)
+			src.append(i == 0 ? " " : ", ").append(quote(masks.get(i)));
+		src.append(" }, new boolean[] {");
+		for (int i = 0; i < methods.size(); i++)
+			src.append(i == 0 ? " " : ", ").append(methods.get(i).getModifiers().contains(Modifier.STATIC));
+		src.append(" });\n\t}\n\t\n");
+		
+		src.append("\t/**\n\t * Creates the class ").append(sqName).append(" in the root table of {@code v}.\n");
+		src.append("\t * @return The binding for moving objects between Java and {@code v}.\n\t */\n");
+		src.append("\tpublic static ").append(bindingName).append(" register(JSqVM v) throws JSquirrelException {\n");
+		src.append("\t\t").append(bindingName).append(" binding = new ").append(bindingName).append("();\n");
+		src.append("\t\tbinding.bind(v);\n\t\treturn binding;\n\t}\n\t\n");
+		
+		src.append("\t@Override\n\tprotected ").append(javaName).append(" newObject() {\n\t\treturn ");
+		src.append(needsObjects ? "new " + javaName + "()" : "null").append(";\n\t}\n\t\n");
+		
+		src.append("\t@Override\n\tprotected void readField(JSqVM v, ").append(javaName).append(" obj, int field) {\n");
+		src.append("\t\tswitch (field) {\n");
+		for (int i = 0; i < fields.size(); i++) {
+			VariableElement f = fields.get(i);
+			if (f.getModifiers().contains(Modifier.FINAL))
+				continue;
+			src.append("\t\t\tcase ").append(i).append(": obj.").append(f.getSimpleName()).append(" = ")
+					.append(getter(f.asType(), "-1")).append("; break;\n");
+		}
+		src.append("\t\t}\n\t}\n\t\n");
+		
+		src.append("\t@Override\n\tprotected void writeField(JSqVM v, ").append(javaName).append(" obj, int field) {\n");
+		src.append("\t\tswitch (field) {\n");
+		for (int i = 0; i < fields.size(); i++) {
+			VariableElement f = fields.get(i);
+			src.append("\t\t\tcase ").append(i).append(": ").append(pusher(f.asType(), "obj." + f.getSimpleName())).append(" break;\n");
+		}
+		src.append("\t\t}\n\t}\n\t\n");
+		
+		src.append("\t@Override\n\tprotected int callMethod(JSqVM v, ").append(javaName).append(" obj, int method) throws JSquirrelException {\n");
+		src.append("\t\tswitch (method) {\n");
+		for (int i = 0; i < methods.size(); i++)
+			appendCall(src, methods.get(i), i, javaName);
+		src.append("\t\t\tdefault:\n\t\t\t\treturn 0;\n\t\t}\n\t}\n\t\n}\n");
+		
+		Writer w = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? bindingName : pkg + "." + bindingName, type).openWriter();
+		try {
+			w.write(src.toString());
+		}
+		finally {
+			w.close();
+		}
+	}
+	
+	private static void appendCall(StringBuilder src, ExecutableElement m, int index, String javaName) {
+		StringBuilder call = new StringBuilder();
+		call.append(m.getModifiers().contains(Modifier.STATIC) ? javaName : "obj").append('.').append(m.getSimpleName()).append('(');
+		int idx = 2;
+		List<? extends VariableElement> params = m.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			TypeMirror t = params.get(i).asType();
+			if (i > 0)
+				call.append(", ");
+			call.append(t.toString().equals(VM) ? "v" : getter(t, Integer.toString(idx++)));
+		}
+		call.append(')');
+		
+		String indent = "\t\t\t\t";
+		boolean rethrow = !m.getThrownTypes().isEmpty();
+		src.append("\t\t\tcase ").append(index).append(": {\n");
+		if (rethrow) {
+			src.append(indent).append("try {\n");
+			indent += "\t";
+		}
+		TypeMirror r = m.getReturnType();
+		if (r.getKind() == TypeKind.VOID)
+			src.append(indent).append(call).append(";\n").append(indent).append("return 0;\n");
+		else {
+			src.append(indent).append(r).append(" r = ").append(call).append(";\n");
+			if (r.getKind() == TypeKind.DECLARED)
+				src.append(indent).append("if (r == null)\n").append(indent).append("\treturn 0;\n").append(indent).append("v.pushString(r);\n");
+			else
+				src.append(indent).append(pusher(r, "r")).append('\n');
+			src.append(indent).append("return 1;\n");
+		}
+		if (rethrow) {
+			src.append("\t\t\t\t}\n");
+			src.append("\t\t\t\tcatch (RuntimeException e) {\n\t\t\t\t\tthrow e;\n\t\t\t\t}\n");
+			src.append("\t\t\t\tcatch (Exception e) {\n");
+			src.append("\t\t\t\t\tif (e instanceof JSquirrelException)\n\t\t\t\t\t\tthrow (JSquirrelException) e;\n");
+			src.append("\t\t\t\t\tthrow new JSquirrelException(e.toString());\n\t\t\t\t}\n");
+		}
+		src.append("\t\t\t}\n");
+	}
+	
+	private static String memberName(String value, Element e) {
+		return value.isEmpty() ? e.getSimpleName().toString() : value;
+	}
+	
+	private static TypeElement outermost(TypeElement type) {
+		while (type.getNestingKind() == NestingKind.MEMBER)
+			type = (TypeElement) type.getEnclosingElement();
+		return type;
+	}
+	
+	/**
+	 * @return The simple names of the class and the classes enclosing it joined by underscores, with SqBinding appended.
+	 */
+	private static String bindingName(TypeElement type) {
+		String name = type.getSimpleName().toString();
+		while (type.getNestingKind() == NestingKind.MEMBER) {
+			type = (TypeElement) type.getEnclosingElement();
+			name = type.getSimpleName() + "_" + name;
+		}
+		return name + "SqBinding";
+	}
+	
+}
@@ -0,0 +1,322 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A step budget and a CPU time limit for calls into a VM, so a script stuck in a loop can't hold its thread for good.
+ * <br><br>
+ * A budget counts the steps a VM takes. On the {@link JSqBackend#Java Java} backend a step is a backward jump, which
+ * every loop iteration takes, or a call, counted by the interpreter itself. On the native backend the budget installs
+ * a native debug hook and a step is each event it gets: a line, as long as the script was compiled with debug info,
+ * a call or a return. Either way the budget is only looked at every {@value #SAMPLE} steps, which is also how often
+ * the CPU time of the thread is read, so a VM running without an armed budget pays for a counter and nothing else.
+ * <br><br>
+ * A call that runs out of steps or CPU time gets the error {@value #ERROR}, and running out is final until the budget
+ * is armed again. On the Java backend the error is raised at the step that ran out and at every counted step after
+ * it, and while the budget is exhausted no error can be caught by a script's try, so the call unwinds to the caller
+ * of {@link Squirrel#sq_call(JSqVM, int, boolean, boolean)}. On both backends every Java function
+ * ({@link JSqNativeFunction}) the script calls afterwards fails with the error.
+ * <br><br>
+ * On the native backend that is all a budget can do. libsquirrel drops errors raised by a native debug hook and
+ * offers no other way to stop a running script, so the budget only notices that the call ran out and stops it at
+ * its next call into Java. A script that calls no Java function, such as a loop doing nothing but arithmetic, runs
+ * to its end, and {@link #isExhausted()} tells afterwards that it went over.
+ * <br><br>
+ * A VM and its friend threads can have one budget, and only the steps of the VM it was created for are counted.
+ * <pre>
+ * JSqBudget budget = new JSqBudget(v);
+ * budget.arm(1000000, 50, TimeUnit.MILLISECONDS);
+ * JSqResult res = Squirrel.sq_call(v, 1, true, true);
+ * budget.disarm();
+ * </pre>
+ * @author Christopher Foster
+ */
+public final class JSqBudget {
+	
+	/** The error raised in a script that ran out of its budget. */
+	public static final String ERROR = "the call ran out of its budget";
+	/** Steps counted between two looks at the budget. */
+	public static final int SAMPLE = 1024;
+	
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+	
+	/** The budgets of native VMs by handle, replaced as a whole when one is added or removed. */
+	private static volatile NativeBudgets s_native = new NativeBudgets(new long[0], new JSqBudget[0]);
+	
+	private final JSqVM m_vm;
+	private boolean m_armed;
+	private long m_limit;
+	/** The CPU time of the thread at which the call runs out, Long.MAX_VALUE if it has no time limit. */
+	private long m_deadline;
+	/** Steps taken before the current grant. */
+	private long m_used;
+	/** Steps granted at the last look at the budget. */
+	private int m_granted;
+	/** Steps left of the grant on the native backend, the interpreter keeps its own on the Java backend. */
+	private int m_steps = Integer.MAX_VALUE;
+	private volatile boolean m_exhausted;
+	private boolean m_closed;
+	
+	/**
+	 * Installs a budget on {@code v}, disarmed until {@link #arm(long, long, TimeUnit)} is called.
+	 * @throws IllegalStateException If the VM or one of its friend threads already has a budget.
+	 */
+	public JSqBudget(JSqVM v) {
+		v.checkOwner();
+		JSqOwner owner = v.m_owner;
+		synchronized (owner) {
+			if (owner.m_budget != null)
+				throw new IllegalStateException("The VM already has a budget.");
+			owner.m_budget = this;
+		}
+		m_vm = v;
+		if (v.m_interp != null) {
+			v.m_interp.m_budget = this;
+			return;
+		}
+		synchronized (JSqBudget.class) {
+			s_native = s_native.with(v.m_nativeHandle, this);
+		}
+		Squirrel.NATIVE.sq_setnativedebughook(v.m_nativeHandle, true);
+	}
+	
+	public JSqVM getVM() {
+		return m_vm;
+	}
+	
+	/**
+	 * Starts counting for a call.
+	 * @param steps The steps the call may take, Long.MAX_VALUE for no limit.
+	 * @param cpuTime The CPU time of the calling thread the call may use, Long.MAX_VALUE for no limit. Without
+	 * support for thread CPU time in the JVM this limits the wall clock time instead.
+	 * @param unit The unit of {@code cpuTime}.
+	 */
+	public void arm(long steps, long cpuTime, TimeUnit unit) {
+		m_vm.checkOwner();
+		if (m_closed)
+			throw new IllegalStateException("The budget was removed.");
+		if (steps < 0 || cpuTime < 0)
+			throw new IllegalArgumentException("The budget can't be negative.");
+		m_limit = steps;
+		m_deadline = cpuTime == Long.MAX_VALUE ? Long.MAX_VALUE : now() + unit.toNanos(cpuTime);
+		if (m_deadline < 0)
+			m_deadline = Long.MAX_VALUE;
+		m_used = 0;
+		m_exhausted = false;
+		m_armed = true;
+		grant(Math.min(SAMPLE, m_limit));
+	}
+	
+	/**
+	 * Stops counting, the VM runs without limits until the budget is armed again.
+	 */
+	public void disarm() {
+		m_vm.checkOwner();
+		m_armed = false;
+		grant(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * {@link Squirrel#sq_call(JSqVM, int, boolean, boolean)} with the budget armed for the length of the call.
+	 * @see #arm(long, long, TimeUnit)
+	 */
+	public JSqResult call(int numParams, boolean retval, boolean raiseError, long steps, long cpuTime, TimeUnit unit) {
+		arm(steps, cpuTime, unit);
+		try {
+			return Squirrel.sq_call(m_vm, numParams, retval, raiseError);
+		}
+		finally {
+			disarm();
+		}
+	}
+	
+	/**
+	 * @return True if the call the budget was last armed for ran out of it.
+	 */
+	public boolean isExhausted() {
+		return m_exhausted;
+	}
+	
+	/**
+	 * @return True if the budget is armed and ran out, Java functions fail and scripts can't catch errors then.
+	 */
+	boolean expired() {
+		return m_armed && m_exhausted;
+	}
+	
+	/**
+	 * @return The steps counted since the budget was armed, rounded down to the last look at the budget.
+	 */
+	public long getUsedSteps() {
+		return m_used;
+	}
+	
+	/**
+	 * Removes the budget from the VM, it can't be armed again. Closing the VM removes its budget.
+	 */
+	public void remove() {
+		m_vm.checkOwner();
+		if (m_closed)
+			return;
+		m_closed = true;
+		disarm();
+		JSqVM v = m_vm;
+		if (v.m_interp != null)
+			v.m_interp.m_budget = null;
+		else {
+			Squirrel.NATIVE.sq_setnativedebughook(v.m_nativeHandle, false);
+			synchronized (JSqBudget.class) {
+				s_native = s_native.with(v.m_nativeHandle, null);
+			}
+		}
+		synchronized (v.m_owner) {
+			v.m_owner.m_budget = null;
+		}
+	}
+	
+	private void grant(long steps) {
+		int n = (int) Math.min(steps, Integer.MAX_VALUE);
+		m_granted = n;
+		if (m_vm.m_interp != null)
+			// The interpreter also checks for a cancelled executor call when the grant runs out
+			m_vm.m_interp.m_steps = m_vm.m_owner.m_call != null ? Math.min(n, SAMPLE) : n;
+		else
+			m_steps = n;
+	}
+	
+	/**
+	 * Looks at the budget once the grant ran out, which happens on the step after the last one granted.
+	 * @return False if the call ran out of its budget.
+	 */
+	private boolean refill() {
+		if (!m_armed) {
+			grant(Integer.MAX_VALUE);
+			return true;
+		}
+		m_used += m_granted + 1;
+		if (m_used > m_limit || (m_deadline != Long.MAX_VALUE && now() >= m_deadline)) {
+			m_exhausted = true;
+			// Native VMs can't be stopped by the hook, there is nothing left to count
+			grant(Integer.MAX_VALUE);
+			return false;
+		}
+		grant(Math.min(SAMPLE, m_limit - m_used));
+		return true;
+	}
+	
+	/**
+	 * Called by the interpreter of the Java backend when the steps it was granted ran out.
+	 */
+	void step(JSqInterpreter interp) {
+		if (expired() || !refill()) {
+			// Every counted step raises the error again until the budget is armed again
+			grant(0);
+			throw interp.raise(ERROR);
+		}
+	}
+	
+	/**
+	 * Called by the native debug hook of a VM for every event.
+	 */
+	static void hook(long v) {
+		JSqBudget budget = s_native.get(v);
+		if (budget != null && --budget.m_steps < 0)
+			budget.refill();
+	}
+	
+	private static long now() {
+		return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	/**
+	 * An immutable open addressing table from native VM handles to their budgets, so the hook looks a budget up
+	 * without boxing the handle. Handles are never 0, which marks a free slot.
+	 */
+	private static final class NativeBudgets {
+		
+		private final long[] m_handles;
+		private final JSqBudget[] m_budgets;
+		
+		/**
+		 * Fills a table of twice the power of two above the number of budgets, so probes are short and end at a free slot.
+		 */
+		NativeBudgets(long[] handles, JSqBudget[] budgets) {
+			int capacity = Integer.highestOneBit(handles.length * 2 + 1) << 1;
+			m_handles = new long[capacity];
+			m_budgets = new JSqBudget[capacity];
+			for (int i = 0; i < handles.length; i++) {
+				int slot = slot(handles[i]);
+				while (m_handles[slot] != 0)
+					slot = (slot + 1) & (capacity - 1);
+				m_handles[slot] = handles[i];
+				m_budgets[slot] = budgets[i];
+			}
+		}
+		
+		JSqBudget get(long v) {
+			int mask = m_handles.length - 1;
+			for (int slot = slot(v); ; slot = (slot + 1) & mask) {
+				long h = m_handles[slot];
+				if (h == v)
+					return m_budgets[slot];
+				if (h == 0)
+					return null;
+			}
+		}
+		
+		/**
+		 * @param budget The budget of {@code v}, null to remove it.
+		 * @return A copy with the budget of {@code v} replaced.
+		 */
+		NativeBudgets with(long v, JSqBudget budget) {
+			long[] handles = new long[m_handles.length + 1];
+			JSqBudget[] budgets = new JSqBudget[handles.length];
+			int n = 0;
+			for (int i = 0; i < m_handles.length; i++) {
+				if (m_handles[i] != 0 && m_handles[i] != v) {
+					handles[n] = m_handles[i];
+					budgets[n++] = m_budgets[i];
+				}
+			}
+			if (budget != null) {
+				handles[n] = v;
+				budgets[n++] = budget;
+			}
+			return new NativeBudgets(Arrays.copyOf(handles, n), Arrays.copyOf(budgets, n));
+		}
+		
+		private int slot(long v) {
+			return (int) ((v * 0x9E3779B97F4A7C15L) >>> 32) & (m_handles.length - 1);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,215 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * The Java backend's Squirrel class.
+ * <br><br>
+ * Like the native implementation, the member table maps every name to an index tagged as either a
+ * field (a default value copied into each instance) or a method (shared by all instances).
+ * @author Christopher Foster
+ */
+final class JSqClass {
+	
+	static final int MEMBER_TYPE_METHOD = 0x01000000;
+	static final int MEMBER_TYPE_FIELD = 0x02000000;
+	static final int MEMBER_INDEX_MASK = 0x00FFFFFF;
+	
+	final JSqClass m_base;
+	final JSqTable m_members;
+	
+	int[] m_defaultTypes;
+	int[] m_defaultValues;
+	Object[] m_defaultRefs;
+	JSqObject[] m_defaultAttributes;
+	int m_nDefaults;
+	
+	int[] m_methodTypes;
+	int[] m_methodValues;
+	Object[] m_methodRefs;
+	JSqObject[] m_methodAttributes;
+	int m_nMethods;
+	
+	/** Metamethod closures indexed by {@link JSqSharedState}'s MT_* constants, null when unset. */
+	final Object[] m_metamethods = new Object[JSqSharedState.MT_LAST];
+	final int[] m_metamethodTypes = new int[JSqSharedState.MT_LAST];
+	
+	JSqObject m_attributes;
+	
+	long m_typeTag;
+	int m_udSize;
+	int m_constructorIdx = -1;
+	boolean m_locked;
+	
+	JSqClass(JSqClass base) {
+		m_base = base;
+		if (base != null) {
+			m_members = base.m_members.cloneTable();
+			m_constructorIdx = base.m_constructorIdx;
+			m_udSize = base.m_udSize;
+			m_nDefaults = base.m_nDefaults;
+			m_defaultTypes = base.m_defaultTypes.clone();
+			m_defaultValues = base.m_defaultValues.clone();
+			m_defaultRefs = base.m_defaultRefs.clone();
+			m_defaultAttributes = base.m_defaultAttributes.clone();
+			m_nMethods = base.m_nMethods;
+			m_methodTypes = base.m_methodTypes.clone();
+			m_methodValues = base.m_methodValues.clone();
+			m_methodRefs = base.m_methodRefs.clone();
+			m_methodAttributes = base.m_methodAttributes.clone();
+			System.arraycopy(base.m_metamethods, 0, m_metamethods, 0, m_metamethods.length);
+			System.arraycopy(base.m_metamethodTypes, 0, m_metamethodTypes, 0, m_metamethodTypes.length);
+		}
+		else {
+			m_members = new JSqTable(0);
+			m_defaultTypes = new int[4];
+			m_defaultValues = new int[4];
+			m_defaultRefs = new Object[4];
+			m_defaultAttributes = new JSqObject[4];
+			m_methodTypes = new int[4];
+			m_methodValues = new int[4];
+			m_methodRefs = new Object[4];
+			m_methodAttributes = new JSqObject[4];
+		}
+	}
+	
+	/**
+	 * Adds or replaces a member.
+	 * @return False if the class is locked and the value would be a field.
+	 */
+	boolean newSlot(JSqSharedState ss, int kt, int kv, Object kr, int vt, int vv, Object vr, boolean isStatic) {
+		boolean staticTable = vt == OT_CLOSURE || vt == OT_NATIVECLOSURE || isStatic;
+		if (m_locked && !staticTable)
+			return false;
+		int slot = m_members.find(kt, kv, kr);
+		int member = slot >= 0 ? m_members.m_values[slot] : 0;
+		if (slot >= 0 && (member & MEMBER_TYPE_FIELD) != 0) {
+			int idx = member & MEMBER_INDEX_MASK;
+			m_defaultTypes[idx] = vt;
+			m_defaultValues[idx] = vv;
+			m_defaultRefs[idx] = vr;
+			return true;
+		}
+		if (staticTable) {
+			int mm;
+			if ((vt == OT_CLOSURE || vt == OT_NATIVECLOSURE) && kt == OT_STRING && (mm = ss.getMetaMethodIdx((String) kr)) >= 0) {
+				m_metamethodTypes[mm] = vt;
+				m_metamethods[mm] = vr;
+			}
+			else {
+				if (m_base != null && vt == OT_CLOSURE) {
+					JSqClosure c = ((JSqClosure) vr).cloneClosure();
+					c.m_base = m_base;
+					vr = c;
+				}
+				if (slot < 0) {
+					if (kt == OT_STRING && "constructor".equals(kr))
+						m_constructorIdx = m_nMethods;
+					addMethod(vt, vv, vr);
+					m_members.newSlot(kt, kv, kr, OT_INTEGER, MEMBER_TYPE_METHOD | (m_nMethods - 1), null);
+				}
+				else {
+					int idx = member & MEMBER_INDEX_MASK;
+					m_methodTypes[idx] = vt;
+					m_methodValues[idx] = vv;
+					m_methodRefs[idx] = vr;
+				}
+			}
+			return true;
+		}
+		if (m_nDefaults == m_defaultTypes.length) {
+			int size = m_nDefaults << 1;
+			m_defaultTypes = java.util.Arrays.copyOf(m_defaultTypes, size);
+			m_defaultValues = java.util.Arrays.copyOf(m_defaultValues, size);
+			m_defaultRefs = java.util.Arrays.copyOf(m_defaultRefs, size);
+			m_defaultAttributes = java.util.Arrays.copyOf(m_defaultAttributes, size);
+		}
+		m_defaultTypes[m_nDefaults] = vt;
+		m_defaultValues[m_nDefaults] = vv;
+		m_defaultRefs[m_nDefaults] = vr;
+		m_members.newSlot(kt, kv, kr, OT_INTEGER, MEMBER_TYPE_FIELD | m_nDefaults, null);
+		m_nDefaults++;
+		return true;
+	}
+	
+	private void addMethod(int vt, int vv, Object vr) {
+		if (m_nMethods == m_methodTypes.length) {
+			int size = m_nMethods << 1;
+			m_methodTypes = java.util.Arrays.copyOf(m_methodTypes, size);
+			m_methodValues = java.util.Arrays.copyOf(m_methodValues, size);
+			m_methodRefs = java.util.Arrays.copyOf(m_methodRefs, size);
+			m_methodAttributes = java.util.Arrays.copyOf(m_methodAttributes, size);
+		}
+		m_methodTypes[m_nMethods] = vt;
+		m_methodValues[m_nMethods] = vv;
+		m_methodRefs[m_nMethods] = vr;
+		m_nMethods++;
+	}
+	
+	/**
+	 * Looks a member up.
+	 * @return The encoded member index or -1 if the class has no such member.
+	 */
+	int findMember(int kt, int kv, Object kr) {
+		int slot = m_members.find(kt, kv, kr);
+		return slot < 0 ? -1 : m_members.m_values[slot];
+	}
+	
+	boolean hasConstructor() {
+		return m_constructorIdx >= 0;
+	}
+	
+	boolean setAttributes(int kt, int kv, Object kr, JSqObject attributes) {
+		int member = findMember(kt, kv, kr);
+		if (member < 0)
+			return false;
+		if ((member & MEMBER_TYPE_FIELD) != 0)
+			m_defaultAttributes[member & MEMBER_INDEX_MASK] = attributes;
+		else
+			m_methodAttributes[member & MEMBER_INDEX_MASK] = attributes;
+		return true;
+	}
+	
+	JSqObject getAttributes(int member) {
+		if ((member & MEMBER_TYPE_FIELD) != 0)
+			return m_defaultAttributes[member & MEMBER_INDEX_MASK];
+		return m_methodAttributes[member & MEMBER_INDEX_MASK];
+	}
+	
+	void lock() {
+		m_locked = true;
+		if (m_base != null)
+			m_base.lock();
+	}
+	
+	JSqInstance createInstance() {
+		if (!m_locked)
+			lock();
+		return new JSqInstance(this);
+	}
+	
+}
@@ -0,0 +1,351 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Java class exposed to a VM as a script class, the base of the bindings {@link JSqBindingProcessor} generates
+ * for classes marked with {@link SqClass}.
+ * <br><br>
+ * Every script instance of the class has a Java object attached with {@link Squirrel#sq_setinstanceup}, which holds
+ * its state. Methods are called on the attached object as it is, and the bound fields are read and written through
+ * the {@code _get} and {@code _set} metamethods of the class, so the script and Java always see the same values.
+ * An instance created by a script gets a new object the first time it is used, a clone gets a copy of the fields of
+ * the original.
+ * <br><br>
+ * The user pointer of an instance is an index into a table of the binding, which also holds a weak reference to the
+ * instance. The table is swept for instances that are gone whenever it runs full.
+ * <br><br>
+ * A binding belongs to the VM it was registered with and its friend threads.
+ * @author Christopher Foster
+ */
+public abstract class JSqClassBinding<T> {
+	
+	private static final JSqUserPointer NO_TYPE_TAG = new JSqUserPointer(0);
+	
+	private final String m_name;
+	private final String[] m_fields;
+	private final boolean[] m_readOnly;
+	private final String[] m_methods;
+	private final String[] m_typeMasks;
+	private final boolean[] m_static;
+	private final Map<String, Integer> m_fieldIndex = new HashMap<String, Integer>();
+	
+	private JSqObject m_class;
+	/** The objects attached to instances, by user pointer - 1. */
+	private Object[] m_objects = new Object[16];
+	/** Weak references to the instances holding the objects. */
+	private JSqObject[] m_instances = new JSqObject[16];
+	private int[] m_free = new int[16];
+	private int m_freeCount;
+	private int m_used;
+	
+	/**
+	 * @param name The name of the script class.
+	 * @param fields The names of the members holding the fields.
+	 * @param readOnly Which fields scripts can't set.
+	 * @param methods The names of the methods.
+	 * @param typeMasks The sq_setparamscheck type masks of the methods, including {@code this}.
+	 * @param statics Which methods are static.
+	 */
+	protected JSqClassBinding(String name, String[] fields, boolean[] readOnly, String[] methods, String[] typeMasks, boolean[] statics) {
+		m_name = name;
+		m_fields = fields;
+		m_readOnly = readOnly;
+		m_methods = methods;
+		m_typeMasks = typeMasks;
+		m_static = statics;
+		for (int i = 0; i < fields.length; i++)
+			m_fieldIndex.put(fields[i], i);
+	}
+	
+	/**
+	 * @return A new object with the default values of the fields, null if the class has no fields and instance methods.
+	 */
+	protected abstract T newObject();
+	
+	/**
+	 * Sets a field of {@code obj} from the value on top of the stack.
+	 */
+	protected abstract void readField(JSqVM v, T obj, int field);
+	
+	/**
+	 * Pushes the value of a field of {@code obj}.
+	 */
+	protected abstract void writeField(JSqVM v, T obj, int field);
+	
+	/**
+	 * Calls a method with the arguments from stack index 2 and pushes its result.
+	 * @param obj The object the method is called on, null for static methods.
+	 * @return 1 if a result was pushed, 0 otherwise.
+	 */
+	protected abstract int callMethod(JSqVM v, T obj, int method) throws JSquirrelException;
+	
+	/**
+	 * Creates the script class in the root table of {@code v}.
+	 * @throws JSquirrelException If the class could not be created.
+	 */
+	protected final void bind(JSqVM v) throws JSquirrelException {
+		int top = Squirrel.sq_gettop(v);
+		try {
+			Squirrel.sq_pushroottable(v);
+			Squirrel.sq_pushstring(v, m_name);
+			check(Squirrel.sq_newclass(v, false));
+			for (int i = 0; i < m_methods.length; i++) {
+				Squirrel.sq_pushstring(v, m_methods[i]);
+				Squirrel.sq_newclosure(v, new Method(i), 0);
+				check(Squirrel.sq_setparamscheck(v, m_typeMasks[i].length(), m_typeMasks[i]));
+				Squirrel.sq_setnativeclosurename(v, -1, m_methods[i]);
+				check(Squirrel.sq_newslot(v, -3, false));
+			}
+			if (m_fields.length > 0) {
+				newMetaMethod(v, "_get", new Get());
+				newMetaMethod(v, "_set", new Set());
+			}
+			newMetaMethod(v, "_cloned", new Cloned());
+			m_class = Squirrel.sq_getstackobj(v, -1);
+			check(Squirrel.sq_newslot(v, -3, false));
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	private void newMetaMethod(JSqVM v, String name, JSqNativeFunction f) throws JSquirrelException {
+		Squirrel.sq_pushstring(v, name);
+		Squirrel.sq_newclosure(v, f, 0);
+		Squirrel.sq_setnativeclosurename(v, -1, name);
+		check(Squirrel.sq_newslot(v, -3, false));
+	}
+	
+	private void check(JSqResult res) throws JSquirrelException {
+		if (Squirrel.SQ_FAILED(res))
+			throw new JSquirrelException("Could not bind the class " + m_name + ".");
+	}
+	
+	/**
+	 * Pushes a new instance of the script class with {@code obj} attached, changes made by scripts go to
+	 * {@code obj} itself.
+	 */
+	public final void push(JSqVM v, T obj) throws JSquirrelException {
+		Squirrel.sq_pushobject(v, m_class);
+		Squirrel.sq_createinstance(v, -1);
+		Squirrel.sq_remove(v, -2);
+		attach(v, Squirrel.sq_gettop(v), obj);
+	}
+	
+	/**
+	 * @return The object attached to the instance at {@code idx}.
+	 * @throws JSquirrelException If the value at {@code idx} isn't an instance of the script class.
+	 */
+	public final T get(JSqVM v, int idx) throws JSquirrelException {
+		if (idx < 0)
+			idx += Squirrel.sq_gettop(v) + 1;
+		checkInstance(v, idx);
+		return object(v, idx);
+	}
+	
+	/**
+	 * Copies the fields of the instance at {@code idx} that aren't final into {@code obj}.
+	 * @throws JSquirrelException If the value at {@code idx} isn't an instance of the script class.
+	 */
+	public final void get(JSqVM v, int idx, T obj) throws JSquirrelException {
+		copy(v, get(v, idx), obj);
+	}
+	
+	/**
+	 * Copies the fields of {@code obj} that aren't final into the instance at {@code idx}.
+	 * @throws JSquirrelException If the value at {@code idx} isn't an instance of the script class.
+	 */
+	public final void set(JSqVM v, int idx, T obj) throws JSquirrelException {
+		copy(v, obj, get(v, idx));
+	}
+	
+	private void checkInstance(JSqVM v, int idx) throws JSquirrelException {
+		Squirrel.sq_pushobject(v, m_class);
+		Squirrel.sq_push(v, idx);
+		boolean ok = Squirrel.sq_gettype(v, -1) == JSqObjectType.Instance && Squirrel.sq_instanceof(v);
+		Squirrel.sq_pop(v, 2);
+		if (!ok)
+			throw new JSquirrelException("The value is not an instance of " + m_name + ".");
+	}
+	
+	private void copy(JSqVM v, T from, T to) {
+		for (int i = 0; i < m_fields.length; i++) {
+			if (m_readOnly[i])
+				continue;
+			writeField(v, from, i);
+			readField(v, to, i);
+			Squirrel.sq_pop(v, 1);
+		}
+	}
+	
+	/**
+	 * @return The object attached to the instance at the absolute index {@code idx}, attaching a new one if it has none.
+	 */
+	@SuppressWarnings("unchecked")
+	private T object(JSqVM v, int idx) throws JSquirrelException {
+		long up = Squirrel.sq_getinstanceup(v, idx, NO_TYPE_TAG).m_nativeHandle;
+		if (up != 0)
+			return (T) m_objects[(int) up - 1];
+		T obj = newObject();
+		attach(v, idx, obj);
+		return obj;
+	}
+	
+	private void attach(JSqVM v, int idx, T obj) throws JSquirrelException {
+		int slot = allocate(v);
+		Squirrel.sq_weakref(v, idx);
+		JSqObject instance = Squirrel.sq_getstackobj(v, -1);
+		Squirrel.sq_pop(v, 1);
+		m_objects[slot] = obj;
+		m_instances[slot] = instance;
+		Squirrel.sq_setinstanceup(v, idx, new JSqUserPointer(slot + 1));
+	}
+	
+	private int allocate(JSqVM v) {
+		if (m_freeCount == 0 && m_used == m_objects.length) {
+			sweep(v);
+			// Grow while most slots stay taken, so full tables aren't swept again right away
+			if (m_freeCount < m_objects.length >> 2) {
+				m_objects = java.util.Arrays.copyOf(m_objects, m_used << 1);
+				m_instances = java.util.Arrays.copyOf(m_instances, m_used << 1);
+			}
+		}
+		if (m_freeCount > 0)
+			return m_free[--m_freeCount];
+		return m_used++;
+	}
+	
+	/**
+	 * Gives back the slots of instances that were collected.
+	 */
+	private void sweep(JSqVM v) {
+		for (int i = 0; i < m_used; i++) {
+			JSqObject instance = m_instances[i];
+			if (instance == null)
+				continue;
+			Squirrel.sq_pushobject(v, instance);
+			Squirrel.sq_getweakrefval(v, -1);
+			boolean gone = Squirrel.sq_gettype(v, -1) == JSqObjectType.Null;
+			Squirrel.sq_pop(v, 2);
+			if (!gone)
+				continue;
+			Squirrel.sq_release(v, instance);
+			m_instances[i] = null;
+			m_objects[i] = null;
+			if (m_freeCount == m_free.length)
+				m_free = java.util.Arrays.copyOf(m_free, m_freeCount << 1);
+			m_free[m_freeCount++] = i;
+		}
+	}
+	
+	/**
+	 * Raises a null error, which the VM takes as the member not existing.
+	 */
+	private static int notFound(JSqVM v) {
+		Squirrel.sq_pushnull(v);
+		Squirrel.sq_throwobject(v);
+		return JSqInterpreter.SQ_ERROR;
+	}
+	
+	/**
+	 * The native closure of a bound method.
+	 */
+	private final class Method implements JSqNativeFunction {
+		
+		private final int m_index;
+		
+		Method(int index) {
+			m_index = index;
+		}
+		
+		@Override
+		public int call(JSqVM v) throws JSquirrelException {
+			if (m_static[m_index])
+				return callMethod(v, null, m_index);
+			checkInstance(v, 1);
+			return callMethod(v, object(v, 1), m_index);
+		}
+		
+	}
+	
+	/**
+	 * The _get metamethod, reads a field of the attached object.
+	 */
+	private final class Get implements JSqNativeFunction {
+		
+		@Override
+		public int call(JSqVM v) throws JSquirrelException {
+			Integer field = Squirrel.sq_gettype(v, 2) == JSqObjectType.String ? m_fieldIndex.get(v.getString(2)) : null;
+			if (field == null)
+				return notFound(v);
+			writeField(v, object(v, 1), field);
+			return 1;
+		}
+		
+	}
+	
+	/**
+	 * The _set metamethod, writes a field of the attached object.
+	 */
+	private final class Set implements JSqNativeFunction {
+		
+		@Override
+		public int call(JSqVM v) throws JSquirrelException {
+			Integer field = Squirrel.sq_gettype(v, 2) == JSqObjectType.String ? m_fieldIndex.get(v.getString(2)) : null;
+			if (field == null)
+				return notFound(v);
+			if (m_readOnly[field])
+				throw new JSquirrelException("The member " + m_fields[field] + " of " + m_name + " is read-only.");
+			T obj = object(v, 1);
+			Squirrel.sq_push(v, 3);
+			readField(v, obj, field);
+			Squirrel.sq_pop(v, 1);
+			return 0;
+		}
+		
+	}
+	
+	/**
+	 * The _cloned metamethod, attaches a copy of the original's object to the clone.
+	 */
+	private final class Cloned implements JSqNativeFunction {
+		
+		@Override
+		public int call(JSqVM v) throws JSquirrelException {
+			T copy = newObject();
+			if (copy != null) {
+				copy(v, object(v, 2), copy);
+				attach(v, 1, copy);
+			}
+			return 0;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,63 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * The Java backend's Squirrel closure: a function prototype together with its captured outer
+ * variables and the values of its default parameters.
+ * @author Christopher Foster
+ */
+final class JSqClosure {
+	
+	final JSqFunctionProto m_function;
+	final JSqOuter[] m_outers;
+	final int[] m_defaultTypes;
+	final int[] m_defaultValues;
+	final Object[] m_defaultRefs;
+	JSqWeakRef m_env;
+	JSqClass m_base;
+	
+	JSqClosure(JSqFunctionProto function) {
+		m_function = function;
+		function.prepareLiterals();
+		m_outers = new JSqOuter[function.m_outerNames.length];
+		int ndefaults = function.m_defaultParams.length;
+		m_defaultTypes = new int[ndefaults];
+		m_defaultValues = new int[ndefaults];
+		m_defaultRefs = new Object[ndefaults];
+	}
+	
+	JSqClosure cloneClosure() {
+		JSqClosure c = new JSqClosure(m_function);
+		System.arraycopy(m_outers, 0, c.m_outers, 0, m_outers.length);
+		System.arraycopy(m_defaultTypes, 0, c.m_defaultTypes, 0, m_defaultTypes.length);
+		System.arraycopy(m_defaultValues, 0, c.m_defaultValues, 0, m_defaultValues.length);
+		System.arraycopy(m_defaultRefs, 0, c.m_defaultRefs, 0, m_defaultRefs.length);
+		c.m_env = m_env;
+		c.m_base = m_base;
+		return c;
+	}
+	
+}
@@ -0,0 +1,398 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads and writes function prototypes in the stream format of the native sq_writeclosure and sq_readclosure,
+ * as produced by a 32 bit little endian build with 8 bit characters.
+ * Strings are written as UTF-8.
+ * <br><br>
+ * A reader works straight on a {@link ByteBuffer}, refilling it from a channel when one is given,
+ * so a mapped file can be read without copying it first.
+ * @author Christopher Foster
+ */
+final class JSqClosureStream {
+	
+	static final int BYTECODE_STREAM_TAG = 0xFAFA;
+	static final int TAG_HEAD = 0x53515249; // 'SQIR'
+	static final int TAG_PART = 0x50415254; // 'PART'
+	static final int TAG_TAIL = 0x5441494C; // 'TAIL'
+	
+	private static final int CHAR_SIZE = 1;
+	private static final int INTEGER_SIZE = 4;
+	private static final int FLOAT_SIZE = 4;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private ByteBuffer m_buf;
+	private final ReadableByteChannel m_in;
+	private final WritableByteChannel m_out;
+	private CharsetDecoder m_decoder;
+	
+	private JSqClosureStream(ByteBuffer buf, ReadableByteChannel in, WritableByteChannel out) {
+		m_buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+		m_in = in;
+		m_out = out;
+	}
+	
+	// Writing
+	
+	/**
+	 * Writes a closure stream for the given main function.
+	 */
+	static void write(JSqFunctionProto proto, WritableByteChannel out) throws IOException {
+		JSqClosureStream s = new JSqClosureStream(ByteBuffer.allocate(8192), null, out);
+		s.ensureWrite(2);
+		s.m_buf.putShort((short) BYTECODE_STREAM_TAG);
+		s.writeInt(TAG_HEAD);
+		s.writeInt(CHAR_SIZE);
+		s.writeInt(INTEGER_SIZE);
+		s.writeInt(FLOAT_SIZE);
+		s.writeProto(proto);
+		s.writeInt(TAG_TAIL);
+		s.flush();
+	}
+	
+	private void writeProto(JSqFunctionProto f) throws IOException {
+		writeInt(TAG_PART);
+		writeString(f.m_sourceName);
+		writeString(f.m_name);
+		
+		writeInt(TAG_PART);
+		writeInt(f.m_literals.length);
+		writeInt(f.m_parameters.length);
+		writeInt(f.m_outerNames.length);
+		writeInt(f.m_localNames.length);
+		writeInt(f.m_lineLines.length);
+		writeInt(f.m_defaultParams.length);
+		writeInt(f.m_instructions.length);
+		writeInt(f.m_functions.length);
+		
+		writeInt(TAG_PART);
+		for (Object o : f.m_literals)
+			writeLiteral(o);
+		
+		writeInt(TAG_PART);
+		for (String p : f.m_parameters)
+			writeString(p);
+		
+		writeInt(TAG_PART);
+		for (int i = 0; i < f.m_outerNames.length; i++) {
+			writeInt(f.m_outerTypes[i]);
+			writeInt(OT_INTEGER);
+			writeInt(f.m_outerSources[i]);
+			writeString(f.m_outerNames[i]);
+		}
+		
+		writeInt(TAG_PART);
+		for (int i = 0; i < f.m_localNames.length; i++) {
+			writeString(f.m_localNames[i]);
+			writeInt(f.m_localPositions[i]);
+			writeInt(f.m_localStartOps[i]);
+			writeInt(f.m_localEndOps[i]);
+		}
+		
+		writeInt(TAG_PART);
+		for (int i = 0; i < f.m_lineLines.length; i++) {
+			writeInt(f.m_lineLines[i]);
+			writeInt(f.m_lineOps[i]);
+		}
+		
+		writeInt(TAG_PART);
+		for (int p : f.m_defaultParams)
+			writeInt(p);
+		
+		writeInt(TAG_PART);
+		for (long inst : f.m_instructions) {
+			ensureWrite(8);
+			m_buf.putLong(inst);
+		}
+		
+		writeInt(TAG_PART);
+		for (JSqFunctionProto child : f.m_functions)
+			writeProto(child);
+		
+		writeInt(f.m_stackSize);
+		ensureWrite(1);
+		m_buf.put((byte) (f.m_generator ? 1 : 0));
+		writeInt(f.m_varParams ? 1 : 0);
+	}
+	
+	private void writeLiteral(Object o) throws IOException {
+		int t = JSqSharedState.constType(o);
+		switch (t) {
+			case OT_STRING:
+				writeString((String) o);
+				break;
+			case OT_INTEGER:
+			case OT_FLOAT:
+			case OT_BOOL:
+				writeInt(t);
+				writeInt(JSqSharedState.constValue(o));
+				break;
+			case OT_NULL:
+				writeInt(OT_NULL);
+				break;
+			default:
+				throw new IOException("cannot serialize a " + typeName(t));
+		}
+	}
+	
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			writeInt(OT_NULL);
+			return;
+		}
+		writeInt(OT_STRING);
+		byte[] bytes = s.getBytes(UTF_8);
+		writeInt(bytes.length);
+		int off = 0;
+		while (off < bytes.length) {
+			ensureWrite(1);
+			int n = Math.min(m_buf.remaining(), bytes.length - off);
+			m_buf.put(bytes, off, n);
+			off += n;
+		}
+	}
+	
+	private void writeInt(int i) throws IOException {
+		ensureWrite(4);
+		m_buf.putInt(i);
+	}
+	
+	private void ensureWrite(int n) throws IOException {
+		if (m_buf.remaining() < n)
+			flush();
+	}
+	
+	private void flush() throws IOException {
+		((Buffer) m_buf).flip();
+		while (m_buf.hasRemaining())
+			m_out.write(m_buf);
+		((Buffer) m_buf).clear();
+	}
+	
+	// Reading
+	
+	/**
+	 * Reads a closure stream.
+	 * @param buf The bytes to read, positioned at the start of the stream. Its byte order is changed to little endian.
+	 * @param in The channel the rest of the stream is read from once {@code buf} runs out, or null if {@code buf} holds all of it.
+	 * @return The main function of the stream.
+	 * @throws JSquirrelException If the stream is malformed or was written by an incompatible build.
+	 */
+	static JSqFunctionProto read(ByteBuffer buf, ReadableByteChannel in) throws IOException, JSquirrelException {
+		JSqClosureStream s = new JSqClosureStream(buf, in, null);
+		s.ensureRead(2);
+		if ((s.m_buf.getShort() & 0xFFFF) != BYTECODE_STREAM_TAG)
+			throw new JSquirrelException("invalid stream");
+		s.checkTag(TAG_HEAD);
+		if (s.readInt() != CHAR_SIZE)
+			throw new JSquirrelException("the bytecode was compiled with a different char size");
+		if (s.readInt() != INTEGER_SIZE)
+			throw new JSquirrelException("the bytecode was compiled with a different integer size");
+		if (s.readInt() != FLOAT_SIZE)
+			throw new JSquirrelException("the bytecode was compiled with a different float size");
+		JSqFunctionProto proto = s.readProto();
+		s.checkTag(TAG_TAIL);
+		return proto;
+	}
+	
+	private JSqFunctionProto readProto() throws IOException, JSquirrelException {
+		JSqFunctionProto f = new JSqFunctionProto();
+		checkTag(TAG_PART);
+		f.m_sourceName = readString();
+		f.m_name = readString();
+		
+		checkTag(TAG_PART);
+		int nliterals = readCount();
+		int nparameters = readCount();
+		int nouters = readCount();
+		int nlocals = readCount();
+		int nlines = readCount();
+		int ndefaults = readCount();
+		int ninstructions = readCount();
+		int nfunctions = readCount();
+		
+		checkTag(TAG_PART);
+		f.m_literals = new Object[nliterals];
+		for (int i = 0; i < nliterals; i++)
+			f.m_literals[i] = readLiteral();
+		
+		checkTag(TAG_PART);
+		f.m_parameters = new String[nparameters];
+		for (int i = 0; i < nparameters; i++)
+			f.m_parameters[i] = readString();
+		
+		checkTag(TAG_PART);
+		f.m_outerTypes = new int[nouters];
+		f.m_outerSources = new int[nouters];
+		f.m_outerNames = new String[nouters];
+		for (int i = 0; i < nouters; i++) {
+			f.m_outerTypes[i] = readInt();
+			Object src = readLiteral();
+			if (!(src instanceof Integer))
+				throw new JSquirrelException("invalid stream");
+			f.m_outerSources[i] = (Integer) src;
+			f.m_outerNames[i] = readString();
+		}
+		
+		checkTag(TAG_PART);
+		f.m_localNames = new String[nlocals];
+		f.m_localPositions = new int[nlocals];
+		f.m_localStartOps = new int[nlocals];
+		f.m_localEndOps = new int[nlocals];
+		for (int i = 0; i < nlocals; i++) {
+			f.m_localNames[i] = readString();
+			f.m_localPositions[i] = readInt();
+			f.m_localStartOps[i] = readInt();
+			f.m_localEndOps[i] = readInt();
+		}
+		
+		checkTag(TAG_PART);
+		f.m_lineLines = new int[nlines];
+		f.m_lineOps = new int[nlines];
+		for (int i = 0; i < nlines; i++) {
+			f.m_lineLines[i] = readInt();
+			f.m_lineOps[i] = readInt();
+		}
+		
+		checkTag(TAG_PART);
+		f.m_defaultParams = new int[ndefaults];
+		for (int i = 0; i < ndefaults; i++)
+			f.m_defaultParams[i] = readInt();
+		
+		checkTag(TAG_PART);
+		f.m_instructions = new long[ninstructions];
+		for (int i = 0; i < ninstructions; i++) {
+			ensureRead(8);
+			f.m_instructions[i] = m_buf.getLong();
+		}
+		
+		checkTag(TAG_PART);
+		f.m_functions = new JSqFunctionProto[nfunctions];
+		for (int i = 0; i < nfunctions; i++)
+			f.m_functions[i] = readProto();
+		
+		f.m_stackSize = readInt();
+		ensureRead(1);
+		f.m_generator = m_buf.get() != 0;
+		f.m_varParams = readInt() != 0;
+		return f;
+	}
+	
+	private Object readLiteral() throws IOException, JSquirrelException {
+		int t = readInt();
+		switch (t) {
+			case OT_STRING: return readStringBody();
+			case OT_INTEGER: return readInt();
+			case OT_FLOAT: return Float.intBitsToFloat(readInt());
+			case OT_BOOL: return readInt() != 0;
+			case OT_NULL: return null;
+			default: throw new JSquirrelException("invalid stream");
+		}
+	}
+	
+	private String readString() throws IOException, JSquirrelException {
+		int t = readInt();
+		if (t == OT_NULL)
+			return null;
+		if (t != OT_STRING)
+			throw new JSquirrelException("invalid stream");
+		return readStringBody();
+	}
+	
+	private String readStringBody() throws IOException, JSquirrelException {
+		int len = readCount();
+		ensureRead(len);
+		ByteBuffer bytes = m_buf.slice();
+		((Buffer) bytes).limit(len);
+		((Buffer) m_buf).position(m_buf.position() + len);
+		if (m_decoder == null)
+			m_decoder = UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+		try {
+			return m_decoder.decode(bytes).toString();
+		}
+		catch (CharacterCodingException e) {
+			throw new JSquirrelException("invalid stream");
+		}
+	}
+	
+	private void checkTag(int tag) throws IOException, JSquirrelException {
+		if (readInt() != tag)
+			throw new JSquirrelException("invalid stream");
+	}
+	
+	private int readCount() throws IOException, JSquirrelException {
+		int n = readInt();
+		if (n < 0)
+			throw new JSquirrelException("invalid stream");
+		return n;
+	}
+	
+	private int readInt() throws IOException, JSquirrelException {
+		ensureRead(4);
+		return m_buf.getInt();
+	}
+	
+	/**
+	 * Makes sure n bytes can be read from the buffer, refilling it from the channel if there is one.
+	 */
+	private void ensureRead(int n) throws IOException, JSquirrelException {
+		if (m_buf.remaining() >= n)
+			return;
+		if (m_in == null)
+			throw new JSquirrelException("io error, the stream ended too soon");
+		if (n > m_buf.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(n, m_buf.capacity() << 1)).order(ByteOrder.LITTLE_ENDIAN);
+			grown.put(m_buf);
+			m_buf = grown;
+		}
+		else {
+			m_buf.compact();
+		}
+		while (m_buf.position() < n) {
+			if (m_in.read(m_buf) < 0) {
+				((Buffer) m_buf).flip();
+				throw new JSquirrelException("io error, the stream ended too soon");
+			}
+		}
+		((Buffer) m_buf).flip();
+	}
+	
+}
@@ -0,0 +1,1671 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqLexer.*;
+import static com.yourlocalfax.jsquirrel.JSqOpcodes.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pure Java port of the Squirrel 3 compiler (sqcompiler.cpp).
+ * <br><br>
+ * Like the native compiler this is a single pass compiler: the parser emits instructions as it
+ * goes and the output is a tree of {@link JSqFunctionProto}s identical to the one
+ * {@link Squirrel#sq_compilebuffer(JSqVM, String, String, boolean)} builds inside the native VM.
+ * No part of the compilation crosses into the native library.
+ * <br><br>
+ * A compiler instance keeps its lexer buffers and intern table between calls, so reusing one instance
+ * for many scripts avoids most of the per compile allocation. Instances are not thread safe.
+ * <br><br>
+ * {@code const} and {@code enum} declarations are stored in the constant table passed to the constructor,
+ * the same way the native compiler stores them in the const table of the VM.
+ * @author Christopher Foster
+ */
+public class JSqCompiler {
+	
+	private static final int EXPR =		1;
+	private static final int OBJECT =	2;
+	private static final int BASE =		3;
+	private static final int LOCAL =	4;
+	private static final int OUTER =	5;
+	
+	private final JSqLexer m_lex = new JSqLexer();
+	private final Map<String, Object> m_consts;
+	
+	private boolean m_lineInfo;
+	private String m_sourceName;
+	private JSqFuncState m_fs;
+	private int m_token;
+	
+	// SQExpState
+	private int m_esType, m_esPos;
+	private boolean m_esDonotGet;
+	
+	// SQScope
+	private int m_scopeOuters, m_scopeStackSize;
+	
+	/**
+	 * Creates a compiler with its own constant table.
+	 */
+	public JSqCompiler() {
+		this(new HashMap<String, Object>());
+	}
+	
+	/**
+	 * Creates a compiler that reads and stores named constants in {@code consts}.
+	 * Values are {@link Integer}, {@link Float}, {@link String} or, for enums, a {@link Map} of those.
+	 * @param consts The constant table.
+	 */
+	public JSqCompiler(Map<String, Object> consts) {
+		m_consts = consts;
+	}
+	
+	/**
+	 * Enable/disable the generation of _OP_LINE instructions, the equivalent of {@link Squirrel#sq_enabledebuginfo(JSqVM, boolean)}.
+	 * @param enable
+	 */
+	public void setDebugInfo(boolean enable) {
+		m_lineInfo = enable;
+	}
+	
+	public Map<String, Object> getConstants() {
+		return m_consts;
+	}
+	
+	/**
+	 * Compiles a Squirrel program.
+	 * @param source The source code of the Squirrel program.
+	 * @param sourceName The name of the Squirrel program.
+	 * @return The prototype of the main function of the program.
+	 * @throws JSqCompilerException If the program does not compile.
+	 */
+	public JSqFunctionProto compile(CharSequence source, String sourceName) throws JSqCompilerException {
+		return compile(source, 0, source.length(), sourceName);
+	}
+	
+	/**
+	 * Compiles the Squirrel program found between {@code start} and {@code end} in {@code source}.
+	 * This allows one script of a larger bundle to be compiled without copying it out first.
+	 * @param source
+	 * @param start
+	 * @param end
+	 * @param sourceName
+	 * @return The prototype of the main function of the program.
+	 * @throws JSqCompilerException If the program does not compile.
+	 */
+	public JSqFunctionProto compile(CharSequence source, int start, int end, String sourceName) throws JSqCompilerException {
+		m_sourceName = sourceName;
+		m_lex.init(source, start, end, sourceName);
+		m_scopeOuters = 0;
+		m_scopeStackSize = 0;
+		try {
+			JSqFuncState funcstate = new JSqFuncState(null, m_lex);
+			funcstate.m_name = "main";
+			m_fs = funcstate;
+			m_fs.addParameter("this");
+			m_fs.addParameter("vargv");
+			m_fs.m_varParams = true;
+			m_fs.m_sourceName = m_sourceName;
+			int stacksize = m_fs.getStackSize();
+			lex();
+			while (m_token > 0) {
+				statement(true);
+				if (m_lex.m_prevToken != '}' && m_lex.m_prevToken != ';')
+					optionalSemicolon();
+			}
+			m_fs.setStackSize(stacksize);
+			m_fs.addLineInfos(m_lex.m_currentLine, m_lineInfo, true);
+			m_fs.addInstruction(OP_RETURN, 0xFF);
+			m_fs.setStackSize(0);
+			return m_fs.buildProto();
+		}
+		finally {
+			m_fs = null;
+			m_lex.reset();
+		}
+	}
+	
+	private JSqCompilerException error(String message) {
+		return m_lex.error(message);
+	}
+	
+	private void lex() throws JSqCompilerException {
+		m_token = m_lex.lex();
+	}
+	
+	private Object expect(int tok) throws JSqCompilerException {
+		if (m_token != tok) {
+			if (m_token == TK_CONSTRUCTOR && tok == TK_IDENTIFIER) {
+				// do nothing
+			}
+			else if (tok > 255) {
+				String etypename;
+				switch (tok) {
+					case TK_IDENTIFIER: etypename = "IDENTIFIER"; break;
+					case TK_STRING_LITERAL: etypename = "STRING_LITERAL"; break;
+					case TK_INTEGER: etypename = "INTEGER"; break;
+					case TK_FLOAT: etypename = "FLOAT"; break;
+					default: etypename = JSqLexer.tokenToString(tok);
+				}
+				throw error("expected '" + etypename + "'");
+			}
+			else {
+				throw error("expected '" + (char) tok + "'");
+			}
+		}
+		Object ret = null;
+		switch (tok) {
+			case TK_IDENTIFIER:
+			case TK_STRING_LITERAL:
+				ret = m_lex.m_svalue;
+				break;
+			case TK_INTEGER:
+				ret = m_lex.m_nvalue;
+				break;
+			case TK_FLOAT:
+				ret = m_lex.m_fvalue;
+				break;
+		}
+		lex();
+		return ret;
+	}
+	
+	private boolean isEndOfStatement() {
+		return m_lex.m_prevToken == '\n' || m_token == EOB || m_token == '}' || m_token == ';';
+	}
+	
+	private void optionalSemicolon() throws JSqCompilerException {
+		if (m_token == ';') {
+			lex();
+			return;
+		}
+		if (!isEndOfStatement())
+			throw error("end of statement expected (; or lf)");
+	}
+	
+	private void moveIfCurrentTargetIsLocal() throws JSqCompilerException {
+		int trg = m_fs.topTarget();
+		if (m_fs.isLocal(trg)) {
+			trg = m_fs.popTarget();
+			m_fs.addInstruction(OP_MOVE, m_fs.pushTarget(), trg);
+		}
+	}
+	
+	// expression state
+	
+	private long saveEs() {
+		return (m_esPos & 0xFFFFFFFFL) | ((long) m_esType << 32) | (m_esDonotGet ? 1L << 40 : 0);
+	}
+	
+	private void restoreEs(long es) {
+		m_esPos = (int) es;
+		m_esType = (int) (es >>> 32) & 0xFF;
+		m_esDonotGet = (es & (1L << 40)) != 0;
+	}
+	
+	// scopes
+	
+	private long beginScope() {
+		long old = (m_scopeStackSize & 0xFFFFFFFFL) | ((long) m_scopeOuters << 32);
+		m_scopeOuters = m_fs.m_outers;
+		m_scopeStackSize = m_fs.getStackSize();
+		return old;
+	}
+	
+	private void resolveOuters() {
+		if (m_fs.getStackSize() != m_scopeStackSize) {
+			if (m_fs.countOuters(m_scopeStackSize) != 0)
+				m_fs.addInstruction(OP_CLOSE, 0, m_scopeStackSize);
+		}
+	}
+	
+	private void endScopeNoClose(long old) {
+		if (m_fs.getStackSize() != m_scopeStackSize)
+			m_fs.setStackSize(m_scopeStackSize);
+		m_scopeStackSize = (int) old;
+		m_scopeOuters = (int) (old >>> 32);
+	}
+	
+	private void endScope(long old) {
+		int oldouters = m_fs.m_outers;
+		if (m_fs.getStackSize() != m_scopeStackSize) {
+			m_fs.setStackSize(m_scopeStackSize);
+			if (oldouters != m_fs.m_outers)
+				m_fs.addInstruction(OP_CLOSE, 0, m_scopeStackSize);
+		}
+		m_scopeStackSize = (int) old;
+		m_scopeOuters = (int) (old >>> 32);
+	}
+	
+	// breakable blocks
+	
+	private long beginBreakableBlock() {
+		long state = (m_fs.m_unresolvedBreaks.size() & 0xFFFFFFFFL) | ((long) m_fs.m_unresolvedContinues.size() << 32);
+		m_fs.m_breakTargets.push(0);
+		m_fs.m_continueTargets.push(0);
+		return state;
+	}
+	
+	private void endBreakableBlock(long state, int continueTarget) {
+		int nbreaks = m_fs.m_unresolvedBreaks.size() - (int) state;
+		int ncontinues = m_fs.m_unresolvedContinues.size() - (int) (state >>> 32);
+		if (ncontinues > 0)
+			resolveContinues(m_fs, ncontinues, continueTarget);
+		if (nbreaks > 0)
+			resolveBreaks(m_fs, nbreaks);
+		m_fs.m_breakTargets.pop();
+		m_fs.m_continueTargets.pop();
+	}
+	
+	// statements
+	
+	private void statements() throws JSqCompilerException {
+		while (m_token != '}' && m_token != TK_DEFAULT && m_token != TK_CASE) {
+			statement(true);
+			if (m_lex.m_prevToken != '}' && m_lex.m_prevToken != ';')
+				optionalSemicolon();
+		}
+	}
+	
+	private void statement(boolean closeframe) throws JSqCompilerException {
+		m_fs.addLineInfos(m_lex.m_currentLine, m_lineInfo, false);
+		switch (m_token) {
+			case ';':
+				lex();
+				break;
+			case TK_IF:
+				ifStatement();
+				break;
+			case TK_WHILE:
+				whileStatement();
+				break;
+			case TK_DO:
+				doWhileStatement();
+				break;
+			case TK_FOR:
+				forStatement();
+				break;
+			case TK_FOREACH:
+				forEachStatement();
+				break;
+			case TK_SWITCH:
+				switchStatement();
+				break;
+			case TK_LOCAL:
+				localDeclStatement();
+				break;
+			case TK_RETURN:
+			case TK_YIELD: {
+				int op;
+				if (m_token == TK_RETURN) {
+					op = OP_RETURN;
+				}
+				else {
+					op = OP_YIELD;
+					m_fs.m_generator = true;
+				}
+				lex();
+				if (!isEndOfStatement()) {
+					int retexp = m_fs.getCurrentPos() + 1;
+					commaExpr();
+					if (op == OP_RETURN && m_fs.m_traps > 0)
+						m_fs.addInstruction(OP_POPTRAP, m_fs.m_traps, 0);
+					m_fs.m_returnExp = retexp;
+					m_fs.addInstruction(op, 1, m_fs.popTarget(), m_fs.getStackSize());
+				}
+				else {
+					if (op == OP_RETURN && m_fs.m_traps > 0)
+						m_fs.addInstruction(OP_POPTRAP, m_fs.m_traps, 0);
+					m_fs.m_returnExp = -1;
+					m_fs.addInstruction(op, 0xFF, 0, m_fs.getStackSize());
+				}
+				break;
+			}
+			case TK_BREAK:
+				if (m_fs.m_breakTargets.size() <= 0)
+					throw error("'break' has to be in a loop block");
+				if (m_fs.m_breakTargets.top() > 0)
+					m_fs.addInstruction(OP_POPTRAP, m_fs.m_breakTargets.top(), 0);
+				resolveOuters();
+				m_fs.addInstruction(OP_JMP, 0, -1234);
+				m_fs.m_unresolvedBreaks.push(m_fs.getCurrentPos());
+				lex();
+				break;
+			case TK_CONTINUE:
+				if (m_fs.m_continueTargets.size() <= 0)
+					throw error("'continue' has to be in a loop block");
+				if (m_fs.m_continueTargets.top() > 0)
+					m_fs.addInstruction(OP_POPTRAP, m_fs.m_continueTargets.top(), 0);
+				resolveOuters();
+				m_fs.addInstruction(OP_JMP, 0, -1234);
+				m_fs.m_unresolvedContinues.push(m_fs.getCurrentPos());
+				lex();
+				break;
+			case TK_FUNCTION:
+				functionStatement();
+				break;
+			case TK_CLASS:
+				classStatement();
+				break;
+			case TK_ENUM:
+				enumStatement();
+				break;
+			case '{': {
+				long scope = beginScope();
+				lex();
+				statements();
+				expect('}');
+				if (closeframe)
+					endScope(scope);
+				else
+					endScopeNoClose(scope);
+				break;
+			}
+			case TK_TRY:
+				tryCatchStatement();
+				break;
+			case TK_THROW:
+				lex();
+				commaExpr();
+				m_fs.addInstruction(OP_THROW, m_fs.popTarget());
+				break;
+			case TK_CONST: {
+				lex();
+				String id = (String) expect(TK_IDENTIFIER);
+				expect('=');
+				Object val = expectScalar();
+				optionalSemicolon();
+				m_consts.put(id, val);
+				break;
+			}
+			default:
+				commaExpr();
+				m_fs.discardTarget();
+				break;
+		}
+		m_fs.snoozeOpt();
+	}
+	
+	private void emitDerefOp(int op) throws JSqCompilerException {
+		int val = m_fs.popTarget();
+		int key = m_fs.popTarget();
+		int src = m_fs.popTarget();
+		m_fs.addInstruction(op, m_fs.pushTarget(), src, key, val);
+	}
+	
+	private void emit2ArgsOp(int op, int p3) throws JSqCompilerException {
+		int p2 = m_fs.popTarget();
+		int p1 = m_fs.popTarget();
+		m_fs.addInstruction(op, m_fs.pushTarget(), p1, p2, p3);
+	}
+	
+	private void emitCompoundArith(int tok, int etype, int pos) throws JSqCompilerException {
+		switch (etype) {
+			case LOCAL: {
+				int p2 = m_fs.popTarget();
+				int p1 = m_fs.popTarget();
+				m_fs.pushTarget(p1);
+				m_fs.addInstruction(chooseArithOpByToken(tok), p1, p2, p1, 0);
+				m_fs.snoozeOpt();
+				break;
+			}
+			case OBJECT:
+			case BASE: {
+				int val = m_fs.popTarget();
+				int key = m_fs.popTarget();
+				int src = m_fs.popTarget();
+				// _OP_COMPARITH mixes dest obj and source val in the arg1
+				m_fs.addInstruction(OP_COMPARITH, m_fs.pushTarget(), (src << 16) | val, key, chooseCompArithCharByToken(tok));
+				break;
+			}
+			case OUTER: {
+				int val = m_fs.topTarget();
+				int tmp = m_fs.pushTarget();
+				m_fs.addInstruction(OP_GETOUTER, tmp, pos);
+				m_fs.addInstruction(chooseArithOpByToken(tok), tmp, val, tmp, 0);
+				m_fs.addInstruction(OP_SETOUTER, tmp, pos, tmp);
+				break;
+			}
+		}
+	}
+	
+	private void commaExpr() throws JSqCompilerException {
+		for (expression(); m_token == ','; ) {
+			m_fs.popTarget();
+			lex();
+			commaExpr();
+		}
+	}
+	
+	private void expression() throws JSqCompilerException {
+		long es = saveEs();
+		m_esType = EXPR;
+		m_esPos = -1;
+		m_esDonotGet = false;
+		logicalOrExp();
+		switch (m_token) {
+			case '=':
+			case TK_NEWSLOT:
+			case TK_MINUSEQ:
+			case TK_PLUSEQ:
+			case TK_MULEQ:
+			case TK_DIVEQ:
+			case TK_MODEQ: {
+				int op = m_token;
+				int ds = m_esType;
+				int pos = m_esPos;
+				if (ds == EXPR)
+					throw error("can't assign expression");
+				else if (ds == BASE)
+					throw error("'base' cannot be modified");
+				lex();
+				expression();
+				switch (op) {
+					case TK_NEWSLOT:
+						if (ds == OBJECT || ds == BASE)
+							emitDerefOp(OP_NEWSLOT);
+						else
+							throw error("can't 'create' a local slot");
+						break;
+					case '=':
+						switch (ds) {
+							case LOCAL: {
+								int src = m_fs.popTarget();
+								int dst = m_fs.topTarget();
+								m_fs.addInstruction(OP_MOVE, dst, src);
+								break;
+							}
+							case OBJECT:
+							case BASE:
+								emitDerefOp(OP_SET);
+								break;
+							case OUTER: {
+								int src = m_fs.popTarget();
+								int dst = m_fs.pushTarget();
+								m_fs.addInstruction(OP_SETOUTER, dst, pos, src);
+								break;
+							}
+						}
+						break;
+					default:
+						emitCompoundArith(op, ds, pos);
+						break;
+				}
+				break;
+			}
+			case '?': {
+				lex();
+				m_fs.addInstruction(OP_JZ, m_fs.popTarget());
+				int jzpos = m_fs.getCurrentPos();
+				int trg = m_fs.pushTarget();
+				expression();
+				int firstExp = m_fs.popTarget();
+				if (trg != firstExp)
+					m_fs.addInstruction(OP_MOVE, trg, firstExp);
+				int endfirstexp = m_fs.getCurrentPos();
+				m_fs.addInstruction(OP_JMP, 0, 0);
+				expect(':');
+				int jmppos = m_fs.getCurrentPos();
+				expression();
+				int secondExp = m_fs.popTarget();
+				if (trg != secondExp)
+					m_fs.addInstruction(OP_MOVE, trg, secondExp);
+				m_fs.setInstructionParam(jmppos, 1, m_fs.getCurrentPos() - jmppos);
+				m_fs.setInstructionParam(jzpos, 1, endfirstexp - jzpos + 1);
+				m_fs.snoozeOpt();
+				break;
+			}
+		}
+		restoreEs(es);
+	}
+	
+	// the INVOKE_EXP/BIN_EXP macros of the native compiler, with the callee selected by level
+	
+	private static final int LEVEL_LOGICAL_OR =		0;
+	private static final int LEVEL_LOGICAL_AND =	1;
+	private static final int LEVEL_BITWISE_OR =		2;
+	private static final int LEVEL_BITWISE_XOR =	3;
+	private static final int LEVEL_BITWISE_AND =	4;
+	private static final int LEVEL_EQ =				5;
+	private static final int LEVEL_COMP =			6;
+	private static final int LEVEL_SHIFT =			7;
+	private static final int LEVEL_PLUS =			8;
+	private static final int LEVEL_MULT =			9;
+	private static final int LEVEL_PREFIXED =		10;
+	
+	private void invokeExp(int level) throws JSqCompilerException {
+		long es = saveEs();
+		m_esType = EXPR;
+		m_esPos = -1;
+		m_esDonotGet = false;
+		switch (level) {
+			case LEVEL_LOGICAL_OR: logicalOrExp(); break;
+			case LEVEL_LOGICAL_AND: logicalAndExp(); break;
+			case LEVEL_BITWISE_OR: bitwiseOrExp(); break;
+			case LEVEL_BITWISE_XOR: bitwiseXorExp(); break;
+			case LEVEL_BITWISE_AND: bitwiseAndExp(); break;
+			case LEVEL_EQ: eqExp(); break;
+			case LEVEL_COMP: compExp(); break;
+			case LEVEL_SHIFT: shiftExp(); break;
+			case LEVEL_PLUS: plusExp(); break;
+			case LEVEL_MULT: multExp(); break;
+			case LEVEL_PREFIXED: prefixedExpr(); break;
+		}
+		restoreEs(es);
+	}
+	
+	private void binExp(int op, int level, int op3) throws JSqCompilerException {
+		lex();
+		invokeExp(level);
+		int op1 = m_fs.popTarget();
+		int op2 = m_fs.popTarget();
+		m_fs.addInstruction(op, m_fs.pushTarget(), op1, op2, op3);
+	}
+	
+	private void logicalOrExp() throws JSqCompilerException {
+		logicalAndExp();
+		if (m_token == TK_OR) {
+			int firstExp = m_fs.popTarget();
+			int trg = m_fs.pushTarget();
+			m_fs.addInstruction(OP_OR, trg, 0, firstExp, 0);
+			int jpos = m_fs.getCurrentPos();
+			if (trg != firstExp)
+				m_fs.addInstruction(OP_MOVE, trg, firstExp);
+			lex();
+			invokeExp(LEVEL_LOGICAL_OR);
+			m_fs.snoozeOpt();
+			int secondExp = m_fs.popTarget();
+			if (trg != secondExp)
+				m_fs.addInstruction(OP_MOVE, trg, secondExp);
+			m_fs.snoozeOpt();
+			m_fs.setInstructionParam(jpos, 1, m_fs.getCurrentPos() - jpos);
+		}
+	}
+	
+	private void logicalAndExp() throws JSqCompilerException {
+		bitwiseOrExp();
+		for (;;) {
+			switch (m_token) {
+				case TK_AND: {
+					int firstExp = m_fs.popTarget();
+					int trg = m_fs.pushTarget();
+					m_fs.addInstruction(OP_AND, trg, 0, firstExp, 0);
+					int jpos = m_fs.getCurrentPos();
+					if (trg != firstExp)
+						m_fs.addInstruction(OP_MOVE, trg, firstExp);
+					lex();
+					invokeExp(LEVEL_LOGICAL_AND);
+					m_fs.snoozeOpt();
+					int secondExp = m_fs.popTarget();
+					if (trg != secondExp)
+						m_fs.addInstruction(OP_MOVE, trg, secondExp);
+					m_fs.snoozeOpt();
+					m_fs.setInstructionParam(jpos, 1, m_fs.getCurrentPos() - jpos);
+					break;
+				}
+				case TK_IN:
+					binExp(OP_EXISTS, LEVEL_BITWISE_OR, 0);
+					break;
+				case TK_INSTANCEOF:
+					binExp(OP_INSTANCEOF, LEVEL_BITWISE_OR, 0);
+					break;
+				default:
+					return;
+			}
+		}
+	}
+	
+	private void bitwiseOrExp() throws JSqCompilerException {
+		bitwiseXorExp();
+		while (m_token == '|')
+			binExp(OP_BITW, LEVEL_BITWISE_XOR, BW_OR);
+	}
+	
+	private void bitwiseXorExp() throws JSqCompilerException {
+		bitwiseAndExp();
+		while (m_token == '^')
+			binExp(OP_BITW, LEVEL_BITWISE_AND, BW_XOR);
+	}
+	
+	private void bitwiseAndExp() throws JSqCompilerException {
+		eqExp();
+		while (m_token == '&')
+			binExp(OP_BITW, LEVEL_EQ, BW_AND);
+	}
+	
+	private void eqExp() throws JSqCompilerException {
+		compExp();
+		for (;;) {
+			switch (m_token) {
+				case TK_EQ: binExp(OP_EQ, LEVEL_COMP, 0); break;
+				case TK_NE: binExp(OP_NE, LEVEL_COMP, 0); break;
+				case TK_3WAYSCMP: binExp(OP_CMP, LEVEL_COMP, CMP_3W); break;
+				default: return;
+			}
+		}
+	}
+	
+	private void compExp() throws JSqCompilerException {
+		shiftExp();
+		for (;;) {
+			switch (m_token) {
+				case '>': binExp(OP_CMP, LEVEL_SHIFT, CMP_G); break;
+				case '<': binExp(OP_CMP, LEVEL_SHIFT, CMP_L); break;
+				case TK_GE: binExp(OP_CMP, LEVEL_SHIFT, CMP_GE); break;
+				case TK_LE: binExp(OP_CMP, LEVEL_SHIFT, CMP_LE); break;
+				default: return;
+			}
+		}
+	}
+	
+	private void shiftExp() throws JSqCompilerException {
+		plusExp();
+		for (;;) {
+			switch (m_token) {
+				case TK_USHIFTR: binExp(OP_BITW, LEVEL_PLUS, BW_USHIFTR); break;
+				case TK_SHIFTL: binExp(OP_BITW, LEVEL_PLUS, BW_SHIFTL); break;
+				case TK_SHIFTR: binExp(OP_BITW, LEVEL_PLUS, BW_SHIFTR); break;
+				default: return;
+			}
+		}
+	}
+	
+	private static int chooseArithOpByToken(int tok) {
+		switch (tok) {
+			case TK_PLUSEQ: case '+': return OP_ADD;
+			case TK_MINUSEQ: case '-': return OP_SUB;
+			case TK_MULEQ: case '*': return OP_MUL;
+			case TK_DIVEQ: case '/': return OP_DIV;
+			case TK_MODEQ: case '%': return OP_MOD;
+			default: throw new IllegalArgumentException();
+		}
+	}
+	
+	private static int chooseCompArithCharByToken(int tok) {
+		switch (tok) {
+			case TK_MINUSEQ: return '-';
+			case TK_PLUSEQ: return '+';
+			case TK_MULEQ: return '*';
+			case TK_DIVEQ: return '/';
+			case TK_MODEQ: return '%';
+			default: throw new IllegalArgumentException();
+		}
+	}
+	
+	private void plusExp() throws JSqCompilerException {
+		multExp();
+		while (m_token == '+' || m_token == '-')
+			binExp(chooseArithOpByToken(m_token), LEVEL_MULT, 0);
+	}
+	
+	private void multExp() throws JSqCompilerException {
+		prefixedExpr();
+		while (m_token == '*' || m_token == '/' || m_token == '%')
+			binExp(chooseArithOpByToken(m_token), LEVEL_PREFIXED, 0);
+	}
+	
+	private void prefixedExpr() throws JSqCompilerException {
+		int pos = factor();
+		for (;;) {
+			switch (m_token) {
+				case '.':
+					pos = -1;
+					lex();
+					m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant((String) expect(TK_IDENTIFIER)));
+					if (m_esType == BASE) {
+						emit2ArgsOp(OP_GET, 0);
+						pos = m_fs.topTarget();
+						m_esType = EXPR;
+						m_esPos = pos;
+					}
+					else {
+						if (needGet())
+							emit2ArgsOp(OP_GET, 0);
+						m_esType = OBJECT;
+					}
+					break;
+				case '[':
+					if (m_lex.m_prevToken == '\n')
+						throw error("cannot brake deref/or comma needed after [exp]=exp slot declaration");
+					lex();
+					expression();
+					expect(']');
+					pos = -1;
+					if (m_esType == BASE) {
+						emit2ArgsOp(OP_GET, 0);
+						pos = m_fs.topTarget();
+						m_esType = EXPR;
+						m_esPos = pos;
+					}
+					else {
+						if (needGet())
+							emit2ArgsOp(OP_GET, 0);
+						m_esType = OBJECT;
+					}
+					break;
+				case TK_MINUSMINUS:
+				case TK_PLUSPLUS: {
+					if (isEndOfStatement())
+						return;
+					int diff = m_token == TK_MINUSMINUS ? -1 : 1;
+					lex();
+					switch (m_esType) {
+						case EXPR:
+							throw error("can't '++' or '--' an expression");
+						case OBJECT:
+						case BASE:
+							emit2ArgsOp(OP_PINC, diff);
+							break;
+						case LOCAL: {
+							int src = m_fs.popTarget();
+							m_fs.addInstruction(OP_PINCL, m_fs.pushTarget(), src, 0, diff);
+							break;
+						}
+						case OUTER: {
+							int tmp1 = m_fs.pushTarget();
+							int tmp2 = m_fs.pushTarget();
+							m_fs.addInstruction(OP_GETOUTER, tmp2, m_esPos);
+							m_fs.addInstruction(OP_PINCL, tmp1, tmp2, 0, diff);
+							m_fs.addInstruction(OP_SETOUTER, tmp2, m_esPos, tmp2);
+							m_fs.popTarget();
+							break;
+						}
+					}
+					return;
+				}
+				case '(':
+					switch (m_esType) {
+						case OBJECT: {
+							int key = m_fs.popTarget();
+							int table = m_fs.popTarget();
+							int closure = m_fs.pushTarget();
+							int ttarget = m_fs.pushTarget();
+							m_fs.addInstruction(OP_PREPCALL, closure, key, table, ttarget);
+							break;
+						}
+						case BASE:
+							m_fs.addInstruction(OP_MOVE, m_fs.pushTarget(), 0);
+							break;
+						case OUTER:
+							m_fs.addInstruction(OP_GETOUTER, m_fs.pushTarget(), m_esPos);
+							m_fs.addInstruction(OP_MOVE, m_fs.pushTarget(), 0);
+							break;
+						default:
+							m_fs.addInstruction(OP_MOVE, m_fs.pushTarget(), 0);
+					}
+					m_esType = EXPR;
+					lex();
+					functionCallArgs();
+					break;
+				default:
+					return;
+			}
+		}
+	}
+	
+	private int factor() throws JSqCompilerException {
+		m_esType = EXPR;
+		switch (m_token) {
+			case TK_STRING_LITERAL:
+				m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(m_lex.m_svalue));
+				lex();
+				break;
+			case TK_BASE:
+				lex();
+				m_fs.addInstruction(OP_GETBASE, m_fs.pushTarget());
+				m_esType = BASE;
+				m_esPos = m_fs.topTarget();
+				return m_esPos;
+			case TK_IDENTIFIER:
+			case TK_CONSTRUCTOR:
+			case TK_THIS: {
+				String id;
+				switch (m_token) {
+					case TK_THIS: id = "this"; break;
+					case TK_CONSTRUCTOR: id = "constructor"; break;
+					default: id = m_lex.m_svalue;
+				}
+				int pos;
+				lex();
+				Object constant;
+				if ((pos = m_fs.getLocalVariable(id)) != -1) {
+					// handle a local variable (includes 'this')
+					m_fs.pushTarget(pos);
+					m_esType = LOCAL;
+					m_esPos = pos;
+				}
+				else if ((pos = m_fs.getOuterVariable(id)) != -1) {
+					// handle a free var
+					if (needGet()) {
+						m_esPos = m_fs.pushTarget();
+						m_fs.addInstruction(OP_GETOUTER, m_esPos, pos);
+					}
+					else {
+						m_esType = OUTER;
+						m_esPos = pos;
+					}
+				}
+				else if ((constant = m_consts.get(id)) != null) {
+					// handle named constant
+					Object constval;
+					if (constant instanceof Map) {
+						expect('.');
+						String constid = (String) expect(TK_IDENTIFIER);
+						constval = ((Map<?, ?>) constant).get(constid);
+						if (constval == null)
+							throw error("invalid constant [" + id + "." + constid + "]");
+					}
+					else {
+						constval = constant;
+					}
+					m_esPos = m_fs.pushTarget();
+					// generate direct or literal function depending on size
+					if (constval instanceof Integer)
+						emitLoadConstInt((Integer) constval, m_esPos);
+					else if (constval instanceof Float)
+						emitLoadConstFloat((Float) constval, m_esPos);
+					else
+						m_fs.addInstruction(OP_LOAD, m_esPos, m_fs.getConstant(constval));
+					m_esType = EXPR;
+				}
+				else {
+					// handle a non-local variable, aka a field. Push the 'this' pointer on
+					// the virtual stack (always found in offset 0, so no instruction needs to
+					// be generated), and push the key next. Generate an _OP_LOAD instruction
+					// for the latter. If we are not using the variable as a dref expr, generate
+					// the _OP_GET instruction.
+					m_fs.pushTarget(0);
+					m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(id));
+					if (needGet())
+						emit2ArgsOp(OP_GET, 0);
+					m_esType = OBJECT;
+				}
+				return m_esPos;
+			}
+			case TK_DOUBLE_COLON:
+				m_fs.addInstruction(OP_LOADROOT, m_fs.pushTarget());
+				m_esType = OBJECT;
+				m_token = '.'; // hack: drop into PrefixExpr, case '.'
+				m_esPos = -1;
+				return m_esPos;
+			case TK_NULL:
+				m_fs.addInstruction(OP_LOADNULLS, m_fs.pushTarget(), 1);
+				lex();
+				break;
+			case TK_INTEGER:
+				emitLoadConstInt(m_lex.m_nvalue, -1);
+				lex();
+				break;
+			case TK_FLOAT:
+				emitLoadConstFloat(m_lex.m_fvalue, -1);
+				lex();
+				break;
+			case TK_TRUE:
+			case TK_FALSE:
+				m_fs.addInstruction(OP_LOADBOOL, m_fs.pushTarget(), m_token == TK_TRUE ? 1 : 0);
+				lex();
+				break;
+			case '[': {
+				m_fs.addInstruction(OP_NEWOBJ, m_fs.pushTarget(), 0, 0, NOT_ARRAY);
+				int apos = m_fs.getCurrentPos(), key = 0;
+				lex();
+				while (m_token != ']') {
+					expression();
+					if (m_token == ',')
+						lex();
+					int val = m_fs.popTarget();
+					int array = m_fs.topTarget();
+					m_fs.addInstruction(OP_APPENDARRAY, array, val, AAT_STACK);
+					key++;
+				}
+				m_fs.setInstructionParam(apos, 1, key);
+				lex();
+				break;
+			}
+			case '{':
+				m_fs.addInstruction(OP_NEWOBJ, m_fs.pushTarget(), 0, NOT_TABLE);
+				lex();
+				parseTableOrClass(',', '}');
+				break;
+			case TK_FUNCTION:
+				functionExp(m_token, false);
+				break;
+			case '@':
+				functionExp(m_token, true);
+				break;
+			case TK_CLASS:
+				lex();
+				classExp();
+				break;
+			case '-':
+				lex();
+				switch (m_token) {
+					case TK_INTEGER:
+						emitLoadConstInt(-m_lex.m_nvalue, -1);
+						lex();
+						break;
+					case TK_FLOAT:
+						emitLoadConstFloat(-m_lex.m_fvalue, -1);
+						lex();
+						break;
+					default:
+						unaryOp(OP_NEG);
+				}
+				break;
+			case '!':
+				lex();
+				unaryOp(OP_NOT);
+				break;
+			case '~':
+				lex();
+				if (m_token == TK_INTEGER) {
+					emitLoadConstInt(~m_lex.m_nvalue, -1);
+					lex();
+					break;
+				}
+				unaryOp(OP_BWNOT);
+				break;
+			case TK_TYPEOF:
+				lex();
+				unaryOp(OP_TYPEOF);
+				break;
+			case TK_RESUME:
+				lex();
+				unaryOp(OP_RESUME);
+				break;
+			case TK_CLONE:
+				lex();
+				unaryOp(OP_CLONE);
+				break;
+			case TK_MINUSMINUS:
+			case TK_PLUSPLUS:
+				prefixIncDec(m_token);
+				break;
+			case TK_DELETE:
+				deleteExpr();
+				break;
+			case '(':
+				lex();
+				commaExpr();
+				expect(')');
+				break;
+			case TK___LINE__:
+				emitLoadConstInt(m_lex.m_currentLine, -1);
+				lex();
+				break;
+			case TK___FILE__:
+				m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(m_sourceName));
+				lex();
+				break;
+			default:
+				throw error("expression expected");
+		}
+		return -1;
+	}
+	
+	private void emitLoadConstInt(int value, int target) throws JSqCompilerException {
+		if (target < 0)
+			target = m_fs.pushTarget();
+		// SQInteger is 32 bits wide, so every value fits in _arg1
+		m_fs.addInstruction(OP_LOADINT, target, value);
+	}
+	
+	private void emitLoadConstFloat(float value, int target) throws JSqCompilerException {
+		if (target < 0)
+			target = m_fs.pushTarget();
+		m_fs.addInstruction(OP_LOADFLOAT, target, Float.floatToRawIntBits(value));
+	}
+	
+	private void unaryOp(int op) throws JSqCompilerException {
+		prefixedExpr();
+		int src = m_fs.popTarget();
+		m_fs.addInstruction(op, m_fs.pushTarget(), src);
+	}
+	
+	private boolean needGet() {
+		switch (m_token) {
+			case '=': case '(': case TK_NEWSLOT: case TK_MODEQ: case TK_MULEQ:
+			case TK_DIVEQ: case TK_MINUSEQ: case TK_PLUSEQ:
+				return false;
+			case TK_PLUSPLUS: case TK_MINUSMINUS:
+				if (!isEndOfStatement())
+					return false;
+				break;
+		}
+		return !m_esDonotGet || (m_esDonotGet && (m_token == '.' || m_token == '['));
+	}
+	
+	private void functionCallArgs() throws JSqCompilerException {
+		int nargs = 1; // this
+		while (m_token != ')') {
+			expression();
+			moveIfCurrentTargetIsLocal();
+			nargs++;
+			if (m_token == ',') {
+				lex();
+				if (m_token == ')')
+					throw error("expression expected, found ')'");
+			}
+		}
+		lex();
+		for (int i = 0; i < nargs - 1; i++)
+			m_fs.popTarget();
+		int stackbase = m_fs.popTarget();
+		int closure = m_fs.popTarget();
+		m_fs.addInstruction(OP_CALL, m_fs.pushTarget(), closure, stackbase, nargs);
+	}
+	
+	private void parseTableOrClass(int separator, int terminator) throws JSqCompilerException {
+		int tpos = m_fs.getCurrentPos(), nkeys = 0;
+		while (m_token != terminator) {
+			boolean hasattrs = false;
+			boolean isstatic = false;
+			// check if is an attribute
+			if (separator == ';') {
+				if (m_token == TK_ATTR_OPEN) {
+					m_fs.addInstruction(OP_NEWOBJ, m_fs.pushTarget(), 0, NOT_TABLE);
+					lex();
+					parseTableOrClass(',', TK_ATTR_CLOSE);
+					hasattrs = true;
+				}
+				if (m_token == TK_STATIC) {
+					isstatic = true;
+					lex();
+				}
+			}
+			switch (m_token) {
+				case TK_FUNCTION:
+				case TK_CONSTRUCTOR: {
+					int tk = m_token;
+					lex();
+					String id = tk == TK_FUNCTION ? (String) expect(TK_IDENTIFIER) : "constructor";
+					expect('(');
+					m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(id));
+					createFunction(id, false);
+					m_fs.addInstruction(OP_CLOSURE, m_fs.pushTarget(), m_fs.m_functions.size() - 1, 0);
+					break;
+				}
+				case '[':
+					lex();
+					commaExpr();
+					expect(']');
+					expect('=');
+					expression();
+					break;
+				default:
+					if (m_token == TK_STRING_LITERAL && separator == ',') {
+						// JSON, only works for tables
+						m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(expect(TK_STRING_LITERAL)));
+						expect(':');
+						expression();
+					}
+					else {
+						m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant((String) expect(TK_IDENTIFIER)));
+						expect('=');
+						expression();
+					}
+			}
+			if (m_token == separator)
+				lex(); // optional comma/semicolon
+			nkeys++;
+			int val = m_fs.popTarget();
+			int key = m_fs.popTarget();
+			if (hasattrs)
+				m_fs.popTarget();
+			int flags = (hasattrs ? NEW_SLOT_ATTRIBUTES_FLAG : 0) | (isstatic ? NEW_SLOT_STATIC_FLAG : 0);
+			int table = m_fs.topTarget(); // <<BECAUSE OF THIS NO COMMON EMIT FUNC IS POSSIBLE
+			if (separator == ',') // hack recognizes a table from the separator
+				m_fs.addInstruction(OP_NEWSLOT, 0xFF, table, key, val);
+			else // this for classes only as it invokes _newmember
+				m_fs.addInstruction(OP_NEWSLOTA, flags, table, key, val);
+		}
+		if (separator == ',') // hack recognizes a table from the separator
+			m_fs.setInstructionParam(tpos, 1, nkeys);
+		lex();
+	}
+	
+	private void localDeclStatement() throws JSqCompilerException {
+		String varname;
+		lex();
+		if (m_token == TK_FUNCTION) {
+			lex();
+			varname = (String) expect(TK_IDENTIFIER);
+			expect('(');
+			createFunction(varname, false);
+			m_fs.addInstruction(OP_CLOSURE, m_fs.pushTarget(), m_fs.m_functions.size() - 1, 0);
+			m_fs.popTarget();
+			m_fs.pushLocalVariable(varname);
+			return;
+		}
+		for (;;) {
+			varname = (String) expect(TK_IDENTIFIER);
+			if (m_token == '=') {
+				lex();
+				expression();
+				int src = m_fs.popTarget();
+				int dest = m_fs.pushTarget();
+				if (dest != src)
+					m_fs.addInstruction(OP_MOVE, dest, src);
+			}
+			else {
+				m_fs.addInstruction(OP_LOADNULLS, m_fs.pushTarget(), 1);
+			}
+			m_fs.popTarget();
+			m_fs.pushLocalVariable(varname);
+			if (m_token == ',')
+				lex();
+			else
+				break;
+		}
+	}
+	
+	private void ifStatement() throws JSqCompilerException {
+		int jmppos;
+		boolean haselse = false;
+		lex();
+		expect('(');
+		commaExpr();
+		expect(')');
+		m_fs.addInstruction(OP_JZ, m_fs.popTarget());
+		int jnepos = m_fs.getCurrentPos();
+		long scope = beginScope();
+		statement(true);
+		if (m_token != '}' && m_token != TK_ELSE)
+			optionalSemicolon();
+		endScope(scope);
+		int endifblock = m_fs.getCurrentPos();
+		if (m_token == TK_ELSE) {
+			haselse = true;
+			scope = beginScope();
+			m_fs.addInstruction(OP_JMP, 0);
+			jmppos = m_fs.getCurrentPos();
+			lex();
+			statement(true);
+			if (m_lex.m_prevToken != '}')
+				optionalSemicolon();
+			endScope(scope);
+			m_fs.setInstructionParam(jmppos, 1, m_fs.getCurrentPos() - jmppos);
+		}
+		m_fs.setInstructionParam(jnepos, 1, endifblock - jnepos + (haselse ? 1 : 0));
+	}
+	
+	private void whileStatement() throws JSqCompilerException {
+		int jzpos, jmppos;
+		jmppos = m_fs.getCurrentPos();
+		lex();
+		expect('(');
+		commaExpr();
+		expect(')');
+		long block = beginBreakableBlock();
+		m_fs.addInstruction(OP_JZ, m_fs.popTarget());
+		jzpos = m_fs.getCurrentPos();
+		long scope = beginScope();
+		statement(true);
+		endScope(scope);
+		m_fs.addInstruction(OP_JMP, 0, jmppos - m_fs.getCurrentPos() - 1);
+		m_fs.setInstructionParam(jzpos, 1, m_fs.getCurrentPos() - jzpos);
+		endBreakableBlock(block, jmppos);
+	}
+	
+	private void doWhileStatement() throws JSqCompilerException {
+		lex();
+		int jmptrg = m_fs.getCurrentPos();
+		long block = beginBreakableBlock();
+		long scope = beginScope();
+		statement(true);
+		endScope(scope);
+		expect(TK_WHILE);
+		int continuetrg = m_fs.getCurrentPos();
+		expect('(');
+		commaExpr();
+		expect(')');
+		m_fs.addInstruction(OP_JZ, m_fs.popTarget(), 1);
+		m_fs.addInstruction(OP_JMP, 0, jmptrg - m_fs.getCurrentPos() - 1);
+		endBreakableBlock(block, continuetrg);
+	}
+	
+	private void forStatement() throws JSqCompilerException {
+		lex();
+		long scope = beginScope();
+		expect('(');
+		if (m_token == TK_LOCAL) {
+			localDeclStatement();
+		}
+		else if (m_token != ';') {
+			commaExpr();
+			m_fs.popTarget();
+		}
+		expect(';');
+		m_fs.snoozeOpt();
+		int jmppos = m_fs.getCurrentPos();
+		int jzpos = -1;
+		if (m_token != ';') {
+			commaExpr();
+			m_fs.addInstruction(OP_JZ, m_fs.popTarget());
+			jzpos = m_fs.getCurrentPos();
+		}
+		expect(';');
+		m_fs.snoozeOpt();
+		int expstart = m_fs.getCurrentPos() + 1;
+		if (m_token != ')') {
+			commaExpr();
+			m_fs.popTarget();
+		}
+		expect(')');
+		m_fs.snoozeOpt();
+		int expend = m_fs.getCurrentPos();
+		int expsize = (expend - expstart) + 1;
+		long[] exp = null;
+		if (expsize > 0) {
+			exp = new long[expsize];
+			for (int i = 0; i < expsize; i++)
+				exp[i] = m_fs.getInstruction(expstart + i);
+			m_fs.popInstructions(expsize);
+		}
+		long block = beginBreakableBlock();
+		statement(true);
+		int continuetrg = m_fs.getCurrentPos();
+		if (expsize > 0) {
+			for (int i = 0; i < expsize; i++)
+				m_fs.addInstruction(exp[i]);
+		}
+		m_fs.addInstruction(OP_JMP, 0, jmppos - m_fs.getCurrentPos() - 1, 0);
+		if (jzpos > 0)
+			m_fs.setInstructionParam(jzpos, 1, m_fs.getCurrentPos() - jzpos);
+		endScope(scope);
+		endBreakableBlock(block, continuetrg);
+	}
+	
+	private void forEachStatement() throws JSqCompilerException {
+		String idxname, valname;
+		lex();
+		expect('(');
+		valname = (String) expect(TK_IDENTIFIER);
+		if (m_token == ',') {
+			idxname = valname;
+			lex();
+			valname = (String) expect(TK_IDENTIFIER);
+		}
+		else {
+			idxname = "@INDEX@";
+		}
+		expect(TK_IN);
+		// save the stack size
+		long scope = beginScope();
+		// put the table in the stack(evaluate the table expression)
+		expression();
+		expect(')');
+		int container = m_fs.topTarget();
+		// push the index local var
+		int indexpos = m_fs.pushLocalVariable(idxname);
+		m_fs.addInstruction(OP_LOADNULLS, indexpos, 1);
+		// push the value local var
+		int valuepos = m_fs.pushLocalVariable(valname);
+		m_fs.addInstruction(OP_LOADNULLS, valuepos, 1);
+		// push reference index
+		int itrpos = m_fs.pushLocalVariable("@ITERATOR@"); // use invalid id to make it inaccessible
+		m_fs.addInstruction(OP_LOADNULLS, itrpos, 1);
+		int jmppos = m_fs.getCurrentPos();
+		m_fs.addInstruction(OP_FOREACH, container, 0, indexpos);
+		int foreachpos = m_fs.getCurrentPos();
+		m_fs.addInstruction(OP_POSTFOREACH, container, 0, indexpos);
+		// generate the statement code
+		long block = beginBreakableBlock();
+		statement(true);
+		m_fs.addInstruction(OP_JMP, 0, jmppos - m_fs.getCurrentPos() - 1);
+		m_fs.setInstructionParam(foreachpos, 1, m_fs.getCurrentPos() - foreachpos);
+		m_fs.setInstructionParam(foreachpos + 1, 1, m_fs.getCurrentPos() - foreachpos);
+		endBreakableBlock(block, foreachpos - 1);
+		// restore the local variable stack(remove index,val and ref idx)
+		m_fs.popTarget();
+		endScope(scope);
+	}
+	
+	private void switchStatement() throws JSqCompilerException {
+		lex();
+		expect('(');
+		commaExpr();
+		expect(')');
+		expect('{');
+		int expr = m_fs.topTarget();
+		boolean bfirst = true;
+		int tonextcondjmp = -1;
+		int skipcondjmp = -1;
+		int nbreaks = m_fs.m_unresolvedBreaks.size();
+		m_fs.m_breakTargets.push(0);
+		while (m_token == TK_CASE) {
+			if (!bfirst) {
+				m_fs.addInstruction(OP_JMP, 0, 0);
+				skipcondjmp = m_fs.getCurrentPos();
+				m_fs.setInstructionParam(tonextcondjmp, 1, m_fs.getCurrentPos() - tonextcondjmp);
+			}
+			// condition
+			lex();
+			expression();
+			expect(':');
+			int trg = m_fs.popTarget();
+			m_fs.addInstruction(OP_EQ, trg, trg, expr);
+			m_fs.addInstruction(OP_JZ, trg, 0);
+			// end condition
+			if (skipcondjmp != -1)
+				m_fs.setInstructionParam(skipcondjmp, 1, m_fs.getCurrentPos() - skipcondjmp);
+			tonextcondjmp = m_fs.getCurrentPos();
+			long scope = beginScope();
+			statements();
+			endScope(scope);
+			bfirst = false;
+		}
+		if (tonextcondjmp != -1)
+			m_fs.setInstructionParam(tonextcondjmp, 1, m_fs.getCurrentPos() - tonextcondjmp);
+		if (m_token == TK_DEFAULT) {
+			lex();
+			expect(':');
+			long scope = beginScope();
+			statements();
+			endScope(scope);
+		}
+		expect('}');
+		m_fs.popTarget();
+		nbreaks = m_fs.m_unresolvedBreaks.size() - nbreaks;
+		if (nbreaks > 0)
+			resolveBreaks(m_fs, nbreaks);
+		m_fs.m_breakTargets.pop();
+	}
+	
+	private void functionStatement() throws JSqCompilerException {
+		lex();
+		String id = (String) expect(TK_IDENTIFIER);
+		m_fs.pushTarget(0);
+		m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(id));
+		if (m_token == TK_DOUBLE_COLON)
+			emit2ArgsOp(OP_GET, 0);
+		while (m_token == TK_DOUBLE_COLON) {
+			lex();
+			id = (String) expect(TK_IDENTIFIER);
+			m_fs.addInstruction(OP_LOAD, m_fs.pushTarget(), m_fs.getConstant(id));
+			if (m_token == TK_DOUBLE_COLON)
+				emit2ArgsOp(OP_GET, 0);
+		}
+		expect('(');
+		createFunction(id, false);
+		m_fs.addInstruction(OP_CLOSURE, m_fs.pushTarget(), m_fs.m_functions.size() - 1, 0);
+		emitDerefOp(OP_NEWSLOT);
+		m_fs.popTarget();
+	}
+	
+	private void classStatement() throws JSqCompilerException {
+		lex();
+		long es = saveEs();
+		m_esDonotGet = true;
+		prefixedExpr();
+		if (m_esType == EXPR) {
+			throw error("invalid class name");
+		}
+		else if (m_esType == OBJECT || m_esType == BASE) {
+			classExp();
+			emitDerefOp(OP_NEWSLOT);
+			m_fs.popTarget();
+		}
+		else {
+			throw error("cannot create a class in a local with the syntax(class <local>)");
+		}
+		restoreEs(es);
+	}
+	
+	private Object expectScalar() throws JSqCompilerException {
+		Object val;
+		switch (m_token) {
+			case TK_INTEGER:
+				val = m_lex.m_nvalue;
+				break;
+			case TK_FLOAT:
+				val = m_lex.m_fvalue;
+				break;
+			case TK_STRING_LITERAL:
+				val = m_lex.m_svalue;
+				break;
+			case '-':
+				lex();
+				switch (m_token) {
+					case TK_INTEGER:
+						val = -m_lex.m_nvalue;
+						break;
+					case TK_FLOAT:
+						val = -m_lex.m_fvalue;
+						break;
+					default:
+						throw error("scalar expected : integer,float");
+				}
+				break;
+			default:
+				throw error("scalar expected : integer,float or string");
+		}
+		lex();
+		return val;
+	}
+	
+	private void enumStatement() throws JSqCompilerException {
+		lex();
+		String id = (String) expect(TK_IDENTIFIER);
+		expect('{');
+		Map<String, Object> table = new LinkedHashMap<String, Object>();
+		int nval = 0;
+		while (m_token != '}') {
+			String key = (String) expect(TK_IDENTIFIER);
+			Object val;
+			if (m_token == '=') {
+				lex();
+				val = expectScalar();
+			}
+			else {
+				val = nval++;
+			}
+			table.put(key, val);
+			if (m_token == ',')
+				lex();
+		}
+		m_consts.put(id, table);
+		lex();
+	}
+	
+	private void tryCatchStatement() throws JSqCompilerException {
+		lex();
+		m_fs.addInstruction(OP_PUSHTRAP, 0, 0);
+		m_fs.m_traps++;
+		if (m_fs.m_breakTargets.size() > 0)
+			m_fs.m_breakTargets.setTop(m_fs.m_breakTargets.top() + 1);
+		if (m_fs.m_continueTargets.size() > 0)
+			m_fs.m_continueTargets.setTop(m_fs.m_continueTargets.top() + 1);
+		int trappos = m_fs.getCurrentPos();
+		long scope = beginScope();
+		statement(true);
+		endScope(scope);
+		m_fs.m_traps--;
+		m_fs.addInstruction(OP_POPTRAP, 1, 0);
+		if (m_fs.m_breakTargets.size() > 0)
+			m_fs.m_breakTargets.setTop(m_fs.m_breakTargets.top() - 1);
+		if (m_fs.m_continueTargets.size() > 0)
+			m_fs.m_continueTargets.setTop(m_fs.m_continueTargets.top() - 1);
+		m_fs.addInstruction(OP_JMP, 0, 0);
+		int jmppos = m_fs.getCurrentPos();
+		m_fs.setInstructionParam(trappos, 1, m_fs.getCurrentPos() - trappos);
+		expect(TK_CATCH);
+		expect('(');
+		String exid = (String) expect(TK_IDENTIFIER);
+		expect(')');
+		scope = beginScope();
+		int exTarget = m_fs.pushLocalVariable(exid);
+		m_fs.setInstructionParam(trappos, 0, exTarget);
+		statement(true);
+		m_fs.setInstructionParams(jmppos, 0, m_fs.getCurrentPos() - jmppos, 0, 0);
+		endScope(scope);
+	}
+	
+	private void functionExp(int ftype, boolean lambda) throws JSqCompilerException {
+		lex();
+		expect('(');
+		createFunction(null, lambda);
+		m_fs.addInstruction(OP_CLOSURE, m_fs.pushTarget(), m_fs.m_functions.size() - 1, ftype == TK_FUNCTION ? 0 : 1);
+	}
+	
+	private void classExp() throws JSqCompilerException {
+		int base = -1;
+		int attrs = -1;
+		if (m_token == TK_EXTENDS) {
+			lex();
+			expression();
+			base = m_fs.topTarget();
+		}
+		if (m_token == TK_ATTR_OPEN) {
+			lex();
+			m_fs.addInstruction(OP_NEWOBJ, m_fs.pushTarget(), 0, NOT_TABLE);
+			parseTableOrClass(',', TK_ATTR_CLOSE);
+			attrs = m_fs.topTarget();
+		}
+		expect('{');
+		if (attrs != -1)
+			m_fs.popTarget();
+		if (base != -1)
+			m_fs.popTarget();
+		m_fs.addInstruction(OP_NEWOBJ, m_fs.pushTarget(), base, attrs, NOT_CLASS);
+		parseTableOrClass(';', '}');
+	}
+	
+	private void deleteExpr() throws JSqCompilerException {
+		lex();
+		long es = saveEs();
+		m_esDonotGet = true;
+		prefixedExpr();
+		if (m_esType == EXPR)
+			throw error("can't delete an expression");
+		if (m_esType == OBJECT || m_esType == BASE)
+			emit2ArgsOp(OP_DELETE, 0);
+		else
+			throw error("cannot delete an (outer) local");
+		restoreEs(es);
+	}
+	
+	private void prefixIncDec(int token) throws JSqCompilerException {
+		int diff = token == TK_MINUSMINUS ? -1 : 1;
+		lex();
+		long es = saveEs();
+		m_esDonotGet = true;
+		prefixedExpr();
+		if (m_esType == EXPR) {
+			throw error("can't '++' or '--' an expression");
+		}
+		else if (m_esType == OBJECT || m_esType == BASE) {
+			emit2ArgsOp(OP_INC, diff);
+		}
+		else if (m_esType == LOCAL) {
+			int src = m_fs.topTarget();
+			m_fs.addInstruction(OP_INCL, src, src, 0, diff);
+		}
+		else if (m_esType == OUTER) {
+			int tmp = m_fs.pushTarget();
+			m_fs.addInstruction(OP_GETOUTER, tmp, m_esPos);
+			m_fs.addInstruction(OP_INCL, tmp, tmp, 0, diff);
+			m_fs.addInstruction(OP_SETOUTER, tmp, m_esPos, tmp);
+		}
+		restoreEs(es);
+	}
+	
+	private void createFunction(String name, boolean lambda) throws JSqCompilerException {
+		JSqFuncState funcstate = new JSqFuncState(m_fs, m_lex);
+		funcstate.m_name = name;
+		funcstate.addParameter("this");
+		funcstate.m_sourceName = m_sourceName;
+		int defparams = 0;
+		while (m_token != ')') {
+			if (m_token == TK_VARPARAMS) {
+				if (defparams > 0)
+					throw error("function with default parameters cannot have variable number of parameters");
+				funcstate.addParameter("vargv");
+				funcstate.m_varParams = true;
+				lex();
+				if (m_token != ')')
+					throw error("expected ')'");
+				break;
+			}
+			else {
+				String paramname = (String) expect(TK_IDENTIFIER);
+				funcstate.addParameter(paramname);
+				if (m_token == '=') {
+					lex();
+					expression();
+					funcstate.addDefaultParam(m_fs.topTarget());
+					defparams++;
+				}
+				else if (defparams > 0) {
+					throw error("expected '='");
+				}
+				if (m_token == ',')
+					lex();
+				else if (m_token != ')')
+					throw error("expected ')' or ','");
+			}
+		}
+		expect(')');
+		for (int n = 0; n < defparams; n++)
+			m_fs.popTarget();
+		JSqFuncState currchunk = m_fs;
+		m_fs = funcstate;
+		if (lambda) {
+			expression();
+			m_fs.addInstruction(OP_RETURN, 1, m_fs.popTarget());
+		}
+		else {
+			statement(false);
+		}
+		funcstate.addLineInfos(m_lex.m_prevToken == '\n' ? m_lex.m_lastTokenLine : m_lex.m_currentLine, m_lineInfo, true);
+		funcstate.addInstruction(OP_RETURN, 0xFF);
+		funcstate.setStackSize(0);
+		JSqFunctionProto func = funcstate.buildProto();
+		m_fs = currchunk;
+		m_fs.m_functions.add(func);
+	}
+	
+	private static void resolveBreaks(JSqFuncState funcstate, int ntoresolve) {
+		while (ntoresolve > 0) {
+			int pos = funcstate.m_unresolvedBreaks.pop();
+			// set the jmp instruction
+			funcstate.setInstructionParams(pos, 0, funcstate.getCurrentPos() - pos, 0, 0);
+			ntoresolve--;
+		}
+	}
+	
+	private static void resolveContinues(JSqFuncState funcstate, int ntoresolve, int targetpos) {
+		while (ntoresolve > 0) {
+			int pos = funcstate.m_unresolvedContinues.pop();
+			// set the jmp instruction
+			funcstate.setInstructionParams(pos, 0, targetpos - pos, 0, 0);
+			ntoresolve--;
+		}
+	}
+	
+}
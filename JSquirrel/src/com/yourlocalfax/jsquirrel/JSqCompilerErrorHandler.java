@@ -0,0 +1,44 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * Receives the errors of {@link Squirrel#sq_compilebuffer(JSqVM, String, String, boolean)} when it is called with
+ * raiseError set, installed with {@link Squirrel#sq_setcompilererrorhandler(JSqVM, JSqCompilerErrorHandler)}.
+ * The equivalent of an SQCOMPILERERROR.
+ * @author Christopher Foster
+ */
+public interface JSqCompilerErrorHandler {
+	
+	/**
+	 * @param v The VM that compiled the script.
+	 * @param desc The description of the error.
+	 * @param source The name of the script.
+	 * @param line The line the error was found on.
+	 * @param column The column the error was found on.
+	 */
+	void error(JSqVM v, String desc, String source, int line, int column);
+	
+}
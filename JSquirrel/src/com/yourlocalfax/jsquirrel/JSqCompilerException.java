@@ -0,0 +1,63 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * Thrown by {@link JSqCompiler} when a Squirrel program fails to compile.
+ * Carries the same information the native compiler passes to its compiler error handler.
+ * @author Christopher Foster
+ */
+public class JSqCompilerException extends JSquirrelException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	final String m_sourceName;
+	final int m_line, m_column;
+	
+	JSqCompilerException(String message, String sourceName, int line, int column) {
+		super(message);
+		m_sourceName = sourceName;
+		m_line = line;
+		m_column = column;
+	}
+	
+	public String getSourceName() {
+		return m_sourceName;
+	}
+	
+	public int getLine() {
+		return m_line;
+	}
+	
+	public int getColumn() {
+		return m_column;
+	}
+	
+	@Override
+	public String toString() {
+		return m_sourceName + " line = (" + m_line + ") column = (" + m_column + ") : error " + getMessage();
+	}
+	
+}
@@ -0,0 +1,292 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts between Java maps, lists and primitives and Squirrel tables, arrays and primitives, each conversion
+ * in a single call into the VM through a {@link JSqBatch}.
+ * <br><br>
+ * Tables are created with room for all of their slots. Reading a value walks nested tables and arrays inside the VM
+ * and copies them out in one go. A {@link Schema} names the fields of a table and their types, so they're read
+ * without checking the type of each value and written without looking at the class of each value.
+ * <br><br>
+ * Squirrel integers and floats are 32 bits wide, so longs and doubles are narrowed when they're pushed.
+ * A converter reuses its batch and is not thread safe.
+ * @author Christopher Foster
+ */
+public final class JSqConverter {
+	
+	/**
+	 * The fields of a table and the types of their values.
+	 */
+	public static final class Schema {
+		
+		final List<String> m_keys = new ArrayList<String>();
+		final List<JSqObjectType> m_types = new ArrayList<JSqObjectType>();
+		final List<Schema> m_nested = new ArrayList<Schema>();
+		private final Map<String, Integer> m_index = new HashMap<String, Integer>();
+		
+		/**
+		 * Adds a field. Integer, Float, Bool and String fields are read and written as that type, any other type is
+		 * converted the same way as a value without a schema.
+		 */
+		public Schema field(String key, JSqObjectType type) {
+			return add(key, type, null);
+		}
+		
+		/**
+		 * Adds a field holding a table described by {@code nested}.
+		 */
+		public Schema field(String key, Schema nested) {
+			return add(key, JSqObjectType.Table, nested);
+		}
+		
+		private Schema add(String key, JSqObjectType type, Schema nested) {
+			m_index.put(key, m_keys.size());
+			m_keys.add(key);
+			m_types.add(type);
+			m_nested.add(nested);
+			return this;
+		}
+		
+		int indexOf(Object key) {
+			Integer i = m_index.get(key);
+			return i == null ? -1 : i;
+		}
+		
+	}
+	
+	private final JSqBatch m_batch = new JSqBatch();
+	
+	/**
+	 * Pushes a Java value converted to a Squirrel value: null, a Number, Boolean, Character or CharSequence,
+	 * a {@link Map} as a table, or a {@link Collection} or Object array as an array.
+	 * @param v The target Squirrel VM.
+	 * @param value The value to push.
+	 * @return The result of this operation, the stack is left unchanged if it fails.
+	 * @throws IllegalArgumentException If the value or anything inside it can't be converted, or it's nested more
+	 * than {@value JSqBatch#MAX_DEPTH} levels deep.
+	 * @see Squirrel#SQ_SUCCEDED(JSqResult)
+	 * @see Squirrel#SQ_FAILED(JSqResult)
+	 */
+	public JSqResult push(JSqVM v, Object value) {
+		m_batch.clear();
+		record(m_batch, value, 0);
+		return run(v);
+	}
+	
+	/**
+	 * Pushes a map as a table, writing the fields named by {@code schema} as their declared types.
+	 * @throws IllegalArgumentException Also if a field holds a value that isn't of its declared type: a Number for
+	 * Integer and Float, a Boolean for Bool, a CharSequence for String or a Map for a nested schema.
+	 * @see #push(JSqVM, Object)
+	 */
+	public JSqResult push(JSqVM v, Map<String, ?> map, Schema schema) {
+		m_batch.clear();
+		recordMap(m_batch, map, schema, 0);
+		return run(v);
+	}
+	
+	/**
+	 * Reads the value at {@code idx} along with the contents of any tables and arrays in it.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @return The value as read by {@link JSqBatch#nextValue()}, or null if it's nested too deep.
+	 */
+	public Object get(JSqVM v, int idx) {
+		m_batch.clear().getValue(idx);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_runbatch(v, m_batch)))
+			return null;
+		return m_batch.nextValue();
+	}
+	
+	/**
+	 * Reads the fields named by {@code schema} from the table at {@code idx}. Integer, Float, Bool and String
+	 * fields are read as that type without checking the type of the value.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @param schema The fields to read.
+	 * @return The fields in the order of the schema, or null if the table is missing one of them.
+	 */
+	public Map<String, Object> get(JSqVM v, int idx, Schema schema) {
+		m_batch.clear();
+		recordGet(idx, schema);
+		int top = Squirrel.sq_gettop(v);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_runbatch(v, m_batch))) {
+			Squirrel.sq_settop(v, top);
+			return null;
+		}
+		return readFields(schema);
+	}
+	
+	private JSqResult run(JSqVM v) {
+		int top = Squirrel.sq_gettop(v);
+		JSqResult res = Squirrel.sq_runbatch(v, m_batch);
+		if (Squirrel.SQ_FAILED(res))
+			Squirrel.sq_settop(v, top);
+		return res;
+	}
+	
+	/**
+	 * Records pushing {@code value} into {@code batch}, converted as {@link #push(JSqVM, Object)} does.
+	 */
+	static void record(JSqBatch batch, Object value, int depth) {
+		if (value == null)
+			batch.pushNull();
+		else if (value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof Long)
+			batch.pushInteger(((Number) value).intValue());
+		else if (value instanceof Number)
+			batch.pushFloat(((Number) value).floatValue());
+		else if (value instanceof Boolean)
+			batch.pushBool((Boolean) value);
+		else if (value instanceof CharSequence || value instanceof Character)
+			batch.pushString(value.toString());
+		else if (value instanceof Map)
+			recordMap(batch, (Map<?, ?>) value, null, depth);
+		else if (value instanceof Collection) {
+			checkDepth(depth);
+			batch.newArray(0);
+			for (Object o : (Collection<?>) value) {
+				record(batch, o, depth + 1);
+				batch.arrayAppend(-2);
+			}
+		}
+		else if (value instanceof Object[]) {
+			checkDepth(depth);
+			batch.newArray(0);
+			for (Object o : (Object[]) value) {
+				record(batch, o, depth + 1);
+				batch.arrayAppend(-2);
+			}
+		}
+		else
+			throw new IllegalArgumentException("cannot convert " + value.getClass().getName() + " to a Squirrel value");
+	}
+	
+	private static void recordMap(JSqBatch batch, Map<?, ?> map, Schema schema, int depth) {
+		checkDepth(depth);
+		batch.newTable(map.size());
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			Object key = e.getKey(), value = e.getValue();
+			record(batch, key, depth + 1);
+			int field = schema != null ? schema.indexOf(key) : -1;
+			if (field < 0 || value == null)
+				record(batch, value, depth + 1);
+			else {
+				JSqObjectType type = schema.m_types.get(field);
+				switch (type) {
+					case Integer:
+						batch.pushInteger(((Number) checkField(key, value, type, Number.class)).intValue());
+						break;
+					case Float:
+						batch.pushFloat(((Number) checkField(key, value, type, Number.class)).floatValue());
+						break;
+					case Bool:
+						batch.pushBool((Boolean) checkField(key, value, type, Boolean.class));
+						break;
+					case String:
+						batch.pushString(checkField(key, value, type, CharSequence.class).toString());
+						break;
+					case Table:
+						Schema nested = schema.m_nested.get(field);
+						if (nested != null)
+							recordMap(batch, (Map<?, ?>) checkField(key, value, type, Map.class), nested, depth + 1);
+						else
+							record(batch, value, depth + 1);
+						break;
+					default:
+						record(batch, value, depth + 1);
+						break;
+				}
+			}
+			batch.newSlot(-3, false);
+		}
+	}
+	
+	/**
+	 * @return {@code value}, if it's of the Java type the schema expects for {@code key}.
+	 * @throws IllegalArgumentException If it isn't.
+	 */
+	private static Object checkField(Object key, Object value, JSqObjectType declared, Class<?> type) {
+		if (!type.isInstance(value))
+			throw new IllegalArgumentException("field " + key + " is declared " + declared + " but holds " + value.getClass().getName());
+		return value;
+	}
+	
+	private static void checkDepth(int depth) {
+		if (depth == JSqBatch.MAX_DEPTH)
+			throw new IllegalArgumentException("value is nested too deep or contains itself");
+	}
+	
+	private void recordGet(int idx, Schema schema) {
+		int table = idx < 0 ? idx - 1 : idx; // below the pushed key
+		for (int i = 0; i < schema.m_keys.size(); i++) {
+			m_batch.pushString(schema.m_keys.get(i)).rawGet(table);
+			Schema nested = schema.m_nested.get(i);
+			if (nested != null)
+				recordGet(-1, nested);
+			else {
+				switch (schema.m_types.get(i)) {
+					case Integer: m_batch.getInteger(-1); break;
+					case Float: m_batch.getFloat(-1); break;
+					case Bool: m_batch.getBool(-1); break;
+					case String: m_batch.getString(-1); break;
+					default: m_batch.getValue(-1); break;
+				}
+			}
+			m_batch.pop(1);
+		}
+	}
+	
+	private Map<String, Object> readFields(Schema schema) {
+		int n = schema.m_keys.size();
+		Map<String, Object> map = new LinkedHashMap<String, Object>(n * 4 / 3 + 1);
+		for (int i = 0; i < n; i++) {
+			Schema nested = schema.m_nested.get(i);
+			Object value;
+			if (nested != null)
+				value = readFields(nested);
+			else {
+				switch (schema.m_types.get(i)) {
+					case Integer: value = m_batch.nextInteger(); break;
+					case Float: value = m_batch.nextFloat(); break;
+					case Bool: value = m_batch.nextBool(); break;
+					case String: value = m_batch.nextString(); break;
+					default: value = m_batch.nextValue(); break;
+				}
+			}
+			map.put(schema.m_keys.get(i), value);
+		}
+		return map;
+	}
+	
+}
@@ -0,0 +1,284 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Iterates over the entries of a table or array, created with {@link JSqVM#cursor(int)}.
+ * <br><br>
+ * Entries are copied out of the VM a chunk at a time with a single call each, instead of a call to sq_next and
+ * the getters for every entry. Nested tables and arrays are copied along with their entry. The keys and values of
+ * the current entry are read straight from the copied bytes, so reading numbers and bools allocates nothing.
+ * <pre>
+ * JSqCursor c = v.cursor(-1);
+ * while (c.next())
+ *     sum += c.getFloat();
+ * </pre>
+ * While the cursor still reads from the VM the table or array has to stay at its stack index unchanged.
+ * After {@link #fetchAll()} the cursor no longer touches the VM and {@link #trySplit()} can hand part of the
+ * entries to another cursor, to process them on several threads. A single cursor is not thread safe.
+ * @author Christopher Foster
+ */
+public final class JSqCursor {
+	
+	private final JSqVM m_vm;
+	private final int m_idx;
+	private final int m_chunkSize;
+	private final JSqBatch m_batch;
+	/** The copied entries, the result buffer of the batch until everything is fetched. */
+	private ByteBuffer m_buf;
+	/** The sq_next iterator to continue from, -1 once the VM has no more entries. */
+	private int m_iterator;
+	private int m_left;
+	private int m_next;
+	private int m_end;
+	/** The start of each entry once everything is fetched, the cursor covers those from m_index to m_end. */
+	private int[] m_offsets;
+	private int m_index;
+	private int m_key = -1;
+	private int m_value = -1;
+	
+	JSqCursor(JSqVM v, int idx, int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be at least 1");
+		m_vm = v;
+		m_idx = idx;
+		m_chunkSize = chunkSize;
+		m_batch = new JSqBatch(Math.min(chunkSize, 4096) * 16);
+		m_iterator = 0;
+	}
+	
+	private JSqCursor(JSqCursor from, int index, int end) {
+		m_vm = null;
+		m_idx = 0;
+		m_chunkSize = 0;
+		m_batch = null;
+		m_buf = from.m_buf;
+		m_iterator = -1;
+		m_offsets = from.m_offsets;
+		m_index = index;
+		m_end = end;
+	}
+	
+	/**
+	 * Moves to the next entry, copying the next chunk out of the VM if needed.
+	 * @return False once there are no more entries.
+	 * @throws IllegalStateException If the value at the stack index isn't a table or array, or it holds values
+	 * nested more than {@value JSqBatch#MAX_DEPTH} levels deep.
+	 */
+	public boolean next() {
+		if (m_offsets != null) {
+			if (m_index >= m_end)
+				return false;
+			m_key = m_offsets[m_index++];
+		}
+		else {
+			if (m_left == 0) {
+				if (m_iterator < 0)
+					return false;
+				fetch(m_chunkSize);
+				if (m_left == 0)
+					return false;
+			}
+			m_key = m_next;
+			m_left--;
+		}
+		m_value = JSqBatch.skipValue(m_buf, m_key);
+		m_next = JSqBatch.skipValue(m_buf, m_value);
+		return true;
+	}
+	
+	/**
+	 * Copies every entry that's left out of the VM, after which the cursor can be split.
+	 * @return This cursor.
+	 */
+	public JSqCursor fetchAll() {
+		if (m_offsets != null)
+			return this;
+		ByteBuffer rest = m_buf == null ? null : (ByteBuffer) ((Buffer) m_buf.duplicate()).limit(m_end).position(m_next);
+		int count = m_left;
+		if (m_iterator >= 0) {
+			ByteBuffer held = null;
+			if (rest != null) {
+				held = ByteBuffer.allocate(rest.remaining()).order(ByteOrder.nativeOrder());
+				((Buffer) held.put(rest)).flip();
+			}
+			fetch(Integer.MAX_VALUE);
+			ByteBuffer fetched = (ByteBuffer) ((Buffer) m_buf.duplicate()).limit(m_end).position(m_next);
+			rest = ByteBuffer.allocate((held == null ? 0 : held.remaining()) + fetched.remaining()).order(ByteOrder.nativeOrder());
+			if (held != null)
+				rest.put(held);
+			((Buffer) rest.put(fetched)).flip();
+			count += m_left;
+		}
+		else if (rest != null) {
+			ByteBuffer copy = ByteBuffer.allocate(rest.remaining()).order(ByteOrder.nativeOrder());
+			((Buffer) copy.put(rest)).flip();
+			rest = copy;
+		}
+		else
+			rest = ByteBuffer.allocate(0);
+		m_buf = rest;
+		m_offsets = new int[count];
+		for (int i = 0, pos = 0; i < count; i++) {
+			m_offsets[i] = pos;
+			pos = JSqBatch.skipValue(m_buf, JSqBatch.skipValue(m_buf, pos));
+		}
+		m_index = 0;
+		m_end = count;
+		m_left = 0;
+		return this;
+	}
+	
+	/**
+	 * Hands the second half of the remaining entries to a new cursor, once everything is fetched.
+	 * The two cursors share the copied entries and can be used on different threads.
+	 * @return The new cursor, or null if the entries aren't all fetched or fewer than two are left.
+	 */
+	public JSqCursor trySplit() {
+		if (m_offsets == null || m_end - m_index < 2)
+			return null;
+		int mid = (m_index + m_end) >>> 1;
+		JSqCursor split = new JSqCursor(this, mid, m_end);
+		m_end = mid;
+		return split;
+	}
+	
+	/**
+	 * @return The number of entries left once everything is fetched, or -1 before that.
+	 */
+	public int remaining() {
+		return m_offsets == null ? -1 : m_end - m_index;
+	}
+	
+	/**
+	 * @return The raw type of the key of the current entry, one of the {@link JSqObjectType} values.
+	 */
+	public int getKeyType() {
+		return m_buf.getInt(current(m_key));
+	}
+	
+	/**
+	 * @return The key of the current entry as an integer, which it always is for arrays.
+	 */
+	public int getKeyInt() {
+		return toInt(m_key);
+	}
+	
+	/**
+	 * @return The key of the current entry if it's a string, otherwise null.
+	 */
+	public String getKeyString() {
+		return toStringValue(m_key);
+	}
+	
+	/**
+	 * @return The key of the current entry, decoded as by {@link JSqBatch#nextValue()}.
+	 */
+	public Object getKey() {
+		return JSqBatch.readValue(m_buf, new int[] { current(m_key) });
+	}
+	
+	/**
+	 * @return The raw type of the value of the current entry, one of the {@link JSqObjectType} values.
+	 */
+	public int getType() {
+		return m_buf.getInt(current(m_value));
+	}
+	
+	/**
+	 * @return The value of the current entry converted to an integer, 0 if it isn't a number or bool.
+	 */
+	public int getInt() {
+		return toInt(m_value);
+	}
+	
+	/**
+	 * @return The value of the current entry converted to a float, 0 if it isn't a number or bool.
+	 */
+	public float getFloat() {
+		return Float.intBitsToFloat(JSqTypes.coerce(JSqTypes.OT_FLOAT, getType(), raw(m_value)));
+	}
+	
+	/**
+	 * @return False only if Squirrel considers the value of the current entry false.
+	 */
+	public boolean getBool() {
+		return JSqTypes.coerce(JSqTypes.OT_BOOL, getType(), raw(m_value)) != 0;
+	}
+	
+	/**
+	 * @return The value of the current entry if it's a string, otherwise null.
+	 */
+	public String getString() {
+		return toStringValue(m_value);
+	}
+	
+	/**
+	 * @return The value of the current entry, decoded as by {@link JSqBatch#nextValue()}.
+	 */
+	public Object getValue() {
+		return JSqBatch.readValue(m_buf, new int[] { current(m_value) });
+	}
+	
+	private void fetch(int count) {
+		m_batch.clear().nextChunk(m_idx, m_iterator, count);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_runbatch(m_vm, m_batch)))
+			throw new IllegalStateException("the value at " + m_idx + " isn't a table or array, or is nested too deep");
+		m_buf = m_batch.m_results;
+		m_iterator = m_buf.getInt(JSqBatch.RESULTS_START);
+		m_left = m_buf.getInt(JSqBatch.RESULTS_START + 4);
+		m_next = JSqBatch.RESULTS_START + 8;
+		m_end = m_buf.getInt(JSqBatch.STATE_RESULTS);
+	}
+	
+	private int current(int pos) {
+		if (pos < 0)
+			throw new IllegalStateException("there is no current entry");
+		return pos;
+	}
+	
+	/**
+	 * @return The raw value of an integer, float or bool, 0 for any other type.
+	 */
+	private int raw(int pos) {
+		int t = m_buf.getInt(current(pos));
+		return t == JSqTypes.OT_INTEGER || t == JSqTypes.OT_FLOAT || t == JSqTypes.OT_BOOL ? m_buf.getInt(pos + 4) : 0;
+	}
+	
+	private int toInt(int pos) {
+		return JSqTypes.coerce(JSqTypes.OT_INTEGER, m_buf.getInt(current(pos)), raw(pos));
+	}
+	
+	private String toStringValue(int pos) {
+		if (m_buf.getInt(current(pos)) != JSqTypes.OT_STRING)
+			return null;
+		return JSqBatch.readString(m_buf, pos + 4);
+	}
+	
+}
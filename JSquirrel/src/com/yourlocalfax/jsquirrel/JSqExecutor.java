@@ -0,0 +1,264 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs calls into Squirrel VMs on a pool of threads of its own and hands back their results as
+ * {@link CompletableFuture}s, so the submitting thread doesn't block for as long as a script runs. A group of VMs
+ * that belong together would share one executor.
+ * <br><br>
+ * Calls on the same VM, or on any of its friend threads, run one at a time in the order they were submitted. Each VM
+ * has a queue of its own, drained by a single task of the pool that runs the calls back to back as the owner of the
+ * VM, see {@link JSqOwner#execute(Runnable)}. If a thread outside of the executor holds the VM, that thread runs
+ * the queue once it releases the VM.
+ * <br><br>
+ * Cancelling a call that hasn't started keeps it from running. Cancelling a running call completes its future right
+ * away and asks the script to stop, the VM stays busy until the script notices or returns. The running thread is
+ * never interrupted, but the script gets the error {@value #CANCELLED}: on the {@link JSqBackend#Java Java}
+ * backend from the interpreter, which checks every {@value JSqBudget#SAMPLE} backward jumps and calls, on both
+ * backends from the next Java function ({@link JSqNativeFunction}) it calls, which fails instead of running. Either
+ * keeps failing until the call returns. A script on the native backend that calls no Java function runs to its end.
+ * @author Christopher Foster
+ */
+public final class JSqExecutor implements Closeable {
+	
+	/** The error raised in a script whose call was cancelled. */
+	public static final String CANCELLED = "the call was cancelled";
+	
+	private static final AtomicInteger s_nextId = new AtomicInteger();
+	
+	/**
+	 * Work done on a VM by the executor.
+	 */
+	public interface Job<T> {
+		/**
+		 * @param v The VM the job was submitted for, owned by the current thread.
+		 * @return The result of the call.
+		 * @throws JSquirrelException If the call failed.
+		 */
+		T run(JSqVM v) throws JSquirrelException;
+	}
+	
+	/**
+	 * A job queued on a VM together with the future that gets its result.
+	 */
+	static final class Call<T> implements Runnable {
+		
+		private final JSqVM m_vm;
+		private final Job<T> m_job;
+		private final CompletableFuture<T> m_future = new CompletableFuture<T>();
+		
+		Call(JSqVM v, Job<T> job) {
+			m_vm = v;
+			m_job = job;
+		}
+		
+		boolean isCancelled() {
+			return m_future.isCancelled();
+		}
+		
+		@Override
+		public void run() {
+			// A call cancelled before it started doesn't run
+			if (m_future.isDone())
+				return;
+			JSqOwner owner = m_vm.m_owner;
+			Call<?> outer = owner.m_call;
+			owner.m_call = this;
+			JSqInterpreter interp = m_vm.m_interp;
+			if (interp != null && interp.m_steps > JSqBudget.SAMPLE)
+				interp.m_steps = JSqBudget.SAMPLE;
+			try {
+				m_future.complete(m_job.run(m_vm));
+			}
+			catch (Throwable t) {
+				m_future.completeExceptionally(t);
+			}
+			finally {
+				owner.m_call = outer;
+			}
+		}
+		
+	}
+	
+	private final ThreadPoolExecutor m_pool;
+	/** The calls waiting on each VM, a VM is only in here while a task draining its queue is pending or running. Guarded by itself. */
+	private final Map<JSqOwner, ArrayDeque<Call<?>>> m_queues = new HashMap<JSqOwner, ArrayDeque<Call<?>>>();
+	private boolean m_closed;
+	
+	/**
+	 * @param name The prefix of the names of the threads.
+	 * @param threads The number of threads, the largest number of VMs running at the same time.
+	 */
+	public JSqExecutor(String name, int threads) {
+		final String prefix = name + "-" + s_nextId.incrementAndGet() + "-";
+		m_pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			
+			private final AtomicInteger m_count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + m_count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+			
+		});
+	}
+	
+	/**
+	 * Runs {@code job} on {@code v} after the calls submitted for it before.
+	 * @return The result of the job, a {@link JSquirrelException} it throws completes the future exceptionally.
+	 * @throws java.util.concurrent.RejectedExecutionException If the executor is closed.
+	 */
+	public <T> CompletableFuture<T> submit(JSqVM v, Job<T> job) {
+		Call<T> call = new Call<T>(v, job);
+		final JSqOwner owner = v.m_owner;
+		synchronized (m_queues) {
+			if (m_closed)
+				throw new RejectedExecutionException("The executor is closed.");
+			ArrayDeque<Call<?>> queue = m_queues.get(owner);
+			if (queue != null) {
+				queue.add(call);
+				return call.m_future;
+			}
+			queue = new ArrayDeque<Call<?>>();
+			queue.add(call);
+			m_queues.put(owner, queue);
+			m_pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					owner.execute(new Runnable() {
+						@Override
+						public void run() {
+							drain(owner);
+						}
+					});
+				}
+			});
+		}
+		return call.m_future;
+	}
+	
+	/**
+	 * Runs the calls queued on a VM until its queue is empty, as the owner of the VM.
+	 */
+	private void drain(JSqOwner owner) {
+		while (true) {
+			Call<?> call;
+			synchronized (m_queues) {
+				ArrayDeque<Call<?>> queue = m_queues.get(owner);
+				call = queue.poll();
+				if (call == null) {
+					m_queues.remove(owner);
+					return;
+				}
+			}
+			call.run();
+		}
+	}
+	
+	/**
+	 * Calls the function {@code name} of the root table with the root table as {@code this}.
+	 * @param args Arguments converted as {@link JSqConverter} converts them.
+	 * @return The return value as read by {@link JSqConverter#get(JSqVM, int)}.
+	 * @throws java.util.concurrent.RejectedExecutionException If the executor is closed.
+	 */
+	public CompletableFuture<Object> call(JSqVM v, final String name, final Object... args) {
+		return submit(v, new Job<Object>() {
+			
+			private final JSqConverter m_converter = new JSqConverter();
+			
+			@Override
+			public Object run(JSqVM v) throws JSquirrelException {
+				int top = Squirrel.sq_gettop(v);
+				try {
+					Squirrel.sq_pushroottable(v);
+					Squirrel.sq_pushstring(v, name);
+					if (Squirrel.SQ_FAILED(Squirrel.sq_get(v, -2)))
+						throw new JSquirrelException("The function " + name + " is not bound.");
+					Squirrel.sq_pushroottable(v);
+					for (Object o : args)
+						if (Squirrel.SQ_FAILED(m_converter.push(v, o)))
+							throw new JSquirrelException("Could not push an argument of " + name + ".");
+					if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, args.length + 1, true, true))) {
+						Squirrel.sq_getlasterror(v);
+						String error = v.getType(-1) == JSqTypes.OT_STRING ? v.getString(-1) : null;
+						throw new JSquirrelException(error != null ? "The call to " + name + " failed: " + error : "The call to " + name + " failed.");
+					}
+					return m_converter.get(v, -1);
+				}
+				finally {
+					Squirrel.sq_settop(v, top);
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * @return The number of calls that haven't started yet.
+	 */
+	public int getQueueSize() {
+		int size = 0;
+		synchronized (m_queues) {
+			for (ArrayDeque<Call<?>> queue : m_queues.values())
+				size += queue.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Stops taking calls, the calls already submitted still run.
+	 */
+	@Override
+	public void close() {
+		synchronized (m_queues) {
+			m_closed = true;
+			m_pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Waits for the calls submitted before {@link #close()} to run.
+	 * @return False if the timeout passed first.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return m_pool.awaitTermination(timeout, unit);
+	}
+	
+}
@@ -0,0 +1,501 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqOpcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A port of SQFuncState (sqfuncstate.cpp), the per function code emitter used by {@link JSqCompiler}.
+ * <br><br>
+ * Instructions pass through the same peephole optimizer the native compiler uses so the
+ * generated prototypes match the native ones instruction for instruction.
+ * @author Christopher Foster
+ */
+final class JSqFuncState {
+	
+	/**
+	 * A growable stack of ints, used for the target stack and the break/continue bookkeeping.
+	 */
+	static final class IntStack {
+		
+		int[] m_data = new int[16];
+		int m_size;
+		
+		void push(int v) {
+			if (m_size == m_data.length) {
+				int[] data = new int[m_size << 1];
+				System.arraycopy(m_data, 0, data, 0, m_size);
+				m_data = data;
+			}
+			m_data[m_size++] = v;
+		}
+		
+		int pop() {
+			return m_data[--m_size];
+		}
+		
+		int top() {
+			return m_data[m_size - 1];
+		}
+		
+		void setTop(int v) {
+			m_data[m_size - 1] = v;
+		}
+		
+		int size() {
+			return m_size;
+		}
+		
+	}
+	
+	private static final int MAX_LITERALS = 0x7FFFFFFF;
+	
+	final JSqFuncState m_parent;
+	final JSqLexer m_lex;
+	
+	String m_name, m_sourceName;
+	
+	long[] m_instructions = new long[32];
+	int m_ninstructions;
+	
+	private final HashMap<Object, Integer> m_literalIndex = new HashMap<Object, Integer>();
+	private final ArrayList<Object> m_literals = new ArrayList<Object>();
+	
+	final ArrayList<JSqFunctionProto> m_functions = new ArrayList<JSqFunctionProto>();
+	private final ArrayList<String> m_parameters = new ArrayList<String>();
+	
+	private final ArrayList<String> m_outerNames = new ArrayList<String>();
+	private final IntStack m_outerTypes = new IntStack(), m_outerSources = new IntStack();
+	
+	private final ArrayList<String> m_localInfoNames = new ArrayList<String>();
+	private final IntStack m_localInfoPos = new IntStack(), m_localInfoStart = new IntStack(), m_localInfoEnd = new IntStack();
+	
+	private final IntStack m_lineLines = new IntStack(), m_lineOps = new IntStack();
+	private final IntStack m_defaultParams = new IntStack();
+	
+	// the virtual stack, a null name marks a temporary
+	private String[] m_vlocalNames = new String[32];
+	private int[] m_vlocalStart = new int[32], m_vlocalEnd = new int[32];
+	private int m_vlocals;
+	
+	final IntStack m_targetStack = new IntStack();
+	final IntStack m_unresolvedBreaks = new IntStack(), m_unresolvedContinues = new IntStack();
+	final IntStack m_breakTargets = new IntStack(), m_continueTargets = new IntStack();
+	
+	int m_stackSize;
+	boolean m_varParams, m_generator;
+	int m_outers, m_traps, m_returnExp, m_lastLine;
+	private boolean m_optimization = true;
+	
+	JSqFuncState(JSqFuncState parent, JSqLexer lex) {
+		m_parent = parent;
+		m_lex = lex;
+	}
+	
+	JSqCompilerException error(String message) {
+		return m_lex.error(message);
+	}
+	
+	int getCurrentPos() {
+		return m_ninstructions - 1;
+	}
+	
+	long getInstruction(int pos) {
+		return m_instructions[pos];
+	}
+	
+	void popInstructions(int size) {
+		m_ninstructions -= size;
+	}
+	
+	int getConstant(Object cons) throws JSqCompilerException {
+		Integer val = m_literalIndex.get(cons);
+		if (val == null) {
+			if (m_literals.size() == MAX_LITERALS)
+				throw error("internal compiler error: too many literals");
+			val = m_literals.size();
+			m_literalIndex.put(cons, val);
+			m_literals.add(cons);
+		}
+		return val;
+	}
+	
+	void setInstructionParams(int pos, int arg0, int arg1, int arg2, int arg3) {
+		m_instructions[pos] = make(op(m_instructions[pos]), arg0, arg1, arg2, arg3);
+	}
+	
+	void setInstructionParam(int pos, int arg, int val) {
+		long i = m_instructions[pos];
+		switch (arg) {
+			case 0: i = withArg0(i, val); break;
+			case 1: case 4: i = withArg1(i, val); break;
+			case 2: i = withArg2(i, val); break;
+			case 3: i = withArg3(i, val); break;
+		}
+		m_instructions[pos] = i;
+	}
+	
+	int allocStackPos() throws JSqCompilerException {
+		int npos = m_vlocals;
+		pushVLocal(null);
+		if (m_vlocals > m_stackSize) {
+			if (m_stackSize > MAX_FUNC_STACKSIZE)
+				throw error("internal compiler error: too many locals");
+			m_stackSize = m_vlocals;
+		}
+		return npos;
+	}
+	
+	int pushTarget(int n) throws JSqCompilerException {
+		if (n != -1) {
+			m_targetStack.push(n);
+			return n;
+		}
+		n = allocStackPos();
+		m_targetStack.push(n);
+		return n;
+	}
+	
+	int pushTarget() throws JSqCompilerException {
+		return pushTarget(-1);
+	}
+	
+	int getUpTarget(int n) {
+		return m_targetStack.m_data[m_targetStack.m_size - 1 - n];
+	}
+	
+	int topTarget() {
+		return m_targetStack.top();
+	}
+	
+	int popTarget() {
+		int npos = m_targetStack.pop();
+		if (m_vlocalNames[npos] == null)
+			m_vlocals--;
+		return npos;
+	}
+	
+	int getStackSize() {
+		return m_vlocals;
+	}
+	
+	int countOuters(int stackSize) {
+		int outers = 0;
+		for (int k = m_vlocals - 1; k >= stackSize; k--)
+			if (m_vlocalNames[k] != null && m_vlocalEnd[k] == -1)
+				outers++;
+		return outers;
+	}
+	
+	void setStackSize(int n) {
+		while (m_vlocals > n) {
+			m_vlocals--;
+			String name = m_vlocalNames[m_vlocals];
+			if (name != null) {
+				if (m_vlocalEnd[m_vlocals] == -1)
+					m_outers--;
+				m_localInfoNames.add(name);
+				m_localInfoPos.push(m_vlocals);
+				m_localInfoStart.push(m_vlocalStart[m_vlocals]);
+				m_localInfoEnd.push(getCurrentPos());
+			}
+		}
+	}
+	
+	boolean isLocal(int stkpos) {
+		return stkpos < m_vlocals && m_vlocalNames[stkpos] != null;
+	}
+	
+	int pushLocalVariable(String name) {
+		int pos = m_vlocals;
+		pushVLocal(name);
+		m_vlocalStart[pos] = getCurrentPos() + 1;
+		if (m_vlocals > m_stackSize)
+			m_stackSize = m_vlocals;
+		return pos;
+	}
+	
+	private void pushVLocal(String name) {
+		if (m_vlocals == m_vlocalNames.length) {
+			int n = m_vlocals << 1;
+			String[] names = new String[n];
+			int[] start = new int[n], end = new int[n];
+			System.arraycopy(m_vlocalNames, 0, names, 0, m_vlocals);
+			System.arraycopy(m_vlocalStart, 0, start, 0, m_vlocals);
+			System.arraycopy(m_vlocalEnd, 0, end, 0, m_vlocals);
+			m_vlocalNames = names;
+			m_vlocalStart = start;
+			m_vlocalEnd = end;
+		}
+		m_vlocalNames[m_vlocals] = name;
+		m_vlocalStart[m_vlocals] = 0;
+		m_vlocalEnd[m_vlocals] = 0;
+		m_vlocals++;
+	}
+	
+	int getLocalVariable(String name) {
+		for (int locals = m_vlocals; locals >= 1; locals--) {
+			String n = m_vlocalNames[locals - 1];
+			if (n != null && n.equals(name))
+				return locals - 1;
+		}
+		return -1;
+	}
+	
+	void markLocalAsOuter(int pos) {
+		m_vlocalEnd[pos] = -1;
+		m_outers++;
+	}
+	
+	int getOuterVariable(String name) {
+		int outers = m_outerNames.size();
+		for (int i = 0; i < outers; i++)
+			if (m_outerNames.get(i).equals(name))
+				return i;
+		if (m_parent != null) {
+			int pos = m_parent.getLocalVariable(name);
+			if (pos == -1) {
+				pos = m_parent.getOuterVariable(name);
+				if (pos != -1) {
+					addOuter(name, pos, JSqFunctionProto.OUTER_OUTER);
+					return m_outerNames.size() - 1;
+				}
+			}
+			else {
+				m_parent.markLocalAsOuter(pos);
+				addOuter(name, pos, JSqFunctionProto.OUTER_LOCAL);
+				return m_outerNames.size() - 1;
+			}
+		}
+		return -1;
+	}
+	
+	private void addOuter(String name, int src, int type) {
+		m_outerNames.add(name);
+		m_outerSources.push(src);
+		m_outerTypes.push(type);
+	}
+	
+	void addParameter(String name) {
+		pushLocalVariable(name);
+		m_parameters.add(name);
+	}
+	
+	void addDefaultParam(int trg) {
+		m_defaultParams.push(trg);
+	}
+	
+	int getParameterCount() {
+		return m_parameters.size();
+	}
+	
+	void addLineInfos(int line, boolean lineop, boolean force) {
+		if (m_lastLine != line || force) {
+			int op = getCurrentPos() + 1;
+			if (lineop)
+				addInstruction(OP_LINE, 0, line, 0, 0);
+			if (m_lastLine != line) {
+				m_lineLines.push(line);
+				m_lineOps.push(op);
+			}
+			m_lastLine = line;
+		}
+	}
+	
+	void discardTarget() {
+		int discardedTarget = popTarget();
+		int size = m_ninstructions;
+		if (size > 0 && m_optimization) {
+			long pi = m_instructions[size - 1];
+			switch (op(pi)) {
+				case OP_SET: case OP_NEWSLOT: case OP_SETOUTER: case OP_CALL:
+					if (arg0(pi) == discardedTarget)
+						m_instructions[size - 1] = withArg0(pi, 0xFF);
+			}
+		}
+	}
+	
+	void snoozeOpt() {
+		m_optimization = false;
+	}
+	
+	void addInstruction(int op, int arg0) {
+		addInstruction(make(op, arg0, 0, 0, 0));
+	}
+	
+	void addInstruction(int op, int arg0, int arg1) {
+		addInstruction(make(op, arg0, arg1, 0, 0));
+	}
+	
+	void addInstruction(int op, int arg0, int arg1, int arg2) {
+		addInstruction(make(op, arg0, arg1, arg2, 0));
+	}
+	
+	void addInstruction(int op, int arg0, int arg1, int arg2, int arg3) {
+		addInstruction(make(op, arg0, arg1, arg2, arg3));
+	}
+	
+	void addInstruction(long i) {
+		int size = m_ninstructions;
+		if (size > 0 && m_optimization) {
+			int last = size - 1;
+			long pi = m_instructions[last];
+			switch (op(i)) {
+				case OP_JZ:
+					if (op(pi) == OP_CMP && arg1(pi) < 0xFF) {
+						m_instructions[last] = make(OP_JCMP, arg1(pi), arg1(i), arg2(pi), arg3(pi));
+						return;
+					}
+					break;
+				case OP_SET:
+				case OP_NEWSLOT:
+					if (arg0(i) == arg3(i))
+						i = withArg0(i, 0xFF);
+					break;
+				case OP_SETOUTER:
+					if (arg0(i) == arg2(i))
+						i = withArg0(i, 0xFF);
+					break;
+				case OP_RETURN:
+					if (m_parent != null && arg0(i) != MAX_FUNC_STACKSIZE && op(pi) == OP_CALL && m_returnExp < size - 1) {
+						m_instructions[last] = withOp(pi, OP_TAILCALL);
+					}
+					else if (op(pi) == OP_CLOSE) {
+						m_instructions[last] = i;
+						return;
+					}
+					break;
+				case OP_GET:
+					if (op(pi) == OP_LOAD && arg0(pi) == arg2(i) && !isLocal(arg0(pi))) {
+						m_instructions[last] = make(OP_GETK, arg0(i), arg1(pi), arg1(i), arg3(pi));
+						return;
+					}
+					break;
+				case OP_PREPCALL:
+					if (op(pi) == OP_LOAD && arg0(pi) == arg1(i) && !isLocal(arg0(pi))) {
+						m_instructions[last] = make(OP_PREPCALLK, arg0(i), arg1(pi), arg2(i), arg3(i));
+						return;
+					}
+					break;
+				case OP_APPENDARRAY: {
+					int aat = -1;
+					switch (op(pi)) {
+						case OP_LOAD: aat = AAT_LITERAL; break;
+						case OP_LOADINT: aat = AAT_INT; break;
+						case OP_LOADBOOL: aat = AAT_BOOL; break;
+						case OP_LOADFLOAT: aat = AAT_FLOAT; break;
+					}
+					if (aat != -1 && arg0(pi) == arg1(i) && !isLocal(arg0(pi))) {
+						m_instructions[last] = make(OP_APPENDARRAY, arg0(i), arg1(pi), aat, MAX_FUNC_STACKSIZE);
+						return;
+					}
+					break;
+				}
+				case OP_MOVE:
+					switch (op(pi)) {
+						case OP_GET: case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_BITW:
+						case OP_LOADINT: case OP_LOADFLOAT: case OP_LOADBOOL: case OP_LOAD:
+							if (arg0(pi) == arg1(i)) {
+								m_instructions[last] = withArg0(pi, arg0(i));
+								m_optimization = false;
+								return;
+							}
+					}
+					if (op(pi) == OP_MOVE) {
+						m_instructions[last] = make(OP_DMOVE, arg0(pi), arg1(pi), arg0(i), arg1(i));
+						return;
+					}
+					break;
+				case OP_LOAD:
+					if (op(pi) == OP_LOAD && arg1(i) < 256) {
+						m_instructions[last] = make(OP_DLOAD, arg0(pi), arg1(pi), arg0(i), arg1(i));
+						return;
+					}
+					break;
+				case OP_EQ: case OP_NE:
+					if (op(pi) == OP_LOAD && arg0(pi) == arg1(i) && !isLocal(arg0(pi))) {
+						m_instructions[last] = make(op(i), arg0(i), arg1(pi), arg2(i), MAX_FUNC_STACKSIZE);
+						return;
+					}
+					break;
+				case OP_LOADNULLS:
+					if (op(pi) == OP_LOADNULLS && arg0(pi) + arg1(pi) == arg0(i)) {
+						m_instructions[last] = withArg1(pi, arg1(pi) + 1);
+						return;
+					}
+					break;
+				case OP_LINE:
+					if (op(pi) == OP_LINE) {
+						m_ninstructions--;
+						m_lineLines.pop();
+						m_lineOps.pop();
+					}
+					break;
+			}
+		}
+		m_optimization = true;
+		if (m_ninstructions == m_instructions.length) {
+			long[] instructions = new long[m_ninstructions << 1];
+			System.arraycopy(m_instructions, 0, instructions, 0, m_ninstructions);
+			m_instructions = instructions;
+		}
+		m_instructions[m_ninstructions++] = i;
+	}
+	
+	JSqFunctionProto buildProto() {
+		JSqFunctionProto f = new JSqFunctionProto();
+		f.m_sourceName = m_sourceName;
+		f.m_name = m_name;
+		f.m_literals = m_literals.toArray();
+		f.m_parameters = m_parameters.toArray(new String[m_parameters.size()]);
+		f.m_outerNames = m_outerNames.toArray(new String[m_outerNames.size()]);
+		f.m_outerTypes = copy(m_outerTypes);
+		f.m_outerSources = copy(m_outerSources);
+		f.m_localNames = m_localInfoNames.toArray(new String[m_localInfoNames.size()]);
+		f.m_localPositions = copy(m_localInfoPos);
+		f.m_localStartOps = copy(m_localInfoStart);
+		f.m_localEndOps = copy(m_localInfoEnd);
+		f.m_lineLines = copy(m_lineLines);
+		f.m_lineOps = copy(m_lineOps);
+		f.m_defaultParams = copy(m_defaultParams);
+		f.m_instructions = new long[m_ninstructions];
+		System.arraycopy(m_instructions, 0, f.m_instructions, 0, m_ninstructions);
+		f.m_functions = m_functions.toArray(new JSqFunctionProto[m_functions.size()]);
+		f.m_stackSize = m_stackSize;
+		f.m_generator = m_generator;
+		f.m_varParams = m_varParams;
+		return f;
+	}
+	
+	private static int[] copy(IntStack s) {
+		int[] a = new int[s.m_size];
+		System.arraycopy(s.m_data, 0, a, 0, s.m_size);
+		return a;
+	}
+	
+}
@@ -0,0 +1,235 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A call site for a function in the root table. The closure is resolved once and held as a {@link JSqObject},
+ * and each {@code invoke} runs the lookup, the arguments, the call and reading the result as one {@link JSqBatch},
+ * so a call from a native VM costs a single call into the VM instead of one per step.
+ * <br><br>
+ * Every call checks that the root table slot still holds the same closure. If a script or a reload bound the name
+ * to another function, that function is taken, held instead and called, see {@link #getRebinds()}.
+ * <br><br>
+ * A call site belongs to the VM it was created with and reuses its batch, so it is not thread safe.
+ * <pre>
+ * JSqFunction update = new JSqFunction(v, "update");
+ * int frame = update.invoke(16, 9);
+ * </pre>
+ * @author Christopher Foster
+ */
+public final class JSqFunction {
+	
+	// Operations of the batch that can fail before the call
+	private static final int OP_GET = 2;
+	private static final int OP_SAMEOBJECT = 3;
+	
+	private final JSqVM m_vm;
+	private final String m_name;
+	private JSqObject m_closure;
+	private int m_rebinds;
+	
+	private final JSqBatch m_batch = new JSqBatch(256);
+	/** The push operation and the number of arguments the batch is recorded for, -1 if it has to be recorded again. */
+	private int m_argOp = -1;
+	private int m_argCount = -1;
+	private int m_argsPosition;
+	
+	/**
+	 * Resolves the function {@code name} of the root table of {@code v}.
+	 * @throws JSquirrelException If the root table has no slot {@code name}.
+	 */
+	public JSqFunction(JSqVM v, String name) throws JSquirrelException {
+		m_vm = v;
+		m_name = name;
+		int top = Squirrel.sq_gettop(v);
+		try {
+			Squirrel.sq_pushroottable(v);
+			Squirrel.sq_pushstring(v, name);
+			if (Squirrel.SQ_FAILED(Squirrel.sq_get(v, -2)))
+				throw new JSquirrelException("The function " + name + " is not bound.");
+			m_closure = Squirrel.sq_getstackobj(v, -1);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	public String getName() {
+		return m_name;
+	}
+	
+	/**
+	 * @return How many times the name was found bound to another function and the call site followed it.
+	 */
+	public int getRebinds() {
+		return m_rebinds;
+	}
+	
+	/**
+	 * Pushes the held closure, as it was at the last call.
+	 */
+	public void push() {
+		Squirrel.sq_pushobject(m_vm, m_closure);
+	}
+	
+	/**
+	 * Calls the function with the root table as {@code this} and integer arguments.
+	 * @return The result as an integer.
+	 * @throws JSquirrelException If the name isn't bound anymore or the call failed.
+	 */
+	public int invoke(int... args) throws JSquirrelException {
+		m_vm.checkOwner();
+		record(JSqBatch.PUSHINTEGER, args.length);
+		putArgs(args);
+		if (!run()) {
+			record(JSqBatch.PUSHINTEGER, args.length);
+			putArgs(args);
+			if (!run())
+				throw new JSquirrelException("The function " + m_name + " changed while it was called.");
+		}
+		return m_batch.nextInteger();
+	}
+	
+	/**
+	 * Calls the function with the root table as {@code this} and float arguments, narrowed to the 32 bits of a
+	 * Squirrel float.
+	 * @return The result as a float.
+	 * @throws JSquirrelException If the name isn't bound anymore or the call failed.
+	 */
+	public double invoke(double... args) throws JSquirrelException {
+		m_vm.checkOwner();
+		record(JSqBatch.PUSHFLOAT, args.length);
+		putArgs(args);
+		if (!run()) {
+			record(JSqBatch.PUSHFLOAT, args.length);
+			putArgs(args);
+			if (!run())
+				throw new JSquirrelException("The function " + m_name + " changed while it was called.");
+		}
+		return m_batch.nextFloat();
+	}
+	
+	/**
+	 * Calls the function with the root table as {@code this} and arguments converted by {@link JSqConverter}.
+	 * The batch is recorded again for every call. The result is left on top of the stack, above the root table
+	 * and the closure.
+	 * @throws JSquirrelException If the name isn't bound anymore or the call failed.
+	 * @throws IllegalArgumentException If an argument can't be converted.
+	 */
+	void call(Object[] args) throws JSquirrelException {
+		m_vm.checkOwner();
+		recordValues(args);
+		if (!run()) {
+			recordValues(args);
+			if (!run())
+				throw new JSquirrelException("The function " + m_name + " changed while it was called.");
+		}
+	}
+	
+	private void recordValues(Object[] args) {
+		m_argOp = -1;
+		m_batch.clear().pushRootTable().pushString(m_name).get(-2).sameObject(-1, m_closure).push(-2);
+		for (Object o : args)
+			JSqConverter.record(m_batch, o, 0);
+		m_batch.call(args.length + 1, true, true);
+	}
+	
+	private void putArgs(int[] args) {
+		ByteBuffer commands = m_batch.m_commands;
+		for (int i = 0; i < args.length; i++)
+			commands.putInt(m_argsPosition + (i << 3) + 4, args[i]);
+	}
+	
+	private void putArgs(double[] args) {
+		ByteBuffer commands = m_batch.m_commands;
+		for (int i = 0; i < args.length; i++)
+			commands.putInt(m_argsPosition + (i << 3) + 4, Float.floatToRawIntBits((float) args[i]));
+	}
+	
+	/**
+	 * Records the batch for a call with {@code count} arguments pushed by {@code argOp}, unless it already is.
+	 * The arguments are recorded as zeros and patched in place before each run.
+	 */
+	private void record(int argOp, int count) {
+		if (argOp == m_argOp && count == m_argCount)
+			return;
+		m_batch.clear().pushRootTable().pushString(m_name).get(-2).sameObject(-1, m_closure).push(-2);
+		m_argsPosition = m_batch.m_commands.position();
+		for (int i = 0; i < count; i++) {
+			if (argOp == JSqBatch.PUSHINTEGER)
+				m_batch.pushInteger(0);
+			else
+				m_batch.pushFloat(0);
+		}
+		m_batch.call(count + 1, true, true);
+		if (argOp == JSqBatch.PUSHINTEGER)
+			m_batch.getInteger(-1);
+		else
+			m_batch.getFloat(-1);
+		m_batch.pop(3);
+		m_argOp = argOp;
+		m_argCount = count;
+	}
+	
+	/**
+	 * @return True if the call was made, false if the name was bound to another function, which is held from now on.
+	 * @throws JSquirrelException If the name isn't bound anymore or the call failed.
+	 */
+	private boolean run() throws JSquirrelException {
+		JSqVM v = m_vm;
+		int top = Squirrel.sq_gettop(v);
+		if (Squirrel.SQ_SUCCEDED(Squirrel.sq_runbatch(v, m_batch)))
+			return true;
+		try {
+			int failed = m_batch.getFailedOperation();
+			if (failed == OP_SAMEOBJECT) {
+				JSqObject old = m_closure;
+				m_closure = Squirrel.sq_getstackobj(v, -1);
+				Squirrel.sq_release(v, old);
+				m_rebinds++;
+				m_argOp = -1;
+				return false;
+			}
+			if (failed == OP_GET)
+				throw new JSquirrelException("The function " + m_name + " is not bound.");
+			Squirrel.sq_getlasterror(v);
+			String error = v.getType(-1) == JSqTypes.OT_STRING ? v.getString(-1) : null;
+			throw new JSquirrelException(error != null ? "The call to " + m_name + " failed: " + error : "The call to " + m_name + " failed.");
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	/**
+	 * Gives back the held closure, the call site can't be used afterwards.
+	 */
+	public void release() {
+		Squirrel.sq_release(m_vm, m_closure);
+	}
+	
+}
@@ -0,0 +1,258 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.PrintStream;
+
+/**
+ * A compiled Squirrel function prototype, the Java counterpart of SQFunctionProto.
+ * <br><br>
+ * Instructions are kept packed in a {@code long[]} in the native SQInstruction layout, see {@link #getInstruction(int)}.
+ * Literals are {@link String}, {@link Integer} or {@link Float} objects.
+ * Outer values, local variable infos and line infos are stored as parallel arrays.
+ * @author Christopher Foster
+ */
+public class JSqFunctionProto {
+	
+	public static final int OUTER_LOCAL = 0;
+	public static final int OUTER_OUTER = 1;
+	
+	String m_sourceName, m_name;
+	
+	Object[] m_literals;
+	String[] m_parameters;
+	
+	int[] m_outerTypes, m_outerSources;
+	String[] m_outerNames;
+	
+	String[] m_localNames;
+	int[] m_localPositions, m_localStartOps, m_localEndOps;
+	
+	int[] m_lineLines, m_lineOps;
+	
+	int[] m_defaultParams;
+	long[] m_instructions;
+	JSqFunctionProto[] m_functions;
+	
+	int m_stackSize;
+	boolean m_generator, m_varParams;
+	
+	/** The literals as tagged values for the Java backend, built on first use. */
+	int[] m_literalTypes, m_literalValues;
+	Object[] m_literalRefs;
+	
+	JSqFunctionProto() {
+	}
+	
+	void prepareLiterals() {
+		if (m_literalTypes != null && m_literalValues != null && m_literalRefs != null)
+			return;
+		int n = m_literals.length;
+		int[] types = new int[n];
+		int[] values = new int[n];
+		Object[] refs = new Object[n];
+		for (int i = 0; i < n; i++) {
+			Object o = m_literals[i];
+			types[i] = JSqSharedState.constType(o);
+			values[i] = JSqSharedState.constValue(o);
+			refs[i] = o instanceof String ? o : null;
+		}
+		m_literalTypes = types;
+		m_literalValues = values;
+		m_literalRefs = refs;
+	}
+	
+	public String getSourceName() {
+		return m_sourceName;
+	}
+	
+	public String getName() {
+		return m_name;
+	}
+	
+	public int getLiteralCount() {
+		return m_literals.length;
+	}
+	
+	public Object getLiteral(int idx) {
+		return m_literals[idx];
+	}
+	
+	public int getParameterCount() {
+		return m_parameters.length;
+	}
+	
+	public String getParameter(int idx) {
+		return m_parameters[idx];
+	}
+	
+	public int getOuterCount() {
+		return m_outerNames.length;
+	}
+	
+	/**
+	 * @param idx
+	 * @return {@link #OUTER_LOCAL} if the outer is a local of the enclosing function, {@link #OUTER_OUTER} if it is an outer of it.
+	 */
+	public int getOuterType(int idx) {
+		return m_outerTypes[idx];
+	}
+	
+	public int getOuterSource(int idx) {
+		return m_outerSources[idx];
+	}
+	
+	public String getOuterName(int idx) {
+		return m_outerNames[idx];
+	}
+	
+	public int getLocalVarInfoCount() {
+		return m_localNames.length;
+	}
+	
+	public String getLocalName(int idx) {
+		return m_localNames[idx];
+	}
+	
+	public int getLocalPosition(int idx) {
+		return m_localPositions[idx];
+	}
+	
+	public int getLocalStartOp(int idx) {
+		return m_localStartOps[idx];
+	}
+	
+	public int getLocalEndOp(int idx) {
+		return m_localEndOps[idx];
+	}
+	
+	public int getLineInfoCount() {
+		return m_lineLines.length;
+	}
+	
+	public int getLineInfoLine(int idx) {
+		return m_lineLines[idx];
+	}
+	
+	public int getLineInfoOp(int idx) {
+		return m_lineOps[idx];
+	}
+	
+	public int getDefaultParamCount() {
+		return m_defaultParams.length;
+	}
+	
+	public int getDefaultParam(int idx) {
+		return m_defaultParams[idx];
+	}
+	
+	public int getInstructionCount() {
+		return m_instructions.length;
+	}
+	
+	/**
+	 * Returns an instruction in the native SQInstruction memory layout:
+	 * {@code _arg1} in the low 32 bits followed by {@code op}, {@code _arg0}, {@code _arg2} and {@code _arg3}.
+	 * @param idx
+	 * @return The packed instruction.
+	 */
+	public long getInstruction(int idx) {
+		return m_instructions[idx];
+	}
+	
+	public int getFunctionCount() {
+		return m_functions.length;
+	}
+	
+	public JSqFunctionProto getFunction(int idx) {
+		return m_functions[idx];
+	}
+	
+	public int getStackSize() {
+		return m_stackSize;
+	}
+	
+	public boolean isGenerator() {
+		return m_generator;
+	}
+	
+	public boolean hasVarParams() {
+		return m_varParams;
+	}
+	
+	/**
+	 * @param op The index of an instruction.
+	 * @return The source line the instruction was generated from, or -1 if there is no line info.
+	 */
+	public int getLine(int op) {
+		int line = -1;
+		for (int i = 0; i < m_lineOps.length && m_lineOps[i] <= op; i++)
+			line = m_lineLines[i];
+		return line;
+	}
+	
+	/**
+	 * Prints the prototype and its children in the format of the native _DEBUG_DUMP output.
+	 * @param out
+	 */
+	public void dump(PrintStream out) {
+		out.println("--------------------------------------------------------------------");
+		out.println("SOURCE NAME: " + m_sourceName);
+		out.println("FUNCTION NAME: " + m_name);
+		out.println("-----LITERALS");
+		for (int i = 0; i < m_literals.length; i++)
+			out.println("[" + i + "] " + literalToString(m_literals[i]));
+		out.println("-----PARAMS");
+		if (m_varParams)
+			out.println("<<VARPARAMS>>");
+		for (int i = 0; i < m_parameters.length; i++)
+			out.println("[" + i + "] " + m_parameters[i]);
+		out.println("-----LOCALS");
+		for (int i = 0; i < m_localNames.length; i++)
+			out.println("[" + m_localPositions[i] + "] " + m_localNames[i] + " \t" + m_localStartOps[i] + " " + m_localEndOps[i]);
+		out.println("-----LINE INFO");
+		for (int i = 0; i < m_lineLines.length; i++)
+			out.println("op [" + m_lineOps[i] + "] line [" + m_lineLines[i] + "] ");
+		out.println("-----dump");
+		for (int i = 0; i < m_instructions.length; i++) {
+			long inst = m_instructions[i];
+			out.println("[" + (i < 10 ? "0" : "") + i + "] " + JSqOpcodes.NAMES[JSqOpcodes.op(inst)]
+					+ " " + JSqOpcodes.arg0(inst) + " " + JSqOpcodes.arg1(inst)
+					+ " " + JSqOpcodes.arg2(inst) + " " + JSqOpcodes.arg3(inst));
+		}
+		out.println("-----");
+		out.println("stack size[" + m_stackSize + "]");
+		out.println("--------------------------------------------------------------------");
+		for (JSqFunctionProto f : m_functions)
+			f.dump(out);
+	}
+	
+	private static String literalToString(Object o) {
+		if (o instanceof String)
+			return "\"" + o + "\"";
+		return "{" + o + "}";
+	}
+	
+}
@@ -0,0 +1,63 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * A suspended generator function. While suspended the generator owns a copy of its stack frame and
+ * its exception traps; resuming moves them back onto the stack of the resuming thread.
+ * @author Christopher Foster
+ */
+final class JSqGenerator {
+	
+	static final int SUSPENDED = 0;
+	static final int RUNNING = 1;
+	static final int DEAD = 2;
+	
+	final JSqClosure m_closure;
+	int m_state = RUNNING;
+	
+	int[] m_stackTypes = new int[0];
+	int[] m_stackValues = new int[0];
+	Object[] m_stackRefs = new Object[0];
+	
+	int m_ip;
+	int m_ncalls;
+	int m_etraps;
+	boolean m_root;
+	int[] m_traps = new int[0];
+	
+	JSqGenerator(JSqClosure closure) {
+		m_closure = closure;
+	}
+	
+	void kill() {
+		m_state = DEAD;
+		m_stackTypes = new int[0];
+		m_stackValues = new int[0];
+		m_stackRefs = new Object[0];
+		m_traps = new int[0];
+	}
+	
+}
@@ -0,0 +1,211 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+
+/**
+ * Tracks the native handles of the {@link JSqObject}s taken from a native VM and its friend threads.
+ * <br><br>
+ * Each handle holds a reference to its Squirrel object until it is given back with
+ * {@link Squirrel#sq_release(JSqVM, JSqObject)}. Handles whose {@link JSqObject} became unreachable without
+ * that are queued by the garbage collector and released in one native call the next time the VM is entered
+ * through {@link Squirrel#sq_getstackobj(JSqVM, int)}, {@link Squirrel#sq_call(JSqVM, int, boolean, boolean)} or
+ * {@link Squirrel#sq_collectgarbage(JSqVM)}. Closing the VM releases every handle left.
+ * @author Christopher Foster
+ */
+public final class JSqHandles {
+	
+	static final class Ref extends PhantomReference<JSqObject> {
+		final long m_handle;
+		Ref m_prev;
+		Ref m_next;
+		
+		Ref(JSqObject obj, ReferenceQueue<JSqObject> queue) {
+			super(obj, queue);
+			m_handle = obj.m_nativeHandle;
+		}
+	}
+	
+	private final ReferenceQueue<JSqObject> m_queue = new ReferenceQueue<JSqObject>();
+	/** Handles that haven't been released, keeps their references reachable. */
+	private Ref m_live;
+	private int m_liveCount;
+	/** Handles taken off the queue but not released yet. */
+	private long[] m_pending = new long[16];
+	private int m_pendingCount;
+	private final long[] m_single = new long[1];
+	
+	private long m_released;
+	private long m_batches;
+	private int m_maxBatch;
+	
+	JSqHandles() {
+	}
+	
+	synchronized void register(JSqObject obj) {
+		Ref r = new Ref(obj, m_queue);
+		r.m_next = m_live;
+		if (m_live != null)
+			m_live.m_prev = r;
+		m_live = r;
+		m_liveCount++;
+		obj.m_handleRef = r;
+	}
+	
+	/**
+	 * Releases one handle right away.
+	 * @return True if the object it referenced was deleted.
+	 */
+	synchronized boolean release(long v, JSqObject obj) {
+		Ref r = obj.m_handleRef;
+		if (r == null || !unlink(r))
+			return false;
+		r.clear();
+		obj.m_handleRef = null;
+		m_single[0] = r.m_handle;
+		return Squirrel.NATIVE.sq_releaseobjects(v, m_single, 1) != 0;
+	}
+	
+	/**
+	 * Releases the handles of collected objects in one native call.
+	 * @param v The native VM to release them with.
+	 * @return The number of handles released.
+	 */
+	int releasePending(long v) {
+		// A plain read, missing a handle queued concurrently only delays it to the next call
+		if (m_pendingCount == 0 && !poll())
+			return 0;
+		synchronized (this) {
+			poll();
+			int n = m_pendingCount;
+			if (n == 0)
+				return 0;
+			Squirrel.NATIVE.sq_releaseobjects(v, m_pending, n);
+			m_pendingCount = 0;
+			m_released += n;
+			m_batches++;
+			if (n > m_maxBatch)
+				m_maxBatch = n;
+			return n;
+		}
+	}
+	
+	/**
+	 * Releases every handle, collected or not, before the VM is closed.
+	 */
+	synchronized void releaseAll(long v) {
+		poll();
+		for (Ref r = m_live; r != null; r = r.m_next) {
+			r.clear();
+			addPending(r.m_handle);
+		}
+		m_live = null;
+		m_liveCount = 0;
+		releasePending(v);
+	}
+	
+	/**
+	 * @return The number of handles held by {@link JSqObject}s that haven't been released.
+	 */
+	public synchronized int getLiveCount() {
+		poll();
+		return m_liveCount;
+	}
+	
+	/**
+	 * @return The number of handles whose objects were collected and that wait for the next batch.
+	 */
+	public synchronized int getPendingCount() {
+		poll();
+		return m_pendingCount;
+	}
+	
+	/**
+	 * @return The number of handles released in batches so far.
+	 */
+	public synchronized long getBatchedReleaseCount() {
+		return m_released;
+	}
+	
+	/**
+	 * @return The number of batches released so far.
+	 */
+	public synchronized long getBatchCount() {
+		return m_batches;
+	}
+	
+	/**
+	 * @return The size of the largest batch released so far.
+	 */
+	public synchronized int getMaxBatchSize() {
+		return m_maxBatch;
+	}
+	
+	/**
+	 * Moves the collected handles from the reference queue to the pending batch.
+	 * @return True if there is something to release.
+	 */
+	private boolean poll() {
+		Ref r = (Ref) m_queue.poll();
+		if (r == null)
+			return m_pendingCount != 0;
+		synchronized (this) {
+			do {
+				if (unlink(r))
+					addPending(r.m_handle);
+			}
+			while ((r = (Ref) m_queue.poll()) != null);
+		}
+		return true;
+	}
+	
+	private void addPending(long handle) {
+		if (m_pendingCount == m_pending.length)
+			m_pending = Arrays.copyOf(m_pending, m_pendingCount << 1);
+		m_pending[m_pendingCount++] = handle;
+	}
+	
+	/**
+	 * @return False if the handle was already released.
+	 */
+	private boolean unlink(Ref r) {
+		if (r.m_prev == null && m_live != r)
+			return false;
+		if (r.m_prev != null)
+			r.m_prev.m_next = r.m_next;
+		else
+			m_live = r.m_next;
+		if (r.m_next != null)
+			r.m_next.m_prev = r.m_prev;
+		r.m_prev = null;
+		r.m_next = null;
+		m_liveCount--;
+		return true;
+	}
+	
+}
@@ -0,0 +1,325 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The native buffers the host allocates for one VM and its friend threads with
+ * {@link Squirrel#sq_malloc(JSqVM, long)}, such as memory handed to scripts through userdata or user pointers.
+ * <br><br>
+ * Squirrel's own objects don't come from here: a native VM allocates its tables, strings and closures inside
+ * libsquirrel with its own allocator, and the Java backend keeps them on the Java heap. The statistics of an arena
+ * are those of the host buffers alone, except for {@link #getScriptBytes()}, which reports the objects of a Java
+ * backend VM.
+ * <br><br>
+ * Blocks of up to {@value #MAX_SMALL} bytes come from slabs of {@value #SLAB_SIZE} bytes split into power of two
+ * size classes. Freed blocks are reused by their size class, so many small short lived blocks don't fragment the
+ * process heap. Larger blocks come straight from the allocator the arena was created with. Everything the arena
+ * still holds is freed at once when the VM is closed.
+ * <br><br>
+ * Like the VM it belongs to, an arena must only be used by one thread at a time.
+ * @author Christopher Foster
+ */
+public final class JSqHostArena extends JSqAllocator {
+	
+	static final int MIN_SMALL = 16;
+	static final int MAX_SMALL = 1024;
+	static final int SLAB_SIZE = 64 * 1024;
+	
+	private static final int MIN_SHIFT = 4;
+	private static final int CLASSES = 7;
+	
+	private final JSqAllocator m_parent;
+	/** The budget this arena counts against, null if there is none. */
+	private final JSqMemoryLimit m_limit;
+	/** The native VM collected at the soft limit, 0 for the Java backend. */
+	private final long m_vm;
+	/** The state of the Java backend VM, null for native VMs. */
+	private final JSqSharedState m_ss;
+	
+	/** Free blocks of each size class. */
+	private final long[][] m_free = new long[CLASSES][];
+	private final int[] m_freeCount = new int[CLASSES];
+	/** The unused end of the slab each size class is carving blocks from. */
+	private final long[] m_next = new long[CLASSES];
+	private final long[] m_end = new long[CLASSES];
+	
+	private long[] m_slabs = new long[4];
+	private int m_slabCount;
+	/** Blocks above MAX_SMALL, by address. */
+	private final Map<Long, Long> m_large = new HashMap<Long, Long>();
+	
+	private long m_inUse;
+	private long m_peak;
+	private long m_reserved;
+	private long m_allocations;
+	/** The most script bytes measured, for Java backend VMs without a limit. */
+	private long m_scriptPeak;
+	private boolean m_closed;
+	
+	JSqHostArena(JSqAllocator parent, JSqMemoryLimit limit, long vm) {
+		this(parent, limit, vm, null);
+	}
+	
+	JSqHostArena(JSqAllocator parent, JSqMemoryLimit limit, JSqSharedState ss) {
+		this(parent, limit, 0, ss);
+	}
+	
+	private JSqHostArena(JSqAllocator parent, JSqMemoryLimit limit, long vm, JSqSharedState ss) {
+		m_parent = parent;
+		m_limit = limit;
+		m_vm = vm;
+		m_ss = ss;
+		for (int i = 0; i < CLASSES; i++)
+			m_free[i] = new long[8];
+	}
+	
+	@Override
+	public long malloc(long size) {
+		checkOpen();
+		if (size <= 0)
+			return 0;
+		if (m_limit != null && !m_limit.chargeNative(m_vm, size))
+			return 0;
+		long p;
+		if (size <= MAX_SMALL) {
+			p = mallocSmall(sizeClass(size));
+		}
+		else {
+			p = m_parent.malloc(size);
+			if (p != 0) {
+				m_large.put(p, size);
+				m_reserved += size;
+			}
+		}
+		if (p != 0)
+			allocated(size);
+		else if (m_limit != null)
+			m_limit.releaseNative(size);
+		return p;
+	}
+	
+	@Override
+	public long realloc(long p, long oldSize, long newSize) {
+		checkOpen();
+		if (p == 0)
+			return malloc(newSize);
+		if (oldSize > MAX_SMALL && newSize > MAX_SMALL) {
+			if (!charge(newSize - oldSize))
+				return 0;
+			long q = m_parent.realloc(p, oldSize, newSize);
+			if (q == 0) {
+				charge(oldSize - newSize);
+				return 0;
+			}
+			m_large.remove(p);
+			m_large.put(q, newSize);
+			m_reserved += newSize - oldSize;
+			allocated(newSize - oldSize);
+			m_allocations--;
+			return q;
+		}
+		if (oldSize <= MAX_SMALL && newSize <= MAX_SMALL && sizeClass(oldSize) == sizeClass(newSize)) {
+			if (!charge(newSize - oldSize))
+				return 0;
+			allocated(newSize - oldSize);
+			m_allocations--;
+			return p;
+		}
+		// The old block is given back right after the copy, so only the new size has to fit under the limit
+		if (m_limit != null)
+			m_limit.releaseNative(oldSize);
+		long q = malloc(newSize);
+		if (q == 0) {
+			if (m_limit != null)
+				m_limit.restoreNative(oldSize);
+			return 0;
+		}
+		Squirrel.NATIVE.sq_copymemory(q, p, Math.min(oldSize, newSize));
+		release(p, oldSize);
+		m_allocations--;
+		return q;
+	}
+	
+	@Override
+	public void free(long p, long size) {
+		checkOpen();
+		if (p == 0)
+			return;
+		release(p, size);
+		if (m_limit != null)
+			m_limit.releaseNative(size);
+	}
+	
+	/**
+	 * Takes a block back without touching the limit.
+	 */
+	private void release(long p, long size) {
+		if (size <= MAX_SMALL) {
+			int c = sizeClass(size);
+			if (m_freeCount[c] == m_free[c].length)
+				m_free[c] = Arrays.copyOf(m_free[c], m_freeCount[c] << 1);
+			m_free[c][m_freeCount[c]++] = p;
+		}
+		else {
+			m_parent.free(p, size);
+			m_large.remove(p);
+			m_reserved -= size;
+		}
+		m_inUse -= size;
+	}
+	
+	/**
+	 * @return The bytes allocated and not freed yet, as requested by the callers.
+	 */
+	public long getBytesInUse() {
+		return m_inUse;
+	}
+	
+	/**
+	 * @return The highest {@link #getBytesInUse()} so far.
+	 */
+	public long getPeakBytes() {
+		return m_peak;
+	}
+	
+	/**
+	 * @return The bytes held from the parent allocator, slabs included.
+	 */
+	public long getReservedBytes() {
+		return m_reserved;
+	}
+	
+	/**
+	 * @return The number of blocks allocated so far.
+	 */
+	public long getAllocationCount() {
+		return m_allocations;
+	}
+	
+	/**
+	 * @return The estimated Java heap used by the tables, arrays, strings, closures and other objects of a
+	 * {@link JSqBackend#Java Java} backend VM, 0 for native VMs, whose objects libsquirrel allocates out of sight.
+	 * With a memory limit this is the count the limit keeps, without one the objects the VM reaches are measured.
+	 */
+	public long getScriptBytes() {
+		if (m_ss == null)
+			return 0;
+		if (m_limit != null)
+			return m_limit.getHeapBytes();
+		if (m_ss.m_main == null)
+			return 0;
+		long bytes = JSqMemoryMeter.measure(m_ss.m_main);
+		if (bytes > m_scriptPeak)
+			m_scriptPeak = bytes;
+		return bytes;
+	}
+	
+	/**
+	 * @return The highest {@link #getScriptBytes()} so far, without a memory limit the highest measured.
+	 */
+	public long getScriptPeakBytes() {
+		if (m_limit != null)
+			return m_limit.getHeapPeakBytes();
+		return m_scriptPeak;
+	}
+	
+	/**
+	 * Frees every slab and large block, called when the VM is closed.
+	 */
+	void close() {
+		if (m_closed)
+			return;
+		m_closed = true;
+		for (int i = 0; i < m_slabCount; i++)
+			m_parent.free(m_slabs[i], SLAB_SIZE);
+		for (Map.Entry<Long, Long> e : m_large.entrySet())
+			m_parent.free(e.getKey(), e.getValue());
+		m_slabCount = 0;
+		m_large.clear();
+		if (m_limit != null)
+			m_limit.releaseNative(m_inUse);
+		m_inUse = 0;
+		m_reserved = 0;
+	}
+	
+	private long mallocSmall(int c) {
+		if (m_freeCount[c] != 0)
+			return m_free[c][--m_freeCount[c]];
+		long blockSize = MIN_SMALL << c;
+		if (m_next[c] + blockSize > m_end[c]) {
+			long slab = m_parent.malloc(SLAB_SIZE);
+			if (slab == 0)
+				return 0;
+			if (m_slabCount == m_slabs.length)
+				m_slabs = Arrays.copyOf(m_slabs, m_slabCount << 1);
+			m_slabs[m_slabCount++] = slab;
+			m_reserved += SLAB_SIZE;
+			m_next[c] = slab;
+			m_end[c] = slab + SLAB_SIZE;
+		}
+		long p = m_next[c];
+		m_next[c] += blockSize;
+		return p;
+	}
+	
+	/**
+	 * Counts a change in size against the limit, releasing is done with a negative size.
+	 */
+	private boolean charge(long size) {
+		if (m_limit == null)
+			return true;
+		if (size <= 0) {
+			m_limit.releaseNative(-size);
+			return true;
+		}
+		return m_limit.chargeNative(m_vm, size);
+	}
+	
+	private void allocated(long size) {
+		m_allocations++;
+		m_inUse += size;
+		if (m_inUse > m_peak)
+			m_peak = m_inUse;
+	}
+	
+	private void checkOpen() {
+		if (m_closed)
+			throw new IllegalStateException("The VM of this arena is closed");
+	}
+	
+	/**
+	 * @return The index of the smallest power of two class holding {@code size} bytes.
+	 */
+	static int sizeClass(long size) {
+		if (size <= MIN_SMALL)
+			return 0;
+		return 64 - Long.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+	
+}
@@ -0,0 +1,64 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * The Java backend's Squirrel class instance.
+ * @author Christopher Foster
+ */
+final class JSqInstance {
+	
+	final JSqClass m_class;
+	final int[] m_types;
+	final int[] m_values;
+	final Object[] m_refs;
+	long m_userPointer;
+	
+	JSqInstance(JSqClass c) {
+		m_class = c;
+		m_types = java.util.Arrays.copyOf(c.m_defaultTypes, c.m_nDefaults);
+		m_values = java.util.Arrays.copyOf(c.m_defaultValues, c.m_nDefaults);
+		m_refs = java.util.Arrays.copyOf(c.m_defaultRefs, c.m_nDefaults);
+	}
+	
+	private JSqInstance(JSqInstance other) {
+		m_class = other.m_class;
+		m_types = other.m_types.clone();
+		m_values = other.m_values.clone();
+		m_refs = other.m_refs.clone();
+	}
+	
+	JSqInstance cloneInstance() {
+		return new JSqInstance(this);
+	}
+	
+	boolean instanceOf(JSqClass c) {
+		for (JSqClass parent = m_class; parent != null; parent = parent.m_base)
+			if (parent == c)
+				return true;
+		return false;
+	}
+	
+}
@@ -0,0 +1,3295 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqOpcodes.*;
+import static com.yourlocalfax.jsquirrel.JSqSharedState.*;
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The Java backend's Squirrel VM, a port of SQVM that runs the bytecode produced by {@link JSqCompiler}.
+ * <br><br>
+ * Each instance is one Squirrel thread; friend threads share a {@link JSqSharedState}. The stack holds
+ * tagged values in three parallel arrays (see {@link JSqTypes}). Script to script calls stay inside
+ * the {@link #execute} loop, calls coming from Java or from native closures nest.
+ * <br><br>
+ * Script errors unwind the Java stack with a preallocated {@link ScriptError}; the error value itself
+ * is kept in the last error registers, like SQVM::_lasterror. Helpers that produce a value leave it in
+ * the result registers ({@link #m_rt}, {@link #m_rv}, {@link #m_rr}) instead of allocating a holder.
+ * @author Christopher Foster
+ */
+final class JSqInterpreter {
+	
+	static final int VERSION_NUMBER = 304;
+	static final String VERSION = "Squirrel 3.0.4 stable";
+	
+	static final int SQ_OK = 0;
+	static final int SQ_ERROR = -1;
+	static final int SQ_SUSPEND_FLAG = -666;
+	static final int SQ_MATCHTYPEMASKSTRING = -99999;
+	
+	static final int SQ_VMSTATE_IDLE = 0;
+	static final int SQ_VMSTATE_RUNNING = 1;
+	static final int SQ_VMSTATE_SUSPENDED = 2;
+	
+	static final int MAX_NATIVE_CALLS = 100;
+	/** The deepest the calls of a VM can nest before raising "stack overflow", tail calls don't count. */
+	static final int MAX_CALL_DEPTH = 16384;
+	static final int MIN_STACK_OVERHEAD = 15;
+	static final int DONT_FALL_BACK = 666;
+	
+	private static final int ET_CALL = 0;
+	private static final int ET_RESUME_GENERATOR = 1;
+	private static final int ET_RESUME_VM = 2;
+	private static final int ET_RESUME_THROW_VM = 3;
+	
+	/**
+	 * Unwinds the Java stack when a script error is raised. It carries no data and never fills in a
+	 * stack trace, so one instance per thread is reused for every error.
+	 */
+	static final class ScriptError extends RuntimeException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ScriptError() {
+			super("squirrel error", null, false, false);
+		}
+		
+	}
+	
+	/**
+	 * A call frame, the counterpart of SQVM::CallInfo. Frames are pooled and reused.
+	 */
+	static final class CallInfo {
+		
+		Object m_closure;
+		long[] m_code;
+		int m_ip;
+		int[] m_litTypes;
+		int[] m_litValues;
+		Object[] m_litRefs;
+		int m_prevStackBase;
+		int m_prevTop;
+		int m_target;
+		int m_etraps;
+		int m_ncalls;
+		JSqGenerator m_generator;
+		boolean m_root;
+		
+	}
+	
+	final JSqSharedState m_ss;
+	final JSqVM m_vm;
+	
+	int[] m_stackTypes;
+	int[] m_stackValues;
+	Object[] m_stackRefs;
+	int m_top;
+	int m_stackBase;
+	
+	/** The root table, null when the root has been set to null. */
+	JSqTable m_root;
+	
+	CallInfo[] m_calls = new CallInfo[4];
+	int m_callsSize;
+	CallInfo m_ci;
+	
+	/** Exception traps, four ints each: stack top, stack base, handler ip and target register. */
+	private int[] m_traps = new int[16];
+	private int m_nTraps;
+	
+	private JSqOuter m_openOuters;
+	
+	int m_errType = OT_NULL;
+	int m_errValue;
+	Object m_errRef;
+	
+	int m_errorHandlerType = OT_NULL;
+	Object m_errorHandler;
+	
+	int m_debugHookType = OT_NULL;
+	Object m_debugHook;
+	
+	int m_rt = OT_NULL;
+	int m_rv;
+	Object m_rr;
+	
+	int m_nativeCalls;
+	int m_metaCalls;
+	
+	/** The budget installed on this VM, null if there is none. */
+	JSqBudget m_budget;
+	/** Steps left before the budget is asked for more or the executor call is checked, counted on backward jumps and calls. */
+	int m_steps = Integer.MAX_VALUE;
+	
+	boolean m_suspended;
+	private int m_suspendedTarget;
+	private boolean m_suspendedRoot;
+	private int m_suspendedTraps;
+	
+	private final ScriptError m_error = new ScriptError();
+	
+	JSqInterpreter(JSqSharedState ss, JSqInterpreter friend, int stackSize) {
+		m_ss = ss;
+		m_vm = new JSqVM(this);
+		int size = Math.max(stackSize, MIN_STACK_OVERHEAD << 1);
+		m_stackTypes = new int[size];
+		m_stackValues = new int[size];
+		m_stackRefs = new Object[size];
+		java.util.Arrays.fill(m_stackTypes, OT_NULL);
+		if (friend == null) {
+			m_root = new JSqTable(0);
+			JSqBaseLib.registerBase(m_root);
+			ss.m_main = this;
+		}
+		else {
+			m_root = friend.m_root;
+			m_errorHandlerType = friend.m_errorHandlerType;
+			m_errorHandler = friend.m_errorHandler;
+		}
+	}
+	
+	// Stack
+	
+	int stackIndex(int idx) {
+		return idx >= 0 ? m_stackBase + idx - 1 : m_top + idx;
+	}
+	
+	void setStack(int i, int t, int v, Object r) {
+		m_stackTypes[i] = t;
+		m_stackValues[i] = v;
+		m_stackRefs[i] = r;
+	}
+	
+	void copyStack(int dst, int src) {
+		m_stackTypes[dst] = m_stackTypes[src];
+		m_stackValues[dst] = m_stackValues[src];
+		m_stackRefs[dst] = m_stackRefs[src];
+	}
+	
+	void nullStack(int i) {
+		m_stackTypes[i] = OT_NULL;
+		m_stackValues[i] = 0;
+		m_stackRefs[i] = null;
+	}
+	
+	void push(int t, int v, Object r) {
+		if (m_top == m_stackTypes.length)
+			growStack(m_top + 1);
+		setStack(m_top++, t, v, r);
+	}
+	
+	void pushResult() {
+		push(m_rt, m_rv, m_rr);
+	}
+	
+	void pushCopy(int i) {
+		push(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+	}
+	
+	void pop(int n) {
+		for (int i = 0; i < n; i++)
+			nullStack(--m_top);
+	}
+	
+	void growStack(int size) {
+		int old = m_stackTypes.length;
+		if (size <= old)
+			return;
+		size = grownSize(size);
+		m_stackTypes = java.util.Arrays.copyOf(m_stackTypes, size);
+		m_stackValues = java.util.Arrays.copyOf(m_stackValues, size);
+		m_stackRefs = java.util.Arrays.copyOf(m_stackRefs, size);
+		java.util.Arrays.fill(m_stackTypes, old, size, OT_NULL);
+	}
+	
+	/**
+	 * @return The length {@link #growStack(int)} grows the stack to for {@code size} slots.
+	 */
+	private int grownSize(int size) {
+		return Math.max(size, m_stackTypes.length << 1);
+	}
+	
+	/**
+	 * @return The bytes growing the stack to hold {@code size} slots takes, for the memory limit.
+	 */
+	private long stackGrowth(int size) {
+		return size <= m_stackTypes.length ? 0 : JSqMemoryMeter.ARRAY_SLOT * (long) (grownSize(size) - m_stackTypes.length);
+	}
+	
+	void result(int t, int v, Object r) {
+		m_rt = t;
+		m_rv = v;
+		m_rr = r;
+	}
+	
+	void resultStack(int i) {
+		result(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+	}
+	
+	void resultNull() {
+		result(OT_NULL, 0, null);
+	}
+	
+	// Errors
+	
+	/**
+	 * Sets the last error to a message and unwinds to the nearest handler.
+	 * @return Never returns normally, the return type only lets callers write {@code throw raise(...)}.
+	 */
+	ScriptError raise(String message) {
+		m_errType = OT_STRING;
+		m_errValue = 0;
+		m_errRef = message;
+		throw m_error;
+	}
+	
+	/**
+	 * Counts an allocation against the VM's memory limit, raising an error if it doesn't fit.
+	 */
+	void charge(long bytes) {
+		JSqMemoryLimit limit = m_ss.m_limit;
+		if (limit != null && !limit.charge(this, bytes))
+			throw raise(limit.errorMessage());
+	}
+	
+	/**
+	 * {@link #charge(long)} for native functions and the API, which report errors through their result.
+	 * @return False once the error has been set.
+	 */
+	boolean tryCharge(long bytes) {
+		JSqMemoryLimit limit = m_ss.m_limit;
+		if (limit == null || limit.charge(this, bytes))
+			return true;
+		throwError(limit.errorMessage());
+		return false;
+	}
+	
+	ScriptError raiseValue(int t, int v, Object r) {
+		m_errType = t;
+		m_errValue = v;
+		m_errRef = r;
+		throw m_error;
+	}
+	
+	/**
+	 * Rethrows after the last error has already been set, like a native closure returning SQ_ERROR.
+	 */
+	ScriptError rethrow() {
+		throw m_error;
+	}
+	
+	ScriptError raiseIdxError(int kt, int kv, Object kr) {
+		throw raise("the index '" + printObjVal(kt, kv, kr) + "' does not exist");
+	}
+	
+	private String printObjVal(int t, int v, Object r) {
+		switch (t) {
+			case OT_STRING: return (String) r;
+			case OT_INTEGER: return Integer.toString(v);
+			case OT_FLOAT: return formatFloat(Float.intBitsToFloat(v));
+			default: return typeName(t);
+		}
+	}
+	
+	void callErrorHandler(int t, int v, Object r) {
+		if (m_errorHandlerType != OT_NULL) {
+			pushRoot();
+			push(t, v, r);
+			try {
+				call(m_errorHandlerType, m_errorHandler, 2, m_top - 2, false);
+			}
+			catch (ScriptError e) {
+			}
+			pop(2);
+		}
+	}
+	
+	void pushRoot() {
+		if (m_root != null)
+			push(OT_TABLE, 0, m_root);
+		else
+			push(OT_NULL, 0, null);
+	}
+	
+	// Frames
+	
+	private void enterFrame(int newBase, int newTop, boolean tailCall) {
+		if (!tailCall && m_callsSize >= MAX_CALL_DEPTH)
+			throw raise("stack overflow");
+		if (m_ss.m_limit != null) {
+			// Charged before anything changes, so a frame that doesn't fit raises the error from the caller
+			long bytes = newTop + MIN_STACK_OVERHEAD > m_stackTypes.length ? stackGrowth(newTop + (MIN_STACK_OVERHEAD << 2)) : 0;
+			if (!tailCall && m_callsSize == m_calls.length)
+				bytes += JSqMemoryMeter.FRAME * (long) m_callsSize;
+			if (bytes != 0)
+				charge(bytes);
+		}
+		if (!tailCall) {
+			if (m_callsSize == m_calls.length)
+				m_calls = java.util.Arrays.copyOf(m_calls, m_callsSize << 1);
+			CallInfo ci = m_calls[m_callsSize];
+			if (ci == null)
+				ci = m_calls[m_callsSize] = new CallInfo();
+			m_callsSize++;
+			ci.m_prevStackBase = newBase - m_stackBase;
+			ci.m_prevTop = m_top - m_stackBase;
+			ci.m_etraps = 0;
+			ci.m_ncalls = 1;
+			ci.m_generator = null;
+			ci.m_root = false;
+			m_ci = ci;
+		}
+		else {
+			m_ci.m_ncalls++;
+		}
+		m_stackBase = newBase;
+		m_top = newTop;
+		if (newTop + MIN_STACK_OVERHEAD > m_stackTypes.length)
+			growStack(newTop + (MIN_STACK_OVERHEAD << 2));
+	}
+	
+	private void leaveFrame() {
+		int lastTop = m_top;
+		int lastBase = m_stackBase;
+		CallInfo ci = m_ci;
+		m_stackBase -= ci.m_prevStackBase;
+		m_top = m_stackBase + ci.m_prevTop;
+		ci.m_closure = null;
+		ci.m_code = null;
+		ci.m_litTypes = null;
+		ci.m_litValues = null;
+		ci.m_litRefs = null;
+		ci.m_generator = null;
+		m_callsSize--;
+		m_ci = m_callsSize > 0 ? m_calls[m_callsSize - 1] : null;
+		if (m_openOuters != null)
+			closeOuters(lastBase);
+		while (lastTop >= m_top)
+			nullStack(lastTop--);
+	}
+	
+	CallInfo callInfo(int level) {
+		return m_calls[level];
+	}
+	
+	private JSqOuter findOuter(int idx) {
+		JSqOuter prev = null;
+		JSqOuter p = m_openOuters;
+		while (p != null && p.m_idx >= idx) {
+			if (p.m_idx == idx)
+				return p;
+			prev = p;
+			p = p.m_next;
+		}
+		JSqOuter o = new JSqOuter(this, idx);
+		o.m_next = p;
+		if (prev == null)
+			m_openOuters = o;
+		else
+			prev.m_next = o;
+		return o;
+	}
+	
+	private void closeOuters(int idx) {
+		JSqOuter p = m_openOuters;
+		while (p != null && p.m_idx >= idx) {
+			JSqOuter next = p.m_next;
+			p.close();
+			p.m_next = null;
+			p = next;
+		}
+		m_openOuters = p;
+	}
+	
+	private void startCall(JSqClosure closure, int target, int nargs, int stackBase, boolean tailCall) {
+		JSqFunctionProto func = closure.m_function;
+		int paramsSize = func.m_parameters.length;
+		int newTop = stackBase + func.m_stackSize;
+		if (func.m_varParams) {
+			paramsSize--;
+			if (nargs < paramsSize)
+				throw raise("wrong number of parameters");
+			int nvargs = nargs - paramsSize;
+			charge(JSqMemoryMeter.arrayBytes(nvargs));
+			JSqArray arr = new JSqArray(nvargs);
+			int pbase = stackBase + paramsSize;
+			for (int n = 0; n < nvargs; n++) {
+				arr.set(n, m_stackTypes[pbase], m_stackValues[pbase], m_stackRefs[pbase]);
+				nullStack(pbase);
+				pbase++;
+			}
+			setStack(stackBase + paramsSize, OT_ARRAY, 0, arr);
+		}
+		else if (paramsSize != nargs) {
+			int ndef = func.m_defaultParams.length;
+			int diff;
+			if (ndef > 0 && nargs < paramsSize && (diff = paramsSize - nargs) <= ndef) {
+				for (int n = ndef - diff; n < ndef; n++)
+					setStack(stackBase + (nargs++), closure.m_defaultTypes[n], closure.m_defaultValues[n], closure.m_defaultRefs[n]);
+			}
+			else {
+				throw raise("wrong number of parameters");
+			}
+		}
+		if (closure.m_env != null)
+			setStack(stackBase, closure.m_env.type(), 0, closure.m_env.get());
+		
+		enterFrame(stackBase, newTop, tailCall);
+		CallInfo ci = m_ci;
+		ci.m_closure = closure;
+		ci.m_code = func.m_instructions;
+		ci.m_ip = 0;
+		ci.m_litTypes = func.m_literalTypes;
+		ci.m_litValues = func.m_literalValues;
+		ci.m_litRefs = func.m_literalRefs;
+		ci.m_target = target;
+		
+		if (func.m_generator) {
+			charge(JSqMemoryMeter.arrayBytes(func.m_stackSize));
+			JSqGenerator gen = new JSqGenerator(closure);
+			yieldGenerator(gen, func.m_stackSize);
+			ret(0xFF, 0);
+			if (target != -1)
+				setStack(m_stackBase + target, OT_GENERATOR, 0, gen);
+			result(OT_GENERATOR, 0, gen);
+		}
+	}
+	
+	/**
+	 * Pops the current frame, storing the returned value in the caller's target register or,
+	 * for the root frame of an {@link #execute} call, in the result registers.
+	 * @return True if the frame was a root frame.
+	 */
+	private boolean ret(int arg0, int arg1) {
+		CallInfo ci = m_ci;
+		boolean root = ci.m_root;
+		int callerBase = m_stackBase - ci.m_prevStackBase;
+		int t = OT_NULL, v = 0;
+		Object r = null;
+		if (arg0 != 0xFF) {
+			int i = m_stackBase + arg1;
+			t = m_stackTypes[i];
+			v = m_stackValues[i];
+			r = m_stackRefs[i];
+		}
+		if (root)
+			result(t, v, r);
+		else if (ci.m_target != -1)
+			setStack(callerBase + ci.m_target, t, v, r);
+		leaveFrame();
+		return root;
+	}
+	
+	private void yieldGenerator(JSqGenerator gen, int target) {
+		if (gen.m_state == JSqGenerator.SUSPENDED)
+			throw raise("internal vm error, yielding dead generator");
+		if (gen.m_state == JSqGenerator.DEAD)
+			throw raise("internal vm error, yielding a dead generator");
+		int size = m_top - m_stackBase;
+		gen.m_stackTypes = new int[size];
+		gen.m_stackValues = new int[size];
+		gen.m_stackRefs = new Object[size];
+		java.util.Arrays.fill(gen.m_stackTypes, OT_NULL);
+		System.arraycopy(m_stackTypes, m_stackBase, gen.m_stackTypes, 0, Math.min(Math.max(target, 1), size));
+		System.arraycopy(m_stackValues, m_stackBase, gen.m_stackValues, 0, Math.min(Math.max(target, 1), size));
+		System.arraycopy(m_stackRefs, m_stackBase, gen.m_stackRefs, 0, Math.min(Math.max(target, 1), size));
+		for (int j = 0; j < size; j++)
+			nullStack(m_stackBase + j);
+		CallInfo ci = m_ci;
+		gen.m_ip = ci.m_ip;
+		gen.m_ncalls = ci.m_ncalls;
+		gen.m_root = ci.m_root;
+		gen.m_etraps = ci.m_etraps;
+		int n = ci.m_etraps * 4;
+		gen.m_traps = new int[n];
+		m_nTraps -= ci.m_etraps;
+		System.arraycopy(m_traps, m_nTraps * 4, gen.m_traps, 0, n);
+		for (int i = 0; i < n; i += 4) {
+			gen.m_traps[i] -= m_stackBase;
+			gen.m_traps[i + 1] -= m_stackBase;
+		}
+		gen.m_state = JSqGenerator.SUSPENDED;
+	}
+	
+	private void resumeGenerator(JSqGenerator gen, int target) {
+		if (gen.m_state == JSqGenerator.DEAD)
+			throw raise("resuming dead generator");
+		if (gen.m_state == JSqGenerator.RUNNING)
+			throw raise("resuming active generator");
+		int size = gen.m_stackTypes.length;
+		enterFrame(m_top, m_top + size, false);
+		CallInfo ci = m_ci;
+		JSqFunctionProto func = gen.m_closure.m_function;
+		ci.m_generator = gen;
+		ci.m_target = target;
+		ci.m_closure = gen.m_closure;
+		ci.m_code = func.m_instructions;
+		ci.m_litTypes = func.m_literalTypes;
+		ci.m_litValues = func.m_literalValues;
+		ci.m_litRefs = func.m_literalRefs;
+		ci.m_ip = gen.m_ip;
+		ci.m_ncalls = gen.m_ncalls;
+		ci.m_etraps = gen.m_etraps;
+		ci.m_root = gen.m_root;
+		for (int i = 0; i < gen.m_traps.length; i += 4)
+			pushTrap(gen.m_traps[i] + m_stackBase, gen.m_traps[i + 1] + m_stackBase, gen.m_traps[i + 2], gen.m_traps[i + 3]);
+		System.arraycopy(gen.m_stackTypes, 0, m_stackTypes, m_stackBase, size);
+		System.arraycopy(gen.m_stackValues, 0, m_stackValues, m_stackBase, size);
+		System.arraycopy(gen.m_stackRefs, 0, m_stackRefs, m_stackBase, size);
+		gen.m_stackTypes = new int[0];
+		gen.m_stackValues = new int[0];
+		gen.m_stackRefs = new Object[0];
+		gen.m_traps = new int[0];
+		gen.m_state = JSqGenerator.RUNNING;
+	}
+	
+	private void pushTrap(int top, int base, int ip, int target) {
+		int i = m_nTraps * 4;
+		if (i + 4 > m_traps.length)
+			m_traps = java.util.Arrays.copyOf(m_traps, m_traps.length << 1);
+		m_traps[i] = top;
+		m_traps[i + 1] = base;
+		m_traps[i + 2] = ip;
+		m_traps[i + 3] = target;
+		m_nTraps++;
+	}
+	
+	// Calls
+	
+	/**
+	 * Calls a closure, native closure or class with arguments already on the stack, result in the result registers.
+	 */
+	void call(int ct, Object cr, int nparams, int stackBase, boolean raiseError) {
+		switch (ct) {
+			case OT_CLOSURE:
+				execute(cr, nparams, stackBase, raiseError, ET_CALL, 0);
+				return;
+			case OT_NATIVECLOSURE:
+				callNative((JSqNativeClosure) cr, nparams, stackBase);
+				return;
+			case OT_CLASS: {
+				JSqClass c = (JSqClass) cr;
+				charge(JSqMemoryMeter.instanceBytes(c));
+				JSqInstance inst = c.createInstance();
+				if (c.m_constructorIdx >= 0) {
+					setStack(stackBase, OT_INSTANCE, 0, inst);
+					call(c.m_methodTypes[c.m_constructorIdx], c.m_methodRefs[c.m_constructorIdx], nparams, stackBase, raiseError);
+				}
+				result(OT_INSTANCE, 0, inst);
+				return;
+			}
+			default:
+				throw raise("attempt to call '" + typeName(ct) + "'");
+		}
+	}
+	
+	private void callMetaMethod(int ct, Object cr, int nparams) {
+		m_metaCalls++;
+		try {
+			call(ct, cr, nparams, m_top - nparams, false);
+		}
+		finally {
+			m_metaCalls--;
+			pop(nparams);
+		}
+	}
+	
+	/**
+	 * Calls a native closure.
+	 * @return True if the closure suspended the VM.
+	 */
+	private boolean callNative(JSqNativeClosure nc, int nargs, int newBase) {
+		int nparamsCheck = nc.m_nparamsCheck;
+		int nouters = nc.m_outerTypes.length;
+		if (m_nativeCalls + 1 > MAX_NATIVE_CALLS)
+			throw raise("Native stack overflow");
+		if (nparamsCheck != 0 && ((nparamsCheck > 0 && nparamsCheck != nargs) || (nparamsCheck < 0 && nargs < -nparamsCheck)))
+			throw raise("wrong number of parameters");
+		int[] tc = nc.m_typeCheck;
+		if (tc != null) {
+			for (int i = 0; i < nargs && i < tc.length; i++) {
+				int t = m_stackTypes[newBase + i];
+				if (tc[i] != -1 && (t & tc[i]) == 0)
+					throw raise("parameter " + i + " has an invalid type '" + typeName(t) + "' ; expected: '" + JSqBaseLib.typeMaskToString(tc[i]) + "'");
+			}
+		}
+		enterFrame(newBase, newBase + nargs + nouters, false);
+		m_ci.m_closure = nc;
+		for (int i = 0; i < nouters; i++)
+			setStack(newBase + nargs + i, nc.m_outerTypes[i], nc.m_outerValues[i], nc.m_outerRefs[i]);
+		if (nc.m_env != null)
+			setStack(newBase, nc.m_env.type(), 0, nc.m_env.get());
+		
+		m_nativeCalls++;
+		int ret;
+		try {
+			ret = nc.call(this);
+		}
+		catch (ScriptError e) {
+			m_nativeCalls--;
+			leaveFrame();
+			throw e;
+		}
+		m_nativeCalls--;
+		
+		if (ret < 0 && ret != SQ_SUSPEND_FLAG) {
+			leaveFrame();
+			throw m_error;
+		}
+		if (ret != 0)
+			resultStack(m_top - 1);
+		else
+			resultNull();
+		leaveFrame();
+		return ret == SQ_SUSPEND_FLAG;
+	}
+	
+	/**
+	 * Called when the granted steps ran out, raises an error if the budget is exhausted or the {@link JSqExecutor}
+	 * call running on the VM was cancelled.
+	 */
+	private void budgetStep() {
+		JSqExecutor.Call<?> call = m_ss.m_owner.m_call;
+		if (call != null && call.isCancelled()) {
+			m_steps = 0;
+			throw raise(JSqExecutor.CANCELLED);
+		}
+		JSqBudget budget = m_budget;
+		if (budget == null)
+			m_steps = Integer.MAX_VALUE;
+		else
+			budget.step(this);
+		if (call != null && m_steps > JSqBudget.SAMPLE)
+			m_steps = JSqBudget.SAMPLE;
+	}
+	
+	/**
+	 * @return True if the budget of the VM ran out or its executor call was cancelled, traps don't catch errors then.
+	 */
+	private boolean stopped() {
+		JSqOwner owner = m_ss.m_owner;
+		JSqBudget budget = owner.m_budget;
+		JSqExecutor.Call<?> call = owner.m_call;
+		return (budget != null && budget.expired()) || (call != null && call.isCancelled());
+	}
+	
+	/**
+	 * The main interpreter loop, SQVM::Execute. Returns normally with the result in the result
+	 * registers when the root frame returns or the VM gets suspended, throws {@link ScriptError} otherwise.
+	 */
+	@SuppressWarnings("fallthrough")
+	private void execute(Object closure, int nargs, int stackBase, boolean raiseError, int et, int target) {
+		if (m_nativeCalls + 1 > MAX_NATIVE_CALLS)
+			throw raise("Native stack overflow");
+		m_nativeCalls++;
+		try {
+			int traps = 0;
+			boolean pendingThrow = false;
+			CallInfo prevci = m_ci;
+			switch (et) {
+				case ET_CALL:
+					try {
+						startCall((JSqClosure) closure, -1, nargs, stackBase, false);
+					}
+					catch (ScriptError e) {
+						if (m_ci == null)
+							callErrorHandler(m_errType, m_errValue, m_errRef);
+						throw e;
+					}
+					if (m_ci == prevci)
+						return;
+					m_ci.m_root = true;
+					break;
+				case ET_RESUME_GENERATOR:
+					resumeGenerator((JSqGenerator) closure, target);
+					m_ci.m_root = true;
+					traps += m_ci.m_etraps;
+					break;
+				case ET_RESUME_VM:
+				case ET_RESUME_THROW_VM:
+					traps = m_suspendedTraps;
+					m_ci.m_root = m_suspendedRoot;
+					m_suspended = false;
+					pendingThrow = et == ET_RESUME_THROW_VM;
+					break;
+			}
+			
+			for (;;) {
+				try {
+					if (pendingThrow) {
+						pendingThrow = false;
+						throw m_error;
+					}
+					for (;;) {
+						CallInfo ci = m_ci;
+						long i = ci.m_code[ci.m_ip++];
+						int arg0 = (int) (i >>> 40) & 0xFF;
+						int arg1 = (int) i;
+						int arg2 = (int) (i >>> 48) & 0xFF;
+						int arg3 = (int) (i >>> 56) & 0xFF;
+						int base = m_stackBase;
+						int op = (int) (i >>> 32) & 0xFF;
+						switch (op) {
+							case OP_LINE:
+								continue;
+							case OP_LOAD:
+								setStack(base + arg0, ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1]);
+								continue;
+							case OP_LOADINT:
+								setStack(base + arg0, OT_INTEGER, arg1, null);
+								continue;
+							case OP_LOADFLOAT:
+								setStack(base + arg0, OT_FLOAT, arg1, null);
+								continue;
+							case OP_DLOAD:
+								setStack(base + arg0, ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1]);
+								setStack(base + arg2, ci.m_litTypes[arg3], ci.m_litValues[arg3], ci.m_litRefs[arg3]);
+								continue;
+							case OP_TAILCALL: {
+								int t = base + arg1;
+								if (m_stackTypes[t] == OT_CLOSURE && !((JSqClosure) m_stackRefs[t]).m_function.m_generator) {
+									JSqClosure clo = (JSqClosure) m_stackRefs[t];
+									if (m_openOuters != null)
+										closeOuters(base);
+									if (--m_steps < 0)
+										budgetStep();
+									for (int n = 0; n < arg3; n++)
+										copyStack(base + n, base + arg2 + n);
+									startCall(clo, ci.m_target, arg3, base, true);
+									continue;
+								}
+							}
+							//$FALL-THROUGH$
+							case OP_CALL: {
+								if (--m_steps < 0)
+									budgetStep();
+								int ct = m_stackTypes[base + arg1];
+								int cv = m_stackValues[base + arg1];
+								Object clo = m_stackRefs[base + arg1];
+								int trg = arg0 == 0xFF ? -1 : arg0;
+								switch (ct) {
+									case OT_CLOSURE:
+										startCall((JSqClosure) clo, trg, arg3, base + arg2, false);
+										continue;
+									case OT_NATIVECLOSURE:
+										if (callNative((JSqNativeClosure) clo, arg3, base + arg2)) {
+											m_suspended = true;
+											m_suspendedTarget = trg;
+											m_suspendedRoot = ci.m_root;
+											m_suspendedTraps = traps;
+											return;
+										}
+										if (trg != -1)
+											setStack(base + trg, m_rt, m_rv, m_rr);
+										continue;
+									case OT_CLASS: {
+										JSqClass c = (JSqClass) clo;
+										charge(JSqMemoryMeter.instanceBytes(c));
+										JSqInstance inst = c.createInstance();
+										if (trg != -1)
+											setStack(base + trg, OT_INSTANCE, 0, inst);
+										if (c.m_constructorIdx >= 0) {
+											int ctorType = c.m_methodTypes[c.m_constructorIdx];
+											Object ctor = c.m_methodRefs[c.m_constructorIdx];
+											int stkbase = base + arg2;
+											setStack(stkbase, OT_INSTANCE, 0, inst);
+											if (ctorType == OT_CLOSURE)
+												startCall((JSqClosure) ctor, -1, arg3, stkbase, false);
+											else if (ctorType == OT_NATIVECLOSURE)
+												callNative((JSqNativeClosure) ctor, arg3, stkbase);
+										}
+										continue;
+									}
+									case OT_TABLE:
+									case OT_USERDATA:
+									case OT_INSTANCE:
+										if (getMetaMethod(ct, clo, MT_CALL)) {
+											int mt = m_rt;
+											Object mr = m_rr;
+											push(ct, cv, clo);
+											for (int n = 0; n < arg3; n++)
+												pushCopy(base + arg2 + n);
+											callMetaMethod(mt, mr, arg3 + 1);
+											if (trg != -1)
+												setStack(base + trg, m_rt, m_rv, m_rr);
+											continue;
+										}
+										//$FALL-THROUGH$
+									default:
+										throw raise("attempt to call '" + typeName(ct) + "'");
+								}
+							}
+							case OP_PREPCALL:
+							case OP_PREPCALLK: {
+								int kt, kv;
+								Object kr;
+								if (op == OP_PREPCALLK) {
+									kt = ci.m_litTypes[arg1];
+									kv = ci.m_litValues[arg1];
+									kr = ci.m_litRefs[arg1];
+								}
+								else {
+									kt = m_stackTypes[base + arg1];
+									kv = m_stackValues[base + arg1];
+									kr = m_stackRefs[base + arg1];
+								}
+								int ot = m_stackTypes[base + arg2];
+								int ov = m_stackValues[base + arg2];
+								Object or = m_stackRefs[base + arg2];
+								if (!get(ot, ov, or, kt, kv, kr, false, arg2))
+									throw raiseIdxError(kt, kv, kr);
+								setStack(base + arg3, ot, ov, or);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							}
+							case OP_GETK: {
+								int s = base + arg2;
+								if (!get(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1], false, arg2))
+									throw raiseIdxError(ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							}
+							case OP_MOVE:
+								copyStack(base + arg0, base + arg1);
+								continue;
+							case OP_NEWSLOT:
+								newSlot(base + arg1, base + arg2, base + arg3, false);
+								if (arg0 != 0xFF)
+									copyStack(base + arg0, base + arg3);
+								continue;
+							case OP_DELETE:
+								deleteSlot(base + arg1, base + arg2);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							case OP_SET: {
+								int s = base + arg1, k = base + arg2, v = base + arg3;
+								set(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k],
+										m_stackTypes[v], m_stackValues[v], m_stackRefs[v], arg1);
+								if (arg0 != 0xFF)
+									copyStack(base + arg0, v);
+								continue;
+							}
+							case OP_GET: {
+								int s = base + arg1, k = base + arg2;
+								if (!get(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k], false, arg1))
+									throw raiseIdxError(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							}
+							case OP_EQ:
+							case OP_NE: {
+								int a = base + arg2;
+								boolean res;
+								if (arg3 != 0)
+									res = isEqual(m_stackTypes[a], m_stackValues[a], m_stackRefs[a], ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1]);
+								else
+									res = isEqual(m_stackTypes[a], m_stackValues[a], m_stackRefs[a], m_stackTypes[base + arg1], m_stackValues[base + arg1], m_stackRefs[base + arg1]);
+								setStack(base + arg0, OT_BOOL, (res == (op == OP_EQ)) ? 1 : 0, null);
+								continue;
+							}
+							case OP_ADD:
+							case OP_SUB:
+							case OP_MUL:
+							case OP_DIV:
+							case OP_MOD: {
+								int a = base + arg2, b = base + arg1;
+								int ta = m_stackTypes[a], tb = m_stackTypes[b];
+								if ((ta | tb) == OT_INTEGER && op != OP_DIV && op != OP_MOD) {
+									int x = m_stackValues[a], y = m_stackValues[b];
+									setStack(base + arg0, OT_INTEGER, op == OP_ADD ? x + y : (op == OP_SUB ? x - y : x * y), null);
+									continue;
+								}
+								arith(ARITH_CHARS[op - OP_ADD], ta, m_stackValues[a], m_stackRefs[a], tb, m_stackValues[b], m_stackRefs[b]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							}
+							case OP_BITW: {
+								int a = base + arg2, b = base + arg1;
+								bitwise(arg3, m_stackTypes[a], m_stackValues[a], m_stackTypes[b], m_stackValues[b]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							}
+							case OP_RETURN:
+								if (ci.m_generator != null)
+									ci.m_generator.kill();
+								if (ret(arg0, arg1))
+									return;
+								continue;
+							case OP_LOADNULLS:
+								for (int n = 0; n < arg1; n++)
+									nullStack(base + arg0 + n);
+								continue;
+							case OP_LOADROOT:
+								if (m_root != null)
+									setStack(base + arg0, OT_TABLE, 0, m_root);
+								else
+									nullStack(base + arg0);
+								continue;
+							case OP_LOADBOOL:
+								setStack(base + arg0, OT_BOOL, arg1 != 0 ? 1 : 0, null);
+								continue;
+							case OP_DMOVE:
+								copyStack(base + arg0, base + arg1);
+								copyStack(base + arg2, base + arg3);
+								continue;
+							case OP_JMP:
+								if (arg1 < 0 && --m_steps < 0)
+									budgetStep();
+								ci.m_ip += arg1;
+								continue;
+							case OP_JCMP: {
+								int a = base + arg2, b = base + arg0;
+								if (!compare(arg3, m_stackTypes[a], m_stackValues[a], m_stackRefs[a], m_stackTypes[b], m_stackValues[b], m_stackRefs[b]))
+									ci.m_ip += arg1;
+								continue;
+							}
+							case OP_JZ:
+								if (isFalse(m_stackTypes[base + arg0], m_stackValues[base + arg0]))
+									ci.m_ip += arg1;
+								continue;
+							case OP_SETOUTER: {
+								int s = base + arg2;
+								((JSqClosure) ci.m_closure).m_outers[arg1].set(m_stackTypes[s], m_stackValues[s], m_stackRefs[s]);
+								if (arg0 != 0xFF)
+									copyStack(base + arg0, s);
+								continue;
+							}
+							case OP_GETOUTER: {
+								JSqOuter o = ((JSqClosure) ci.m_closure).m_outers[arg1];
+								setStack(base + arg0, o.type(), o.value(), o.ref());
+								continue;
+							}
+							case OP_NEWOBJ:
+								switch (arg3) {
+									case NOT_TABLE:
+										charge(JSqMemoryMeter.tableBytes(arg1));
+										setStack(base + arg0, OT_TABLE, 0, new JSqTable(arg1));
+										continue;
+									case NOT_ARRAY: {
+										charge(JSqMemoryMeter.arrayBytes(arg1));
+										JSqArray a = new JSqArray(0);
+										a.reserve(arg1);
+										setStack(base + arg0, OT_ARRAY, 0, a);
+										continue;
+									}
+									case NOT_CLASS:
+										classOp(base + arg0, arg1, arg2);
+										continue;
+								}
+								continue;
+							case OP_APPENDARRAY: {
+								JSqArray a = (JSqArray) m_stackRefs[base + arg0];
+								if (m_ss.m_limit != null)
+									charge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth());
+								switch (arg2) {
+									case AAT_STACK:
+										a.append(m_stackTypes[base + arg1], m_stackValues[base + arg1], m_stackRefs[base + arg1]);
+										break;
+									case AAT_LITERAL:
+										a.append(ci.m_litTypes[arg1], ci.m_litValues[arg1], ci.m_litRefs[arg1]);
+										break;
+									case AAT_INT:
+										a.append(OT_INTEGER, arg1, null);
+										break;
+									case AAT_FLOAT:
+										a.append(OT_FLOAT, arg1, null);
+										break;
+									case AAT_BOOL:
+										a.append(OT_BOOL, arg1 != 0 ? 1 : 0, null);
+										break;
+								}
+								continue;
+							}
+							case OP_COMPARITH: {
+								int selfIdx = (arg1 >>> 16) & 0xFFFF;
+								int v = base + (arg1 & 0xFFFF);
+								derefInc(arg3, base + arg0, base + selfIdx, base + arg2, m_stackTypes[v], m_stackValues[v], m_stackRefs[v], false, selfIdx);
+								continue;
+							}
+							case OP_INC:
+							case OP_PINC:
+								derefInc('+', base + arg0, base + arg1, base + arg2, OT_INTEGER, (byte) arg3, null, op == OP_PINC, arg1);
+								continue;
+							case OP_INCL: {
+								int a = base + arg1;
+								if (m_stackTypes[a] == OT_INTEGER) {
+									m_stackValues[a] += (byte) arg3;
+								}
+								else {
+									arith('+', m_stackTypes[a], m_stackValues[a], m_stackRefs[a], OT_INTEGER, (byte) arg3, null);
+									setStack(a, m_rt, m_rv, m_rr);
+								}
+								continue;
+							}
+							case OP_PINCL: {
+								int a = base + arg1;
+								if (m_stackTypes[a] == OT_INTEGER) {
+									copyStack(base + arg0, a);
+									m_stackValues[a] += (byte) arg3;
+								}
+								else {
+									arith('+', m_stackTypes[a], m_stackValues[a], m_stackRefs[a], OT_INTEGER, (byte) arg3, null);
+									int t = m_rt, v = m_rv;
+									Object r = m_rr;
+									copyStack(base + arg0, a);
+									setStack(a, t, v, r);
+								}
+								continue;
+							}
+							case OP_CMP: {
+								int a = base + arg2, b = base + arg1;
+								if (arg3 == CMP_3W) {
+									setStack(base + arg0, OT_INTEGER, objCmp(m_stackTypes[a], m_stackValues[a], m_stackRefs[a], m_stackTypes[b], m_stackValues[b], m_stackRefs[b]), null);
+								}
+								else {
+									boolean res = compare(arg3, m_stackTypes[a], m_stackValues[a], m_stackRefs[a], m_stackTypes[b], m_stackValues[b], m_stackRefs[b]);
+									setStack(base + arg0, OT_BOOL, res ? 1 : 0, null);
+								}
+								continue;
+							}
+							case OP_EXISTS: {
+								int s = base + arg1, k = base + arg2;
+								boolean res = get(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k], true, DONT_FALL_BACK);
+								setStack(base + arg0, OT_BOOL, res ? 1 : 0, null);
+								continue;
+							}
+							case OP_INSTANCEOF: {
+								int c = base + arg1, o = base + arg2;
+								if (m_stackTypes[c] != OT_CLASS)
+									throw raise("cannot apply instanceof between a " + typeName(m_stackTypes[c]) + " and a " + typeName(m_stackTypes[o]));
+								boolean res = m_stackTypes[o] == OT_INSTANCE && ((JSqInstance) m_stackRefs[o]).instanceOf((JSqClass) m_stackRefs[c]);
+								setStack(base + arg0, OT_BOOL, res ? 1 : 0, null);
+								continue;
+							}
+							case OP_AND:
+								if (isFalse(m_stackTypes[base + arg2], m_stackValues[base + arg2])) {
+									copyStack(base + arg0, base + arg2);
+									ci.m_ip += arg1;
+								}
+								continue;
+							case OP_OR:
+								if (!isFalse(m_stackTypes[base + arg2], m_stackValues[base + arg2])) {
+									copyStack(base + arg0, base + arg2);
+									ci.m_ip += arg1;
+								}
+								continue;
+							case OP_NEG:
+								neg(m_stackTypes[base + arg1], m_stackValues[base + arg1], m_stackRefs[base + arg1]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							case OP_NOT:
+								setStack(base + arg0, OT_BOOL, isFalse(m_stackTypes[base + arg1], m_stackValues[base + arg1]) ? 1 : 0, null);
+								continue;
+							case OP_BWNOT:
+								if (m_stackTypes[base + arg1] == OT_INTEGER) {
+									setStack(base + arg0, OT_INTEGER, ~m_stackValues[base + arg1], null);
+									continue;
+								}
+								throw raise("attempt to perform a bitwise op on a " + typeName(m_stackTypes[base + arg1]));
+							case OP_CLOSURE:
+								closureOp(base + arg0, ((JSqClosure) ci.m_closure).m_function.m_functions[arg1]);
+								continue;
+							case OP_YIELD: {
+								if (ci.m_generator == null)
+									throw raise("trying to yield a 'null',only genenerator can be yielded");
+								int t = OT_NULL, v = 0;
+								Object r = null;
+								boolean hasValue = arg0 != 0xFF;
+								if (hasValue) {
+									t = m_stackTypes[base + arg1];
+									v = m_stackValues[base + arg1];
+									r = m_stackRefs[base + arg1];
+								}
+								yieldGenerator(ci.m_generator, arg2);
+								traps -= ci.m_etraps;
+								if (hasValue)
+									setStack(base + arg1, t, v, r);
+								if (ret(arg0, arg1))
+									return;
+								continue;
+							}
+							case OP_RESUME: {
+								int g = base + arg1;
+								if (m_stackTypes[g] != OT_GENERATOR)
+									throw raise("trying to resume a '" + typeName(m_stackTypes[g]) + "',only genenerator can be resumed");
+								resumeGenerator((JSqGenerator) m_stackRefs[g], arg0);
+								traps += m_ci.m_etraps;
+								continue;
+							}
+							case OP_FOREACH: {
+								int jump = foreach(base + arg0, base + arg2, arg1);
+								ci.m_ip += jump;
+								if (jump == 0)
+									traps += m_ci.m_etraps;
+								continue;
+							}
+							case OP_POSTFOREACH:
+								if (((JSqGenerator) m_stackRefs[base + arg0]).m_state == JSqGenerator.DEAD)
+									ci.m_ip += arg1 - 1;
+								continue;
+							case OP_CLONE:
+								cloneObject(m_stackTypes[base + arg1], m_stackValues[base + arg1], m_stackRefs[base + arg1]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							case OP_TYPEOF:
+								typeOf(m_stackTypes[base + arg1], m_stackValues[base + arg1], m_stackRefs[base + arg1]);
+								setStack(base + arg0, m_rt, m_rv, m_rr);
+								continue;
+							case OP_PUSHTRAP:
+								pushTrap(m_top, m_stackBase, ci.m_ip + arg1, arg0);
+								traps++;
+								ci.m_etraps++;
+								continue;
+							case OP_POPTRAP:
+								for (int n = 0; n < arg0; n++) {
+									m_nTraps--;
+									traps--;
+									ci.m_etraps--;
+								}
+								continue;
+							case OP_THROW:
+								throw raiseValue(m_stackTypes[base + arg0], m_stackValues[base + arg0], m_stackRefs[base + arg0]);
+							case OP_NEWSLOTA:
+								newSlotA(base, arg0, arg1, arg2, arg3);
+								continue;
+							case OP_GETBASE: {
+								JSqClass b = ((JSqClosure) ci.m_closure).m_base;
+								if (b != null)
+									setStack(base + arg0, OT_CLASS, 0, b);
+								else
+									nullStack(base + arg0);
+								continue;
+							}
+							case OP_CLOSE:
+								if (m_openOuters != null)
+									closeOuters(base + arg1);
+								continue;
+							default:
+								throw raise("internal vm error, invalid opcode " + op);
+						}
+					}
+				}
+				catch (ScriptError e) {
+					int errT = m_errType, errV = m_errValue;
+					Object errR = m_errRef;
+					int lastTop = m_top;
+					boolean stopped = stopped();
+					if (m_ss.m_notifyAllExceptions || ((traps == 0 || stopped) && raiseError))
+						callErrorHandler(errT, errV, errR);
+					boolean handled = false;
+					while (m_ci != null) {
+						CallInfo ci = m_ci;
+						if (stopped && ci.m_etraps > 0) {
+							// The call has to end, its traps are dropped instead of catching the error
+							m_nTraps -= ci.m_etraps;
+							traps -= ci.m_etraps;
+							ci.m_etraps = 0;
+						}
+						if (ci.m_etraps > 0) {
+							int t = (--m_nTraps) * 4;
+							ci.m_ip = m_traps[t + 2];
+							m_top = m_traps[t];
+							m_stackBase = m_traps[t + 1];
+							setStack(m_stackBase + m_traps[t + 3], errT, errV, errR);
+							traps--;
+							ci.m_etraps--;
+							while (lastTop >= m_top)
+								nullStack(lastTop--);
+							handled = true;
+							break;
+						}
+						if (ci.m_generator != null)
+							ci.m_generator.kill();
+						boolean mustBreak = ci.m_root;
+						leaveFrame();
+						if (mustBreak)
+							break;
+					}
+					m_errType = errT;
+					m_errValue = errV;
+					m_errRef = errR;
+					if (!handled)
+						throw e;
+				}
+			}
+		}
+		finally {
+			m_nativeCalls--;
+		}
+	}
+	
+	private static final char[] ARITH_CHARS = { '+', '-', '*', '/', '%' };
+	
+	// Object protocol
+	
+	/**
+	 * Looks up a key, SQVM::Get.
+	 * @param selfIdx The register the object came from, 0 enables the root table fallback.
+	 * @return True with the value in the result registers, false if the key doesn't exist.
+	 */
+	boolean get(int st, int sv, Object sr, int kt, int kv, Object kr, boolean raw, int selfIdx) {
+		switch (st) {
+			case OT_TABLE: {
+				JSqTable t = (JSqTable) sr;
+				int slot = t.find(kt, kv, kr);
+				if (slot >= 0) {
+					result(t.m_types[slot], t.m_values[slot], t.m_refs[slot]);
+					return true;
+				}
+				break;
+			}
+			case OT_ARRAY:
+				if (isNumeric(kt)) {
+					JSqArray a = (JSqArray) sr;
+					int idx = toInteger(kt, kv);
+					if (idx >= 0 && idx < a.m_size) {
+						result(a.m_types[idx], a.m_values[idx], a.m_refs[idx]);
+						return true;
+					}
+					return false;
+				}
+				break;
+			case OT_INSTANCE: {
+				JSqInstance inst = (JSqInstance) sr;
+				int m = inst.m_class.findMember(kt, kv, kr);
+				if (m >= 0) {
+					int idx = m & JSqClass.MEMBER_INDEX_MASK;
+					if ((m & JSqClass.MEMBER_TYPE_FIELD) != 0)
+						result(inst.m_types[idx], inst.m_values[idx], inst.m_refs[idx]);
+					else
+						result(inst.m_class.m_methodTypes[idx], inst.m_class.m_methodValues[idx], inst.m_class.m_methodRefs[idx]);
+					return true;
+				}
+				break;
+			}
+			case OT_CLASS: {
+				JSqClass c = (JSqClass) sr;
+				int m = c.findMember(kt, kv, kr);
+				if (m >= 0) {
+					classMember(c, m);
+					return true;
+				}
+				break;
+			}
+			case OT_STRING:
+				if (isNumeric(kt)) {
+					String s = (String) sr;
+					int n = toInteger(kt, kv);
+					if (Math.abs(n) < s.length()) {
+						if (n < 0)
+							n = s.length() + n;
+						result(OT_INTEGER, s.charAt(n), null);
+						return true;
+					}
+					return false;
+				}
+				break;
+		}
+		if (!raw) {
+			if (fallBackGet(st, sv, sr, kt, kv, kr))
+				return true;
+			JSqTable d = m_ss.getDefaultDelegate(st);
+			if (d != null) {
+				int slot = d.find(kt, kv, kr);
+				if (slot >= 0) {
+					result(d.m_types[slot], d.m_values[slot], d.m_refs[slot]);
+					return true;
+				}
+			}
+		}
+		if (selfIdx == 0 && m_root != null) {
+			int slot = m_root.find(kt, kv, kr);
+			if (slot >= 0) {
+				result(m_root.m_types[slot], m_root.m_values[slot], m_root.m_refs[slot]);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	void classMember(JSqClass c, int member) {
+		int idx = member & JSqClass.MEMBER_INDEX_MASK;
+		if ((member & JSqClass.MEMBER_TYPE_FIELD) != 0)
+			result(c.m_defaultTypes[idx], c.m_defaultValues[idx], c.m_defaultRefs[idx]);
+		else
+			result(c.m_methodTypes[idx], c.m_methodValues[idx], c.m_methodRefs[idx]);
+	}
+	
+	private boolean fallBackGet(int st, int sv, Object sr, int kt, int kv, Object kr) {
+		switch (st) {
+			case OT_TABLE:
+			case OT_USERDATA: {
+				JSqTable d = delegateOf(st, sr);
+				if (d == null)
+					return false;
+				if (get(OT_TABLE, 0, d, kt, kv, kr, false, DONT_FALL_BACK))
+					return true;
+				return metaGet(st, sv, sr, kt, kv, kr);
+			}
+			case OT_INSTANCE:
+				return metaGet(st, sv, sr, kt, kv, kr);
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Calls the _get metamethod of a table, userdata or instance.
+	 * @return True with the value in the result registers, false if there is none or it didn't find the key.
+	 */
+	private boolean metaGet(int st, int sv, Object sr, int kt, int kv, Object kr) {
+		if (!getMetaMethod(st, sr, MT_GET))
+			return false;
+		int ct = m_rt;
+		Object cr = m_rr;
+		push(st, sv, sr);
+		push(kt, kv, kr);
+		m_metaCalls++;
+		try {
+			call(ct, cr, 2, m_top - 2, false);
+			return true;
+		}
+		catch (ScriptError e) {
+			// a null error means the metamethod didn't find the key
+			if (m_errType != OT_NULL)
+				throw e;
+			return false;
+		}
+		finally {
+			m_metaCalls--;
+			pop(2);
+		}
+	}
+	
+	static JSqTable delegateOf(int t, Object r) {
+		switch (t) {
+			case OT_TABLE: return ((JSqTable) r).m_delegate;
+			case OT_USERDATA: return ((JSqUserDataBlock) r).m_delegate;
+			default: return null;
+		}
+	}
+	
+	/**
+	 * Looks up a metamethod of a table, userdata or instance.
+	 * @return True with the metamethod in the result registers.
+	 */
+	boolean getMetaMethod(int t, Object r, int mm) {
+		if (t == OT_INSTANCE) {
+			JSqClass c = ((JSqInstance) r).m_class;
+			if (c.m_metamethods[mm] == null)
+				return false;
+			result(c.m_metamethodTypes[mm], 0, c.m_metamethods[mm]);
+			return true;
+		}
+		JSqTable d = delegateOf(t, r);
+		if (d == null)
+			return false;
+		int slot = d.findString(METAMETHOD_NAMES[mm]);
+		if (slot < 0)
+			return false;
+		result(d.m_types[slot], d.m_values[slot], d.m_refs[slot]);
+		return true;
+	}
+	
+	/**
+	 * Sets an existing key, SQVM::Set.
+	 */
+	void set(int st, int sv, Object sr, int kt, int kv, Object kr, int vt, int vv, Object vr, int selfIdx) {
+		switch (st) {
+			case OT_TABLE:
+				if (((JSqTable) sr).set(kt, kv, kr, vt, vv, vr))
+					return;
+				break;
+			case OT_INSTANCE:
+				if (instanceSet((JSqInstance) sr, kt, kv, kr, vt, vv, vr))
+					return;
+				break;
+			case OT_ARRAY:
+				if (!isNumeric(kt))
+					throw raise("indexing " + typeName(st) + " with " + typeName(kt));
+				if (!((JSqArray) sr).set(toInteger(kt, kv), vt, vv, vr))
+					throw raiseIdxError(kt, kv, kr);
+				return;
+			default:
+				throw raise("trying to set '" + typeName(st) + "'");
+		}
+		if (fallBackSet(st, sv, sr, kt, kv, kr, vt, vv, vr))
+			return;
+		if (selfIdx == 0 && m_root != null && m_root.set(kt, kv, kr, vt, vv, vr))
+			return;
+		throw raiseIdxError(kt, kv, kr);
+	}
+	
+	static boolean instanceSet(JSqInstance inst, int kt, int kv, Object kr, int vt, int vv, Object vr) {
+		int m = inst.m_class.findMember(kt, kv, kr);
+		if (m >= 0 && (m & JSqClass.MEMBER_TYPE_FIELD) != 0) {
+			int idx = m & JSqClass.MEMBER_INDEX_MASK;
+			inst.m_types[idx] = vt;
+			inst.m_values[idx] = vv;
+			inst.m_refs[idx] = vr;
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean fallBackSet(int st, int sv, Object sr, int kt, int kv, Object kr, int vt, int vv, Object vr) {
+		switch (st) {
+			case OT_TABLE: {
+				JSqTable d = ((JSqTable) sr).m_delegate;
+				if (d == null)
+					return false;
+				try {
+					set(OT_TABLE, 0, d, kt, kv, kr, vt, vv, vr, DONT_FALL_BACK);
+					return true;
+				}
+				catch (ScriptError e) {
+					return false;
+				}
+			}
+			case OT_INSTANCE:
+			case OT_USERDATA:
+				if (getMetaMethod(st, sr, MT_SET)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(st, sv, sr);
+					push(kt, kv, kr);
+					push(vt, vv, vr);
+					m_metaCalls++;
+					try {
+						call(ct, cr, 3, m_top - 3, false);
+						return true;
+					}
+					catch (ScriptError e) {
+						if (m_errType != OT_NULL)
+							throw e;
+					}
+					finally {
+						m_metaCalls--;
+						pop(3);
+					}
+				}
+				break;
+		}
+		return false;
+	}
+	
+	/**
+	 * Creates a slot, SQVM::NewSlot. The arguments are absolute stack indices.
+	 */
+	void newSlot(int self, int key, int val, boolean isStatic) {
+		int st = m_stackTypes[self], kt = m_stackTypes[key], vt = m_stackTypes[val];
+		int sv = m_stackValues[self], kv = m_stackValues[key], vv = m_stackValues[val];
+		Object sr = m_stackRefs[self], kr = m_stackRefs[key], vr = m_stackRefs[val];
+		if (kt == OT_NULL)
+			throw raise("null cannot be used as index");
+		switch (st) {
+			case OT_TABLE: {
+				JSqTable t = (JSqTable) sr;
+				if (t.m_delegate != null && t.find(kt, kv, kr) < 0 && getMetaMethod(st, sr, MT_NEWSLOT)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(st, sv, sr);
+					push(kt, kv, kr);
+					push(vt, vv, vr);
+					callMetaMethod(ct, cr, 3);
+					break;
+				}
+				if (m_ss.m_limit != null)
+					charge(JSqMemoryMeter.TABLE_SLOT * (long) t.growth());
+				t.newSlot(kt, kv, kr, vt, vv, vr);
+				break;
+			}
+			case OT_INSTANCE:
+				if (getMetaMethod(st, sr, MT_NEWSLOT)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(st, sv, sr);
+					push(kt, kv, kr);
+					push(vt, vv, vr);
+					callMetaMethod(ct, cr, 3);
+					break;
+				}
+				throw raise("class instances do not support the new slot operator");
+			case OT_CLASS: {
+				JSqClass c = (JSqClass) sr;
+				if (!c.newSlot(m_ss, kt, kv, kr, vt, vv, vr, isStatic)) {
+					if (c.m_locked)
+						throw raise("trying to modify a class that has already been instantiated");
+					throw raise("the property '" + printObjVal(kt, kv, kr) + "' already exists");
+				}
+				break;
+			}
+			default:
+				throw raise("indexing " + typeName(st) + " with " + typeName(kt));
+		}
+	}
+	
+	private void newSlotA(int base, int arg0, int arg1, int arg2, int arg3) {
+		boolean isStatic = (arg0 & NEW_SLOT_STATIC_FLAG) != 0;
+		boolean hasAttributes = (arg0 & NEW_SLOT_ATTRIBUTES_FLAG) != 0;
+		int self = base + arg1;
+		if (m_stackTypes[self] == OT_CLASS) {
+			JSqClass c = (JSqClass) m_stackRefs[self];
+			if (c.m_metamethods[MT_NEWMEMBER] != null) {
+				pushCopy(self);
+				pushCopy(base + arg2);
+				pushCopy(base + arg3);
+				if (hasAttributes)
+					pushCopy(base + arg2 - 1);
+				else
+					push(OT_NULL, 0, null);
+				push(OT_BOOL, isStatic ? 1 : 0, null);
+				call(c.m_metamethodTypes[MT_NEWMEMBER], c.m_metamethods[MT_NEWMEMBER], 5, m_top - 5, false);
+				pop(5);
+				return;
+			}
+		}
+		newSlot(self, base + arg2, base + arg3, isStatic);
+		if (hasAttributes) {
+			int k = base + arg2, a = base + arg2 - 1;
+			((JSqClass) m_stackRefs[self]).setAttributes(m_stackTypes[k], m_stackValues[k], m_stackRefs[k],
+					new JSqObject(m_stackTypes[a], m_stackValues[a], m_stackRefs[a]));
+		}
+	}
+	
+	/**
+	 * Deletes a slot, SQVM::DeleteSlot, leaving the removed value in the result registers.
+	 */
+	void deleteSlot(int self, int key) {
+		int st = m_stackTypes[self], kt = m_stackTypes[key];
+		int sv = m_stackValues[self], kv = m_stackValues[key];
+		Object sr = m_stackRefs[self], kr = m_stackRefs[key];
+		switch (st) {
+			case OT_TABLE:
+			case OT_INSTANCE:
+			case OT_USERDATA:
+				if (getMetaMethod(st, sr, MT_DELSLOT)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(st, sv, sr);
+					push(kt, kv, kr);
+					callMetaMethod(ct, cr, 2);
+					return;
+				}
+				if (st == OT_TABLE) {
+					JSqTable t = (JSqTable) sr;
+					int slot = t.find(kt, kv, kr);
+					if (slot < 0)
+						throw raiseIdxError(kt, kv, kr);
+					result(t.m_types[slot], t.m_values[slot], t.m_refs[slot]);
+					t.remove(kt, kv, kr);
+					return;
+				}
+				throw raise("cannot delete a slot from " + typeName(st));
+			default:
+				throw raise("attempt to delete a slot from a " + typeName(st));
+		}
+	}
+	
+	private void derefInc(int op, int target, int self, int key, int it, int iv, Object ir, boolean postfix, int selfIdx) {
+		int st = m_stackTypes[self], kt = m_stackTypes[key];
+		int sv = m_stackValues[self], kv = m_stackValues[key];
+		Object sr = m_stackRefs[self], kr = m_stackRefs[key];
+		if (!get(st, sv, sr, kt, kv, kr, false, selfIdx))
+			throw raiseIdxError(kt, kv, kr);
+		int ot = m_rt, ov = m_rv;
+		Object or = m_rr;
+		arith(op, ot, ov, or, it, iv, ir);
+		int nt = m_rt, nv = m_rv;
+		Object nr = m_rr;
+		set(st, sv, sr, kt, kv, kr, nt, nv, nr, selfIdx);
+		if (postfix)
+			setStack(target, ot, ov, or);
+		else
+			setStack(target, nt, nv, nr);
+	}
+	
+	/**
+	 * Arithmetic, SQVM::ARITH_OP, result in the result registers.
+	 */
+	void arith(int op, int t1, int v1, Object r1, int t2, int v2, Object r2) {
+		int mask = t1 | t2;
+		if (mask == OT_INTEGER) {
+			int res;
+			switch (op) {
+				case '+': res = v1 + v2; break;
+				case '-': res = v1 - v2; break;
+				case '*': res = v1 * v2; break;
+				case '/':
+					if (v2 == 0)
+						throw raise("division by zero");
+					res = v1 / v2;
+					break;
+				case '%':
+					if (v2 == 0)
+						throw raise("modulo by zero");
+					res = v1 % v2;
+					break;
+				default: res = 0xDEADBEEF;
+			}
+			result(OT_INTEGER, res, null);
+		}
+		else if (mask == OT_FLOAT || mask == (OT_FLOAT | OT_INTEGER)) {
+			float f1 = toFloat(t1, v1), f2 = toFloat(t2, v2), res;
+			switch (op) {
+				case '+': res = f1 + f2; break;
+				case '-': res = f1 - f2; break;
+				case '*': res = f1 * f2; break;
+				case '/': res = f1 / f2; break;
+				case '%': res = f1 % f2; break;
+				default: res = 0x0f;
+			}
+			result(OT_FLOAT, Float.floatToRawIntBits(res), null);
+		}
+		else if (op == '+' && (t1 == OT_STRING || t2 == OT_STRING)) {
+			String s1 = toStringValue(t1, v1, r1);
+			String s2 = toStringValue(t2, v2, r2);
+			charge(JSqMemoryMeter.stringBytes(s1.length() + s2.length()));
+			result(OT_STRING, 0, s1.concat(s2));
+		}
+		else {
+			int mm;
+			switch (op) {
+				case '+': mm = MT_ADD; break;
+				case '-': mm = MT_SUB; break;
+				case '/': mm = MT_DIV; break;
+				case '*': mm = MT_MUL; break;
+				default: mm = MT_MODULO; break;
+			}
+			if ((t1 & Squirrel.SQOBJECT_DELEGABLE) != 0 && getMetaMethod(t1, r1, mm)) {
+				int ct = m_rt;
+				Object cr = m_rr;
+				push(t1, v1, r1);
+				push(t2, v2, r2);
+				callMetaMethod(ct, cr, 2);
+				return;
+			}
+			throw raise("arith op " + (char) op + " on between '" + typeName(t1) + "' and '" + typeName(t2) + "'");
+		}
+	}
+	
+	private void bitwise(int op, int t1, int v1, int t2, int v2) {
+		if ((t1 | t2) != OT_INTEGER)
+			throw raise("bitwise op between '" + typeName(t1) + "' and '" + typeName(t2) + "'");
+		int res;
+		switch (op) {
+			case BW_AND: res = v1 & v2; break;
+			case BW_OR: res = v1 | v2; break;
+			case BW_XOR: res = v1 ^ v2; break;
+			case BW_SHIFTL: res = v1 << v2; break;
+			case BW_SHIFTR: res = v1 >> v2; break;
+			case BW_USHIFTR: res = v1 >>> v2; break;
+			default: throw raise("internal vm error bitwise op failed");
+		}
+		result(OT_INTEGER, res, null);
+	}
+	
+	private void neg(int t, int v, Object r) {
+		switch (t) {
+			case OT_INTEGER:
+				result(OT_INTEGER, -v, null);
+				return;
+			case OT_FLOAT:
+				result(OT_FLOAT, Float.floatToRawIntBits(-Float.intBitsToFloat(v)), null);
+				return;
+			case OT_TABLE:
+			case OT_USERDATA:
+			case OT_INSTANCE:
+				if (getMetaMethod(t, r, MT_UNM)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(t, v, r);
+					callMetaMethod(ct, cr, 1);
+					return;
+				}
+				break;
+		}
+		throw raise("attempt to negate a " + typeName(t));
+	}
+	
+	static boolean isEqual(int t1, int v1, Object r1, int t2, int v2, Object r2) {
+		if (t1 == t2)
+			return rawEquals(t1, v1, r1, t2, v2, r2);
+		if (isNumeric(t1) && isNumeric(t2))
+			return toFloat(t1, v1) == toFloat(t2, v2);
+		return false;
+	}
+	
+	/**
+	 * Three way comparison, SQVM::ObjCmp.
+	 */
+	int objCmp(int t1, int v1, Object r1, int t2, int v2, Object r2) {
+		if (t1 == t2) {
+			if (v1 == v2 && r1 == r2)
+				return 0;
+			switch (t1) {
+				case OT_STRING:
+					return ((String) r1).compareTo((String) r2);
+				case OT_INTEGER:
+					return v1 - v2;
+				case OT_FLOAT:
+					return Float.intBitsToFloat(v1) < Float.intBitsToFloat(v2) ? -1 : 1;
+				case OT_TABLE:
+				case OT_USERDATA:
+				case OT_INSTANCE:
+					if (getMetaMethod(t1, r1, MT_CMP)) {
+						int ct = m_rt;
+						Object cr = m_rr;
+						push(t1, v1, r1);
+						push(t2, v2, r2);
+						callMetaMethod(ct, cr, 2);
+						if (m_rt != OT_INTEGER)
+							throw raise("_cmp must return an integer");
+						return m_rv;
+					}
+					return System.identityHashCode(r1) < System.identityHashCode(r2) ? -1 : 1;
+				default:
+					return System.identityHashCode(r1) < System.identityHashCode(r2) ? -1 : 1;
+			}
+		}
+		if (isNumeric(t1) && isNumeric(t2)) {
+			float f1 = toFloat(t1, v1), f2 = toFloat(t2, v2);
+			if (f1 == f2)
+				return 0;
+			return f1 < f2 ? -1 : 1;
+		}
+		if (t1 == OT_NULL)
+			return -1;
+		if (t2 == OT_NULL)
+			return 1;
+		throw raise("comparison between '" + typeName(t1) + "' and '" + typeName(t2) + "'");
+	}
+	
+	private boolean compare(int op, int t1, int v1, Object r1, int t2, int v2, Object r2) {
+		if ((t1 | t2) == OT_INTEGER) {
+			switch (op) {
+				case CMP_G: return v1 > v2;
+				case CMP_GE: return v1 >= v2;
+				case CMP_L: return v1 < v2;
+				default: return v1 <= v2;
+			}
+		}
+		int r = objCmp(t1, v1, r1, t2, v2, r2);
+		switch (op) {
+			case CMP_G: return r > 0;
+			case CMP_GE: return r >= 0;
+			case CMP_L: return r < 0;
+			default: return r <= 0;
+		}
+	}
+	
+	/**
+	 * Converts a value to a string, calling _tostring on objects that define it.
+	 */
+	String toStringValue(int t, int v, Object r) {
+		switch (t) {
+			case OT_STRING:
+				return (String) r;
+			case OT_FLOAT:
+				return formatFloat(Float.intBitsToFloat(v));
+			case OT_INTEGER:
+				return Integer.toString(v);
+			case OT_BOOL:
+				return v != 0 ? "true" : "false";
+			case OT_TABLE:
+			case OT_USERDATA:
+			case OT_INSTANCE:
+				if (getMetaMethod(t, r, MT_TOSTRING)) {
+					int ct = m_rt;
+					Object cr = m_rr;
+					push(t, v, r);
+					callMetaMethod(ct, cr, 1);
+					if (m_rt == OT_STRING)
+						return (String) m_rr;
+				}
+				break;
+		}
+		return "(" + typeName(t) + " : 0x" + String.format("%08X", r == null ? 0 : System.identityHashCode(r)) + ")";
+	}
+	
+	void typeOf(int t, int v, Object r) {
+		if ((t & Squirrel.SQOBJECT_DELEGABLE) != 0 && getMetaMethod(t, r, MT_TYPEOF)) {
+			int ct = m_rt;
+			Object cr = m_rr;
+			push(t, v, r);
+			callMetaMethod(ct, cr, 1);
+			return;
+		}
+		result(OT_STRING, 0, typeName(t));
+	}
+	
+	void cloneObject(int t, int v, Object r) {
+		int nt;
+		Object copy;
+		switch (t) {
+			case OT_TABLE:
+				nt = OT_TABLE;
+				copy = ((JSqTable) r).cloneTable();
+				break;
+			case OT_INSTANCE:
+				nt = OT_INSTANCE;
+				copy = ((JSqInstance) r).cloneInstance();
+				break;
+			case OT_ARRAY:
+				result(OT_ARRAY, 0, ((JSqArray) r).cloneArray());
+				return;
+			default:
+				throw raise("cloning a " + typeName(t));
+		}
+		if (getMetaMethod(nt, copy, MT_CLONED)) {
+			int ct = m_rt;
+			Object cr = m_rr;
+			push(nt, 0, copy);
+			push(t, v, r);
+			callMetaMethod(ct, cr, 2);
+		}
+		result(nt, 0, copy);
+	}
+	
+	private void closureOp(int target, JSqFunctionProto func) {
+		charge(JSqMemoryMeter.closureBytes(func));
+		JSqClosure closure = new JSqClosure(func);
+		JSqClosure current = (JSqClosure) m_ci.m_closure;
+		for (int i = 0; i < closure.m_outers.length; i++) {
+			if (func.m_outerTypes[i] == JSqFunctionProto.OUTER_LOCAL)
+				closure.m_outers[i] = findOuter(m_stackBase + func.m_outerSources[i]);
+			else
+				closure.m_outers[i] = current.m_outers[func.m_outerSources[i]];
+		}
+		for (int i = 0; i < func.m_defaultParams.length; i++) {
+			int spos = m_stackBase + func.m_defaultParams[i];
+			closure.m_defaultTypes[i] = m_stackTypes[spos];
+			closure.m_defaultValues[i] = m_stackValues[spos];
+			closure.m_defaultRefs[i] = m_stackRefs[spos];
+		}
+		setStack(target, OT_CLOSURE, 0, closure);
+	}
+	
+	private void classOp(int target, int baseClass, int attributes) {
+		JSqClass base = null;
+		if (baseClass != -1) {
+			int b = m_stackBase + baseClass;
+			if (m_stackTypes[b] != OT_CLASS)
+				throw raise("trying to inherit from a " + typeName(m_stackTypes[b]));
+			base = (JSqClass) m_stackRefs[b];
+		}
+		JSqObject attrs = null;
+		if (attributes != MAX_FUNC_STACKSIZE) {
+			int a = m_stackBase + attributes;
+			attrs = new JSqObject(m_stackTypes[a], m_stackValues[a], m_stackRefs[a]);
+		}
+		charge(JSqMemoryMeter.classBytes(base));
+		JSqClass c = new JSqClass(base);
+		if (c.m_metamethods[MT_INHERITED] != null) {
+			push(OT_CLASS, 0, c);
+			if (attrs != null)
+				push(attrs.m_type, attrs.m_value, attrs.m_ref);
+			else
+				push(OT_NULL, 0, null);
+			try {
+				call(c.m_metamethodTypes[MT_INHERITED], c.m_metamethods[MT_INHERITED], 2, m_top - 2, false);
+			}
+			catch (ScriptError e) {
+				// the native VM ignores the result of _inherited too
+			}
+			pop(2);
+		}
+		c.m_attributes = attrs;
+		setStack(target, OT_CLASS, 0, c);
+	}
+	
+	/**
+	 * One step of a foreach loop, SQVM::FOREACH_OP. The key, value and iterator live in consecutive registers.
+	 * @return The number of instructions to jump.
+	 */
+	int foreach(int container, int key, int exitPos) {
+		int t = m_stackTypes[container];
+		int v = m_stackValues[container];
+		Object r = m_stackRefs[container];
+		int itr = key + 2;
+		int pos = m_stackTypes[itr] == OT_INTEGER ? m_stackValues[itr] : 0;
+		switch (t) {
+			case OT_TABLE: {
+				JSqTable tb = (JSqTable) r;
+				int slot = tb.next(pos);
+				if (slot < 0)
+					return exitPos;
+				setStack(key, tb.m_keyTypes[slot], tb.m_keyValues[slot], tb.m_keyRefs[slot]);
+				setStack(key + 1, tb.m_types[slot], tb.m_values[slot], tb.m_refs[slot]);
+				setStack(itr, OT_INTEGER, slot + 1, null);
+				return 1;
+			}
+			case OT_ARRAY: {
+				JSqArray a = (JSqArray) r;
+				if (pos >= a.m_size)
+					return exitPos;
+				setStack(key, OT_INTEGER, pos, null);
+				setStack(key + 1, a.m_types[pos], a.m_values[pos], a.m_refs[pos]);
+				setStack(itr, OT_INTEGER, pos + 1, null);
+				return 1;
+			}
+			case OT_STRING: {
+				String s = (String) r;
+				if (pos >= s.length())
+					return exitPos;
+				setStack(key, OT_INTEGER, pos, null);
+				setStack(key + 1, OT_INTEGER, s.charAt(pos), null);
+				setStack(itr, OT_INTEGER, pos + 1, null);
+				return 1;
+			}
+			case OT_CLASS: {
+				JSqClass c = (JSqClass) r;
+				JSqTable members = c.m_members;
+				int slot = members.next(pos);
+				if (slot < 0)
+					return exitPos;
+				setStack(key, members.m_keyTypes[slot], members.m_keyValues[slot], members.m_keyRefs[slot]);
+				classMember(c, members.m_values[slot]);
+				setStack(key + 1, m_rt, m_rv, m_rr);
+				setStack(itr, OT_INTEGER, slot + 1, null);
+				return 1;
+			}
+			case OT_USERDATA:
+			case OT_INSTANCE:
+				if (t == OT_INSTANCE || delegateOf(t, r) != null) {
+					if (getMetaMethod(t, r, MT_NEXTI)) {
+						int ct = m_rt;
+						Object cr = m_rr;
+						push(t, v, r);
+						pushCopy(itr);
+						callMetaMethod(ct, cr, 2);
+						setStack(itr, m_rt, m_rv, m_rr);
+						setStack(key, m_rt, m_rv, m_rr);
+						if (m_rt == OT_NULL)
+							return exitPos;
+						if (!get(t, v, r, m_rt, m_rv, m_rr, false, DONT_FALL_BACK))
+							throw raise("_nexti returned an invalid idx");
+						setStack(key + 1, m_rt, m_rv, m_rr);
+						return 1;
+					}
+					throw raise("_nexti failed");
+				}
+				break;
+			case OT_GENERATOR: {
+				JSqGenerator gen = (JSqGenerator) r;
+				if (gen.m_state == JSqGenerator.DEAD)
+					return exitPos;
+				if (gen.m_state == JSqGenerator.SUSPENDED) {
+					int idx = m_stackTypes[itr] == OT_INTEGER ? m_stackValues[itr] + 1 : 0;
+					setStack(key, OT_INTEGER, idx, null);
+					setStack(itr, OT_INTEGER, idx, null);
+					resumeGenerator(gen, key + 1 - m_stackBase);
+					return 0;
+				}
+				break;
+			}
+		}
+		throw raise("cannot iterate " + typeName(t));
+	}
+	
+	// API, the Java backend side of the sq_* functions in Squirrel
+	
+	int throwError(String err) {
+		m_errType = OT_STRING;
+		m_errValue = 0;
+		m_errRef = err;
+		return SQ_ERROR;
+	}
+	
+	private int invalidType(int t) {
+		return throwError("unexpected type " + typeName(t));
+	}
+	
+	int type(int idx) {
+		return m_stackTypes[stackIndex(idx)];
+	}
+	
+	Object ref(int idx) {
+		return m_stackRefs[stackIndex(idx)];
+	}
+	
+	JSqInterpreter newThread(int stackSize) {
+		JSqInterpreter t = new JSqInterpreter(m_ss, this, stackSize);
+		push(OT_THREAD, 0, t);
+		return t;
+	}
+	
+	void close() {
+		pop(m_top);
+		m_root = null;
+	}
+	
+	int suspendVM() {
+		if (m_suspended)
+			return throwError("cannot suspend an already suspended vm");
+		if (m_nativeCalls != 2)
+			return throwError("cannot suspend through native calls/metamethods");
+		return SQ_SUSPEND_FLAG;
+	}
+	
+	int wakeupVM(boolean wakeupRet, boolean retval, boolean raiseError, boolean throwError) {
+		if (!m_suspended)
+			return throwError("cannot resume a vm that is not running any code");
+		int target = m_suspendedTarget;
+		if (wakeupRet) {
+			if (target != -1)
+				copyStack(m_stackBase + target, m_top - 1);
+			pop(1);
+		}
+		else if (target != -1) {
+			nullStack(m_stackBase + target);
+		}
+		try {
+			execute(null, -1, -1, raiseError, throwError ? ET_RESUME_THROW_VM : ET_RESUME_VM, 0);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		if (retval)
+			pushResult();
+		return SQ_OK;
+	}
+	
+	int getVMState() {
+		if (m_suspended)
+			return SQ_VMSTATE_SUSPENDED;
+		return m_callsSize != 0 ? SQ_VMSTATE_RUNNING : SQ_VMSTATE_IDLE;
+	}
+	
+	int compileBuffer(CharSequence source, String sourceName, boolean raiseError) {
+		JSqCompiler compiler = new JSqCompiler(m_ss.m_compilerConsts);
+		compiler.setDebugInfo(m_ss.m_debugInfo);
+		JSqFunctionProto proto;
+		try {
+			proto = compiler.compile(source, sourceName);
+		}
+		catch (JSqCompilerException e) {
+			JSqCompilerErrorHandler handler = m_ss.m_compilerErrorHandler;
+			if (raiseError && handler != null)
+				handler.error(m_vm, e.getMessage(), e.getSourceName(), e.getLine(), e.getColumn());
+			return throwError(e.getMessage());
+		}
+		push(OT_CLOSURE, 0, new JSqClosure(proto));
+		return SQ_OK;
+	}
+	
+	int writeClosure(WritableByteChannel out) throws IOException {
+		int i = m_top - 1;
+		if (m_stackTypes[i] != OT_CLOSURE)
+			return throwError("the object must be a closure");
+		JSqClosure c = (JSqClosure) m_stackRefs[i];
+		if (c.m_outers.length != 0)
+			return throwError("a closure with free valiables bound it cannot be serialized");
+		JSqClosureStream.write(c.m_function, out);
+		return SQ_OK;
+	}
+	
+	int readClosure(ByteBuffer buf, ReadableByteChannel in) throws IOException {
+		JSqFunctionProto proto;
+		try {
+			proto = JSqClosureStream.read(buf, in);
+		}
+		catch (JSquirrelException e) {
+			return throwError(e.getMessage());
+		}
+		pushClosure(proto);
+		return SQ_OK;
+	}
+	
+	void pushClosure(JSqFunctionProto proto) {
+		push(OT_CLOSURE, 0, new JSqClosure(proto));
+	}
+	
+	void remove(int idx) {
+		int i = stackIndex(idx);
+		int n = m_top - 1 - i;
+		System.arraycopy(m_stackTypes, i + 1, m_stackTypes, i, n);
+		System.arraycopy(m_stackValues, i + 1, m_stackValues, i, n);
+		System.arraycopy(m_stackRefs, i + 1, m_stackRefs, i, n);
+		pop(1);
+	}
+	
+	int getTop() {
+		return m_top - m_stackBase;
+	}
+	
+	void setTop(int newTop) {
+		int top = getTop();
+		if (top > newTop)
+			pop(top - newTop);
+		else
+			while (top++ < newTop)
+				push(OT_NULL, 0, null);
+	}
+	
+	int reserveStack(int size) {
+		if (m_ss.m_limit != null && !tryCharge(stackGrowth(m_top + size + MIN_STACK_OVERHEAD)))
+			return SQ_ERROR;
+		growStack(m_top + size + MIN_STACK_OVERHEAD);
+		return SQ_OK;
+	}
+	
+	int cmp() {
+		int a = m_top - 2, b = m_top - 1;
+		try {
+			return objCmp(m_stackTypes[a], m_stackValues[a], m_stackRefs[a], m_stackTypes[b], m_stackValues[b], m_stackRefs[b]);
+		}
+		catch (ScriptError e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Pushes a table for the API, or null with the last error set if it doesn't fit the memory limit.
+	 */
+	int newTable(int capacity) {
+		if (m_ss.m_limit != null && !tryCharge(JSqMemoryMeter.tableBytes(capacity))) {
+			push(OT_NULL, 0, null);
+			return SQ_ERROR;
+		}
+		push(OT_TABLE, 0, new JSqTable(capacity));
+		return SQ_OK;
+	}
+	
+	/**
+	 * Pushes an array of {@code size} nulls for the API, or null with the last error set if it doesn't fit the memory limit.
+	 */
+	int newArray(int size) {
+		if (m_ss.m_limit != null && !tryCharge(JSqMemoryMeter.arrayBytes(size))) {
+			push(OT_NULL, 0, null);
+			return SQ_ERROR;
+		}
+		push(OT_ARRAY, 0, new JSqArray(size));
+		return SQ_OK;
+	}
+	
+	/**
+	 * @return The userdata's pointer, or 0 with null pushed and the last error set if it doesn't fit the memory limit.
+	 */
+	long newUserData(int size) {
+		if (m_ss.m_limit != null && !tryCharge(JSqMemoryMeter.OBJECT + 16 + (long) size)) {
+			push(OT_NULL, 0, null);
+			return 0;
+		}
+		long p = m_ss.newPointer();
+		push(OT_USERDATA, 0, new JSqUserDataBlock(size, p));
+		return p;
+	}
+	
+	int setParamsCheck(int nparamsCheck, String typeMask) {
+		int i = m_top - 1;
+		if (m_stackTypes[i] != OT_NATIVECLOSURE)
+			return throwError("native closure expected");
+		JSqNativeClosure nc = (JSqNativeClosure) m_stackRefs[i];
+		nc.m_nparamsCheck = nparamsCheck;
+		if (typeMask != null) {
+			int[] mask = JSqBaseLib.compileTypeMask(typeMask);
+			if (mask == null)
+				return throwError("invalid typemask");
+			nc.m_typeCheck = mask;
+		}
+		else {
+			nc.m_typeCheck = null;
+		}
+		if (nparamsCheck == SQ_MATCHTYPEMASKSTRING)
+			nc.m_nparamsCheck = nc.m_typeCheck.length;
+		return SQ_OK;
+	}
+	
+	int bindEnv(int idx) {
+		int o = stackIndex(idx), e = m_top - 1;
+		int ot = m_stackTypes[o], et = m_stackTypes[e];
+		if (ot != OT_CLOSURE && ot != OT_NATIVECLOSURE)
+			return throwError("the target is not a closure");
+		if (et != OT_TABLE && et != OT_CLASS && et != OT_INSTANCE)
+			return throwError("invalid environment");
+		JSqWeakRef w = new JSqWeakRef(et, m_stackRefs[e]);
+		Object bound;
+		if (ot == OT_CLOSURE) {
+			JSqClosure c = ((JSqClosure) m_stackRefs[o]).cloneClosure();
+			c.m_env = w;
+			bound = c;
+		}
+		else {
+			JSqNativeClosure c = ((JSqNativeClosure) m_stackRefs[o]).cloneClosure();
+			c.m_env = w;
+			bound = c;
+		}
+		pop(1);
+		push(ot, 0, bound);
+		return SQ_OK;
+	}
+	
+	void pushString(String s) {
+		if (s == null)
+			push(OT_NULL, 0, null);
+		else
+			push(OT_STRING, 0, s);
+	}
+	
+	int typeOfIdx(int idx) {
+		int i = stackIndex(idx);
+		try {
+			typeOf(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		pushResult();
+		return SQ_OK;
+	}
+	
+	int getSize(int idx) {
+		int i = stackIndex(idx);
+		Object r = m_stackRefs[i];
+		switch (m_stackTypes[i]) {
+			case OT_STRING: return ((String) r).length();
+			case OT_TABLE: return ((JSqTable) r).size();
+			case OT_ARRAY: return ((JSqArray) r).m_size;
+			case OT_USERDATA: return ((JSqUserDataBlock) r).m_size;
+			case OT_INSTANCE: return ((JSqInstance) r).m_class.m_udSize;
+			case OT_CLASS: return ((JSqClass) r).m_udSize;
+			default: return invalidType(m_stackTypes[i]);
+		}
+	}
+	
+	int getHash(int idx) {
+		int i = stackIndex(idx);
+		return hash(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+	}
+	
+	int getBase(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS)
+			return invalidType(m_stackTypes[i]);
+		JSqClass base = ((JSqClass) m_stackRefs[i]).m_base;
+		if (base != null)
+			push(OT_CLASS, 0, base);
+		else
+			push(OT_NULL, 0, null);
+		return SQ_OK;
+	}
+	
+	boolean instanceOf() {
+		int inst = m_top - 1, cls = m_top - 2;
+		if (m_stackTypes[inst] != OT_INSTANCE || m_stackTypes[cls] != OT_CLASS) {
+			throwError("invalid param type");
+			return false;
+		}
+		return ((JSqInstance) m_stackRefs[inst]).instanceOf((JSqClass) m_stackRefs[cls]);
+	}
+	
+	int toStringIdx(int idx) {
+		int i = stackIndex(idx);
+		String s;
+		try {
+			s = toStringValue(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		push(OT_STRING, 0, s);
+		return SQ_OK;
+	}
+	
+	boolean toBool(int idx) {
+		int i = stackIndex(idx);
+		return !isFalse(m_stackTypes[i], m_stackValues[i]);
+	}
+	
+	String getString(int idx) {
+		int i = stackIndex(idx);
+		return m_stackTypes[i] == OT_STRING ? (String) m_stackRefs[i] : null;
+	}
+	
+	int getInteger(int idx) {
+		int i = stackIndex(idx);
+		return isNumeric(m_stackTypes[i]) ? toInteger(m_stackTypes[i], m_stackValues[i]) : 0;
+	}
+	
+	float getFloat(int idx) {
+		int i = stackIndex(idx);
+		return isNumeric(m_stackTypes[i]) ? toFloat(m_stackTypes[i], m_stackValues[i]) : 0f;
+	}
+	
+	boolean getBool(int idx) {
+		int i = stackIndex(idx);
+		return m_stackTypes[i] == OT_BOOL && m_stackValues[i] != 0;
+	}
+	
+	JSqInterpreter getThread(int idx) {
+		int i = stackIndex(idx);
+		return m_stackTypes[i] == OT_THREAD ? (JSqInterpreter) m_stackRefs[i] : null;
+	}
+	
+	long getUserPointer(int idx) {
+		int i = stackIndex(idx);
+		return m_stackTypes[i] == OT_USERPOINTER ? (Long) m_stackRefs[i] : 0;
+	}
+	
+	JSqUserDataBlock getUserData(int idx) {
+		int i = stackIndex(idx);
+		return m_stackTypes[i] == OT_USERDATA ? (JSqUserDataBlock) m_stackRefs[i] : null;
+	}
+	
+	int setTypeTag(int idx, long typeTag) {
+		int i = stackIndex(idx);
+		switch (m_stackTypes[i]) {
+			case OT_USERDATA:
+				((JSqUserDataBlock) m_stackRefs[i]).m_typeTag = typeTag;
+				return SQ_OK;
+			case OT_CLASS:
+				((JSqClass) m_stackRefs[i]).m_typeTag = typeTag;
+				return SQ_OK;
+			default:
+				return throwError("invalid object type");
+		}
+	}
+	
+	static long typeTagOf(int t, Object r) {
+		switch (t) {
+			case OT_INSTANCE: return ((JSqInstance) r).m_class.m_typeTag;
+			case OT_USERDATA: return ((JSqUserDataBlock) r).m_typeTag;
+			case OT_CLASS: return ((JSqClass) r).m_typeTag;
+			default: return 0;
+		}
+	}
+	
+	long getTypeTag(int idx) {
+		int i = stackIndex(idx);
+		return typeTagOf(m_stackTypes[i], m_stackRefs[i]);
+	}
+	
+	void getFunctionInfo(int idx, JSqFunctionInfo info) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] == OT_CLOSURE) {
+			JSqFunctionProto proto = ((JSqClosure) m_stackRefs[i]).m_function;
+			info.m_funcid = new JSqUserPointer(System.identityHashCode(proto));
+			info.m_name = proto.m_name;
+			info.m_source = proto.m_sourceName;
+		}
+		else {
+			info.m_funcid = new JSqUserPointer(0);
+			throwError("the object is not a closure");
+		}
+	}
+	
+	int[] getClosureInfo(int idx) {
+		int i = stackIndex(idx);
+		switch (m_stackTypes[i]) {
+			case OT_CLOSURE: {
+				JSqFunctionProto proto = ((JSqClosure) m_stackRefs[i]).m_function;
+				return new int[] { proto.m_parameters.length, proto.m_outerNames.length };
+			}
+			case OT_NATIVECLOSURE: {
+				JSqNativeClosure nc = (JSqNativeClosure) m_stackRefs[i];
+				return new int[] { nc.m_nparamsCheck, nc.m_outerTypes.length };
+			}
+			default:
+				throwError("the object is not a closure");
+				return new int[2];
+		}
+	}
+	
+	int getClosureName(int idx) {
+		int i = stackIndex(idx);
+		String name;
+		switch (m_stackTypes[i]) {
+			case OT_CLOSURE:
+				name = ((JSqClosure) m_stackRefs[i]).m_function.m_name;
+				break;
+			case OT_NATIVECLOSURE:
+				name = ((JSqNativeClosure) m_stackRefs[i]).m_name;
+				break;
+			default:
+				return throwError("the target is not a closure");
+		}
+		pushString(name);
+		return SQ_OK;
+	}
+	
+	int setNativeClosureName(int idx, String name) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_NATIVECLOSURE)
+			return throwError("the object is not a nativeclosure");
+		((JSqNativeClosure) m_stackRefs[i]).m_name = name;
+		return SQ_OK;
+	}
+	
+	int setInstanceUp(int idx, long p) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_INSTANCE)
+			return throwError("the object is not a class instance");
+		((JSqInstance) m_stackRefs[i]).m_userPointer = p;
+		return SQ_OK;
+	}
+	
+	long getInstanceUp(int idx, long typeTag) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_INSTANCE) {
+			throwError("the object is not a class instance");
+			return 0;
+		}
+		JSqInstance inst = (JSqInstance) m_stackRefs[i];
+		if (typeTag != 0) {
+			JSqClass c = inst.m_class;
+			while (c != null && c.m_typeTag != typeTag)
+				c = c.m_base;
+			if (c == null) {
+				throwError("invalid type tag");
+				return 0;
+			}
+		}
+		return inst.m_userPointer;
+	}
+	
+	int setClassUdSize(int idx, int udSize) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS)
+			return throwError("the object is not a class");
+		JSqClass c = (JSqClass) m_stackRefs[i];
+		if (c.m_locked)
+			return throwError("the class is locked");
+		c.m_udSize = udSize;
+		return SQ_OK;
+	}
+	
+	int newClass(boolean hasBase) {
+		JSqClass base = null;
+		if (hasBase) {
+			int b = m_top - 1;
+			if (m_stackTypes[b] != OT_CLASS)
+				return throwError("invalid base type");
+			base = (JSqClass) m_stackRefs[b];
+			pop(1);
+		}
+		push(OT_CLASS, 0, new JSqClass(base));
+		return SQ_OK;
+	}
+	
+	int createInstance(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS)
+			return throwError("the object is not a class");
+		push(OT_INSTANCE, 0, ((JSqClass) m_stackRefs[i]).createInstance());
+		return SQ_OK;
+	}
+	
+	private void pushAttributes(JSqObject attrs) {
+		if (attrs != null)
+			push(attrs.m_type, attrs.m_value, attrs.m_ref);
+		else
+			push(OT_NULL, 0, null);
+	}
+	
+	int setAttributes(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS)
+			return throwError("the object is not a class");
+		JSqClass c = (JSqClass) m_stackRefs[i];
+		int k = m_top - 2, v = m_top - 1;
+		JSqObject attrs = new JSqObject(m_stackTypes[v], m_stackValues[v], m_stackRefs[v]);
+		JSqObject old;
+		if (m_stackTypes[k] == OT_NULL) {
+			old = c.m_attributes;
+			c.m_attributes = attrs;
+		}
+		else {
+			int m = c.findMember(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+			if (m < 0)
+				return throwError("wrong index");
+			old = c.getAttributes(m);
+			c.setAttributes(m_stackTypes[k], m_stackValues[k], m_stackRefs[k], attrs);
+		}
+		pop(2);
+		pushAttributes(old);
+		return SQ_OK;
+	}
+	
+	int getAttributes(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS)
+			return throwError("the object is not a class");
+		JSqClass c = (JSqClass) m_stackRefs[i];
+		int k = m_top - 1;
+		JSqObject attrs;
+		if (m_stackTypes[k] == OT_NULL) {
+			attrs = c.m_attributes;
+		}
+		else {
+			int m = c.findMember(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+			if (m < 0)
+				return throwError("wrong index");
+			attrs = c.getAttributes(m);
+		}
+		pop(1);
+		pushAttributes(attrs);
+		return SQ_OK;
+	}
+	
+	int getClassIdx(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_INSTANCE)
+			return throwError("the object is not a class instance");
+		push(OT_CLASS, 0, ((JSqInstance) m_stackRefs[i]).m_class);
+		return SQ_OK;
+	}
+	
+	/**
+	 * @return The class at {@code idx} or the class of the instance at {@code idx}, null for other values.
+	 */
+	JSqClass classOf(int idx) {
+		int i = stackIndex(idx);
+		switch (m_stackTypes[i]) {
+			case OT_CLASS: return (JSqClass) m_stackRefs[i];
+			case OT_INSTANCE: return ((JSqInstance) m_stackRefs[i]).m_class;
+			default: return null;
+		}
+	}
+	
+	void weakRef(int idx) {
+		int i = stackIndex(idx);
+		int t = m_stackTypes[i];
+		if (isRefCounted(t))
+			push(OT_WEAKREF, 0, new JSqWeakRef(t, m_stackRefs[i]));
+		else
+			pushCopy(i);
+	}
+	
+	int getDefaultDelegate(int type) {
+		JSqTable d = m_ss.getDefaultDelegate(type);
+		if (d == null)
+			return throwError("the type doesn't have a default delegate");
+		push(OT_TABLE, 0, d);
+		return SQ_OK;
+	}
+	
+	/**
+	 * @return The member handle encoded as (static flag << 32) | index, or -1 on error.
+	 */
+	long getMemberHandle(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_CLASS) {
+			throwError("wrong type");
+			return -1;
+		}
+		int k = m_top - 1;
+		int m = ((JSqClass) m_stackRefs[i]).findMember(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+		if (m < 0) {
+			throwError("wrong index");
+			return -1;
+		}
+		pop(1);
+		long isStatic = (m & JSqClass.MEMBER_TYPE_FIELD) != 0 ? 0 : 1;
+		return (isStatic << 32) | (m & JSqClass.MEMBER_INDEX_MASK);
+	}
+	
+	/**
+	 * Finds the storage a member handle refers to, leaving the owning arrays in m_handle* fields.
+	 */
+	private int m_handleIdx;
+	private int[] m_handleTypes;
+	private int[] m_handleValues;
+	private Object[] m_handleRefs;
+	
+	private boolean memberByHandle(int i, long handle) {
+		boolean isStatic = (handle >>> 32) != 0;
+		m_handleIdx = (int) handle;
+		switch (m_stackTypes[i]) {
+			case OT_INSTANCE: {
+				JSqInstance inst = (JSqInstance) m_stackRefs[i];
+				if (isStatic) {
+					m_handleTypes = inst.m_class.m_methodTypes;
+					m_handleValues = inst.m_class.m_methodValues;
+					m_handleRefs = inst.m_class.m_methodRefs;
+				}
+				else {
+					m_handleTypes = inst.m_types;
+					m_handleValues = inst.m_values;
+					m_handleRefs = inst.m_refs;
+				}
+				return true;
+			}
+			case OT_CLASS: {
+				JSqClass c = (JSqClass) m_stackRefs[i];
+				if (isStatic) {
+					m_handleTypes = c.m_methodTypes;
+					m_handleValues = c.m_methodValues;
+					m_handleRefs = c.m_methodRefs;
+				}
+				else {
+					m_handleTypes = c.m_defaultTypes;
+					m_handleValues = c.m_defaultValues;
+					m_handleRefs = c.m_defaultRefs;
+				}
+				return true;
+			}
+			default:
+				throwError("wrong type(expected class or instance)");
+				return false;
+		}
+	}
+	
+	int getByHandle(int idx, long handle) {
+		if (!memberByHandle(stackIndex(idx), handle))
+			return SQ_ERROR;
+		push(m_handleTypes[m_handleIdx], m_handleValues[m_handleIdx], m_handleRefs[m_handleIdx]);
+		return SQ_OK;
+	}
+	
+	int setByHandle(int idx, long handle) {
+		if (!memberByHandle(stackIndex(idx), handle))
+			return SQ_ERROR;
+		int v = m_top - 1;
+		m_handleTypes[m_handleIdx] = m_stackTypes[v];
+		m_handleValues[m_handleIdx] = m_stackValues[v];
+		m_handleRefs[m_handleIdx] = m_stackRefs[v];
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int setRootTable() {
+		int i = m_top - 1;
+		int t = m_stackTypes[i];
+		if (t == OT_TABLE || t == OT_NULL) {
+			m_root = (JSqTable) m_stackRefs[i];
+			pop(1);
+			return SQ_OK;
+		}
+		return throwError("ivalid type");
+	}
+	
+	int setConstTable() {
+		int i = m_top - 1;
+		if (m_stackTypes[i] == OT_TABLE) {
+			m_ss.m_consts = (JSqTable) m_stackRefs[i];
+			pop(1);
+			return SQ_OK;
+		}
+		return throwError("ivalid type, expected table");
+	}
+	
+	int newSlotIdx(int idx, boolean isStatic) {
+		int self = stackIndex(idx);
+		int st = m_stackTypes[self];
+		if (st == OT_TABLE || st == OT_CLASS) {
+			if (m_stackTypes[m_top - 2] == OT_NULL)
+				return throwError("null is not a valid key");
+			try {
+				newSlot(self, m_top - 2, m_top - 1, isStatic);
+			}
+			catch (ScriptError e) {
+				pop(2);
+				return SQ_ERROR;
+			}
+			pop(2);
+		}
+		return SQ_OK;
+	}
+	
+	int deleteSlotIdx(int idx, boolean pushVal) {
+		int self = stackIndex(idx);
+		if (m_stackTypes[self] != OT_TABLE)
+			return invalidType(m_stackTypes[self]);
+		if (m_stackTypes[m_top - 1] == OT_NULL)
+			return throwError("null is not a valid key");
+		try {
+			deleteSlot(self, m_top - 1);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		if (pushVal)
+			setStack(m_top - 1, m_rt, m_rv, m_rr);
+		else
+			pop(1);
+		return SQ_OK;
+	}
+	
+	int setIdx(int idx) {
+		int s = stackIndex(idx), k = m_top - 2, v = m_top - 1;
+		try {
+			set(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k],
+					m_stackTypes[v], m_stackValues[v], m_stackRefs[v], DONT_FALL_BACK);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		pop(2);
+		return SQ_OK;
+	}
+	
+	int getIdx(int idx) {
+		int s = stackIndex(idx), k = m_top - 1;
+		try {
+			if (get(m_stackTypes[s], m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k], false, DONT_FALL_BACK)) {
+				setStack(k, m_rt, m_rv, m_rr);
+				return SQ_OK;
+			}
+			raiseIdxError(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+		}
+		catch (ScriptError e) {
+		}
+		pop(1);
+		return SQ_ERROR;
+	}
+	
+	int rawSet(int idx) {
+		int s = stackIndex(idx), k = m_top - 2, v = m_top - 1;
+		int st = m_stackTypes[s], kt = m_stackTypes[k], vt = m_stackTypes[v];
+		int kv = m_stackValues[k], vv = m_stackValues[v];
+		Object sr = m_stackRefs[s], kr = m_stackRefs[k], vr = m_stackRefs[v];
+		if (kt == OT_NULL) {
+			pop(2);
+			return throwError("null key");
+		}
+		switch (st) {
+			case OT_TABLE:
+				((JSqTable) sr).newSlot(kt, kv, kr, vt, vv, vr);
+				pop(2);
+				return SQ_OK;
+			case OT_CLASS:
+				((JSqClass) sr).newSlot(m_ss, kt, kv, kr, vt, vv, vr, false);
+				pop(2);
+				return SQ_OK;
+			case OT_INSTANCE:
+				if (instanceSet((JSqInstance) sr, kt, kv, kr, vt, vv, vr)) {
+					pop(2);
+					return SQ_OK;
+				}
+				break;
+			case OT_ARRAY:
+				if (isNumeric(kt) && ((JSqArray) sr).set(toInteger(kt, kv), vt, vv, vr)) {
+					pop(2);
+					return SQ_OK;
+				}
+				break;
+			default:
+				pop(2);
+				return throwError("rawset works only on array/table/class and instance");
+		}
+		return throwError("the index '" + printObjVal(kt, kv, kr) + "' does not exist");
+	}
+	
+	int rawGet(int idx) {
+		int s = stackIndex(idx), k = m_top - 1;
+		int st = m_stackTypes[s];
+		switch (st) {
+			case OT_TABLE:
+			case OT_CLASS:
+			case OT_INSTANCE:
+				if (get(st, m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k], true, DONT_FALL_BACK)) {
+					setStack(k, m_rt, m_rv, m_rr);
+					return SQ_OK;
+				}
+				break;
+			case OT_ARRAY:
+				if (!isNumeric(m_stackTypes[k])) {
+					pop(1);
+					return throwError("invalid index type for an array");
+				}
+				if (get(st, m_stackValues[s], m_stackRefs[s], m_stackTypes[k], m_stackValues[k], m_stackRefs[k], true, DONT_FALL_BACK)) {
+					setStack(k, m_rt, m_rv, m_rr);
+					return SQ_OK;
+				}
+				break;
+			default:
+				pop(1);
+				return throwError("rawget works only on array/table/instance and class");
+		}
+		pop(1);
+		return throwError("the index doesn't exist");
+	}
+	
+	int rawDeleteSlot(int idx, boolean pushVal) {
+		int s = stackIndex(idx), k = m_top - 1;
+		if (m_stackTypes[s] != OT_TABLE)
+			return invalidType(m_stackTypes[s]);
+		JSqTable t = (JSqTable) m_stackRefs[s];
+		int slot = t.find(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+		int vt = OT_NULL, vv = 0;
+		Object vr = null;
+		if (slot >= 0) {
+			vt = t.m_types[slot];
+			vv = t.m_values[slot];
+			vr = t.m_refs[slot];
+			t.remove(m_stackTypes[k], m_stackValues[k], m_stackRefs[k]);
+		}
+		if (pushVal)
+			setStack(k, vt, vv, vr);
+		else
+			pop(1);
+		return SQ_OK;
+	}
+	
+	int newMember(int idx, boolean isStatic, boolean raw) {
+		int s = stackIndex(idx);
+		if (m_stackTypes[s] != OT_CLASS)
+			return throwError("new member only works with classes");
+		int k = m_top - 3, v = m_top - 2, a = m_top - 1;
+		if (m_stackTypes[k] == OT_NULL)
+			return throwError("null key");
+		JSqClass c = (JSqClass) m_stackRefs[s];
+		try {
+			if (!raw && c.m_metamethods[MT_NEWMEMBER] != null) {
+				pushCopy(s);
+				pushCopy(k);
+				pushCopy(v);
+				pushCopy(a);
+				push(OT_BOOL, isStatic ? 1 : 0, null);
+				call(c.m_metamethodTypes[MT_NEWMEMBER], c.m_metamethods[MT_NEWMEMBER], 5, m_top - 5, false);
+				pop(5);
+			}
+			else {
+				newSlot(s, k, v, isStatic);
+				if (m_stackTypes[a] != OT_NULL)
+					c.setAttributes(m_stackTypes[k], m_stackValues[k], m_stackRefs[k], new JSqObject(m_stackTypes[a], m_stackValues[a], m_stackRefs[a]));
+			}
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		pop(3);
+		return SQ_OK;
+	}
+	
+	/**
+	 * Pushes a new array of {@code count} values of type {@code t}, read as raw values from {@code values}.
+	 */
+	int newArray(int t, IntBuffer values, int count) {
+		if (m_ss.m_limit != null && !tryCharge(JSqMemoryMeter.arrayBytes(count)))
+			return SQ_ERROR;
+		JSqArray a = new JSqArray(count);
+		Arrays.fill(a.m_types, 0, count, t);
+		values.get(a.m_values, 0, count);
+		push(OT_ARRAY, 0, a);
+		return SQ_OK;
+	}
+	
+	/**
+	 * Writes up to {@code count} elements of the array at {@code idx} to {@code dst} as raw values of type {@code t}.
+	 * @return The size of the array, or -1 if the value at {@code idx} isn't an array.
+	 */
+	int getArray(int idx, int t, IntBuffer dst, int count) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_ARRAY)
+			return -1;
+		JSqArray a = (JSqArray) m_stackRefs[i];
+		int n = Math.min(a.m_size, count);
+		for (int k = 0; k < n; k++)
+			dst.put(coerce(t, a.m_types[k], a.m_values[k]));
+		return a.m_size;
+	}
+	
+	private JSqArray arrayAt(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_ARRAY) {
+			invalidType(m_stackTypes[i]);
+			return null;
+		}
+		return (JSqArray) m_stackRefs[i];
+	}
+	
+	int arrayAppend(int idx) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		if (m_ss.m_limit != null && !tryCharge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth()))
+			return SQ_ERROR;
+		int v = m_top - 1;
+		a.append(m_stackTypes[v], m_stackValues[v], m_stackRefs[v]);
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int arrayPop(int idx, boolean pushVal) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		if (a.m_size == 0)
+			return throwError("empty array");
+		int last = a.m_size - 1;
+		if (pushVal)
+			push(a.m_types[last], a.m_values[last], a.m_refs[last]);
+		a.pop();
+		return SQ_OK;
+	}
+	
+	int arrayResize(int idx, int newSize) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		if (newSize < 0)
+			return throwError("negative size");
+		if (!tryCharge(JSqMemoryMeter.ARRAY_SLOT * (long) a.growth(newSize)))
+			return SQ_ERROR;
+		a.resize(newSize);
+		return SQ_OK;
+	}
+	
+	int arrayReverse(int idx) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		a.reverse();
+		return SQ_OK;
+	}
+	
+	int arrayRemove(int idx, int itemIdx) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		return a.remove(itemIdx) ? SQ_OK : throwError("index out of range");
+	}
+	
+	int arrayInsert(int idx, int destPos) {
+		JSqArray a = arrayAt(idx);
+		if (a == null)
+			return SQ_ERROR;
+		int v = m_top - 1;
+		int res = a.insert(destPos, m_stackTypes[v], m_stackValues[v], m_stackRefs[v]) ? SQ_OK : throwError("index out of range");
+		pop(1);
+		return res;
+	}
+	
+	int setDelegate(int idx) {
+		int s = stackIndex(idx), d = m_top - 1;
+		int st = m_stackTypes[s], dt = m_stackTypes[d];
+		if ((st != OT_TABLE && st != OT_USERDATA) || (dt != OT_TABLE && dt != OT_NULL))
+			return invalidType(st);
+		JSqTable delegate = (JSqTable) m_stackRefs[d];
+		if (st == OT_TABLE) {
+			if (!((JSqTable) m_stackRefs[s]).setDelegate(delegate))
+				return throwError("delagate cycle");
+		}
+		else {
+			((JSqUserDataBlock) m_stackRefs[s]).m_delegate = delegate;
+		}
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int getDelegate(int idx) {
+		int s = stackIndex(idx);
+		int st = m_stackTypes[s];
+		if (st != OT_TABLE && st != OT_USERDATA)
+			return throwError("wrong type");
+		JSqTable d = delegateOf(st, m_stackRefs[s]);
+		if (d != null)
+			push(OT_TABLE, 0, d);
+		else
+			push(OT_NULL, 0, null);
+		return SQ_OK;
+	}
+	
+	int cloneIdx(int idx) {
+		int i = stackIndex(idx);
+		try {
+			cloneObject(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		pushResult();
+		return SQ_OK;
+	}
+	
+	int setFreeVariable(int idx, int nval) {
+		int i = stackIndex(idx), v = m_top - 1;
+		switch (m_stackTypes[i]) {
+			case OT_CLOSURE: {
+				JSqClosure c = (JSqClosure) m_stackRefs[i];
+				if (nval < 0 || nval >= c.m_outers.length)
+					return throwError("invalid free var index");
+				c.m_outers[nval].set(m_stackTypes[v], m_stackValues[v], m_stackRefs[v]);
+				break;
+			}
+			case OT_NATIVECLOSURE: {
+				JSqNativeClosure c = (JSqNativeClosure) m_stackRefs[i];
+				if (nval < 0 || nval >= c.m_outerTypes.length)
+					return throwError("invalid free var index");
+				c.m_outerTypes[nval] = m_stackTypes[v];
+				c.m_outerValues[nval] = m_stackValues[v];
+				c.m_outerRefs[nval] = m_stackRefs[v];
+				break;
+			}
+			default:
+				return invalidType(m_stackTypes[i]);
+		}
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int next(int idx) {
+		int o = stackIndex(idx);
+		if (m_stackTypes[o] == OT_GENERATOR)
+			return throwError("cannot iterate a generator");
+		// foreach() wants key, value and iterator in consecutive registers, so work on a copy of the iterator
+		int itr = m_top - 1;
+		push(OT_NULL, 0, null);
+		push(OT_NULL, 0, null);
+		pushCopy(itr);
+		int jump;
+		try {
+			jump = foreach(o, itr + 1, 666);
+		}
+		catch (ScriptError e) {
+			pop(3);
+			return SQ_ERROR;
+		}
+		if (jump == 666) {
+			pop(3);
+			return SQ_ERROR;
+		}
+		copyStack(itr, m_top - 1);
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int call(int params, boolean retval, boolean raiseError) {
+		int f = m_top - params - 1;
+		try {
+			call(m_stackTypes[f], m_stackRefs[f], params, m_top - params, raiseError);
+		}
+		catch (ScriptError e) {
+			pop(params);
+			return SQ_ERROR;
+		}
+		if (!m_suspended)
+			pop(params);
+		if (retval)
+			pushResult();
+		return SQ_OK;
+	}
+	
+	int resume(boolean retval, boolean raiseError) {
+		int g = m_top - 1;
+		if (m_stackTypes[g] != OT_GENERATOR)
+			return throwError("only generators can be resumed");
+		try {
+			execute(m_stackRefs[g], 0, m_top, raiseError, ET_RESUME_GENERATOR, -1);
+		}
+		catch (ScriptError e) {
+			return SQ_ERROR;
+		}
+		if (retval)
+			pushResult();
+		return SQ_OK;
+	}
+	
+	String getLocal(int level, int idx) {
+		if (level < 0 || level >= m_callsSize)
+			return null;
+		int stackBase = m_stackBase;
+		for (int l = 0; l < level; l++)
+			stackBase -= callInfo(m_callsSize - l - 1).m_prevStackBase;
+		CallInfo ci = callInfo(m_callsSize - level - 1);
+		if (!(ci.m_closure instanceof JSqClosure))
+			return null;
+		JSqClosure c = (JSqClosure) ci.m_closure;
+		JSqFunctionProto proto = c.m_function;
+		if (idx < proto.m_outerNames.length) {
+			JSqOuter o = c.m_outers[idx];
+			push(o.type(), o.value(), o.ref());
+			return proto.m_outerNames[idx];
+		}
+		idx -= proto.m_outerNames.length;
+		int nop = ci.m_ip - 1;
+		for (int i = 0; i < proto.m_localNames.length; i++) {
+			if (proto.m_localStartOps[i] <= nop && proto.m_localEndOps[i] >= nop) {
+				if (idx == 0) {
+					pushCopy(stackBase + proto.m_localPositions[i]);
+					return proto.m_localNames[i];
+				}
+				idx--;
+			}
+		}
+		return null;
+	}
+	
+	String getFreeVariable(int idx, int nval) {
+		int i = stackIndex(idx);
+		switch (m_stackTypes[i]) {
+			case OT_CLOSURE: {
+				JSqClosure c = (JSqClosure) m_stackRefs[i];
+				if (nval < 0 || nval >= c.m_outers.length)
+					return null;
+				JSqOuter o = c.m_outers[nval];
+				push(o.type(), o.value(), o.ref());
+				return c.m_function.m_outerNames[nval];
+			}
+			case OT_NATIVECLOSURE: {
+				JSqNativeClosure c = (JSqNativeClosure) m_stackRefs[i];
+				if (nval < 0 || nval >= c.m_outerTypes.length)
+					return null;
+				push(c.m_outerTypes[nval], c.m_outerValues[nval], c.m_outerRefs[nval]);
+				return "@NATIVE";
+			}
+			default:
+				return null;
+		}
+	}
+		
+	int setErrorHandler() {
+		int i = m_top - 1;
+		int t = m_stackTypes[i];
+		if (t != OT_CLOSURE && t != OT_NATIVECLOSURE && t != OT_NULL)
+			return throwError("invalid error handler");
+		m_errorHandlerType = t;
+		m_errorHandler = m_stackRefs[i];
+		pop(1);
+		return SQ_OK;
+	}
+	
+	int getWeakRefVal(int idx) {
+		int i = stackIndex(idx);
+		if (m_stackTypes[i] != OT_WEAKREF)
+			return throwError("the object must be a weakref");
+		JSqWeakRef w = (JSqWeakRef) m_stackRefs[i];
+		push(w.type(), 0, w.get());
+		return SQ_OK;
+	}
+	
+	int clear(int idx) {
+		int i = stackIndex(idx);
+		switch (m_stackTypes[i]) {
+			case OT_TABLE:
+				((JSqTable) m_stackRefs[i]).clear();
+				return SQ_OK;
+			case OT_ARRAY:
+				((JSqArray) m_stackRefs[i]).resize(0);
+				return SQ_OK;
+			default:
+				return throwError("clear only works on table and array");
+		}
+	}
+	
+	/**
+	 * Pops {@code nfreevars} values into the free variables of {@code nc} and pushes it.
+	 */
+	int newNativeClosure(JSqNativeClosure nc, int nfreevars) {
+		if (nfreevars < 0 || nfreevars > m_top - m_stackBase)
+			return throwError("not enough params in the stack");
+		nc.m_outerTypes = new int[nfreevars];
+		nc.m_outerValues = new int[nfreevars];
+		nc.m_outerRefs = new Object[nfreevars];
+		int base = m_top - nfreevars;
+		for (int i = 0; i < nfreevars; i++) {
+			nc.m_outerTypes[i] = m_stackTypes[base + i];
+			nc.m_outerValues[i] = m_stackValues[base + i];
+			nc.m_outerRefs[i] = m_stackRefs[base + i];
+		}
+		pop(nfreevars);
+		push(OT_NATIVECLOSURE, 0, nc);
+		return SQ_OK;
+	}
+	
+	int getCallee() {
+		if (m_callsSize > 1) {
+			Object c = callInfo(m_callsSize - 2).m_closure;
+			push(c instanceof JSqClosure ? OT_CLOSURE : OT_NATIVECLOSURE, 0, c);
+			return SQ_OK;
+		}
+		return throwError("no closure in the calls stack");
+	}
+	
+	int throwObject() {
+		int i = m_top - 1;
+		m_errType = m_stackTypes[i];
+		m_errValue = m_stackValues[i];
+		m_errRef = m_stackRefs[i];
+		pop(1);
+		return SQ_ERROR;
+	}
+	
+	void resetError() {
+		m_errType = OT_NULL;
+		m_errValue = 0;
+		m_errRef = null;
+	}
+	
+	JSqObject getStackObj(int idx) {
+		int i = stackIndex(idx);
+		return new JSqObject(m_stackTypes[i], m_stackValues[i], m_stackRefs[i]);
+	}
+	
+	void pushLastError() {
+		push(m_errType, m_errValue, m_errRef);
+	}
+	
+	/**
+	 * Pushes a value from another VM's stack onto this one, sq_move.
+	 */
+	void move(JSqInterpreter src, int idx) {
+		int i = src.stackIndex(idx);
+		push(src.m_stackTypes[i], src.m_stackValues[i], src.m_stackRefs[i]);
+	}
+	
+	/**
+	 * Pushes a table describing a call frame, sq_stackinfos as used by getstackinfos().
+	 * @return False if there is no frame at that level.
+	 */
+	boolean pushStackInfos(int level, JSqInterpreter dest) {
+		if (level < 0 || level >= m_callsSize)
+			return false;
+		CallInfo ci = callInfo(m_callsSize - level - 1);
+		String name, src;
+		int line;
+		if (ci.m_closure instanceof JSqClosure) {
+			JSqFunctionProto proto = ((JSqClosure) ci.m_closure).m_function;
+			name = proto.m_name;
+			src = proto.m_sourceName;
+			line = proto.getLine(Math.max(ci.m_ip - 1, 0));
+		}
+		else {
+			name = ((JSqNativeClosure) ci.m_closure).m_name;
+			src = "NATIVE";
+			line = -1;
+		}
+		JSqTable infos = new JSqTable(4);
+		infos.newSlot("func", OT_STRING, 0, name != null ? name : "unknown");
+		infos.newSlot("src", OT_STRING, 0, src != null ? src : "unknown");
+		infos.newSlot("line", OT_INTEGER, line, null);
+		JSqTable locals = new JSqTable(0);
+		String local;
+		for (int seq = 0; (local = getLocal(level, seq)) != null; seq++) {
+			int v = m_top - 1;
+			locals.newSlot(local, m_stackTypes[v], m_stackValues[v], m_stackRefs[v]);
+			pop(1);
+		}
+		infos.newSlot("locals", OT_TABLE, 0, locals);
+		dest.push(OT_TABLE, 0, infos);
+		return true;
+	}
+	
+}
@@ -0,0 +1,962 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The JNI bridge, calling the native methods of {@link Squirrel} implemented by the JSquirrel library.
+ * <br><br>
+ * Natives added after the first release of the library are looked up when they are first called. Libraries built
+ * before them throw an {@link UnsatisfiedLinkError} then, after which the bridge does the same work with the natives
+ * every library has. Java native closures and native debug hooks need a C function inside the library, so they are
+ * the only calls that fail on an old library.
+ * @author Christopher Foster
+ */
+final class JSqJniBridge extends JSqNativeBridge {
+	
+	private static final int RUNBATCH = 1;
+	private static final int RELEASEOBJECTS = 1 << 1;
+	private static final int GETCLASSID = 1 << 2;
+	private static final int PUSHSTRINGBUFFER = 1 << 3;
+	private static final int GETSTRINGVIEW = 1 << 4;
+	private static final int NEWARRAYBUFFER = 1 << 5;
+	private static final int GETARRAYBUFFER = 1 << 6;
+	private static final int COPYMEMORY = 1 << 7;
+	private static final int CLOSURESTREAM = 1 << 8;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/** The natives found missing from the loaded library. */
+	private volatile int m_missing;
+	/** sun.misc.Unsafe and its copyMemory, copying memory for libraries without sq_copymemory. */
+	private Object m_unsafe;
+	private Method m_copyMemory;
+	
+	// SquirrelVM
+	
+	@Override
+	long sq_open(int initialStackSize) {
+		return Squirrel.sq_open_native(initialStackSize);
+	}
+	
+	@Override
+	long sq_newthread(long v, int initialStackSize) {
+		return Squirrel.sq_newthread_native(v, initialStackSize);
+	}
+	
+	@Override
+	void sq_close(long v) {
+		Squirrel.sq_close_native(v);
+	}
+	
+	@Override
+	int sq_suspendvm(long v) {
+		return Squirrel.sq_suspendvm_native(v);
+	}
+	
+	@Override
+	int sq_wakeupvm(long v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError) {
+		return Squirrel.sq_wakeupvm_native(v, resumedRet, retVal, raiseError, throwError);
+	}
+	
+	@Override
+	int sq_getvmstate(long v) {
+		return Squirrel.sq_getvmstate_native(v);
+	}
+	
+	@Override
+	int sq_getversion() {
+		return Squirrel.sq_getversion_native();
+	}
+	
+	// Compiler
+	
+	@Override
+	int sq_compilebuffer(long v, String source, String sourceName, boolean raiseError) {
+		return Squirrel.sq_compilebuffer_native(v, source, sourceName, raiseError);
+	}
+	
+	@Override
+	void sq_enabledebuginfo(long v, boolean enable) {
+		Squirrel.sq_enabledebuginfo_native(v, enable);
+	}
+	
+	@Override
+	void sq_setnativedebughook(long v, boolean enable) {
+		try {
+			Squirrel.sq_setnativedebughook_native(v, enable);
+		}
+		catch (UnsatisfiedLinkError e) {
+			throw new UnsupportedOperationException("The JSquirrel library is too old to install a debug hook.", e);
+		}
+	}
+	
+	@Override
+	void sq_notifyallexceptions(long v, boolean enable) {
+		Squirrel.sq_notifyallexceptions_native(v, enable);
+	}
+	
+	// Stack Operations
+	
+	@Override
+	void sq_push(long v, int idx) {
+		Squirrel.sq_push_native(v, idx);
+	}
+	
+	@Override
+	void sq_pop(long v, int numElementsToPop) {
+		Squirrel.sq_pop_native(v, numElementsToPop);
+	}
+	
+	@Override
+	void sq_poptop(long v) {
+		Squirrel.sq_poptop_native(v);
+	}
+	
+	@Override
+	void sq_remove(long v, int idx) {
+		Squirrel.sq_remove_native(v, idx);
+	}
+	
+	@Override
+	int sq_gettop(long v) {
+		return Squirrel.sq_gettop_native(v);
+	}
+	
+	@Override
+	void sq_settop(long v, int newtop) {
+		Squirrel.sq_settop_native(v, newtop);
+	}
+	
+	@Override
+	int sq_reservestack(long v, int nSize) {
+		return Squirrel.sq_reservestack_native(v, nSize);
+	}
+	
+	@Override
+	int sq_cmp(long v) {
+		return Squirrel.sq_cmp_native(v);
+	}
+	
+	@Override
+	void sq_move(long v1, long v2, int idx) {
+		Squirrel.sq_move_native(v1, v2, idx);
+	}
+	
+	// Object Creation Handling
+	
+	@Override
+	long sq_newuserdata(long v, long size) {
+		return Squirrel.sq_newuserdata_native(v, size);
+	}
+	
+	@Override
+	void sq_newtable(long v) {
+		Squirrel.sq_newtable_native(v);
+	}
+	
+	@Override
+	void sq_newtableex(long v, int initialCapacity) {
+		Squirrel.sq_newtableex_native(v, initialCapacity);
+	}
+	
+	@Override
+	void sq_newarray(long v, int size) {
+		Squirrel.sq_newarray_native(v, size);
+	}
+	
+	@Override
+	void sq_newclosure(long v, int nfreevars) {
+		try {
+			Squirrel.sq_newclosure_native(v, nfreevars);
+		}
+		catch (UnsatisfiedLinkError e) {
+			Squirrel.sq_pop_native(v, nfreevars);
+			throw new UnsupportedOperationException("The JSquirrel library is too old to call Java functions.", e);
+		}
+	}
+	
+	@Override
+	int sq_setparamscheck(long v, int nParamsCheck, String typeMask) {
+		return Squirrel.sq_setparamscheck_native(v, nParamsCheck, typeMask);
+	}
+	
+	@Override
+	int sq_bindenv(long v, int idx) {
+		return Squirrel.sq_bindenv_native(v, idx);
+	}
+	
+	@Override
+	void sq_pushstring(long v, String s, int len) {
+		Squirrel.sq_pushstring_native(v, s, len);
+	}
+	
+	@Override
+	void sq_pushstring(long v, ByteBuffer utf8, int len) {
+		if (has(PUSHSTRINGBUFFER)) {
+			try {
+				Squirrel.sq_pushstringbuffer_native(v, utf8, len);
+				return;
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(PUSHSTRINGBUFFER);
+			}
+		}
+		ByteBuffer buf = utf8.duplicate();
+		((Buffer) buf).clear().limit(len);
+		String s = UTF_8.decode(buf).toString();
+		Squirrel.sq_pushstring_native(v, s, s.length());
+	}
+	
+	@Override
+	void sq_pushfloat(long v, float f) {
+		Squirrel.sq_pushfloat_native(v, f);
+	}
+	
+	@Override
+	void sq_pushinteger(long v, int i) {
+		Squirrel.sq_pushinteger_native(v, i);
+	}
+	
+	@Override
+	void sq_pushbool(long v, boolean b) {
+		Squirrel.sq_pushbool_native(v, b);
+	}
+	
+	@Override
+	void sq_pushserpointer(long v, long up) {
+		Squirrel.sq_pushserpointer_native(v, up);
+	}
+	
+	@Override
+	void sq_pushnull(long v) {
+		Squirrel.sq_pushnull_native(v);
+	}
+	
+	@Override
+	int sq_gettype(long v, int idx) {
+		return Squirrel.sq_gettype_native(v, idx);
+	}
+	
+	@Override
+	int sq_typeof(long v, int idx) {
+		return Squirrel.sq_typeof_native(v, idx);
+	}
+	
+	@Override
+	int sq_getsize(long v, int idx) {
+		return Squirrel.sq_getsize_native(v, idx);
+	}
+	
+	@Override
+	long sq_gethash(long v, int idx) {
+		return Squirrel.sq_gethash_native(v, idx);
+	}
+	
+	@Override
+	long sq_getclassid(long v, int idx) {
+		if (has(GETCLASSID)) {
+			try {
+				return Squirrel.sq_getclassid_native(v, idx);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(GETCLASSID);
+			}
+		}
+		return classIdOf(v, idx);
+	}
+	
+	@Override
+	int sq_getbase(long v, int idx) {
+		return Squirrel.sq_getbase_native(v, idx);
+	}
+	
+	@Override
+	boolean sq_instanceof(long v) {
+		return Squirrel.sq_instanceof_native(v);
+	}
+	
+	@Override
+	int sq_tostring(long v, int idx) {
+		return Squirrel.sq_tostring_native(v, idx);
+	}
+	
+	@Override
+	boolean sq_tobool(long v, int idx) {
+		return Squirrel.sq_tobool_native(v, idx);
+	}
+	
+	@Override
+	String sq_getstring(long v, int idx) {
+		return Squirrel.sq_getstring_native(v, idx);
+	}
+	
+	@Override
+	ByteBuffer sq_getstringview(long v, int idx) {
+		if (has(GETSTRINGVIEW)) {
+			try {
+				ByteBuffer view = Squirrel.sq_getstringview_native(v, idx);
+				return view == null ? null : view.asReadOnlyBuffer();
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(GETSTRINGVIEW);
+			}
+		}
+		if (Squirrel.sq_gettype_native(v, idx) != JSqTypes.OT_STRING)
+			return null;
+		return ByteBuffer.wrap(Squirrel.sq_getstring_native(v, idx).getBytes(UTF_8)).asReadOnlyBuffer();
+	}
+	
+	@Override
+	int sq_getinteger(long v, int idx) {
+		return Squirrel.sq_getinteger_native(v, idx);
+	}
+	
+	@Override
+	float sq_getfloat(long v, int idx) {
+		return Squirrel.sq_getfloat_native(v, idx);
+	}
+	
+	@Override
+	boolean sq_getbool(long v, int idx) {
+		return Squirrel.sq_getbool_native(v, idx);
+	}
+	
+	@Override
+	long sq_getthread(long v, int idx) {
+		return Squirrel.sq_getthread_native(v, idx);
+	}
+	
+	@Override
+	long sq_getuserpointer(long v, int idx) {
+		return Squirrel.sq_getuserpointer_native(v, idx);
+	}
+	
+	@Override
+	long[] sq_getuserdata(long v, int idx) {
+		return Squirrel.sq_getuserdata_native(v, idx);
+	}
+	
+	@Override
+	int sq_settypetag(long v, int idx) {
+		return Squirrel.sq_settypetag_native(v, idx);
+	}
+	
+	@Override
+	long sq_gettypetag(long v, int idx) {
+		return Squirrel.sq_gettypetag_native(v, idx);
+	}
+	
+	@Override
+	long sq_getfunctioninfo(long v, int idx, JSqFunctionInfo info) {
+		return Squirrel.sq_getfunctioninfo_native(v, idx, info);
+	}
+	
+	@Override
+	int[] sq_getclosureinfo(long v, int idx) {
+		return Squirrel.sq_getclosureinfo_native(v, idx);
+	}
+	
+	@Override
+	int sq_getclosurename(long v, int idx) {
+		return Squirrel.sq_getclosurename_native(v, idx);
+	}
+	
+	@Override
+	int sq_setnativeclosurename(long v, int idx, String name) {
+		return Squirrel.sq_setnativeclosurename_native(v, idx, name);
+	}
+	
+	@Override
+	int sq_setinstanceup(long v, int idx, long up) {
+		return Squirrel.sq_setinstanceup_native(v, idx, up);
+	}
+	
+	@Override
+	long sq_getinstanceup(long v, int idx, long typetag) {
+		return Squirrel.sq_getinstanceup_native(v, idx, typetag);
+	}
+	
+	@Override
+	int sq_setclassudsize(long vmHaldne, int idx, int udSize) {
+		return Squirrel.sq_setclassudsize_native(vmHaldne, idx, udSize);
+	}
+	
+	@Override
+	int sq_newclass(long v, boolean hasBase) {
+		return Squirrel.sq_newclass_native(v, hasBase);
+	}
+	
+	@Override
+	int sq_createinstance(long v, int idx) {
+		return Squirrel.sq_createinstance_native(v, idx);
+	}
+	
+	@Override
+	int sq_setattributes(long v, int idx) {
+		return Squirrel.sq_setattributes_native(v, idx);
+	}
+	
+	@Override
+	int sq_getattributes(long v, int idx) {
+		return Squirrel.sq_getattributes_native(v, idx);
+	}
+	
+	@Override
+	int sq_getclass(long v, int idx) {
+		return Squirrel.sq_getclass_native(v, idx);
+	}
+	
+	@Override
+	void sq_weakref(long v, int idx) {
+		Squirrel.sq_weakref_native(v, idx);
+	}
+	
+	@Override
+	int sq_getdefaultdelegate(long v, int tag) {
+		return Squirrel.sq_getdefaultdelegate_native(v, tag);
+	}
+	
+	@Override
+	long sq_getmemberhandle(long v, int idx) {
+		return Squirrel.sq_getmemberhandle_native(v, idx);
+	}
+	
+	@Override
+	int sq_getbyhandle(long v, int idx, long member) {
+		return Squirrel.sq_getbyhandle_native(v, idx, member);
+	}
+	
+	@Override
+	int sq_setbyhandle(long v, int idx, long member) {
+		return Squirrel.sq_setbyhandle_native(v, idx, member);
+	}
+	
+	// Object Manipulation
+	
+	@Override
+	void sq_pushroottable(long v) {
+		Squirrel.sq_pushroottable_native(v);
+	}
+	
+	@Override
+	void sq_pushregistrytable(long v) {
+		Squirrel.sq_pushregistrytable_native(v);
+	}
+	
+	@Override
+	void sq_pushconsttable(long v) {
+		Squirrel.sq_pushconsttable_native(v);
+	}
+	
+	@Override
+	int sq_setroottable(long v) {
+		return Squirrel.sq_setroottable_native(v);
+	}
+	
+	@Override
+	int sq_setconsttable(long v) {
+		return Squirrel.sq_setconsttable_native(v);
+	}
+	
+	@Override
+	int sq_newslot(long v, int idx, boolean bStatic) {
+		return Squirrel.sq_newslot_native(v, idx, bStatic);
+	}
+	
+	@Override
+	int sq_deleteslot(long v, int idx, boolean pushVal) {
+		return Squirrel.sq_deleteslot_native(v, idx, pushVal);
+	}
+	
+	@Override
+	int sq_set(long v, int idx) {
+		return Squirrel.sq_set_native(v, idx);
+	}
+	
+	@Override
+	int sq_get(long v, int idx) {
+		return Squirrel.sq_get_native(v, idx);
+	}
+	
+	@Override
+	int sq_rawset(long v, int idx) {
+		return Squirrel.sq_rawset_native(v, idx);
+	}
+	
+	@Override
+	int sq_rawget(long v, int idx) {
+		return Squirrel.sq_rawget_native(v, idx);
+	}
+	
+	@Override
+	int sq_rawdeleteslot(long v, int idx, boolean pushVal) {
+		return Squirrel.sq_rawdeleteslot_native(v, idx, pushVal);
+	}
+	
+	@Override
+	int sq_newmember(long v, int idx, boolean bStatic) {
+		return Squirrel.sq_newmember_native(v, idx, bStatic);
+	}
+	
+	@Override
+	int sq_rawnewmember(long v, int idx, boolean bStatic) {
+		return Squirrel.sq_rawnewmember_native(v, idx, bStatic);
+	}
+	
+	@Override
+	int sq_arrayappend(long v, int idx) {
+		return Squirrel.sq_arrayappend_native(v, idx);
+	}
+	
+	@Override
+	int sq_arraypop(long v, int idx, boolean pushVal) {
+		return Squirrel.sq_arraypop_native(v, idx, pushVal);
+	}
+	
+	@Override
+	int sq_arrayresize(long v, int idx, int newSize) {
+		return Squirrel.sq_arrayresize_native(v, idx, newSize);
+	}
+	
+	@Override
+	int sq_arrayreverse(long v, int idx) {
+		return Squirrel.sq_arrayreverse_native(v, idx);
+	}
+	
+	@Override
+	int sq_arrayremove(long v, int idx, int itemIdx) {
+		return Squirrel.sq_arrayremove_native(v, idx, itemIdx);
+	}
+	
+	@Override
+	int sq_arrayinsert(long v, int idx, int destPos) {
+		return Squirrel.sq_arrayinsert_native(v, idx, destPos);
+	}
+	
+	@Override
+	int sq_setdelegate(long v, int idx) {
+		return Squirrel.sq_setdelegate_native(v, idx);
+	}
+	
+	@Override
+	int sq_getdelegate(long v, int idx) {
+		return Squirrel.sq_getdelegate_native(v, idx);
+	}
+	
+	@Override
+	int sq_clone(long v, int idx) {
+		return Squirrel.sq_clone_native(v, idx);
+	}
+	
+	@Override
+	int sq_setfreevariable(long v, int idx, long nVal) {
+		return Squirrel.sq_setfreevariable_native(v, idx, nVal);
+	}
+	
+	@Override
+	int sq_next(long v, int idx) {
+		return Squirrel.sq_next_native(v, idx);
+	}
+	
+	@Override
+	int sq_getweakrefval(long v, int idx) {
+		return Squirrel.sq_getweakrefval_native(v, idx);
+	}
+	
+	@Override
+	int sq_clear(long v, int idx) {
+		return Squirrel.sq_clear_native(v, idx);
+	}
+	
+	// Calls
+	
+	@Override
+	int sq_call(long v, int numParams, boolean retval, boolean raiseError) {
+		return Squirrel.sq_call_native(v, numParams, retval, raiseError);
+	}
+	
+	@Override
+	int sq_resume(long v, boolean retval, boolean raiseError) {
+		return Squirrel.sq_resume_native(v, retval, raiseError);
+	}
+	
+	@Override
+	String sq_getlocal(long v, long level, long idx) {
+		return Squirrel.sq_getlocal_native(v, level, idx);
+	}
+	
+	@Override
+	int sq_getcallee(long v) {
+		return Squirrel.sq_getcallee_native(v);
+	}
+	
+	@Override
+	String sq_getfreevariable(long v, int idx, long nVal) {
+		return Squirrel.sq_getfreevariable_native(v, idx, nVal);
+	}
+	
+	@Override
+	int sq_throwerror(long v, String err) {
+		return Squirrel.sq_throwerror_native(v, err);
+	}
+	
+	@Override
+	int sq_throwobject(long v) {
+		return Squirrel.sq_throwobject_native(v);
+	}
+	
+	@Override
+	void sq_reseterror(long v) {
+		Squirrel.sq_reseterror_native(v);
+	}
+	
+	@Override
+	void sq_getlasterror(long v) {
+		Squirrel.sq_getlasterror_native(v);
+	}
+	
+	// Raw Object Handling
+	
+	@Override
+	long sq_getstackobj(long v, int idx) {
+		return Squirrel.sq_getstackobj_native(v, idx);
+	}
+	
+	@Override
+	void sq_pushobject(long v, long obj) {
+		Squirrel.sq_pushobject_native(v, obj);
+	}
+	
+	@Override
+	boolean sq_release(long v, long obj) {
+		return Squirrel.sq_release_native(v, obj);
+	}
+	
+	@Override
+	int sq_releaseobjects(long v, long[] objs, int count) {
+		if (has(RELEASEOBJECTS)) {
+			try {
+				return Squirrel.sq_releaseobjects_native(v, objs, count);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(RELEASEOBJECTS);
+			}
+		}
+		int deleted = 0;
+		for (int i = 0; i < count; i++) {
+			if (Squirrel.sq_release_native(v, objs[i]))
+				deleted++;
+		}
+		return deleted;
+	}
+	
+	@Override
+	long sq_getrefcount(long v, long obj) {
+		return Squirrel.sq_getrefcount_native(v, obj);
+	}
+	
+	@Override
+	void sq_resetobject(long obj) {
+		Squirrel.sq_resetobject_native(obj);
+	}
+	
+	@Override
+	String sq_objtostring(long obj) {
+		return Squirrel.sq_objtostring_native(obj);
+	}
+	
+	@Override
+	boolean sq_objtobool(long obj) {
+		return Squirrel.sq_objtobool_native(obj);
+	}
+	
+	@Override
+	int sq_objtointeger(long obj) {
+		return Squirrel.sq_objtointeger_native(obj);
+	}
+	
+	@Override
+	float sq_objtofloat(long obj) {
+		return Squirrel.sq_objtofloat_native(obj);
+	}
+	
+	@Override
+	long sq_objtouserpointer(long obj) {
+		return Squirrel.sq_objtouserpointer_native(obj);
+	}
+	
+	@Override
+	long sq_getobjtypetag(long obj) {
+		return Squirrel.sq_getobjtypetag_native(obj);
+	}
+	
+	// GC
+	
+	@Override
+	int sq_collectgarbage(long v) {
+		return Squirrel.sq_collectgarbage_native(v);
+	}
+	
+	@Override
+	int sq_resurrectunreachable(long v) {
+		return Squirrel.sq_resurrectunreachable_native(v);
+	}
+	
+	// Serialization
+	
+	@Override
+	byte[] sq_writeclosure(long v) {
+		if (has(CLOSURESTREAM)) {
+			try {
+				return Squirrel.sq_writeclosure_native(v);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(CLOSURESTREAM);
+			}
+		}
+		Squirrel.sq_throwerror_native(v, "the JSquirrel library can't serialize closures");
+		return null;
+	}
+	
+	@Override
+	int sq_readclosure(long v, ByteBuffer buf, int len) {
+		if (has(CLOSURESTREAM)) {
+			try {
+				return Squirrel.sq_readclosure_native(v, buf, len);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(CLOSURESTREAM);
+			}
+		}
+		return Squirrel.sq_throwerror_native(v, "the JSquirrel library can't serialize closures");
+	}
+	
+	// Batching
+	
+	@Override
+	int sq_runbatch(long v, ByteBuffer commands, int len, ByteBuffer results, int capacity) {
+		if (has(RUNBATCH)) {
+			try {
+				return Squirrel.sq_runbatch_native(v, commands, len, results, capacity);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(RUNBATCH);
+			}
+		}
+		return runBatchEach(v, commands, len, results, capacity);
+	}
+	
+	// Bulk Arrays
+	
+	@Override
+	int sq_newarray(long v, ByteBuffer values, int type, int count) {
+		if (has(NEWARRAYBUFFER)) {
+			try {
+				return Squirrel.sq_newarraybuffer_native(v, values, type, count);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(NEWARRAYBUFFER);
+			}
+		}
+		return newArrayEach(v, values, type, count);
+	}
+	
+	@Override
+	int sq_getarray(long v, int idx, ByteBuffer dst, int type, int count) {
+		if (has(GETARRAYBUFFER)) {
+			try {
+				return Squirrel.sq_getarraybuffer_native(v, idx, dst, type, count);
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(GETARRAYBUFFER);
+			}
+		}
+		return getArrayEach(v, idx, dst, type, count);
+	}
+	
+	// Memory Allocation
+	
+	@Override
+	long sq_malloc(long size) {
+		return Squirrel.sq_malloc(size);
+	}
+	
+	/**
+	 * The native sq_realloc of the library can't report where the block moved to, so a resized block is always a
+	 * new one.
+	 */
+	@Override
+	long sq_realloc(long p, long oldSize, long newSize) {
+		long q = Squirrel.sq_malloc(newSize);
+		if (q == 0)
+			return 0;
+		sq_copymemory(q, p, Math.min(oldSize, newSize));
+		Squirrel.sq_free(p, oldSize);
+		return q;
+	}
+	
+	@Override
+	void sq_free(long p, long size) {
+		Squirrel.sq_free(p, size);
+	}
+	
+	@Override
+	void sq_copymemory(long dst, long src, long size) {
+		if (has(COPYMEMORY)) {
+			try {
+				Squirrel.sq_copymemory_native(dst, src, size);
+				return;
+			}
+			catch (UnsatisfiedLinkError e) {
+				missing(COPYMEMORY);
+			}
+		}
+		try {
+			if (m_copyMemory == null) {
+				Class<?> c = Class.forName("sun.misc.Unsafe");
+				Field f = c.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				m_unsafe = f.get(null);
+				m_copyMemory = c.getMethod("copyMemory", long.class, long.class, long.class);
+			}
+			m_copyMemory.invoke(m_unsafe, src, dst, size);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("The JSquirrel library is too old to copy native memory.", e);
+		}
+	}
+	
+	// Utility Macro
+	
+	@Override
+	boolean sq_isnumeric(long o) {
+		return Squirrel.sq_isnumeric_native(o);
+	}
+	
+	@Override
+	boolean sq_istable(long o) {
+		return Squirrel.sq_istable_native(o);
+	}
+	
+	@Override
+	boolean sq_isarray(long o) {
+		return Squirrel.sq_isarray_native(o);
+	}
+	
+	@Override
+	boolean sq_isfunction(long o) {
+		return Squirrel.sq_isfunction_native(o);
+	}
+	
+	@Override
+	boolean sq_isclosure(long o) {
+		return Squirrel.sq_isclosure_native(o);
+	}
+	
+	@Override
+	boolean sq_isgenerator(long o) {
+		return Squirrel.sq_isgenerator_native(o);
+	}
+	
+	@Override
+	boolean sq_isnativeclosure(long o) {
+		return Squirrel.sq_isnativeclosure_native(o);
+	}
+	
+	@Override
+	boolean sq_isstring(long o) {
+		return Squirrel.sq_isstring_native(o);
+	}
+	
+	@Override
+	boolean sq_isinteger(long o) {
+		return Squirrel.sq_isinteger_native(o);
+	}
+	
+	@Override
+	boolean sq_isfloat(long o) {
+		return Squirrel.sq_isfloat_native(o);
+	}
+	
+	@Override
+	boolean sq_isuserpointer(long o) {
+		return Squirrel.sq_isuserpointer_native(o);
+	}
+	
+	@Override
+	boolean sq_isuserdata(long o) {
+		return Squirrel.sq_isuserdata_native(o);
+	}
+	
+	@Override
+	boolean sq_isthread(long o) {
+		return Squirrel.sq_isthread_native(o);
+	}
+	
+	@Override
+	boolean sq_isnull(long o) {
+		return Squirrel.sq_isnull_native(o);
+	}
+	
+	@Override
+	boolean sq_isclass(long o) {
+		return Squirrel.sq_isclass_native(o);
+	}
+	
+	@Override
+	boolean sq_isinstance(long o) {
+		return Squirrel.sq_isinstance_native(o);
+	}
+	
+	@Override
+	boolean sq_isbool(long o) {
+		return Squirrel.sq_isbool_native(o);
+	}
+	
+	@Override
+	boolean sq_isweakref(long o) {
+		return Squirrel.sq_isweakref_native(o);
+	}
+	
+	@Override
+	int sq_type(long o) {
+		return Squirrel.sq_type_native(o);
+	}
+	
+	private boolean has(int natives) {
+		return (m_missing & natives) == 0;
+	}
+	
+	private void missing(int natives) {
+		m_missing |= natives;
+	}
+	
+}
@@ -0,0 +1,731 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * A port of the Squirrel 3 lexer (sqlexer.cpp).
+ * <br><br>
+ * The lexer reads straight out of the source {@link CharSequence} and keeps a single reusable
+ * character buffer for literals. Identifiers and string literals are interned in a small open
+ * addressing table so that a name repeated throughout a script only ever becomes one {@link String}.
+ * @author Christopher Foster
+ */
+final class JSqLexer {
+	
+	static final int EOB =					0;
+	
+	static final int TK_IDENTIFIER =		258;
+	static final int TK_STRING_LITERAL =	259;
+	static final int TK_INTEGER =			260;
+	static final int TK_FLOAT =				261;
+	static final int TK_BASE =				262;
+	static final int TK_DELETE =			263;
+	static final int TK_EQ =				264;
+	static final int TK_NE =				265;
+	static final int TK_LE =				266;
+	static final int TK_GE =				267;
+	static final int TK_SWITCH =			268;
+	static final int TK_ARROW =				269;
+	static final int TK_AND =				270;
+	static final int TK_OR =				271;
+	static final int TK_IF =				272;
+	static final int TK_ELSE =				273;
+	static final int TK_WHILE =				274;
+	static final int TK_BREAK =				275;
+	static final int TK_FOR =				276;
+	static final int TK_DO =				277;
+	static final int TK_NULL =				278;
+	static final int TK_FOREACH =			279;
+	static final int TK_IN =				280;
+	static final int TK_NEWSLOT =			281;
+	static final int TK_MODULO =			282;
+	static final int TK_LOCAL =				283;
+	static final int TK_CLONE =				284;
+	static final int TK_FUNCTION =			285;
+	static final int TK_RETURN =			286;
+	static final int TK_TYPEOF =			287;
+	static final int TK_UMINUS =			288;
+	static final int TK_PLUSEQ =			289;
+	static final int TK_MINUSEQ =			290;
+	static final int TK_CONTINUE =			291;
+	static final int TK_YIELD =				292;
+	static final int TK_TRY =				293;
+	static final int TK_CATCH =				294;
+	static final int TK_THROW =				295;
+	static final int TK_SHIFTL =			296;
+	static final int TK_SHIFTR =			297;
+	static final int TK_RESUME =			298;
+	static final int TK_DOUBLE_COLON =		299;
+	static final int TK_CASE =				300;
+	static final int TK_DEFAULT =			301;
+	static final int TK_THIS =				302;
+	static final int TK_PLUSPLUS =			303;
+	static final int TK_MINUSMINUS =		304;
+	static final int TK_3WAYSCMP =			305;
+	static final int TK_USHIFTR =			306;
+	static final int TK_CLASS =				307;
+	static final int TK_EXTENDS =			308;
+	static final int TK_CONSTRUCTOR =		310;
+	static final int TK_INSTANCEOF =		311;
+	static final int TK_VARPARAMS =			312;
+	static final int TK___LINE__ =			313;
+	static final int TK___FILE__ =			314;
+	static final int TK_TRUE =				315;
+	static final int TK_FALSE =				316;
+	static final int TK_MULEQ =				317;
+	static final int TK_DIVEQ =				318;
+	static final int TK_MODEQ =				319;
+	static final int TK_ATTR_OPEN =			320;
+	static final int TK_ATTR_CLOSE =		321;
+	static final int TK_STATIC =			322;
+	static final int TK_ENUM =				323;
+	static final int TK_CONST =				324;
+	
+	private static final String[] KEYWORDS = {
+		"while", "do", "if", "else", "break", "continue", "return", "null", "function", "local", "for",
+		"foreach", "in", "typeof", "base", "delete", "try", "catch", "throw", "clone", "yield", "resume",
+		"switch", "case", "default", "this", "class", "extends", "constructor", "instanceof", "true",
+		"false", "static", "enum", "const", "__LINE__", "__FILE__"
+	};
+	
+	private static final int[] KEYWORD_TOKENS = {
+		TK_WHILE, TK_DO, TK_IF, TK_ELSE, TK_BREAK, TK_CONTINUE, TK_RETURN, TK_NULL, TK_FUNCTION, TK_LOCAL, TK_FOR,
+		TK_FOREACH, TK_IN, TK_TYPEOF, TK_BASE, TK_DELETE, TK_TRY, TK_CATCH, TK_THROW, TK_CLONE, TK_YIELD, TK_RESUME,
+		TK_SWITCH, TK_CASE, TK_DEFAULT, TK_THIS, TK_CLASS, TK_EXTENDS, TK_CONSTRUCTOR, TK_INSTANCEOF, TK_TRUE,
+		TK_FALSE, TK_STATIC, TK_ENUM, TK_CONST, TK___LINE__, TK___FILE__
+	};
+	
+	private static final int MAX_HEX_DIGITS = 8;
+	
+	private CharSequence m_source;
+	private String m_sourceName;
+	private int m_pos, m_end, m_charPos;
+	
+	private int m_currentChar;
+	int m_currentLine, m_currentColumn, m_lastTokenLine;
+	int m_prevToken, m_curToken;
+	
+	String m_svalue;
+	int m_nvalue;
+	float m_fvalue;
+	
+	private char[] m_buf = new char[256];
+	private int m_bufLen;
+	
+	private String[] m_internStrings;
+	private int[] m_internTokens;
+	private int m_internCount;
+	
+	JSqLexer() {
+		m_internStrings = new String[256];
+		m_internTokens = new int[256];
+		for (int i = 0; i < KEYWORDS.length; i++)
+			m_internTokens[insert(KEYWORDS[i])] = KEYWORD_TOKENS[i];
+	}
+	
+	/**
+	 * Resets the lexer to the start of a new source.
+	 * The intern table survives between sources so that repeated compilations reuse their names.
+	 */
+	void init(CharSequence source, int start, int end, String sourceName) {
+		m_source = source;
+		m_sourceName = sourceName;
+		m_pos = start;
+		m_end = end;
+		m_currentLine = 1;
+		m_currentColumn = 0;
+		m_lastTokenLine = 1;
+		m_prevToken = -1;
+		m_curToken = -1;
+		m_svalue = null;
+		m_nvalue = 0;
+		m_fvalue = 0;
+		next();
+	}
+	
+	/**
+	 * Releases the reference to the last source so large buffers are not kept alive by a cached compiler.
+	 */
+	void reset() {
+		m_source = null;
+	}
+	
+	JSqCompilerException error(String message) {
+		return new JSqCompilerException(message, m_sourceName, m_currentLine, m_currentColumn);
+	}
+	
+	private void next() {
+		char c;
+		if (m_pos < m_end && (c = m_source.charAt(m_pos)) != 0) {
+			m_currentChar = c;
+			m_charPos = m_pos++;
+		}
+		else {
+			m_currentChar = EOB;
+			m_charPos = m_pos;
+			m_pos = m_end;
+		}
+		m_currentColumn++;
+	}
+	
+	private int token(int t) {
+		m_prevToken = m_curToken;
+		m_curToken = t;
+		return t;
+	}
+	
+	static String tokenToString(int tok) {
+		for (int i = 0; i < KEYWORDS.length; i++)
+			if (KEYWORD_TOKENS[i] == tok)
+				return KEYWORDS[i];
+		switch (tok) {
+			case TK_EQ: return "==";
+			case TK_NE: return "!=";
+			case TK_LE: return "<=";
+			case TK_GE: return ">=";
+			case TK_AND: return "&&";
+			case TK_OR: return "||";
+			case TK_NEWSLOT: return "<-";
+			case TK_PLUSEQ: return "+=";
+			case TK_MINUSEQ: return "-=";
+			case TK_MULEQ: return "*=";
+			case TK_DIVEQ: return "/=";
+			case TK_MODEQ: return "%=";
+			case TK_SHIFTL: return "<<";
+			case TK_SHIFTR: return ">>";
+			case TK_USHIFTR: return ">>>";
+			case TK_DOUBLE_COLON: return "::";
+			case TK_PLUSPLUS: return "++";
+			case TK_MINUSMINUS: return "--";
+			case TK_3WAYSCMP: return "<=>";
+			case TK_VARPARAMS: return "...";
+			case TK_ATTR_OPEN: return "</";
+			case TK_ATTR_CLOSE: return "/>";
+			default: return null;
+		}
+	}
+	
+	int lex() throws JSqCompilerException {
+		m_lastTokenLine = m_currentLine;
+		while (m_currentChar != EOB) {
+			switch (m_currentChar) {
+				case '\t': case '\r': case ' ':
+					next();
+					continue;
+				case '\n':
+					m_currentLine++;
+					m_prevToken = m_curToken;
+					m_curToken = '\n';
+					next();
+					m_currentColumn = 1;
+					continue;
+				case '#':
+					lexLineComment();
+					continue;
+				case '/':
+					next();
+					switch (m_currentChar) {
+						case '*':
+							next();
+							lexBlockComment();
+							continue;
+						case '/':
+							lexLineComment();
+							continue;
+						case '=':
+							next();
+							return token(TK_DIVEQ);
+						case '>':
+							next();
+							return token(TK_ATTR_CLOSE);
+						default:
+							return token('/');
+					}
+				case '=':
+					next();
+					if (m_currentChar != '=')
+						return token('=');
+					next();
+					return token(TK_EQ);
+				case '<':
+					next();
+					switch (m_currentChar) {
+						case '=':
+							next();
+							if (m_currentChar == '>') {
+								next();
+								return token(TK_3WAYSCMP);
+							}
+							return token(TK_LE);
+						case '-':
+							next();
+							return token(TK_NEWSLOT);
+						case '<':
+							next();
+							return token(TK_SHIFTL);
+						case '/':
+							next();
+							return token(TK_ATTR_OPEN);
+					}
+					return token('<');
+				case '>':
+					next();
+					if (m_currentChar == '=') {
+						next();
+						return token(TK_GE);
+					}
+					else if (m_currentChar == '>') {
+						next();
+						if (m_currentChar == '>') {
+							next();
+							return token(TK_USHIFTR);
+						}
+						return token(TK_SHIFTR);
+					}
+					return token('>');
+				case '!':
+					next();
+					if (m_currentChar != '=')
+						return token('!');
+					next();
+					return token(TK_NE);
+				case '@':
+					next();
+					if (m_currentChar != '"')
+						return token('@');
+					return token(readString('"', true));
+				case '"':
+				case '\'':
+					return token(readString(m_currentChar, false));
+				case '{': case '}': case '(': case ')': case '[': case ']':
+				case ';': case ',': case '?': case '^': case '~': {
+					int ret = m_currentChar;
+					next();
+					return token(ret);
+				}
+				case '.':
+					next();
+					if (m_currentChar != '.')
+						return token('.');
+					next();
+					if (m_currentChar != '.')
+						throw error("invalid token '..'");
+					next();
+					return token(TK_VARPARAMS);
+				case '&':
+					next();
+					if (m_currentChar != '&')
+						return token('&');
+					next();
+					return token(TK_AND);
+				case '|':
+					next();
+					if (m_currentChar != '|')
+						return token('|');
+					next();
+					return token(TK_OR);
+				case ':':
+					next();
+					if (m_currentChar != ':')
+						return token(':');
+					next();
+					return token(TK_DOUBLE_COLON);
+				case '*':
+					next();
+					if (m_currentChar == '=') {
+						next();
+						return token(TK_MULEQ);
+					}
+					return token('*');
+				case '%':
+					next();
+					if (m_currentChar == '=') {
+						next();
+						return token(TK_MODEQ);
+					}
+					return token('%');
+				case '-':
+					next();
+					if (m_currentChar == '=') {
+						next();
+						return token(TK_MINUSEQ);
+					}
+					else if (m_currentChar == '-') {
+						next();
+						return token(TK_MINUSMINUS);
+					}
+					return token('-');
+				case '+':
+					next();
+					if (m_currentChar == '=') {
+						next();
+						return token(TK_PLUSEQ);
+					}
+					else if (m_currentChar == '+') {
+						next();
+						return token(TK_PLUSPLUS);
+					}
+					return token('+');
+				default: {
+					if (isDigit(m_currentChar))
+						return token(readNumber());
+					else if (isAlpha(m_currentChar) || m_currentChar == '_')
+						return token(readId());
+					int c = m_currentChar;
+					if (Character.isISOControl(c))
+						throw error("unexpected character(control)");
+					next();
+					return token(c);
+				}
+			}
+		}
+		return EOB;
+	}
+	
+	private void lexBlockComment() throws JSqCompilerException {
+		for (;;) {
+			switch (m_currentChar) {
+				case '*':
+					next();
+					if (m_currentChar == '/') {
+						next();
+						return;
+					}
+					continue;
+				case '\n':
+					m_currentLine++;
+					next();
+					continue;
+				case EOB:
+					throw error("missing \"*/\" in comment");
+				default:
+					next();
+			}
+		}
+	}
+	
+	private void lexLineComment() {
+		do {
+			next();
+		} while (m_currentChar != '\n' && m_currentChar != EOB);
+	}
+	
+	private int readId() {
+		int start = m_charPos;
+		do {
+			next();
+		} while (isAlpha(m_currentChar) || isDigit(m_currentChar) || m_currentChar == '_');
+		int idx = intern(m_source, start, m_charPos);
+		m_svalue = m_internStrings[idx];
+		return m_internTokens[idx];
+	}
+	
+	private int readString(int delim, boolean verbatim) throws JSqCompilerException {
+		m_bufLen = 0;
+		next();
+		if (m_currentChar == EOB)
+			throw error("error parsing the string");
+		for (;;) {
+			while (m_currentChar != delim) {
+				switch (m_currentChar) {
+					case EOB:
+						throw error("unfinished string");
+					case '\n':
+						if (!verbatim)
+							throw error("newline in a constant");
+						append(m_currentChar);
+						next();
+						m_currentLine++;
+						break;
+					case '\\':
+						if (verbatim) {
+							append('\\');
+							next();
+							break;
+						}
+						next();
+						switch (m_currentChar) {
+							case 'x': {
+								next();
+								if (hexValue(m_currentChar) < 0)
+									throw error("hexadecimal number expected");
+								int value = 0, n = 0;
+								while (n < 4 && hexValue(m_currentChar) >= 0) {
+									value = (value << 4) | hexValue(m_currentChar);
+									n++;
+									next();
+								}
+								append(value);
+								break;
+							}
+							case 't': append('\t'); next(); break;
+							case 'a': append(0x07); next(); break;
+							case 'b': append('\b'); next(); break;
+							case 'n': append('\n'); next(); break;
+							case 'r': append('\r'); next(); break;
+							case 'v': append(0x0B); next(); break;
+							case 'f': append('\f'); next(); break;
+							case '0': append(0); next(); break;
+							case '\\': append('\\'); next(); break;
+							case '"': append('"'); next(); break;
+							case '\'': append('\''); next(); break;
+							default:
+								throw error("unrecognised escaper char");
+						}
+						break;
+					default:
+						append(m_currentChar);
+						next();
+				}
+			}
+			next();
+			if (verbatim && m_currentChar == '"') {
+				append(m_currentChar);
+				next();
+			}
+			else {
+				break;
+			}
+		}
+		if (delim == '\'') {
+			if (m_bufLen == 0)
+				throw error("empty constant");
+			if (m_bufLen > 1)
+				throw error("constant too long");
+			m_nvalue = m_buf[0];
+			return TK_INTEGER;
+		}
+		int idx = intern(m_buf, m_bufLen);
+		m_svalue = m_internStrings[idx];
+		return TK_STRING_LITERAL;
+	}
+	
+	private int readNumber() throws JSqCompilerException {
+		final int TINT = 1, TFLOAT = 2, THEX = 3, TSCIENTIFIC = 4, TOCTAL = 5;
+		int type = TINT;
+		int firstChar = m_currentChar;
+		m_bufLen = 0;
+		next();
+		if (firstChar == '0' && (Character.toUpperCase(m_currentChar) == 'X' || isOctalDigit(m_currentChar))) {
+			if (isOctalDigit(m_currentChar)) {
+				type = TOCTAL;
+				while (isOctalDigit(m_currentChar)) {
+					append(m_currentChar);
+					next();
+				}
+				if (isDigit(m_currentChar))
+					throw error("invalid octal number");
+			}
+			else {
+				next();
+				type = THEX;
+				while (hexValue(m_currentChar) >= 0) {
+					append(m_currentChar);
+					next();
+				}
+				if (m_bufLen > MAX_HEX_DIGITS)
+					throw error("too many digits for an Hex number");
+			}
+		}
+		else {
+			append(firstChar);
+			while (m_currentChar == '.' || isDigit(m_currentChar) || isExponent(m_currentChar)) {
+				if (m_currentChar == '.' || isExponent(m_currentChar))
+					type = TFLOAT;
+				if (isExponent(m_currentChar)) {
+					type = TSCIENTIFIC;
+					append(m_currentChar);
+					next();
+					if (m_currentChar == '+' || m_currentChar == '-') {
+						append(m_currentChar);
+						next();
+					}
+					if (!isDigit(m_currentChar))
+						throw error("exponent expected");
+				}
+				append(m_currentChar);
+				next();
+			}
+		}
+		int n = 0;
+		switch (type) {
+			case TSCIENTIFIC:
+			case TFLOAT:
+				m_fvalue = parseFloat(m_buf, m_bufLen);
+				return TK_FLOAT;
+			case TINT:
+				for (int i = 0; i < m_bufLen; i++)
+					n = n * 10 + (m_buf[i] - '0');
+				break;
+			case THEX:
+				for (int i = 0; i < m_bufLen; i++)
+					n = (n << 4) | hexValue(m_buf[i]);
+				break;
+			case TOCTAL:
+				for (int i = 0; i < m_bufLen; i++)
+					n = (n << 3) | (m_buf[i] - '0');
+				break;
+		}
+		m_nvalue = n;
+		return TK_INTEGER;
+	}
+	
+	/**
+	 * Parses the longest prefix of the buffer that is a valid floating point number, like strtod does.
+	 */
+	private static float parseFloat(char[] buf, int len) {
+		int end = len;
+		boolean dot = false;
+		for (int i = 0; i < len; i++) {
+			if (buf[i] == '.') {
+				if (dot) {
+					end = i;
+					break;
+				}
+				dot = true;
+			}
+			else if (isExponent(buf[i])) {
+				break;
+			}
+		}
+		return (float) Double.parseDouble(new String(buf, 0, end));
+	}
+	
+	private void append(int c) {
+		if (m_bufLen == m_buf.length) {
+			char[] buf = new char[m_buf.length << 1];
+			System.arraycopy(m_buf, 0, buf, 0, m_bufLen);
+			m_buf = buf;
+		}
+		m_buf[m_bufLen++] = (char) c;
+	}
+	
+	private int insert(String s) {
+		return intern(s, 0, s.length());
+	}
+	
+	private int intern(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + s.charAt(i);
+		int mask = m_internStrings.length - 1;
+		int len = end - start;
+		for (int i = h & mask;; i = (i + 1) & mask) {
+			String e = m_internStrings[i];
+			if (e == null)
+				return add(i, s.subSequence(start, end).toString());
+			if (e.hashCode() == h && e.length() == len && regionEquals(e, s, start))
+				return i;
+		}
+	}
+	
+	private int intern(char[] s, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++)
+			h = 31 * h + s[i];
+		int mask = m_internStrings.length - 1;
+		for (int i = h & mask;; i = (i + 1) & mask) {
+			String e = m_internStrings[i];
+			if (e == null)
+				return add(i, new String(s, 0, len));
+			if (e.hashCode() == h && e.length() == len) {
+				int k = 0;
+				while (k < len && e.charAt(k) == s[k])
+					k++;
+				if (k == len)
+					return i;
+			}
+		}
+	}
+	
+	private static boolean regionEquals(String e, CharSequence s, int start) {
+		for (int k = 0, n = e.length(); k < n; k++)
+			if (e.charAt(k) != s.charAt(start + k))
+				return false;
+		return true;
+	}
+	
+	private int add(int slot, String s) {
+		m_internStrings[slot] = s;
+		m_internTokens[slot] = TK_IDENTIFIER;
+		if (++m_internCount * 2 > m_internStrings.length) {
+			rehash();
+			return find(s);
+		}
+		return slot;
+	}
+	
+	private int find(String s) {
+		int mask = m_internStrings.length - 1;
+		for (int i = s.hashCode() & mask;; i = (i + 1) & mask)
+			if (m_internStrings[i] == s)
+				return i;
+	}
+	
+	private void rehash() {
+		String[] strings = m_internStrings;
+		int[] tokens = m_internTokens;
+		m_internStrings = new String[strings.length << 1];
+		m_internTokens = new int[strings.length << 1];
+		int mask = m_internStrings.length - 1;
+		for (int k = 0; k < strings.length; k++) {
+			String s = strings[k];
+			if (s == null)
+				continue;
+			int i = s.hashCode() & mask;
+			while (m_internStrings[i] != null)
+				i = (i + 1) & mask;
+			m_internStrings[i] = s;
+			m_internTokens[i] = tokens[k];
+		}
+	}
+	
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	private static boolean isOctalDigit(int c) {
+		return c >= '0' && c <= '7';
+	}
+	
+	private static boolean isAlpha(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+	
+	private static boolean isExponent(int c) {
+		return c == 'e' || c == 'E';
+	}
+	
+	private static int hexValue(int c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+	
+}
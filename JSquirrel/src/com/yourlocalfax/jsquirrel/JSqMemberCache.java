@@ -0,0 +1,261 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Member handles of classes resolved by name, so reading and writing the members of instances by name costs a
+ * map lookup and a {@link Squirrel#sq_getbyhandle(JSqVM, int, JSqMemberHandle)} instead of hashing the name
+ * in the VM. Each VM and its friend threads share one cache, see {@link JSqVM#getMemberCache()}.
+ * <br><br>
+ * A handle is resolved the first time a member of a class is accessed by name. Squirrel never removes a member from a
+ * class or moves it to another slot, so a handle stays valid for as long as its class exists. Names that aren't
+ * members of the class, like the slots of a delegate or those handled by {@code _get}, are looked up by name every
+ * time and never cached, so members added to the class later are found. {@link #invalidate(JSqVM, int)} drops the
+ * handles of a class.
+ * <br><br>
+ * On the Java backend the cache holds its classes weakly. Native VMs keep a reference to each cached class so
+ * its address can't be taken by a new class, {@link #clear(JSqVM)} gives them back.
+ * @author Christopher Foster
+ */
+public final class JSqMemberCache {
+	
+	/**
+	 * The handles of one class.
+	 */
+	private static final class Members {
+		final Map<String, JSqMemberHandle> m_handles = new HashMap<String, JSqMemberHandle>();
+		/** Keeps the class of a native VM alive. */
+		JSqObject m_pin;
+	}
+	
+	private static final WeakReference<JSqClass> NO_CLASS = new WeakReference<JSqClass>(null);
+	
+	private final Map<Object, Members> m_classes;
+	/**
+	 * The class of the last access on the Java backend, most accesses hit the same class many times in a row. Held
+	 * weakly like the map holds it, so it doesn't keep the class alive.
+	 */
+	private WeakReference<JSqClass> m_lastClass = NO_CLASS;
+	/** The class id of the last access on the native backend. */
+	private long m_lastId;
+	private Members m_last;
+	
+	private long m_hits;
+	private long m_misses;
+	
+	JSqMemberCache(boolean javaBackend) {
+		m_classes = javaBackend ? new WeakHashMap<Object, Members>() : new HashMap<Object, Members>();
+	}
+	
+	/**
+	 * Pushes the value of member {@code name} of the instance or class at {@code idx}, like pushing the name and
+	 * calling {@link JSqVM#get(int)} does.
+	 * @return {@link JSqVM#SQ_OK}, or a negative value if there is no such member.
+	 */
+	public int get(JSqVM v, int idx, String name) {
+		v.checkOwner();
+		JSqMemberHandle h = handle(v, idx, name);
+		if (h != null) {
+			if (v.m_interp != null)
+				return v.m_interp.getByHandle(idx, h.m_nativeHandle);
+			return Squirrel.NATIVE.sq_getbyhandle(v.m_nativeHandle, idx, h.m_nativeHandle);
+		}
+		v.pushString(name);
+		return v.get(idx < 0 ? idx - 1 : idx);
+	}
+	
+	/**
+	 * Pops a value and sets member {@code name} of the instance or class at {@code idx} to it, like pushing the name
+	 * and the value and calling {@link JSqVM#set(int)} does.
+	 * @return {@link JSqVM#SQ_OK}, or a negative value if the member can't be set.
+	 */
+	public int set(JSqVM v, int idx, String name) {
+		v.checkOwner();
+		JSqMemberHandle h = handle(v, idx, name);
+		// a method can't be set through an instance, the name lookup fails the same way the VM does
+		if (h != null && (h.m_nativeHandle >>> 32) == 0) {
+			if (v.m_interp != null)
+				return v.m_interp.setByHandle(idx, h.m_nativeHandle);
+			return Squirrel.NATIVE.sq_setbyhandle(v.m_nativeHandle, idx, h.m_nativeHandle);
+		}
+		v.pushString(name);
+		v.push(-2);
+		v.remove(-3);
+		return v.set(idx < 0 ? idx - 1 : idx);
+	}
+	
+	/**
+	 * @return The handle of member {@code name} of the instance or class at {@code idx}, null if the value isn't
+	 * an instance or a class or the class has no such member.
+	 */
+	public JSqMemberHandle handle(JSqVM v, int idx, String name) {
+		v.checkOwner();
+		Members members = members(v, idx);
+		if (members == null) {
+			m_misses++;
+			return null;
+		}
+		JSqMemberHandle h = members.m_handles.get(name);
+		if (h != null) {
+			m_hits++;
+			return h;
+		}
+		m_misses++;
+		h = resolve(v, idx, name, members);
+		if (h != null)
+			members.m_handles.put(name, h);
+		return h;
+	}
+	
+	/**
+	 * @return The handles of the class of the value at {@code idx}, null if it isn't an instance or a class.
+	 */
+	private Members members(JSqVM v, int idx) {
+		if (v.m_interp != null) {
+			JSqClass c = v.m_interp.classOf(idx);
+			if (c == null)
+				return null;
+			if (c == m_lastClass.get())
+				return m_last;
+			Members members = m_classes.get(c);
+			if (members == null) {
+				members = new Members();
+				m_classes.put(c, members);
+			}
+			m_lastClass = new WeakReference<JSqClass>(c);
+			m_last = members;
+			return members;
+		}
+		long id = Squirrel.NATIVE.sq_getclassid(v.m_nativeHandle, idx);
+		if (id == 0)
+			return null;
+		if (id == m_lastId && m_last != null)
+			return m_last;
+		Long key = id;
+		Members members = m_classes.get(key);
+		if (members == null) {
+			members = new Members();
+			pushClass(v, idx);
+			try {
+				members.m_pin = Squirrel.sq_getstackobj(v, -1);
+			}
+			catch (JSquirrelException e) {
+				return null;
+			}
+			finally {
+				v.pop(1);
+			}
+			m_classes.put(key, members);
+		}
+		m_lastId = id;
+		m_last = members;
+		return members;
+	}
+	
+	private static void pushClass(JSqVM v, int idx) {
+		if (v.getType(idx) == JSqTypes.OT_INSTANCE)
+			Squirrel.sq_getclass(v, idx);
+		else
+			v.push(idx);
+	}
+	
+	private static JSqMemberHandle resolve(JSqVM v, int idx, String name, Members members) {
+		int top = v.getTop();
+		pushClass(v, idx);
+		v.pushString(name);
+		JSqMemberHandle h = Squirrel.sq_getmemberhandle(v, -2);
+		v.setTop(top);
+		return h.m_nativeHandle == -1 ? null : h;
+	}
+	
+	/**
+	 * Drops the handles of the class of the instance or class at {@code idx}.
+	 */
+	public void invalidate(JSqVM v, int idx) {
+		v.checkOwner();
+		Object key;
+		if (v.m_interp != null)
+			key = v.m_interp.classOf(idx);
+		else
+			key = Squirrel.NATIVE.sq_getclassid(v.m_nativeHandle, idx);
+		Members members = m_classes.remove(key);
+		if (members == null)
+			return;
+		if (members == m_last) {
+			m_lastClass = NO_CLASS;
+			m_lastId = 0;
+			m_last = null;
+		}
+		if (members.m_pin != null)
+			Squirrel.sq_release(v, members.m_pin);
+	}
+	
+	/**
+	 * Drops every handle and, for native VMs, the references to their classes.
+	 * @param v The VM of the cache or one of its friend threads.
+	 */
+	public void clear(JSqVM v) {
+		v.checkOwner();
+		for (Members members : m_classes.values())
+			if (members.m_pin != null)
+				Squirrel.sq_release(v, members.m_pin);
+		m_classes.clear();
+		m_lastClass = NO_CLASS;
+		m_lastId = 0;
+		m_last = null;
+	}
+	
+	/**
+	 * @return The classes with cached handles.
+	 */
+	public int size() {
+		return m_classes.size();
+	}
+	
+	/**
+	 * @return The accesses served by a cached handle.
+	 */
+	public long getHits() {
+		return m_hits;
+	}
+	
+	/**
+	 * @return The accesses that had to resolve a handle or fell back to a lookup by name.
+	 */
+	public long getMisses() {
+		return m_misses;
+	}
+	
+	public void resetCounters() {
+		m_hits = 0;
+		m_misses = 0;
+	}
+	
+}
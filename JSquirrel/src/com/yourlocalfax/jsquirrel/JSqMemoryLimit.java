@@ -0,0 +1,203 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * The memory budget of a VM and its friend threads, set with {@link Squirrel#sq_open(int, JSqBackend, long)}.
+ * <br><br>
+ * The budget covers what JSquirrel can see being allocated: on the {@link JSqBackend#Java Java} backend the
+ * tables, arrays, strings, closures, classes, instances and userdata created by scripts or through the API, on both
+ * backends the memory of the VM's {@link JSqHostArena}. An allocation that would go over the limit fails: scripts
+ * get a runtime error, {@link Squirrel#sq_malloc(JSqVM, long)} returns 0, and the API pushes null instead of the new
+ * object and sets the last error.
+ * <br><br>
+ * On the {@link JSqBackend#Native Native} backend only the arena is counted. Squirrel allocates its own objects
+ * through the C allocator, which JSquirrel doesn't see, so a native VM's scripts can still use as much memory as
+ * the process has.
+ * <br><br>
+ * Once usage passes the soft limit the VM is collected before the allocation is counted. On the Java backend
+ * that measures what the VM can still reach, since the JVM frees the rest on its own, native VMs run
+ * {@link Squirrel#sq_collectgarbage(JSqVM)}.
+ * @author Christopher Foster
+ */
+public final class JSqMemoryLimit {
+	
+	private final long m_limit;
+	private long m_softLimit;
+	/** Usage that triggers the next collection, raised after collections that free little. */
+	private long m_nextCollection;
+	
+	/** Estimated Java heap used by Java backend objects. */
+	private long m_heap;
+	private long m_heapPeak;
+	/** Bytes allocated by the arena. */
+	private long m_native;
+	private long m_peak;
+	private long m_collections;
+	private long m_failures;
+	
+	JSqMemoryLimit(long limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException("The memory limit must be positive: " + limit);
+		m_limit = limit;
+		m_softLimit = limit - limit / 4;
+		m_nextCollection = m_softLimit;
+	}
+	
+	public long getLimit() {
+		return m_limit;
+	}
+	
+	public long getSoftLimit() {
+		return m_softLimit;
+	}
+	
+	/**
+	 * @param softLimit The usage from which the VM is collected before allocating, 75% of the limit by default.
+	 */
+	public void setSoftLimit(long softLimit) {
+		if (softLimit <= 0 || softLimit > m_limit)
+			throw new IllegalArgumentException("The soft limit must be between 1 and " + m_limit + ": " + softLimit);
+		m_softLimit = softLimit;
+		m_nextCollection = softLimit;
+	}
+	
+	/**
+	 * @return The bytes counted against the limit.
+	 */
+	public long getUsedBytes() {
+		return m_heap + m_native;
+	}
+	
+	public long getPeakBytes() {
+		return m_peak;
+	}
+	
+	long getHeapBytes() {
+		return m_heap;
+	}
+	
+	long getHeapPeakBytes() {
+		return m_heapPeak;
+	}
+	
+	/**
+	 * @return The number of collections triggered by the soft limit.
+	 */
+	public long getCollectionCount() {
+		return m_collections;
+	}
+	
+	/**
+	 * @return The number of allocations refused because of the limit.
+	 */
+	public long getFailureCount() {
+		return m_failures;
+	}
+	
+	/**
+	 * Counts an allocation by the Java backend.
+	 * @return False if it would go over the limit.
+	 */
+	boolean charge(JSqInterpreter v, long bytes) {
+		long used = m_heap + m_native + bytes;
+		if (used > m_nextCollection || used > m_limit)
+			measure(v);
+		if (!fits(bytes))
+			return false;
+		m_heap += bytes;
+		peak();
+		return true;
+	}
+	
+	/**
+	 * Counts an allocation by the arena.
+	 * @param vm The native VM to collect, 0 for the Java backend.
+	 * @return False if it would go over the limit.
+	 */
+	boolean chargeNative(long vm, long bytes) {
+		long used = m_heap + m_native + bytes;
+		if (vm != 0 && (used > m_nextCollection || used > m_limit)) {
+			Squirrel.NATIVE.sq_collectgarbage(vm);
+			collected();
+		}
+		if (!fits(bytes))
+			return false;
+		m_native += bytes;
+		peak();
+		return true;
+	}
+	
+	void releaseNative(long bytes) {
+		m_native -= bytes;
+	}
+	
+	/**
+	 * Takes back a {@link #releaseNative(long)} for memory that turned out to stay in use, even over the limit.
+	 */
+	void restoreNative(long bytes) {
+		m_native += bytes;
+		peak();
+	}
+	
+	/**
+	 * Replaces the heap estimate by a fresh measurement.
+	 * @return False if what the VM still reaches is over the limit.
+	 */
+	boolean measure(JSqInterpreter v) {
+		m_heap = JSqMemoryMeter.measure(v);
+		collected();
+		peak();
+		return m_heap + m_native <= m_limit;
+	}
+	
+	String errorMessage() {
+		return "memory limit of " + m_limit + " bytes exceeded";
+	}
+	
+	private boolean fits(long bytes) {
+		if (m_heap + m_native + bytes <= m_limit)
+			return true;
+		m_failures++;
+		return false;
+	}
+	
+	private void collected() {
+		m_collections++;
+		long used = m_heap + m_native;
+		// Collect again halfway to the limit, but at least a sixteenth of it later, so live data above the soft limit
+		// isn't measured on every allocation
+		m_nextCollection = Math.max(m_softLimit, used + Math.max((m_limit - used) / 2, m_limit / 16));
+	}
+	
+	private void peak() {
+		long used = m_heap + m_native;
+		if (used > m_peak)
+			m_peak = used;
+		if (m_heap > m_heapPeak)
+			m_heapPeak = m_heap;
+	}
+	
+}
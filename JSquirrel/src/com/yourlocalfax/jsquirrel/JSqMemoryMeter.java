@@ -0,0 +1,195 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+/**
+ * Estimates the Java heap used by the objects a Java backend VM can reach, for {@link JSqMemoryLimit}.
+ * <br><br>
+ * The sizes assume a 64-bit JVM with compressed references: 16 bytes of object header plus 4 bytes per
+ * reference or int. They are close enough to keep a runaway script from taking the process down, not exact.
+ * @author Christopher Foster
+ */
+final class JSqMemoryMeter {
+	
+	static final int OBJECT = 16;
+	static final int ARRAY = 16;
+	/** The eight parallel arrays of a table, per slot. */
+	static final int TABLE_SLOT = 32;
+	/** The three parallel arrays of an array or stack, per element. */
+	static final int ARRAY_SLOT = 12;
+	/** A call frame and its slot in the frame array. */
+	static final int FRAME = OBJECT + 16 * 4;
+	
+	private final IdentityHashMap<Object, Boolean> m_seen = new IdentityHashMap<Object, Boolean>();
+	private final ArrayDeque<Object> m_pending = new ArrayDeque<Object>();
+	private long m_bytes;
+	
+	private JSqMemoryMeter() {
+	}
+	
+	/**
+	 * @return The estimated size of everything reachable from the VM's shared state and {@code v}.
+	 */
+	static long measure(JSqInterpreter v) {
+		JSqMemoryMeter m = new JSqMemoryMeter();
+		JSqSharedState ss = v.m_ss;
+		m.add(ss.m_registry);
+		m.add(ss.m_consts);
+		m.add(ss.m_main);
+		m.add(v);
+		Object o;
+		while ((o = m.m_pending.poll()) != null)
+			m.visit(o);
+		return m.m_bytes;
+	}
+	
+	static long tableBytes(int capacity) {
+		return OBJECT + 8 * ARRAY + (long) capacity * TABLE_SLOT;
+	}
+	
+	static long arrayBytes(int capacity) {
+		return OBJECT + 3 * ARRAY + (long) capacity * ARRAY_SLOT;
+	}
+	
+	static long stringBytes(int length) {
+		return OBJECT + ARRAY + length * 2L;
+	}
+	
+	static long instanceBytes(JSqClass c) {
+		return OBJECT + 3 * ARRAY + c.m_nDefaults * (long) ARRAY_SLOT;
+	}
+	
+	static long closureBytes(JSqFunctionProto f) {
+		return OBJECT + 4 * ARRAY + f.m_outerTypes.length * 4L + f.m_defaultParams.length * (long) ARRAY_SLOT;
+	}
+	
+	static long classBytes(JSqClass base) {
+		long bytes = OBJECT + 10 * ARRAY + JSqSharedState.MT_LAST * 8L + tableBytes(4);
+		if (base != null)
+			bytes += (base.m_defaultRefs.length + base.m_methodRefs.length) * 16L + tableBytes(base.m_members.m_refs.length);
+		return bytes;
+	}
+	
+	private void add(Object o) {
+		if (o != null && !(o instanceof JSqWeakRef) && m_seen.put(o, Boolean.TRUE) == null)
+			m_pending.add(o);
+	}
+	
+	private void addAll(Object[] refs, int count) {
+		if (refs == null)
+			return;
+		for (int i = 0; i < count; i++)
+			add(refs[i]);
+	}
+	
+	private void visit(Object o) {
+		if (o instanceof String) {
+			m_bytes += stringBytes(((String) o).length());
+		}
+		else if (o instanceof JSqTable) {
+			JSqTable t = (JSqTable) o;
+			m_bytes += tableBytes(t.m_refs.length);
+			addAll(t.m_keyRefs, t.m_used);
+			addAll(t.m_refs, t.m_used);
+			add(t.m_delegate);
+		}
+		else if (o instanceof JSqArray) {
+			JSqArray a = (JSqArray) o;
+			m_bytes += arrayBytes(a.m_refs.length);
+			addAll(a.m_refs, a.m_size);
+		}
+		else if (o instanceof JSqClosure) {
+			JSqClosure c = (JSqClosure) o;
+			m_bytes += OBJECT + 4 * ARRAY + c.m_outers.length * 4L + c.m_defaultRefs.length * (long) ARRAY_SLOT;
+			for (JSqOuter outer : c.m_outers)
+				add(outer);
+			addAll(c.m_defaultRefs, c.m_defaultRefs.length);
+			add(c.m_function);
+			add(c.m_base);
+		}
+		else if (o instanceof JSqOuter) {
+			JSqOuter outer = (JSqOuter) o;
+			m_bytes += OBJECT + 20;
+			add(outer.m_ref);
+		}
+		else if (o instanceof JSqInstance) {
+			JSqInstance i = (JSqInstance) o;
+			m_bytes += OBJECT + 3 * ARRAY + i.m_refs.length * (long) ARRAY_SLOT;
+			addAll(i.m_refs, i.m_refs.length);
+			add(i.m_class);
+		}
+		else if (o instanceof JSqClass) {
+			JSqClass c = (JSqClass) o;
+			m_bytes += OBJECT + 10 * ARRAY + (c.m_defaultRefs.length + c.m_methodRefs.length) * 16L + JSqSharedState.MT_LAST * 8L;
+			add(c.m_members);
+			addAll(c.m_defaultRefs, c.m_nDefaults);
+			addAll(c.m_methodRefs, c.m_nMethods);
+			addAll(c.m_metamethods, c.m_metamethods.length);
+			add(c.m_base);
+		}
+		else if (o instanceof JSqGenerator) {
+			JSqGenerator g = (JSqGenerator) o;
+			m_bytes += OBJECT + 4 * ARRAY + g.m_stackRefs.length * (long) ARRAY_SLOT + g.m_traps.length * 4L;
+			addAll(g.m_stackRefs, g.m_stackRefs.length);
+			add(g.m_closure);
+		}
+		else if (o instanceof JSqInterpreter) {
+			JSqInterpreter t = (JSqInterpreter) o;
+			m_bytes += OBJECT + 4 * ARRAY + t.m_stackRefs.length * (long) ARRAY_SLOT + t.m_calls.length * (long) FRAME;
+			addAll(t.m_stackRefs, t.m_top);
+			add(t.m_root);
+			add(t.m_errRef);
+			add(t.m_errorHandler);
+			add(t.m_debugHook);
+		}
+		else if (o instanceof JSqUserDataBlock) {
+			JSqUserDataBlock u = (JSqUserDataBlock) o;
+			m_bytes += OBJECT + 16 + u.m_size;
+			add(u.m_delegate);
+		}
+		else if (o instanceof JSqNativeClosure) {
+			JSqNativeClosure c = (JSqNativeClosure) o;
+			m_bytes += OBJECT + 6 * ARRAY + c.m_outerRefs.length * (long) ARRAY_SLOT;
+			addAll(c.m_outerRefs, c.m_outerRefs.length);
+		}
+		else if (o instanceof JSqFunctionProto) {
+			JSqFunctionProto f = (JSqFunctionProto) o;
+			m_bytes += OBJECT + 16 * ARRAY + f.m_instructions.length * 8L + f.m_literals.length * 4L;
+			addAll(f.m_literals, f.m_literals.length);
+			for (JSqFunctionProto child : f.m_functions)
+				add(child);
+		}
+		else if (o instanceof JSqObject) {
+			add(((JSqObject) o).m_ref);
+		}
+		else {
+			m_bytes += OBJECT;
+		}
+	}
+	
+}
@@ -0,0 +1,555 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The calls into the native Squirrel library, one per native function of {@link Squirrel}.
+ * <br><br>
+ * Native VMs are driven over JNI by {@link JSqJniBridge}, or through {@code java.lang.foreign} downcalls by
+ * {@code JSqForeignBridge}, which is built from {@code src-ffm} and needs Java 22. The bridge is picked once,
+ * when {@link Squirrel} is loaded, from the {@code jsquirrel.bridge} system property: {@code jni} or {@code ffm}
+ * to use only that bridge, otherwise JNI is tried first and FFM second.
+ * @author Christopher Foster
+ */
+abstract class JSqNativeBridge {
+	
+	static final String BRIDGE_PROPERTY = "jsquirrel.bridge";
+	
+	private static final String FOREIGN_BRIDGE = "com.yourlocalfax.jsquirrel.JSqForeignBridge";
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/**
+	 * @return The bridge to use, or null if neither native library could be loaded.
+	 */
+	static JSqNativeBridge load() {
+		String bridge = System.getProperty(BRIDGE_PROPERTY);
+		JSqNativeBridge res = null;
+		if (!"ffm".equals(bridge))
+			res = loadJni();
+		if (res == null && !"jni".equals(bridge))
+			res = loadForeign();
+		return res;
+	}
+	
+	private static JSqNativeBridge loadJni() {
+		try {
+			System.loadLibrary("JSquirrel");
+			return new JSqJniBridge();
+		}
+		catch (UnsatisfiedLinkError e) {
+			return null;
+		}
+	}
+	
+	private static JSqNativeBridge loadForeign() {
+		try {
+			return (JSqNativeBridge) Class.forName(FOREIGN_BRIDGE).newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null; // not built, a JVM older than 22 or no libsquirrel
+		}
+	}
+	
+	// SquirrelVM
+	
+	abstract long sq_open(int initialStackSize);
+	abstract long sq_newthread(long v, int initialStackSize);
+	abstract void sq_close(long v);
+	abstract int sq_suspendvm(long v);
+	abstract int sq_wakeupvm(long v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError);
+	abstract int sq_getvmstate(long v);
+	abstract int sq_getversion();
+	
+	// Compiler
+	
+	abstract int sq_compilebuffer(long v, String source, String sourceName, boolean raiseError);
+	abstract void sq_enabledebuginfo(long v, boolean enable);
+	abstract void sq_setnativedebughook(long v, boolean enable);
+	abstract void sq_notifyallexceptions(long v, boolean enable);
+	
+	// Stack Operations
+	
+	abstract void sq_push(long v, int idx);
+	abstract void sq_pop(long v, int numElementsToPop);
+	abstract void sq_poptop(long v);
+	abstract void sq_remove(long v, int idx);
+	abstract int sq_gettop(long v);
+	abstract void sq_settop(long v, int newtop);
+	abstract int sq_reservestack(long v, int nSize);
+	abstract int sq_cmp(long v);
+	abstract void sq_move(long v1, long v2, int idx);
+	
+	// Object Creation Handling
+	
+	abstract long sq_newuserdata(long v, long size);
+	abstract void sq_newtable(long v);
+	abstract void sq_newtableex(long v, int initialCapacity);
+	abstract void sq_newarray(long v, int size);
+	abstract void sq_newclosure(long v, int nfreevars);
+	abstract int sq_setparamscheck(long v, int nParamsCheck, String typeMask);
+	abstract int sq_bindenv(long v, int idx);
+	abstract void sq_pushstring(long v, String s, int len);
+	abstract void sq_pushstring(long v, ByteBuffer utf8, int len);
+	abstract void sq_pushfloat(long v, float f);
+	abstract void sq_pushinteger(long v, int i);
+	abstract void sq_pushbool(long v, boolean b);
+	abstract void sq_pushserpointer(long v, long up);
+	abstract void sq_pushnull(long v);
+	abstract int sq_gettype(long v, int idx);
+	abstract int sq_typeof(long v, int idx);
+	abstract int sq_getsize(long v, int idx);
+	abstract long sq_gethash(long v, int idx);
+	abstract long sq_getclassid(long v, int idx);
+	abstract int sq_getbase(long v, int idx);
+	abstract boolean sq_instanceof(long v);
+	abstract int sq_tostring(long v, int idx);
+	abstract boolean sq_tobool(long v, int idx);
+	abstract String sq_getstring(long v, int idx);
+	abstract ByteBuffer sq_getstringview(long v, int idx);
+	abstract int sq_getinteger(long v, int idx);
+	abstract float sq_getfloat(long v, int idx);
+	abstract boolean sq_getbool(long v, int idx);
+	abstract long sq_getthread(long v, int idx);
+	abstract long sq_getuserpointer(long v, int idx);
+	abstract long[] sq_getuserdata(long v, int idx);
+	abstract int sq_settypetag(long v, int idx);
+	abstract long sq_gettypetag(long v, int idx);
+	abstract long sq_getfunctioninfo(long v, int idx, JSqFunctionInfo info);
+	abstract int[] sq_getclosureinfo(long v, int idx);
+	abstract int sq_getclosurename(long v, int idx);
+	abstract int sq_setnativeclosurename(long v, int idx, String name);
+	abstract int sq_setinstanceup(long v, int idx, long up);
+	abstract long sq_getinstanceup(long v, int idx, long typetag);
+	abstract int sq_setclassudsize(long vmHaldne, int idx, int udSize);
+	abstract int sq_newclass(long v, boolean hasBase);
+	abstract int sq_createinstance(long v, int idx);
+	abstract int sq_setattributes(long v, int idx);
+	abstract int sq_getattributes(long v, int idx);
+	abstract int sq_getclass(long v, int idx);
+	abstract void sq_weakref(long v, int idx);
+	abstract int sq_getdefaultdelegate(long v, int tag);
+	abstract long sq_getmemberhandle(long v, int idx);
+	abstract int sq_getbyhandle(long v, int idx, long member);
+	abstract int sq_setbyhandle(long v, int idx, long member);
+	
+	// Object Manipulation
+	
+	abstract void sq_pushroottable(long v);
+	abstract void sq_pushregistrytable(long v);
+	abstract void sq_pushconsttable(long v);
+	abstract int sq_setroottable(long v);
+	abstract int sq_setconsttable(long v);
+	abstract int sq_newslot(long v, int idx, boolean bStatic);
+	abstract int sq_deleteslot(long v, int idx, boolean pushVal);
+	abstract int sq_set(long v, int idx);
+	abstract int sq_get(long v, int idx);
+	abstract int sq_rawset(long v, int idx);
+	abstract int sq_rawget(long v, int idx);
+	abstract int sq_rawdeleteslot(long v, int idx, boolean pushVal);
+	abstract int sq_newmember(long v, int idx, boolean bStatic);
+	abstract int sq_rawnewmember(long v, int idx, boolean bStatic);
+	abstract int sq_arrayappend(long v, int idx);
+	abstract int sq_arraypop(long v, int idx, boolean pushVal);
+	abstract int sq_arrayresize(long v, int idx, int newSize);
+	abstract int sq_arrayreverse(long v, int idx);
+	abstract int sq_arrayremove(long v, int idx, int itemIdx);
+	abstract int sq_arrayinsert(long v, int idx, int destPos);
+	abstract int sq_setdelegate(long v, int idx);
+	abstract int sq_getdelegate(long v, int idx);
+	abstract int sq_clone(long v, int idx);
+	abstract int sq_setfreevariable(long v, int idx, long nVal);
+	abstract int sq_next(long v, int idx);
+	abstract int sq_getweakrefval(long v, int idx);
+	abstract int sq_clear(long v, int idx);
+	
+	// Calls
+	
+	abstract int sq_call(long v, int numParams, boolean retval, boolean raiseError);
+	abstract int sq_resume(long v, boolean retval, boolean raiseError);
+	abstract String sq_getlocal(long v, long level, long idx);
+	abstract int sq_getcallee(long v);
+	abstract String sq_getfreevariable(long v, int idx, long nVal);
+	abstract int sq_throwerror(long v, String err);
+	abstract int sq_throwobject(long v);
+	abstract void sq_reseterror(long v);
+	abstract void sq_getlasterror(long v);
+	
+	// Raw Object Handling
+	
+	abstract long sq_getstackobj(long v, int idx);
+	abstract void sq_pushobject(long v, long obj);
+	abstract boolean sq_release(long v, long obj);
+	abstract int sq_releaseobjects(long v, long[] objs, int count);
+	abstract long sq_getrefcount(long v, long obj);
+	abstract void sq_resetobject(long obj);
+	abstract String sq_objtostring(long obj);
+	abstract boolean sq_objtobool(long obj);
+	abstract int sq_objtointeger(long obj);
+	abstract float sq_objtofloat(long obj);
+	abstract long sq_objtouserpointer(long obj);
+	abstract long sq_getobjtypetag(long obj);
+	
+	// GC
+	
+	abstract int sq_collectgarbage(long v);
+	abstract int sq_resurrectunreachable(long v);
+	
+	// Serialization
+	
+	abstract byte[] sq_writeclosure(long v);
+	abstract int sq_readclosure(long v, ByteBuffer buf, int len);
+	
+	// Batching
+	
+	abstract int sq_runbatch(long v, ByteBuffer commands, int len, ByteBuffer results, int capacity);
+	
+	// Bulk Arrays
+	
+	abstract int sq_newarray(long v, ByteBuffer values, int type, int count);
+	abstract int sq_getarray(long v, int idx, ByteBuffer dst, int type, int count);
+	
+	// Memory Allocation
+	
+	abstract long sq_malloc(long size);
+	abstract long sq_realloc(long p, long oldSize, long newSize);
+	abstract void sq_free(long p, long size);
+	abstract void sq_copymemory(long dst, long src, long size);
+	
+	// Utility Macro
+	
+	abstract boolean sq_isnumeric(long o);
+	abstract boolean sq_istable(long o);
+	abstract boolean sq_isarray(long o);
+	abstract boolean sq_isfunction(long o);
+	abstract boolean sq_isclosure(long o);
+	abstract boolean sq_isgenerator(long o);
+	abstract boolean sq_isnativeclosure(long o);
+	abstract boolean sq_isstring(long o);
+	abstract boolean sq_isinteger(long o);
+	abstract boolean sq_isfloat(long o);
+	abstract boolean sq_isuserpointer(long o);
+	abstract boolean sq_isuserdata(long o);
+	abstract boolean sq_isthread(long o);
+	abstract boolean sq_isnull(long o);
+	abstract boolean sq_isclass(long o);
+	abstract boolean sq_isinstance(long o);
+	abstract boolean sq_isbool(long o);
+	abstract boolean sq_isweakref(long o);
+	abstract int sq_type(long o);
+	
+	// Fallbacks, built from the calls every native library has
+	
+	/**
+	 * sq_newarray filled with {@code count} raw values of {@code values}, appending the elements one by one.
+	 */
+	final int newArrayEach(long v, ByteBuffer values, int type, int count) {
+		sq_newarray(v, 0);
+		for (int i = 0; i < count; i++) {
+			int raw = values.getInt(i << 2);
+			switch (type) {
+				case JSqTypes.OT_INTEGER: sq_pushinteger(v, raw); break;
+				case JSqTypes.OT_FLOAT: sq_pushfloat(v, Float.intBitsToFloat(raw)); break;
+				default: sq_pushbool(v, raw != 0); break;
+			}
+			if (sq_arrayappend(v, -2) < 0) {
+				sq_pop(v, 1);
+				return -1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Reads up to {@code count} elements of the array at {@code idx} as raw values of {@code type}, one by one.
+	 * @return The size of the array, or -1 if the value isn't one.
+	 */
+	final int getArrayEach(long v, int idx, ByteBuffer dst, int type, int count) {
+		if (sq_gettype(v, idx) != JSqTypes.OT_ARRAY)
+			return -1;
+		if (idx < 0)
+			idx += sq_gettop(v) + 1;
+		int size = sq_getsize(v, idx);
+		for (int i = 0, n = Math.min(size, count); i < n; i++) {
+			sq_pushinteger(v, i);
+			sq_rawget(v, idx);
+			int t = sq_gettype(v, -1);
+			int raw;
+			switch (t) {
+				case JSqTypes.OT_INTEGER: raw = sq_getinteger(v, -1); break;
+				case JSqTypes.OT_FLOAT: raw = Float.floatToRawIntBits(sq_getfloat(v, -1)); break;
+				case JSqTypes.OT_BOOL: raw = sq_getbool(v, -1) ? 1 : 0; break;
+				default: raw = 0; break;
+			}
+			dst.putInt(i << 2, JSqTypes.coerce(type, t, raw));
+			sq_pop(v, 1);
+		}
+		return size;
+	}
+	
+	/**
+	 * The identity of the class at {@code idx}, or of the class of the instance at {@code idx}, taken from its hash,
+	 * which libsquirrel derives from the address for reference types. 0 for other values.
+	 */
+	final long classIdOf(long v, int idx) {
+		switch (sq_gettype(v, idx)) {
+			case JSqTypes.OT_CLASS:
+				return sq_gethash(v, idx);
+			case JSqTypes.OT_INSTANCE: {
+				if (sq_getclass(v, idx) < 0)
+					return 0;
+				long id = sq_gethash(v, -1);
+				sq_pop(v, 1);
+				return id;
+			}
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Runs a batch like {@link JSqBatch#run(JSqInterpreter, ByteBuffer, int, ByteBuffer, String[], JSqObject[])},
+	 * with one call into the VM for each stack operation.
+	 */
+	final int runBatchEach(long v, ByteBuffer commands, int len, ByteBuffer results, int capacity) {
+		int pc = results.getInt(JSqBatch.STATE_COMMAND);
+		int out = results.getInt(JSqBatch.STATE_RESULTS);
+		int executed = results.getInt(JSqBatch.STATE_EXECUTED);
+		int status = JSqBatch.RUN_OK;
+		while (pc < len) {
+			int op = commands.getInt(pc);
+			int a = pc + 4 < len ? commands.getInt(pc + 4) : 0;
+			int next = pc + 8;
+			int r = 0;
+			switch (op) {
+				case JSqBatch.PUSH: sq_push(v, a); break;
+				case JSqBatch.POP: sq_pop(v, a); break;
+				case JSqBatch.REMOVE: sq_remove(v, a); break;
+				case JSqBatch.SETTOP: sq_settop(v, a); break;
+				case JSqBatch.PUSHROOTTABLE: sq_pushroottable(v); next = pc + 4; break;
+				case JSqBatch.PUSHREGISTRYTABLE: sq_pushregistrytable(v); next = pc + 4; break;
+				case JSqBatch.PUSHCONSTTABLE: sq_pushconsttable(v); next = pc + 4; break;
+				case JSqBatch.PUSHNULL: sq_pushnull(v); next = pc + 4; break;
+				case JSqBatch.PUSHINTEGER: sq_pushinteger(v, a); break;
+				case JSqBatch.PUSHFLOAT: sq_pushfloat(v, Float.intBitsToFloat(a)); break;
+				case JSqBatch.PUSHBOOL: sq_pushbool(v, a != 0); break;
+				case JSqBatch.PUSHSTRING: {
+					byte[] bytes = new byte[a];
+					ByteBuffer buf = commands.duplicate();
+					((Buffer) buf).clear().position(pc + 12);
+					buf.get(bytes);
+					String s = new String(bytes, UTF_8);
+					sq_pushstring(v, s, s.length());
+					next = pc + 12 + ((a + 3) & ~3);
+					break;
+				}
+				case JSqBatch.NEWTABLE: sq_newtable(v); next = pc + 4; break;
+				case JSqBatch.NEWTABLEEX: sq_newtableex(v, a); break;
+				case JSqBatch.NEWARRAY: sq_newarray(v, a); break;
+				case JSqBatch.GET: r = sq_get(v, a); break;
+				case JSqBatch.SET: r = sq_set(v, a); break;
+				case JSqBatch.RAWGET: r = sq_rawget(v, a); break;
+				case JSqBatch.RAWSET: r = sq_rawset(v, a); break;
+				case JSqBatch.NEWSLOT: r = sq_newslot(v, a, commands.getInt(pc + 8) != 0); next = pc + 12; break;
+				case JSqBatch.ARRAYAPPEND: r = sq_arrayappend(v, a); break;
+				case JSqBatch.CALL:
+					r = sq_call(v, a, commands.getInt(pc + 8) != 0, commands.getInt(pc + 12) != 0);
+					next = pc + 16;
+					break;
+				case JSqBatch.GETSTRING: {
+					String s = sq_getstring(v, a);
+					byte[] bytes = s != null ? s.getBytes(UTF_8) : null;
+					int size = bytes != null ? 4 + ((bytes.length + 3) & ~3) : 4;
+					if (out + size > capacity) {
+						status = JSqBatch.RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, bytes != null ? bytes.length : -1);
+					if (bytes != null)
+						putBytes(results, out + 4, bytes);
+					out += size;
+					break;
+				}
+				case JSqBatch.GETVALUE: {
+					int top = sq_gettop(v);
+					int end = dumpValue(v, a < 0 ? top + a + 1 : a, results, out, capacity, 0);
+					sq_settop(v, top);
+					if (end == JSqBatch.RUN_FAILED)
+						r = -1;
+					else if (end == JSqBatch.RUN_RESULTS_FULL)
+						status = JSqBatch.RUN_RESULTS_FULL;
+					else
+						out = end;
+					break;
+				}
+				case JSqBatch.NEXTCHUNK: {
+					int top = sq_gettop(v);
+					int end = dumpChunk(v, a < 0 ? top + a + 1 : a, commands.getInt(pc + 8), commands.getInt(pc + 12), results, out, capacity);
+					sq_settop(v, top);
+					if (end == JSqBatch.RUN_FAILED)
+						r = -1;
+					else if (end == JSqBatch.RUN_RESULTS_FULL)
+						status = JSqBatch.RUN_RESULTS_FULL;
+					else
+						out = end;
+					next = pc + 16;
+					break;
+				}
+				case JSqBatch.SAMEOBJECT: {
+					// Reference types without a _cmp metamethod compare by address
+					long held = (commands.getInt(pc + 12) & 0xFFFFFFFFL) | ((long) commands.getInt(pc + 16) << 32);
+					sq_push(v, a);
+					sq_pushobject(v, held);
+					if (sq_gettype(v, -1) != sq_gettype(v, -2) || sq_cmp(v) != 0)
+						r = -1;
+					sq_pop(v, 2);
+					next = pc + 20;
+					break;
+				}
+				default: {
+					int value;
+					switch (op) {
+						case JSqBatch.GETTOP: value = sq_gettop(v); next = pc + 4; break;
+						case JSqBatch.GETTYPE: value = sq_gettype(v, a); break;
+						case JSqBatch.GETINTEGER: value = sq_getinteger(v, a); break;
+						case JSqBatch.GETFLOAT: value = Float.floatToRawIntBits(sq_getfloat(v, a)); break;
+						case JSqBatch.GETBOOL: value = sq_getbool(v, a) ? 1 : 0; break;
+						default: throw new IllegalStateException("unknown batch operation " + op);
+					}
+					if (out + 4 > capacity) {
+						status = JSqBatch.RUN_RESULTS_FULL;
+						break;
+					}
+					results.putInt(out, value);
+					out += 4;
+				}
+			}
+			if (status == JSqBatch.RUN_OK && r < 0)
+				status = JSqBatch.RUN_FAILED;
+			if (status != JSqBatch.RUN_OK)
+				break;
+			pc = next;
+			executed++;
+		}
+		results.putInt(JSqBatch.STATE_COMMAND, pc).putInt(JSqBatch.STATE_RESULTS, out).putInt(JSqBatch.STATE_EXECUTED, executed);
+		return status;
+	}
+	
+	/**
+	 * Writes entries of the table or array at the absolute index {@code idx} in the format of
+	 * {@link JSqBatch#NEXTCHUNK}, continuing from a native sq_next iterator. The caller restores the stack top.
+	 */
+	private int dumpChunk(long v, int idx, int iterator, int count, ByteBuffer results, int out, int capacity) {
+		int t = sq_gettype(v, idx);
+		if (t != JSqTypes.OT_TABLE && t != JSqTypes.OT_ARRAY)
+			return JSqBatch.RUN_FAILED;
+		if (out + 8 > capacity)
+			return JSqBatch.RUN_RESULTS_FULL;
+		int start = out;
+		out += 8;
+		int n = 0;
+		sq_pushinteger(v, iterator);
+		while (n < count && out >= 0) {
+			if (sq_next(v, idx) < 0) {
+				iterator = -1;
+				break;
+			}
+			int top = sq_gettop(v);
+			out = dumpValue(v, top - 1, results, out, capacity, 1);
+			if (out >= 0)
+				out = dumpValue(v, top, results, out, capacity, 1);
+			sq_pop(v, 2);
+			n++;
+		}
+		if (out < 0)
+			return out;
+		if (iterator >= 0)
+			iterator = sq_getinteger(v, -1);
+		results.putInt(start, iterator).putInt(start + 4, n);
+		return out;
+	}
+	
+	/**
+	 * Writes the value at the absolute index {@code idx} in the format of {@link JSqBatch#GETVALUE}, iterating tables
+	 * and arrays with sq_next. The caller restores the stack top.
+	 */
+	private int dumpValue(long v, int idx, ByteBuffer results, int out, int capacity, int depth) {
+		if (out + 8 > capacity)
+			return JSqBatch.RUN_RESULTS_FULL;
+		int t = sq_gettype(v, idx);
+		results.putInt(out, t);
+		out += 4;
+		switch (t) {
+			case JSqTypes.OT_INTEGER:
+				results.putInt(out, sq_getinteger(v, idx));
+				return out + 4;
+			case JSqTypes.OT_FLOAT:
+				results.putFloat(out, sq_getfloat(v, idx));
+				return out + 4;
+			case JSqTypes.OT_BOOL:
+				results.putInt(out, sq_getbool(v, idx) ? 1 : 0);
+				return out + 4;
+			case JSqTypes.OT_STRING: {
+				byte[] bytes = sq_getstring(v, idx).getBytes(UTF_8);
+				if (out + 4 + ((bytes.length + 3) & ~3) > capacity)
+					return JSqBatch.RUN_RESULTS_FULL;
+				results.putInt(out, bytes.length);
+				putBytes(results, out + 4, bytes);
+				return out + 4 + ((bytes.length + 3) & ~3);
+			}
+			case JSqTypes.OT_TABLE:
+			case JSqTypes.OT_ARRAY: {
+				if (depth == JSqBatch.MAX_DEPTH)
+					return JSqBatch.RUN_FAILED;
+				results.putInt(out, sq_getsize(v, idx));
+				out += 4;
+				sq_pushnull(v);
+				while (out >= 0 && sq_next(v, idx) >= 0) {
+					int top = sq_gettop(v);
+					if (t == JSqTypes.OT_TABLE)
+						out = dumpValue(v, top - 1, results, out, capacity, depth + 1);
+					if (out >= 0)
+						out = dumpValue(v, top, results, out, capacity, depth + 1);
+					sq_pop(v, 2);
+				}
+				sq_pop(v, 1);
+				return out;
+			}
+			default:
+				return out;
+		}
+	}
+	
+	private static void putBytes(ByteBuffer dst, int pos, byte[] bytes) {
+		ByteBuffer buf = dst.duplicate();
+		((Buffer) buf).clear().position(pos);
+		buf.put(bytes);
+	}
+	
+}
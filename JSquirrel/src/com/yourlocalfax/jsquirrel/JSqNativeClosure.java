@@ -0,0 +1,55 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * A function implemented in Java that the Java backend can call like any other closure.
+ * <br><br>
+ * {@link #call} follows the SQFUNCTION convention: the arguments are on the stack starting at index 1,
+ * the return value is 1 if the function pushed a result, 0 if it didn't and a negative value on error.
+ * @author Christopher Foster
+ */
+abstract class JSqNativeClosure implements Cloneable {
+	
+	String m_name;
+	int m_nparamsCheck;
+	int[] m_typeCheck;
+	int[] m_outerTypes = new int[0];
+	int[] m_outerValues = new int[0];
+	Object[] m_outerRefs = new Object[0];
+	JSqWeakRef m_env;
+	
+	abstract int call(JSqInterpreter v);
+	
+	JSqNativeClosure cloneClosure() {
+		try {
+			return (JSqNativeClosure) clone();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+}
@@ -0,0 +1,45 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * A function implemented in Java that scripts can call, pushed with
+ * {@link Squirrel#sq_newclosure(JSqVM, JSqNativeFunction, int)}. The equivalent of an SQFUNCTION.
+ * <br><br>
+ * The arguments are on the stack of {@code v} starting at index 1, which holds {@code this}, followed by the free
+ * variables of the closure. A {@link JSquirrelException} or any other exception thrown by the function is raised in
+ * the script as an error with the message of the exception.
+ * @author Christopher Foster
+ */
+public interface JSqNativeFunction {
+	
+	/**
+	 * @param v The VM running the script that called the function.
+	 * @return 1 if the function pushed a return value, 0 if it returns null, or a negative value after
+	 * {@link Squirrel#sq_throwerror(JSqVM, String)} to raise an error.
+	 */
+	int call(JSqVM v) throws JSquirrelException;
+	
+}
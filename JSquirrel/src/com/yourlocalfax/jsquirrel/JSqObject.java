@@ -28,8 +28,26 @@ public class JSqObject {
 	
 	final long m_nativeHandle;
 	
+	/** The tagged value of an object held by the Java backend, m_type is 0 for native handles. */
+	int m_type;
+	int m_value;
+	Object m_ref;
+	
+	/** Tracks the native handle, null for the Java backend and once released. */
+	JSqHandles.Ref m_handleRef;
+	
 	JSqObject(long handle) {
 		m_nativeHandle = handle;
+		m_type = 0;
+		m_value = 0;
+		m_ref = null;
+	}
+	
+	JSqObject(int type, int value, Object ref) {
+		m_nativeHandle = 0;
+		m_type = type;
+		m_value = value;
+		m_ref = ref;
 	}
 	
 }
@@ -0,0 +1,190 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * The Squirrel 3 instruction set as defined in sqopcodes.h.
+ * <br><br>
+ * An instruction is stored packed in a {@code long} with the same layout the native SQInstruction
+ * struct has in memory on a little endian machine: {@code _arg1} in the low 32 bits followed by
+ * {@code op}, {@code _arg0}, {@code _arg2} and {@code _arg3} one byte each.
+ * @author Christopher Foster
+ */
+final class JSqOpcodes {
+	
+	static final int OP_LINE =				0x00;
+	static final int OP_LOAD =				0x01;
+	static final int OP_LOADINT =			0x02;
+	static final int OP_LOADFLOAT =			0x03;
+	static final int OP_DLOAD =				0x04;
+	static final int OP_TAILCALL =			0x05;
+	static final int OP_CALL =				0x06;
+	static final int OP_PREPCALL =			0x07;
+	static final int OP_PREPCALLK =			0x08;
+	static final int OP_GETK =				0x09;
+	static final int OP_MOVE =				0x0A;
+	static final int OP_NEWSLOT =			0x0B;
+	static final int OP_DELETE =			0x0C;
+	static final int OP_SET =				0x0D;
+	static final int OP_GET =				0x0E;
+	static final int OP_EQ =				0x0F;
+	static final int OP_NE =				0x10;
+	static final int OP_ADD =				0x11;
+	static final int OP_SUB =				0x12;
+	static final int OP_MUL =				0x13;
+	static final int OP_DIV =				0x14;
+	static final int OP_MOD =				0x15;
+	static final int OP_BITW =				0x16;
+	static final int OP_RETURN =			0x17;
+	static final int OP_LOADNULLS =			0x18;
+	static final int OP_LOADROOT =			0x19;
+	static final int OP_LOADBOOL =			0x1A;
+	static final int OP_DMOVE =				0x1B;
+	static final int OP_JMP =				0x1C;
+	static final int OP_JCMP =				0x1D;
+	static final int OP_JZ =				0x1E;
+	static final int OP_SETOUTER =			0x1F;
+	static final int OP_GETOUTER =			0x20;
+	static final int OP_NEWOBJ =			0x21;
+	static final int OP_APPENDARRAY =		0x22;
+	static final int OP_COMPARITH =			0x23;
+	static final int OP_INC =				0x24;
+	static final int OP_INCL =				0x25;
+	static final int OP_PINC =				0x26;
+	static final int OP_PINCL =				0x27;
+	static final int OP_CMP =				0x28;
+	static final int OP_EXISTS =			0x29;
+	static final int OP_INSTANCEOF =		0x2A;
+	static final int OP_AND =				0x2B;
+	static final int OP_OR =				0x2C;
+	static final int OP_NEG =				0x2D;
+	static final int OP_NOT =				0x2E;
+	static final int OP_BWNOT =				0x2F;
+	static final int OP_CLOSURE =			0x30;
+	static final int OP_YIELD =				0x31;
+	static final int OP_RESUME =			0x32;
+	static final int OP_FOREACH =			0x33;
+	static final int OP_POSTFOREACH =		0x34;
+	static final int OP_CLONE =				0x35;
+	static final int OP_TYPEOF =			0x36;
+	static final int OP_PUSHTRAP =			0x37;
+	static final int OP_POPTRAP =			0x38;
+	static final int OP_THROW =				0x39;
+	static final int OP_NEWSLOTA =			0x3A;
+	static final int OP_GETBASE =			0x3B;
+	static final int OP_CLOSE =				0x3C;
+	
+	static final int BW_AND =				0;
+	static final int BW_OR =				2;
+	static final int BW_XOR =				3;
+	static final int BW_SHIFTL =			4;
+	static final int BW_SHIFTR =			5;
+	static final int BW_USHIFTR =			6;
+	
+	static final int CMP_G =				0;
+	static final int CMP_GE =				2;
+	static final int CMP_L =				3;
+	static final int CMP_LE =				4;
+	static final int CMP_3W =				5;
+	
+	static final int NOT_TABLE =			0;
+	static final int NOT_ARRAY =			1;
+	static final int NOT_CLASS =			2;
+	
+	static final int AAT_STACK =			0;
+	static final int AAT_LITERAL =			1;
+	static final int AAT_INT =				2;
+	static final int AAT_FLOAT =			3;
+	static final int AAT_BOOL =				4;
+	
+	static final int NEW_SLOT_ATTRIBUTES_FLAG =	0x01;
+	static final int NEW_SLOT_STATIC_FLAG =		0x02;
+	
+	static final int MAX_FUNC_STACKSIZE =	0xFF;
+	
+	static final String[] NAMES = {
+		"_OP_LINE", "_OP_LOAD", "_OP_LOADINT", "_OP_LOADFLOAT", "_OP_DLOAD", "_OP_TAILCALL", "_OP_CALL",
+		"_OP_PREPCALL", "_OP_PREPCALLK", "_OP_GETK", "_OP_MOVE", "_OP_NEWSLOT", "_OP_DELETE", "_OP_SET",
+		"_OP_GET", "_OP_EQ", "_OP_NE", "_OP_ADD", "_OP_SUB", "_OP_MUL", "_OP_DIV", "_OP_MOD", "_OP_BITW",
+		"_OP_RETURN", "_OP_LOADNULLS", "_OP_LOADROOT", "_OP_LOADBOOL", "_OP_DMOVE", "_OP_JMP", "_OP_JCMP",
+		"_OP_JZ", "_OP_SETOUTER", "_OP_GETOUTER", "_OP_NEWOBJ", "_OP_APPENDARRAY", "_OP_COMPARITH",
+		"_OP_INC", "_OP_INCL", "_OP_PINC", "_OP_PINCL", "_OP_CMP", "_OP_EXISTS", "_OP_INSTANCEOF",
+		"_OP_AND", "_OP_OR", "_OP_NEG", "_OP_NOT", "_OP_BWNOT", "_OP_CLOSURE", "_OP_YIELD", "_OP_RESUME",
+		"_OP_FOREACH", "_OP_POSTFOREACH", "_OP_CLONE", "_OP_TYPEOF", "_OP_PUSHTRAP", "_OP_POPTRAP",
+		"_OP_THROW", "_OP_NEWSLOTA", "_OP_GETBASE", "_OP_CLOSE"
+	};
+	
+	private JSqOpcodes() {
+	}
+	
+	static long make(int op, int arg0, int arg1, int arg2, int arg3) {
+		return (arg1 & 0xFFFFFFFFL)
+				| ((long) (op & 0xFF) << 32)
+				| ((long) (arg0 & 0xFF) << 40)
+				| ((long) (arg2 & 0xFF) << 48)
+				| ((long) (arg3 & 0xFF) << 56);
+	}
+	
+	static int op(long i) {
+		return (int) (i >>> 32) & 0xFF;
+	}
+	
+	static int arg0(long i) {
+		return (int) (i >>> 40) & 0xFF;
+	}
+	
+	static int arg1(long i) {
+		return (int) i;
+	}
+	
+	static int arg2(long i) {
+		return (int) (i >>> 48) & 0xFF;
+	}
+	
+	static int arg3(long i) {
+		return (int) (i >>> 56) & 0xFF;
+	}
+	
+	static long withOp(long i, int op) {
+		return (i & ~(0xFFL << 32)) | ((long) (op & 0xFF) << 32);
+	}
+	
+	static long withArg0(long i, int arg0) {
+		return (i & ~(0xFFL << 40)) | ((long) (arg0 & 0xFF) << 40);
+	}
+	
+	static long withArg1(long i, int arg1) {
+		return (i & ~0xFFFFFFFFL) | (arg1 & 0xFFFFFFFFL);
+	}
+	
+	static long withArg2(long i, int arg2) {
+		return (i & ~(0xFFL << 48)) | ((long) (arg2 & 0xFF) << 48);
+	}
+	
+	static long withArg3(long i, int arg3) {
+		return (i & ~(0xFFL << 56)) | ((long) (arg3 & 0xFF) << 56);
+	}
+	
+}
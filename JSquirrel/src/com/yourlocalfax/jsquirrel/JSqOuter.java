@@ -0,0 +1,82 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+/**
+ * A captured local variable. While the declaring function is running the outer points at its
+ * stack slot, once the slot goes out of scope the value is moved into the outer itself.
+ * @author Christopher Foster
+ */
+final class JSqOuter {
+	
+	/** The thread owning the stack slot, null once closed. */
+	JSqInterpreter m_owner;
+	/** The absolute stack index of the variable while open. */
+	int m_idx;
+	/** The next open outer of the owner, ordered by descending stack index. */
+	JSqOuter m_next;
+	
+	int m_type;
+	int m_value;
+	Object m_ref;
+	
+	JSqOuter(JSqInterpreter owner, int idx) {
+		m_owner = owner;
+		m_idx = idx;
+	}
+	
+	int type() {
+		return m_owner != null ? m_owner.m_stackTypes[m_idx] : m_type;
+	}
+	
+	int value() {
+		return m_owner != null ? m_owner.m_stackValues[m_idx] : m_value;
+	}
+	
+	Object ref() {
+		return m_owner != null ? m_owner.m_stackRefs[m_idx] : m_ref;
+	}
+	
+	void set(int t, int v, Object r) {
+		if (m_owner != null) {
+			m_owner.m_stackTypes[m_idx] = t;
+			m_owner.m_stackValues[m_idx] = v;
+			m_owner.m_stackRefs[m_idx] = r;
+		}
+		else {
+			m_type = t;
+			m_value = v;
+			m_ref = r;
+		}
+	}
+	
+	void close() {
+		m_type = m_owner.m_stackTypes[m_idx];
+		m_value = m_owner.m_stackValues[m_idx];
+		m_ref = m_owner.m_stackRefs[m_idx];
+		m_owner = null;
+	}
+	
+}
@@ -0,0 +1,193 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The ownership token of a Squirrel VM, shared by the VM and all of its friend threads.
+ * <br><br>
+ * A Java thread takes ownership with {@link #acquire()} and gives it up with {@link #release()}. While a VM is
+ * owned, any other Java thread calling into it through {@link Squirrel} or {@link JSqVM} gets an
+ * {@link IllegalStateException} instead of corrupting the VM.
+ * <br><br>
+ * The check is opt-in: a VM nobody has acquired is not checked at all, and it is not bound to the first thread that
+ * uses it. Two threads calling into a VM that neither of them acquired race without an error, exactly like they
+ * would without this class. Code that hands VMs between threads without acquiring them, such as a thread that
+ * creates a VM and passes it to a worker, keeps working and pays only for one field read per call. To have misuse
+ * fail fast, acquire the VM on every thread that uses it, or only reach it through {@link #execute(Runnable)},
+ * {@link JSqExecutor} or {@link JSqScheduler}, which acquire it for the work they run.
+ * <br><br>
+ * Other threads hand work to the owner with {@link #execute(Runnable)}. The work is queued without locking and
+ * run by the owner when it calls {@link #runPending()} or releases the VM, or right away on the calling thread if
+ * the VM is free. Every VM has its own token, so unrelated VMs never contend.
+ * @author Christopher Foster
+ */
+public final class JSqOwner {
+	
+	private static final AtomicReferenceFieldUpdater<JSqOwner, Thread> OWNER =
+			AtomicReferenceFieldUpdater.newUpdater(JSqOwner.class, Thread.class, "m_thread");
+	
+	volatile Thread m_thread;
+	/** Nested acquires by the owning thread, only touched by the owner. */
+	private int m_depth;
+	private final ConcurrentLinkedQueue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** The {@link JSqExecutor} call running on the VM, checked for cancellation whenever a script calls Java. */
+	volatile JSqExecutor.Call<?> m_call;
+	/** The budget of the VM or one of its friend threads, see {@link JSqBudget}. */
+	JSqBudget m_budget;
+	
+	JSqOwner() {
+	}
+	
+	/**
+	 * Takes ownership for the current thread, nested calls have to be matched by {@link #release()}.
+	 * @throws IllegalStateException If another thread owns the VM.
+	 */
+	public void acquire() {
+		if (!tryAcquire())
+			throw owned();
+	}
+	
+	/**
+	 * @return False if another thread owns the VM.
+	 */
+	public boolean tryAcquire() {
+		Thread current = Thread.currentThread();
+		if (m_thread == current) {
+			m_depth++;
+			return true;
+		}
+		if (!OWNER.compareAndSet(this, null, current))
+			return false;
+		m_depth = 1;
+		return true;
+	}
+	
+	/**
+	 * Gives up one level of ownership. The last release runs the work handed off in the meantime first.
+	 * <br><br>
+	 * If some of that work throws, the rest still runs and the VM is still released, then the first exception is
+	 * rethrown with the later ones suppressed.
+	 * @throws IllegalStateException If the current thread doesn't own the VM.
+	 */
+	public void release() {
+		checkOwned();
+		if (m_depth > 1) {
+			m_depth--;
+			return;
+		}
+		Throwable failure = null;
+		do {
+			failure = runTasks(failure);
+			m_depth = 0;
+			m_thread = null;
+			// Work queued after the last poll is picked up here, unless another thread took over and runs it
+		}
+		while (!m_tasks.isEmpty() && takeOver());
+		rethrow(failure);
+	}
+	
+	/**
+	 * Runs the work handed off by other threads so far. If some of it throws, the rest still runs first.
+	 * @throws IllegalStateException If the current thread doesn't own the VM.
+	 */
+	public void runPending() {
+		checkOwned();
+		rethrow(runTasks(null));
+	}
+	
+	/**
+	 * Runs {@code task} as the owner of the VM: right away if the VM is free or already owned by the current
+	 * thread, otherwise by the owning thread the next time it calls {@link #runPending()} or {@link #release()}.
+	 */
+	public void execute(Runnable task) {
+		if (m_thread == Thread.currentThread()) {
+			task.run();
+			return;
+		}
+		m_tasks.add(task);
+		if (takeOver())
+			release();
+	}
+	
+	/**
+	 * @return The owning thread, null if the VM is free.
+	 */
+	public Thread getThread() {
+		return m_thread;
+	}
+	
+	public boolean isHeldByCurrentThread() {
+		return m_thread == Thread.currentThread();
+	}
+	
+	IllegalStateException owned() {
+		Thread t = m_thread;
+		return new IllegalStateException("The VM is owned by thread " + (t != null ? t.getName() : "<none>"));
+	}
+	
+	private boolean takeOver() {
+		if (!OWNER.compareAndSet(this, null, Thread.currentThread()))
+			return false;
+		m_depth = 1;
+		return true;
+	}
+	
+	private void checkOwned() {
+		if (m_thread != Thread.currentThread())
+			throw new IllegalStateException("The current thread doesn't own the VM");
+	}
+	
+	/**
+	 * Runs the queued work until the queue is empty, an exception doesn't strand the work queued behind it.
+	 * @param failure The exception thrown by earlier work, or null.
+	 * @return The first exception thrown, or null.
+	 */
+	private Throwable runTasks(Throwable failure) {
+		Runnable task;
+		while ((task = m_tasks.poll()) != null) {
+			try {
+				task.run();
+			}
+			catch (RuntimeException | Error e) {
+				if (failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+		return failure;
+	}
+	
+	private static void rethrow(Throwable failure) {
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure != null)
+			throw (Error) failure;
+	}
+	
+}
@@ -0,0 +1,378 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Squirrel threads of one VM as coroutines on a shared {@link Executor}.
+ * <br><br>
+ * A thread that suspends with {@code ::suspend(ms)} and a number is resumed after that many milliseconds,
+ * {@code ::suspend()} with anything else waits until the host calls {@link Task#wakeup(Object)}, for example when
+ * an I/O operation completes. The value passed to {@code wakeup} becomes the return value of {@code suspend}.
+ * A waiting thread holds no Java thread, so a scheduler can keep a large number of them.
+ * <br><br>
+ * All threads of a VM share its state, so a scheduler runs one of them at a time. Several schedulers can share
+ * the same executor and timer, which multiplexes the threads of many VMs over a few Java threads. The scheduler
+ * holds the VM's {@link JSqOwner} while it runs and otherwise hands its work to the thread that does. The VM may
+ * only be used from within the scheduler once it has work, {@link #execute(Runnable)} runs code there.
+ * @author Christopher Foster
+ */
+public final class JSqScheduler {
+	
+	/** The registry slot holding the table that keeps spawned threads alive. */
+	private static final String THREADS_KEY = "jsquirrel.scheduler.threads";
+	/** Number of steps run before giving the executor back to other schedulers. */
+	private static final int QUANTUM = 64;
+	
+	private static final int READY = 0;
+	private static final int RUNNING = 1;
+	private static final int WAITING = 2;
+	private static final int DONE = 3;
+	/** The low bits of a task's state hold one of the above, the rest counts its waits, see {@link Task#timeout(int)}. */
+	private static final int STATUS = 3;
+	private static final int WAIT = 4;
+	
+	private static final AtomicInteger s_nextId = new AtomicInteger();
+	
+	/**
+	 * Notified on the scheduler when a thread returns or fails.
+	 */
+	public interface Listener {
+		/**
+		 * @param task The finished task.
+		 * @param thread The thread of the task, its return value is on top of the stack unless it failed.
+		 */
+		void finished(Task task, JSqVM thread);
+	}
+	
+	/**
+	 * A Squirrel thread started by {@link JSqScheduler#spawn(int, int, Listener)}.
+	 */
+	public final class Task {
+		
+		final int m_id;
+		final JSqVM m_thread;
+		final int m_numParams;
+		final Listener m_listener;
+		final AtomicInteger m_state = new AtomicInteger(READY);
+		boolean m_started;
+		boolean m_failed;
+		volatile Object m_wakeValue;
+		volatile boolean m_hasWakeValue;
+		volatile ScheduledFuture<?> m_timer;
+		
+		Task(int id, JSqVM thread, int numParams, Listener listener) {
+			m_id = id;
+			m_thread = thread;
+			m_numParams = numParams;
+			m_listener = listener;
+		}
+		
+		public JSqVM getThread() {
+			return m_thread;
+		}
+		
+		/**
+		 * @return True if the thread is suspended and waiting for a timer or a wakeup.
+		 */
+		public boolean isWaiting() {
+			return (m_state.get() & STATUS) == WAITING;
+		}
+		
+		public boolean isDone() {
+			return (m_state.get() & STATUS) == DONE;
+		}
+		
+		/**
+		 * @return True if the thread ended with an error.
+		 */
+		public boolean isFailed() {
+			return isDone() && m_failed;
+		}
+		
+		/**
+		 * Resumes a waiting thread, {@code suspend} returns null. Can be called from any Java thread.
+		 * @return False if the thread wasn't waiting.
+		 */
+		public boolean wakeup() {
+			return wake(false, null);
+		}
+		
+		/**
+		 * Resumes a waiting thread. Can be called from any Java thread.
+		 * @param value The return value of {@code suspend}: null, an Integer, Float, Boolean or String.
+		 * @return False if the thread wasn't waiting.
+		 */
+		public boolean wakeup(Object value) {
+			if (value != null && !(value instanceof Integer || value instanceof Float || value instanceof Boolean || value instanceof String))
+				throw new IllegalArgumentException("Unsupported wakeup value: " + value.getClass().getName());
+			return wake(true, value);
+		}
+		
+		boolean wake(boolean hasValue, Object value) {
+			int state;
+			do {
+				state = m_state.get();
+				if ((state & STATUS) != WAITING)
+					return false;
+			}
+			while (!m_state.compareAndSet(state, state & ~STATUS | READY));
+			woken(hasValue, value);
+			return true;
+		}
+		
+		/**
+		 * Wakes the thread for its timer. The wait count in {@code state} keeps a timer that fires late, after a
+		 * wakeup and another suspend, from ending the later wait.
+		 * @param state The state the thread had when the timer was set.
+		 */
+		void timeout(int state) {
+			if (m_state.compareAndSet(state, state & ~STATUS | READY))
+				woken(false, null);
+		}
+		
+		private void woken(boolean hasValue, Object value) {
+			ScheduledFuture<?> timer = m_timer;
+			if (timer != null)
+				timer.cancel(false);
+			m_timer = null;
+			m_wakeValue = value;
+			m_hasWakeValue = hasValue;
+			m_ready.add(this);
+			schedule();
+		}
+		
+	}
+	
+	private final JSqVM m_vm;
+	private final Executor m_executor;
+	private final ScheduledExecutorService m_timer;
+	
+	private final ConcurrentLinkedQueue<Runnable> m_actions = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<Task> m_ready = new ConcurrentLinkedQueue<Task>();
+	private final AtomicBoolean m_scheduled = new AtomicBoolean();
+	private final AtomicInteger m_taskCount = new AtomicInteger();
+	
+	private final Runnable m_drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	
+	/**
+	 * @param vm The VM whose threads are scheduled.
+	 * @param executor Runs the threads, may be shared with other schedulers.
+	 * @param timer Resumes threads that suspended with a delay, may be shared with other schedulers.
+	 */
+	public JSqScheduler(JSqVM vm, Executor executor, ScheduledExecutorService timer) {
+		m_vm = vm;
+		m_executor = executor;
+		m_timer = timer;
+	}
+	
+	public JSqVM getVM() {
+		return m_vm;
+	}
+	
+	/**
+	 * @return The number of spawned threads that haven't finished.
+	 */
+	public int getTaskCount() {
+		return m_taskCount.get();
+	}
+	
+	/**
+	 * Runs {@code action} on the scheduler, where it may use the VM and spawn threads.
+	 */
+	public void execute(Runnable action) {
+		m_actions.add(action);
+		schedule();
+	}
+	
+	/**
+	 * Starts a new thread calling the closure below the {@code numParams} parameters on top of the VM's stack,
+	 * the first parameter being the environment. The closure and the parameters are popped.
+	 * <br><br>
+	 * Must be called before the scheduler has work or from within it, like any other use of the VM.
+	 * @param initialStackSize The stack size of the new thread.
+	 * @param numParams The number of parameters, including the environment.
+	 * @param listener Notified when the thread finishes, may be null.
+	 * @return The new task, runs once the scheduler gets to it.
+	 * @throws JSquirrelException If the thread can't be created.
+	 */
+	public Task spawn(int initialStackSize, int numParams, Listener listener) throws JSquirrelException {
+		JSqVM v = m_vm;
+		int top = Squirrel.sq_gettop(v);
+		int func = top - numParams;
+		if (numParams < 1 || func < 1)
+			throw new IllegalArgumentException("Expected a closure and " + numParams + " parameters on the stack");
+		JSqVM thread = Squirrel.sq_newthread(v, initialStackSize);
+		for (int i = func; i <= top; i++)
+			Squirrel.sq_move(thread, v, i);
+		Task task = new Task(s_nextId.incrementAndGet(), thread, numParams, listener);
+		pushThreads(v);
+		Squirrel.sq_pushinteger(v, task.m_id);
+		Squirrel.sq_push(v, -3);
+		Squirrel.sq_rawset(v, -3);
+		Squirrel.sq_settop(v, func - 1);
+		m_taskCount.incrementAndGet();
+		m_ready.add(task);
+		schedule();
+		return task;
+	}
+	
+	private void schedule() {
+		if (m_scheduled.compareAndSet(false, true))
+			m_executor.execute(m_drain);
+	}
+	
+	private void drain() {
+		JSqOwner owner = m_vm.m_owner;
+		if (!owner.tryAcquire()) {
+			// Whoever holds the VM runs the drain when it's done with it
+			owner.execute(m_drain);
+			return;
+		}
+		try {
+			try {
+				Runnable action;
+				while ((action = m_actions.poll()) != null)
+					action.run();
+				Task task;
+				for (int i = 0; i < QUANTUM && (task = m_ready.poll()) != null; i++)
+					step(task);
+			}
+			finally {
+				owner.release();
+			}
+		}
+		finally {
+			m_scheduled.set(false);
+			// Work queued after the last poll would otherwise be left behind
+			if (!m_actions.isEmpty() || !m_ready.isEmpty())
+				schedule();
+		}
+	}
+	
+	private void step(Task task) {
+		JSqVM t = task.m_thread;
+		task.m_state.set(task.m_state.get() & ~STATUS | RUNNING);
+		JSqResult res;
+		if (!task.m_started) {
+			task.m_started = true;
+			res = Squirrel.sq_call(t, task.m_numParams, true, true);
+		}
+		else {
+			boolean hasValue = task.m_hasWakeValue;
+			if (hasValue)
+				pushValue(t, task.m_wakeValue);
+			task.m_wakeValue = null;
+			res = Squirrel.sq_wakeupvm(t, hasValue, true, true, false);
+		}
+		if (Squirrel.SQ_FAILED(res)) {
+			task.m_failed = true;
+			finish(task);
+			return;
+		}
+		if (Squirrel.sq_getvmstate(t) != JSqVMState.Suspended) {
+			finish(task);
+			return;
+		}
+		long delay = -1;
+		JSqObjectType type = Squirrel.sq_gettype(t, -1);
+		if (type == JSqObjectType.Integer)
+			delay = Squirrel.sq_getinteger(t, -1);
+		else if (type == JSqObjectType.Float)
+			delay = (long) Squirrel.sq_getfloat(t, -1);
+		Squirrel.sq_poptop(t);
+		// Only the scheduler changes a running task's state, so the next wait can be counted without a CAS
+		final int state = (task.m_state.get() & ~STATUS) + WAIT | WAITING;
+		task.m_state.set(state);
+		if (delay >= 0) {
+			final Task waiting = task;
+			task.m_timer = m_timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					waiting.timeout(state);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void finish(Task task) {
+		task.m_state.set(task.m_state.get() & ~STATUS | DONE);
+		m_taskCount.decrementAndGet();
+		try {
+			if (task.m_listener != null)
+				task.m_listener.finished(task, task.m_thread);
+		}
+		finally {
+			Squirrel.sq_settop(task.m_thread, 0);
+			JSqVM v = m_vm;
+			int top = Squirrel.sq_gettop(v);
+			pushThreads(v);
+			Squirrel.sq_pushinteger(v, task.m_id);
+			Squirrel.sq_rawdeleteslot(v, -2, false);
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	/**
+	 * Pushes the registry table and the table of spawned threads.
+	 */
+	private static void pushThreads(JSqVM v) {
+		Squirrel.sq_pushregistrytable(v);
+		Squirrel.sq_pushstring(v, THREADS_KEY);
+		if (Squirrel.SQ_FAILED(Squirrel.sq_rawget(v, -2))) {
+			Squirrel.sq_pushstring(v, THREADS_KEY);
+			Squirrel.sq_newtable(v);
+			Squirrel.sq_newslot(v, -3, false);
+			Squirrel.sq_pushstring(v, THREADS_KEY);
+			Squirrel.sq_rawget(v, -2);
+		}
+	}
+	
+	private static void pushValue(JSqVM v, Object value) {
+		if (value == null)
+			Squirrel.sq_pushnull(v);
+		else if (value instanceof Integer)
+			Squirrel.sq_pushinteger(v, (Integer) value);
+		else if (value instanceof Float)
+			Squirrel.sq_pushfloat(v, (Float) value);
+		else if (value instanceof Boolean)
+			Squirrel.sq_pushbool(v, (Boolean) value);
+		else
+			Squirrel.sq_pushstring(v, (String) value);
+	}
+	
+}
@@ -0,0 +1,237 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A single file holding many compiled scripts, written with {@link #write(JSqVM, Path, Map)}.
+ * <br><br>
+ * The file is mapped read only when opened and only its index is read. A script is read straight from the mapping
+ * the first time it is loaded, so opening a large bundle costs little and every process using it on a host shares
+ * the same pages. On the Java backend the loaded function is kept and shared by every VM, on the native backend
+ * each load reads the closure from the mapping again.
+ * <br><br>
+ * A bundle is only valid for the Squirrel version that wrote it ({@link Squirrel#sq_getversion()}). It can be used
+ * by several threads at once.
+ * @author Christopher Foster
+ */
+public final class JSqScriptBundle {
+	
+	private static final int MAGIC = 0x4251534A; // 'JSQB'
+	private static final int FORMAT = 1;
+	private static final int HEADER_SIZE = 16;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private final Path m_file;
+	private final MappedByteBuffer m_map;
+	private final Map<String, Integer> m_index;
+	private final int[] m_offsets;
+	private final int[] m_lengths;
+	private final AtomicReferenceArray<JSqFunctionProto> m_protos;
+	
+	private JSqScriptBundle(Path file, MappedByteBuffer map, Map<String, Integer> index, int[] offsets, int[] lengths) {
+		m_file = file;
+		m_map = map;
+		m_index = index;
+		m_offsets = offsets;
+		m_lengths = lengths;
+		m_protos = new AtomicReferenceArray<JSqFunctionProto>(offsets.length);
+	}
+	
+	/**
+	 * Maps a bundle file. The mapping stays valid until the bundle is garbage collected.
+	 * @param file The bundle file.
+	 * @return The opened bundle.
+	 * @throws IOException If the file can't be read or isn't a bundle for this Squirrel version.
+	 */
+	public static JSqScriptBundle open(Path file) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = in.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("the bundle is too large to be mapped");
+			map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		ByteBuffer buf = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT)
+				throw new IOException("the file is not a script bundle");
+			if (buf.getInt() != Squirrel.sq_getversion())
+				throw new IOException("the bundle was written by another Squirrel version");
+			int count = buf.getInt();
+			Map<String, Integer> index = new HashMap<String, Integer>(count * 2);
+			int[] offsets = new int[count];
+			int[] lengths = new int[count];
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[buf.getInt()];
+				buf.get(name);
+				offsets[i] = buf.getInt();
+				lengths[i] = buf.getInt();
+				if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] > buf.limit() - lengths[i])
+					throw new IOException("the bundle is corrupt");
+				index.put(new String(name, UTF_8), i);
+			}
+			return new JSqScriptBundle(file, map, index, offsets, lengths);
+		}
+		catch (RuntimeException e) { // BufferUnderflowException, NegativeArraySizeException
+			throw new IOException("the bundle is corrupt", e);
+		}
+	}
+	
+	/**
+	 * Compiles scripts and writes them into a bundle file, replacing it if it exists.
+	 * The file is written to a temporary file first and moved into place, so an open bundle is never changed.
+	 * @param v The VM used to compile the scripts, debug info is included if it's enabled on it.
+	 * @param file The bundle file.
+	 * @param scripts The source of each script by name, the name is also used as the source name.
+	 * @return The result of the first compilation that failed, the error is left in the VM then and no file is written.
+	 * @throws IOException If the file can't be written.
+	 */
+	public static JSqResult write(JSqVM v, Path file, Map<String, String> scripts) throws IOException {
+		int count = scripts.size();
+		byte[][] names = new byte[count][];
+		int[] offsets = new int[count];
+		int[] lengths = new int[count];
+		int indexSize = HEADER_SIZE;
+		int i = 0;
+		for (String name : scripts.keySet()) {
+			names[i] = name.getBytes(UTF_8);
+			indexSize += 12 + names[i].length;
+			i++;
+		}
+		
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, "jsq", ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				out.position(indexSize);
+				i = 0;
+				for (Map.Entry<String, String> e : scripts.entrySet()) {
+					JSqResult res = Squirrel.sq_compilebuffer(v, e.getValue(), e.getKey(), false);
+					if (Squirrel.SQ_FAILED(res))
+						return res;
+					long start = out.position();
+					res = Squirrel.sq_writeclosure(v, out);
+					Squirrel.sq_pop(v, 1);
+					if (Squirrel.SQ_FAILED(res))
+						return res;
+					if (out.position() > Integer.MAX_VALUE)
+						throw new IOException("the bundle is too large to be mapped");
+					offsets[i] = (int) start;
+					lengths[i] = (int) (out.position() - start);
+					i++;
+				}
+				
+				ByteBuffer index = ByteBuffer.allocate(indexSize).order(ByteOrder.LITTLE_ENDIAN);
+				index.putInt(MAGIC).putInt(FORMAT).putInt(Squirrel.sq_getversion()).putInt(count);
+				for (i = 0; i < count; i++)
+					index.putInt(names[i].length).put(names[i]).putInt(offsets[i]).putInt(lengths[i]);
+				((Buffer) index).flip();
+				out.position(0);
+				while (index.hasRemaining())
+					out.write(index);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			return new JSqResult(0);
+		}
+		finally {
+			if (tmp != null)
+				Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**
+	 * Pushes the closure of a script in the bundle on the stack.
+	 * @param v The target Squirrel VM.
+	 * @param name The name of the script.
+	 * @return The result of this operation, failing if the bundle doesn't hold the script.
+	 * @see Squirrel#SQ_SUCCEDED(JSqResult)
+	 * @see Squirrel#SQ_FAILED(JSqResult)
+	 */
+	public JSqResult load(JSqVM v, String name) {
+		Integer i = m_index.get(name);
+		if (i == null)
+			return Squirrel.sq_throwerror(v, "the script '" + name + "' is not in the bundle");
+		if (v.m_interp != null) {
+			JSqFunctionProto proto = m_protos.get(i);
+			if (proto == null) {
+				try {
+					proto = JSqClosureStream.read(entry(i), null);
+				}
+				catch (JSquirrelException e) {
+					return Squirrel.sq_throwerror(v, e.getMessage());
+				}
+				catch (IOException e) {
+					throw new AssertionError(e); // there is no channel to read from
+				}
+				if (!m_protos.compareAndSet(i, null, proto))
+					proto = m_protos.get(i);
+			}
+			v.m_interp.pushClosure(proto);
+			return new JSqResult(0);
+		}
+		return Squirrel.sq_readclosure(v, entry(i));
+	}
+	
+	private ByteBuffer entry(int i) {
+		ByteBuffer buf = m_map.duplicate();
+		((Buffer) buf).limit(m_offsets[i] + m_lengths[i]).position(m_offsets[i]);
+		return buf.slice();
+	}
+	
+	public boolean contains(String name) {
+		return m_index.containsKey(name);
+	}
+	
+	/**
+	 * @return The names of the scripts in the bundle.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(m_index.keySet());
+	}
+	
+	public Path getFile() {
+		return m_file;
+	}
+	
+}
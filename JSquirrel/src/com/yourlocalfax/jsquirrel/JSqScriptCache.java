@@ -0,0 +1,211 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * An on disk cache of compiled scripts, used by {@link Squirrel#sq_compilebuffer(JSqVM, String, String, boolean)}
+ * once set with {@link Squirrel#sq_setscriptcache(JSqScriptCache)}.
+ * <br><br>
+ * Each entry is a closure written with {@link Squirrel#sq_writeclosure(JSqVM, java.nio.channels.WritableByteChannel)},
+ * named after the SHA-256 hash of the source, the source name and the debug info setting. An entry is only used if it
+ * was written by the same Squirrel version ({@link Squirrel#sq_getversion()}), otherwise the script is compiled again
+ * and the entry replaced. Entries are written to a temporary file and moved into place, so several processes can
+ * share a directory.
+ * <br><br>
+ * Native VMs on a JSquirrel library too old to serialize closures compile every script, as if there was no cache.
+ * <br><br>
+ * Constants are inlined by the compiler, so scripts that use the const table should only be cached while it
+ * holds the same values every time.
+ * @author Christopher Foster
+ */
+public final class JSqScriptCache {
+	
+	private static final int MAGIC = 0x4353514A; // 'JSQC'
+	private static final int FORMAT = 1;
+	private static final int HASH_SIZE = 32;
+	private static final int HEADER_SIZE = 12 + HASH_SIZE;
+	private static final String SUFFIX = ".cnut";
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private final Path m_dir;
+	/** Set once the native library turned out to lack the natives the cache needs, native VMs always compile then. */
+	private volatile boolean m_nativeUnsupported;
+	
+	/**
+	 * @param dir The directory entries are kept in, created if it doesn't exist.
+	 * @throws IOException If the directory can't be created.
+	 */
+	public JSqScriptCache(Path dir) throws IOException {
+		m_dir = Files.createDirectories(dir);
+	}
+	
+	public Path getDirectory() {
+		return m_dir;
+	}
+	
+	/**
+	 * Deletes every entry in the cache directory.
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(m_dir, "*" + SUFFIX)) {
+			for (Path p : entries)
+				Files.deleteIfExists(p);
+		}
+	}
+	
+	JSqResult compile(JSqVM v, String source, String sourceName, boolean raiseError) {
+		if (v.m_interp == null && m_nativeUnsupported)
+			return Squirrel.compileBuffer(v, source, sourceName, raiseError);
+		boolean debugInfo = v.m_interp != null ? v.m_interp.m_ss.m_debugInfo : v.m_debugInfo;
+		byte[] hash = hash(source, sourceName, debugInfo);
+		Path file = m_dir.resolve(toHex(hash) + SUFFIX);
+		try {
+			if (load(v, file, hash))
+				return new JSqResult(0);
+		}
+		catch (UnsatisfiedLinkError e) {
+			m_nativeUnsupported = true; // a JSquirrel library older than the cache
+			return Squirrel.compileBuffer(v, source, sourceName, raiseError);
+		}
+		JSqResult res = Squirrel.compileBuffer(v, source, sourceName, raiseError);
+		if (Squirrel.SQ_SUCCEDED(res)) {
+			try {
+				store(v, file, hash);
+			}
+			catch (UnsatisfiedLinkError e) {
+				m_nativeUnsupported = true;
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Pushes the cached closure if there is a valid entry.
+	 * @return False if the script has to be compiled, the stack is left untouched then.
+	 */
+	private static boolean load(JSqVM v, Path file, byte[] hash) {
+		if (!Files.isRegularFile(file))
+			return false;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining())
+				if (in.read(header) < 0)
+					return false;
+			((Buffer) header).flip();
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT || header.getInt() != Squirrel.sq_getversion())
+				return false;
+			byte[] entryHash = new byte[HASH_SIZE];
+			header.get(entryHash);
+			if (!Arrays.equals(hash, entryHash))
+				return false;
+			if (Squirrel.SQ_FAILED(Squirrel.sq_readclosure(v, in))) {
+				Squirrel.sq_reseterror(v);
+				return false;
+			}
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the closure on top of the stack as the entry. Failing to write only means the next run compiles again.
+	 */
+	private void store(JSqVM v, Path file, byte[] hash) {
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(m_dir, "jsq", ".tmp");
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(FORMAT).putInt(Squirrel.sq_getversion()).put(hash);
+				((Buffer) header).flip();
+				while (header.hasRemaining())
+					out.write(header);
+				if (Squirrel.SQ_FAILED(Squirrel.sq_writeclosure(v, out))) {
+					Squirrel.sq_reseterror(v);
+					return;
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		}
+		catch (IOException e) {
+		}
+		finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private static byte[] hash(String source, String sourceName, boolean debugInfo) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		if (sourceName != null)
+			md.update(sourceName.getBytes(UTF_8));
+		md.update((byte) 0);
+		md.update((byte) (debugInfo ? 1 : 0));
+		md.update(source.getBytes(UTF_8));
+		return md.digest();
+	}
+	
+	private static String toHex(byte[] bytes) {
+		char[] res = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			res[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			res[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(res);
+	}
+	
+}
@@ -0,0 +1,751 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * A {@code javax.script} engine running Squirrel on a VM of its own, created by {@link JSqScriptEngineFactory}.
+ * <br><br>
+ * The engine scope bindings are a live view of the root table: getting, putting and removing a binding reads, writes
+ * and deletes the slot, so nothing is copied when a script runs. Values are converted as {@link JSqConverter}
+ * converts them, functions, classes, instances and other values without a Java counterpart are read as
+ * {@link JSqObject}s and can be put back as they are. Any other engine scope, like the bindings of
+ * {@link #createBindings()}, lays over the root table for one eval: its bindings are written into the root table
+ * before the script runs, the bindings the script changed and the globals it created are written back into it
+ * afterwards, and the root table gets its own slots back. Scripts don't see the global scope.
+ * <br><br>
+ * {@link #compile(String)} returns a script holding the compiled closure. Eval keeps the closures of the last
+ * {@value #SCRIPT_CACHE_SIZE} sources it compiled, so the same source isn't compiled again.
+ * {@link #invokeFunction(String, Object...)} goes through a {@link JSqFunction} call site for each name.
+ * The print and error functions write to the writer and the error writer of the context.
+ * <br><br>
+ * Like its VM, an engine is not thread safe.
+ * <pre>
+ * ScriptEngine engine = new ScriptEngineManager().getEngineByName("squirrel");
+ * engine.put("limit", 10);
+ * engine.eval("function sum(a, b) { return a + b; }");
+ * Object res = ((Invocable) engine).invokeFunction("sum", 1, 2);
+ * </pre>
+ * @author Christopher Foster
+ */
+public final class JSqScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+	
+	/** The number of compiled sources eval keeps. */
+	public static final int SCRIPT_CACHE_SIZE = 64;
+	
+	private final JSqScriptEngineFactory m_factory;
+	private final JSqVM m_vm;
+	private final JSqConverter m_converter = new JSqConverter();
+	private final RootBindings m_root = new RootBindings();
+	private final Map<String, Script> m_scripts = new LinkedHashMap<String, Script>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+			if (size() <= SCRIPT_CACHE_SIZE)
+				return false;
+			eldest.getValue().release();
+			return true;
+		}
+		
+	};
+	private final Map<String, JSqFunction> m_functions = new HashMap<String, JSqFunction>();
+	/** The context of the running eval, null outside of one. */
+	private ScriptContext m_current;
+	
+	JSqScriptEngine(JSqScriptEngineFactory factory, JSqVM v) {
+		m_factory = factory;
+		m_vm = v;
+		context.setBindings(m_root, ScriptContext.ENGINE_SCOPE);
+		registerPrint("print", false);
+		registerPrint("error", true);
+	}
+	
+	/**
+	 * @return The VM the engine runs on, for the {@link Squirrel} API.
+	 */
+	public JSqVM getVM() {
+		return m_vm;
+	}
+	
+	@Override
+	public ScriptEngineFactory getFactory() {
+		return m_factory;
+	}
+	
+	/**
+	 * @return New bindings that are copied into the root table each time they're used as the engine scope.
+	 */
+	@Override
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+	
+	@Override
+	public Object eval(String script, ScriptContext ctx) throws ScriptException {
+		Script s = m_scripts.get(script);
+		if (s == null) {
+			s = compile(script, sourceName(ctx));
+			m_scripts.put(script, s);
+		}
+		return s.eval(ctx);
+	}
+	
+	@Override
+	public Object eval(Reader reader, ScriptContext ctx) throws ScriptException {
+		return eval(read(reader), ctx);
+	}
+	
+	@Override
+	public CompiledScript compile(String script) throws ScriptException {
+		return compile(script, sourceName(context));
+	}
+	
+	@Override
+	public CompiledScript compile(Reader script) throws ScriptException {
+		return compile(read(script));
+	}
+	
+	/**
+	 * Calls a function of the root table with the root table as {@code this}.
+	 * @param args Arguments converted as {@link JSqConverter} converts them, or {@link JSqObject}s.
+	 * @throws NoSuchMethodException If the root table has no slot {@code name}.
+	 */
+	@Override
+	public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+		if (name == null)
+			throw new NullPointerException("name can not be null");
+		if (args == null)
+			args = new Object[0];
+		for (Object o : args)
+			if (o instanceof JSqObject)
+				return call(null, name, args);
+		JSqVM v = m_vm;
+		JSqFunction f = m_functions.get(name);
+		if (f == null) {
+			if (!m_root.containsKey(name))
+				throw new NoSuchMethodException(name);
+			try {
+				f = new JSqFunction(v, name);
+			}
+			catch (JSquirrelException e) {
+				throw new NoSuchMethodException(name);
+			}
+			m_functions.put(name, f);
+		}
+		int top = Squirrel.sq_gettop(v);
+		try {
+			f.call(args);
+			return toJava(-1);
+		}
+		catch (JSquirrelException e) {
+			if (!m_root.containsKey(name)) {
+				m_functions.remove(name).release();
+				throw new NoSuchMethodException(name);
+			}
+			throw scriptException(e);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	/**
+	 * Calls a member of a table, class or instance with it as {@code this}.
+	 * @param thiz A {@link JSqObject} read from a binding or returned by a script.
+	 * @param args Arguments converted as {@link JSqConverter} converts them, or {@link JSqObject}s.
+	 * @throws NoSuchMethodException If {@code thiz} has no member {@code name}.
+	 */
+	@Override
+	public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+		if (name == null)
+			throw new NullPointerException("name can not be null");
+		return call(checkObject(thiz), name, args != null ? args : new Object[0]);
+	}
+	
+	/**
+	 * @return An implementation calling the functions of the root table named like the methods of {@code clasz},
+	 * or null if one of them is missing.
+	 */
+	@Override
+	public <T> T getInterface(Class<T> clasz) {
+		return proxy(null, clasz);
+	}
+	
+	/**
+	 * @return An implementation calling the members of {@code thiz} named like the methods of {@code clasz},
+	 * or null if one of them is missing.
+	 */
+	@Override
+	public <T> T getInterface(Object thiz, Class<T> clasz) {
+		return proxy(checkObject(thiz), clasz);
+	}
+	
+	/**
+	 * Releases the compiled scripts and call sites and closes the VM, the engine can't be used afterwards.
+	 */
+	public void close() {
+		m_scripts.clear();
+		m_functions.clear();
+		Squirrel.sq_close(m_vm);
+	}
+	
+	private void registerPrint(String name, final boolean error) {
+		JSqVM v = m_vm;
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_pushstring(v, name);
+		Squirrel.sq_newclosure(v, new JSqNativeFunction() {
+			
+			@Override
+			public int call(JSqVM v) throws JSquirrelException {
+				if (Squirrel.SQ_FAILED(Squirrel.sq_tostring(v, 2)))
+					return -1;
+				ScriptContext ctx = m_current != null ? m_current : context;
+				Writer out = error ? ctx.getErrorWriter() : ctx.getWriter();
+				try {
+					out.write(v.getString(-1));
+					out.flush();
+				}
+				catch (IOException e) {
+					throw new JSquirrelException("Could not write to the " + (error ? "error writer" : "writer") + " of the context: " + e.getMessage());
+				}
+				return 0;
+			}
+			
+		}, 0);
+		Squirrel.sq_newslot(v, -3, false);
+		Squirrel.sq_pop(v, 1);
+	}
+	
+	private Script compile(String script, String sourceName) throws ScriptException {
+		JSqVM v = m_vm;
+		int top = Squirrel.sq_gettop(v);
+		try {
+			if (Squirrel.SQ_FAILED(Squirrel.sq_compilebuffer(v, script, sourceName, false)))
+				throw new ScriptException(takeLastError(), sourceName, -1);
+			return new Script(Squirrel.sq_getstackobj(v, -1));
+		}
+		catch (JSquirrelException e) {
+			throw scriptException(e);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	/**
+	 * Calls {@code closure} with the root table as {@code this}, with the engine scope of {@code ctx} laid over the
+	 * root table unless it is the root table.
+	 */
+	private Object run(JSqObject closure, ScriptContext ctx) throws ScriptException {
+		Bindings scope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+		if (scope == null || scope == m_root)
+			return runClosure(closure, ctx);
+		Set<String> before = new HashSet<String>(m_root.keys());
+		Map<String, JSqObject> saved = new HashMap<String, JSqObject>();
+		for (String key : scope.keySet())
+			if (before.contains(key))
+				saved.put(key, m_root.getObject(key));
+		m_root.putAll(scope);
+		try {
+			return runClosure(closure, ctx);
+		}
+		finally {
+			Set<String> after = new HashSet<String>(m_root.keys());
+			scope.keySet().retainAll(after);
+			for (String key : after) {
+				if (scope.containsKey(key) || !before.contains(key))
+					scope.put(key, m_root.get(key));
+				if (!before.contains(key))
+					m_root.remove(key);
+			}
+			for (Map.Entry<String, JSqObject> e : saved.entrySet())
+				m_root.set(e.getKey(), e.getValue());
+		}
+	}
+	
+	private Object runClosure(JSqObject closure, ScriptContext ctx) throws ScriptException {
+		JSqVM v = m_vm;
+		ScriptContext outer = m_current;
+		m_current = ctx;
+		int top = Squirrel.sq_gettop(v);
+		try {
+			Squirrel.sq_pushobject(v, closure);
+			Squirrel.sq_pushroottable(v);
+			if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, 1, true, true))) {
+				String error = takeLastError();
+				throw new ScriptException(error, sourceName(ctx), -1);
+			}
+			return toJava(-1);
+		}
+		catch (JSquirrelException e) {
+			throw scriptException(e);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+			m_current = outer;
+		}
+	}
+	
+	/**
+	 * Calls the member {@code name} of {@code thiz}, or of the root table if it's null, without a call site.
+	 */
+	private Object call(JSqObject thiz, String name, Object[] args) throws ScriptException, NoSuchMethodException {
+		JSqVM v = m_vm;
+		int top = Squirrel.sq_gettop(v);
+		try {
+			pushTarget(thiz);
+			Squirrel.sq_pushstring(v, name);
+			if (Squirrel.SQ_FAILED(Squirrel.sq_get(v, -2))) {
+				Squirrel.sq_reseterror(v);
+				throw new NoSuchMethodException(name);
+			}
+			pushTarget(thiz);
+			for (Object o : args)
+				push(o);
+			if (Squirrel.SQ_FAILED(Squirrel.sq_call(v, args.length + 1, true, true)))
+				throw new ScriptException(takeLastError());
+			return toJava(-1);
+		}
+		catch (JSquirrelException e) {
+			throw scriptException(e);
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	private void pushTarget(JSqObject thiz) {
+		if (thiz == null)
+			Squirrel.sq_pushroottable(m_vm);
+		else
+			Squirrel.sq_pushobject(m_vm, thiz);
+	}
+	
+	private boolean hasMember(JSqObject thiz, String name) {
+		JSqVM v = m_vm;
+		int top = Squirrel.sq_gettop(v);
+		try {
+			pushTarget(thiz);
+			Squirrel.sq_pushstring(v, name);
+			if (Squirrel.SQ_SUCCEDED(Squirrel.sq_get(v, -2)))
+				return true;
+			Squirrel.sq_reseterror(v);
+			return false;
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+	}
+	
+	private <T> T proxy(final JSqObject thiz, final Class<T> clasz) {
+		if (clasz == null || !clasz.isInterface())
+			throw new IllegalArgumentException("clasz must be an interface");
+		for (Method m : clasz.getMethods())
+			if (!hasMember(thiz, m.getName()))
+				return null;
+		return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(), new Class<?>[] { clasz }, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					switch (method.getName()) {
+						case "equals": return proxy == args[0];
+						case "hashCode": return System.identityHashCode(proxy);
+						default: return clasz.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+					}
+				}
+				Object[] a = args != null ? args : new Object[0];
+				Object res = thiz == null ? invokeFunction(method.getName(), a) : invokeMethod(thiz, method.getName(), a);
+				return cast(res, method.getReturnType());
+			}
+			
+		}));
+	}
+	
+	/**
+	 * Widens or narrows a number returned by a script to the return type of an interface method.
+	 */
+	private static Object cast(Object res, Class<?> type) {
+		if (type == void.class)
+			return null;
+		if (!(res instanceof Number))
+			return res;
+		Number n = (Number) res;
+		if (type == int.class || type == Integer.class)
+			return n.intValue();
+		if (type == long.class || type == Long.class)
+			return n.longValue();
+		if (type == float.class || type == Float.class)
+			return n.floatValue();
+		if (type == double.class || type == Double.class)
+			return n.doubleValue();
+		if (type == short.class || type == Short.class)
+			return n.shortValue();
+		if (type == byte.class || type == Byte.class)
+			return n.byteValue();
+		return res;
+	}
+	
+	/**
+	 * Pushes a {@link JSqObject} as it is, anything else converted by {@link JSqConverter}.
+	 * @throws IllegalArgumentException If the value can't be converted.
+	 */
+	private void push(Object value) {
+		if (value instanceof JSqObject)
+			Squirrel.sq_pushobject(m_vm, (JSqObject) value);
+		else if (Squirrel.SQ_FAILED(m_converter.push(m_vm, value)))
+			throw new IllegalArgumentException("could not push a " + value.getClass().getName());
+	}
+	
+	/**
+	 * Reads the value at {@code idx} as {@link JSqConverter} does, or as a {@link JSqObject} if it has no Java
+	 * counterpart or is nested too deep to be converted.
+	 */
+	private Object toJava(int idx) throws JSquirrelException {
+		switch (m_vm.getType(idx)) {
+			case OT_NULL:
+				return null;
+			case OT_INTEGER:
+			case OT_FLOAT:
+			case OT_BOOL:
+			case OT_STRING:
+				return m_converter.get(m_vm, idx);
+			case OT_TABLE:
+			case OT_ARRAY: {
+				Object res = m_converter.get(m_vm, idx);
+				return res != null ? res : Squirrel.sq_getstackobj(m_vm, idx);
+			}
+			default:
+				return Squirrel.sq_getstackobj(m_vm, idx);
+		}
+	}
+	
+	/**
+	 * Takes the last error of the VM and resets it.
+	 */
+	private String takeLastError() {
+		JSqVM v = m_vm;
+		Squirrel.sq_getlasterror(v);
+		String error = v.getType(-1) == OT_STRING ? v.getString(-1) : null;
+		Squirrel.sq_pop(v, 1);
+		Squirrel.sq_reseterror(v);
+		return error != null ? error : "unknown error";
+	}
+	
+	private static ScriptException scriptException(Exception e) {
+		ScriptException se = new ScriptException(e.getMessage());
+		se.initCause(e);
+		return se;
+	}
+	
+	private static JSqObject checkObject(Object thiz) {
+		if (!(thiz instanceof JSqObject))
+			throw new IllegalArgumentException("thiz must be a Squirrel object");
+		return (JSqObject) thiz;
+	}
+	
+	private static String sourceName(ScriptContext ctx) {
+		Object name = ctx.getAttribute(ScriptEngine.FILENAME);
+		return name != null ? name.toString() : "eval";
+	}
+	
+	private static String read(Reader reader) throws ScriptException {
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[4096];
+		try {
+			int n;
+			while ((n = reader.read(buf)) >= 0)
+				sb.append(buf, 0, n);
+		}
+		catch (IOException e) {
+			throw scriptException(e);
+		}
+		return sb.toString();
+	}
+	
+	private static void checkKey(Object key) {
+		if (key == null)
+			throw new NullPointerException("key can not be null");
+		if (!(key instanceof String))
+			throw new ClassCastException("key should be a String");
+		if (((String) key).isEmpty())
+			throw new IllegalArgumentException("key can not be empty");
+	}
+	
+	/**
+	 * A compiled script holding its closure.
+	 */
+	private final class Script extends CompiledScript {
+		
+		private final JSqObject m_closure;
+		
+		Script(JSqObject closure) {
+			m_closure = closure;
+		}
+		
+		@Override
+		public Object eval(ScriptContext ctx) throws ScriptException {
+			return run(m_closure, ctx);
+		}
+		
+		@Override
+		public ScriptEngine getEngine() {
+			return JSqScriptEngine.this;
+		}
+		
+		void release() {
+			Squirrel.sq_release(m_vm, m_closure);
+		}
+		
+	}
+	
+	/**
+	 * The engine scope, reading and writing the slots of the root table.
+	 */
+	private final class RootBindings extends AbstractMap<String, Object> implements Bindings {
+		
+		/**
+		 * Pushes the root table and the value of the slot {@code key}.
+		 * @return False if there is no such slot, the error is reset then.
+		 */
+		private boolean find(Object key) {
+			checkKey(key);
+			JSqVM v = m_vm;
+			Squirrel.sq_pushroottable(v);
+			Squirrel.sq_pushstring(v, (String) key);
+			if (Squirrel.SQ_SUCCEDED(Squirrel.sq_rawget(v, -2)))
+				return true;
+			Squirrel.sq_reseterror(v);
+			return false;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			int top = Squirrel.sq_gettop(m_vm);
+			try {
+				return find(key);
+			}
+			finally {
+				Squirrel.sq_settop(m_vm, top);
+			}
+		}
+		
+		@Override
+		public Object get(Object key) {
+			int top = Squirrel.sq_gettop(m_vm);
+			try {
+				return find(key) ? toJava(-1) : null;
+			}
+			catch (JSquirrelException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			finally {
+				Squirrel.sq_settop(m_vm, top);
+			}
+		}
+		
+		/**
+		 * @return The value of the slot {@code key} as it is, null if there is none.
+		 */
+		JSqObject getObject(String key) {
+			int top = Squirrel.sq_gettop(m_vm);
+			try {
+				return find(key) ? Squirrel.sq_getstackobj(m_vm, -1) : null;
+			}
+			catch (JSquirrelException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			finally {
+				Squirrel.sq_settop(m_vm, top);
+			}
+		}
+		
+		@Override
+		public Object put(String name, Object value) {
+			Object old = get(name);
+			set(name, value);
+			return old;
+		}
+		
+		/**
+		 * Writes every binding without reading the values it replaces.
+		 */
+		@Override
+		public void putAll(Map<? extends String, ? extends Object> toMerge) {
+			for (Map.Entry<? extends String, ? extends Object> e : toMerge.entrySet())
+				set(e.getKey(), e.getValue());
+		}
+		
+		void set(String name, Object value) {
+			checkKey(name);
+			JSqVM v = m_vm;
+			int top = Squirrel.sq_gettop(v);
+			try {
+				Squirrel.sq_pushroottable(v);
+				Squirrel.sq_pushstring(v, name);
+				push(value);
+				Squirrel.sq_newslot(v, -3, false);
+			}
+			finally {
+				Squirrel.sq_settop(v, top);
+			}
+		}
+		
+		@Override
+		public Object remove(Object key) {
+			JSqVM v = m_vm;
+			int top = Squirrel.sq_gettop(v);
+			try {
+				if (!find(key))
+					return null;
+				Object old = toJava(-1);
+				Squirrel.sq_pop(v, 1);
+				Squirrel.sq_pushstring(v, (String) key);
+				Squirrel.sq_deleteslot(v, -2, false);
+				return old;
+			}
+			catch (JSquirrelException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			finally {
+				Squirrel.sq_settop(v, top);
+			}
+		}
+		
+		@Override
+		public int size() {
+			JSqVM v = m_vm;
+			Squirrel.sq_pushroottable(v);
+			int size = v.getSize(-1);
+			Squirrel.sq_pop(v, 1);
+			return size;
+		}
+		
+		/**
+		 * @return The string keys of the root table.
+		 */
+		List<String> keys() {
+			JSqVM v = m_vm;
+			List<String> keys = new ArrayList<String>();
+			int top = Squirrel.sq_gettop(v);
+			Squirrel.sq_pushroottable(v);
+			Squirrel.sq_pushnull(v);
+			while (Squirrel.SQ_SUCCEDED(Squirrel.sq_next(v, -2))) {
+				if (v.getType(-2) == OT_STRING)
+					keys.add(v.getString(-2));
+				Squirrel.sq_pop(v, 2);
+			}
+			Squirrel.sq_settop(v, top);
+			return keys;
+		}
+		
+		/**
+		 * The slots as of the call to {@code iterator()}, each value is read when its entry is reached.
+		 */
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final Iterator<String> keys = keys().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+						
+						private String m_last;
+						
+						@Override
+						public boolean hasNext() {
+							return keys.hasNext();
+						}
+						
+						@Override
+						public Map.Entry<String, Object> next() {
+							m_last = keys.next();
+							return new SimpleEntry<String, Object>(m_last, get(m_last)) {
+								
+								private static final long serialVersionUID = 1L;
+								
+								@Override
+								public Object setValue(Object value) {
+									set(getKey(), value);
+									return super.setValue(value);
+								}
+								
+							};
+						}
+						
+						@Override
+						public void remove() {
+							if (m_last == null)
+								throw new IllegalStateException();
+							RootBindings.this.remove(m_last);
+							m_last = null;
+						}
+						
+					};
+				}
+				
+				@Override
+				public int size() {
+					return RootBindings.this.size();
+				}
+				
+			};
+		}
+		
+	}
+	
+}
@@ -0,0 +1,171 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * The {@code javax.script} factory for Squirrel, found by a {@link javax.script.ScriptEngineManager} under the names
+ * "squirrel" and "jsquirrel", the extension "nut" and the MIME type "text/x-squirrel".
+ * <br><br>
+ * Every engine it creates runs on a VM of its own, see {@link JSqScriptEngine}.
+ * @author Christopher Foster
+ */
+public final class JSqScriptEngineFactory implements ScriptEngineFactory {
+	
+	private static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("squirrel", "Squirrel", "jsquirrel", "JSquirrel"));
+	private static final List<String> EXTENSIONS = Collections.singletonList("nut");
+	private static final List<String> MIME_TYPES = Collections.singletonList("text/x-squirrel");
+	
+	private final JSqBackend m_backend;
+	private final int m_initialStackSize;
+	
+	/**
+	 * A factory for engines on the native backend, or on the Java backend if the JSquirrel library isn't available.
+	 */
+	public JSqScriptEngineFactory() {
+		this(Squirrel.NATIVE_AVAILABLE ? JSqBackend.Native : JSqBackend.Java, 1024);
+	}
+	
+	/**
+	 * @param backend The backend the VMs of the engines run on.
+	 * @param initialStackSize The size of the stack in slots of each VM.
+	 */
+	public JSqScriptEngineFactory(JSqBackend backend, int initialStackSize) {
+		m_backend = backend;
+		m_initialStackSize = initialStackSize;
+	}
+	
+	public JSqBackend getBackend() {
+		return m_backend;
+	}
+	
+	@Override
+	public String getEngineName() {
+		return "JSquirrel";
+	}
+	
+	@Override
+	public String getEngineVersion() {
+		return getLanguageVersion();
+	}
+	
+	@Override
+	public List<String> getExtensions() {
+		return EXTENSIONS;
+	}
+	
+	@Override
+	public List<String> getMimeTypes() {
+		return MIME_TYPES;
+	}
+	
+	@Override
+	public List<String> getNames() {
+		return NAMES;
+	}
+	
+	@Override
+	public String getLanguageName() {
+		return "Squirrel";
+	}
+	
+	@Override
+	public String getLanguageVersion() {
+		int version = Squirrel.sq_getversion();
+		return (version / 100) + "." + (version / 10 % 10) + "." + (version % 10);
+	}
+	
+	/**
+	 * @return The values named by the {@link ScriptEngine} keys. THREADING is null, an engine can't be used by
+	 * several threads at once.
+	 */
+	@Override
+	public Object getParameter(String key) {
+		switch (key) {
+			case ScriptEngine.ENGINE: return getEngineName();
+			case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+			case ScriptEngine.NAME: return NAMES.get(0);
+			case ScriptEngine.LANGUAGE: return getLanguageName();
+			case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+			default: return null;
+		}
+	}
+	
+	@Override
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		StringBuilder sb = new StringBuilder(obj).append('.').append(m).append('(');
+		for (int i = 0; i < args.length; i++) {
+			if (i != 0)
+				sb.append(", ");
+			sb.append(args[i]);
+		}
+		return sb.append(')').toString();
+	}
+	
+	@Override
+	public String getOutputStatement(String toDisplay) {
+		StringBuilder sb = new StringBuilder("print(\"");
+		for (int i = 0; i < toDisplay.length(); i++) {
+			char c = toDisplay.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default: sb.append(c); break;
+			}
+		}
+		return sb.append("\")").toString();
+	}
+	
+	@Override
+	public String getProgram(String... statements) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : statements)
+			sb.append(s).append(";\n");
+		return sb.toString();
+	}
+	
+	/**
+	 * @throws IllegalStateException If the VM of the engine can't be created.
+	 */
+	@Override
+	public ScriptEngine getScriptEngine() {
+		try {
+			return new JSqScriptEngine(this, Squirrel.sq_open(m_initialStackSize, m_backend));
+		}
+		catch (JSquirrelException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+	
+}
@@ -0,0 +1,315 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * State shared by a Java backend VM and all of its threads: the registry, the constants table,
+ * the default delegates and the metamethod names.
+ * @author Christopher Foster
+ */
+final class JSqSharedState {
+	
+	static final int MT_ADD = 0;
+	static final int MT_SUB = 1;
+	static final int MT_MUL = 2;
+	static final int MT_DIV = 3;
+	static final int MT_UNM = 4;
+	static final int MT_MODULO = 5;
+	static final int MT_SET = 6;
+	static final int MT_GET = 7;
+	static final int MT_TYPEOF = 8;
+	static final int MT_NEXTI = 9;
+	static final int MT_CMP = 10;
+	static final int MT_CALL = 11;
+	static final int MT_CLONED = 12;
+	static final int MT_NEWSLOT = 13;
+	static final int MT_DELSLOT = 14;
+	static final int MT_TOSTRING = 15;
+	static final int MT_NEWMEMBER = 16;
+	static final int MT_INHERITED = 17;
+	static final int MT_LAST = 18;
+	
+	static final String[] METAMETHOD_NAMES = {
+		"_add", "_sub", "_mul", "_div", "_unm", "_modulo", "_set", "_get", "_typeof", "_nexti",
+		"_cmp", "_call", "_cloned", "_newslot", "_delslot", "_tostring", "_newmember", "_inherited"
+	};
+	
+	final JSqOwner m_owner = new JSqOwner();
+	/** The memory budget of the VM, null if it has none. */
+	final JSqMemoryLimit m_limit;
+	final JSqHostArena m_hostArena;
+	final JSqMemberCache m_memberCache = new JSqMemberCache(true);
+	/** The VM opened with sq_open, its stack is measured along with the thread that hit the soft limit. */
+	JSqInterpreter m_main;
+	final JSqTable m_registry = new JSqTable(0);
+	JSqTable m_consts = new JSqTable(0);
+	
+	final JSqTable m_tableDelegate;
+	final JSqTable m_arrayDelegate;
+	final JSqTable m_stringDelegate;
+	final JSqTable m_numberDelegate;
+	final JSqTable m_closureDelegate;
+	final JSqTable m_generatorDelegate;
+	final JSqTable m_threadDelegate;
+	final JSqTable m_classDelegate;
+	final JSqTable m_instanceDelegate;
+	final JSqTable m_weakRefDelegate;
+	
+	/** The constants table as seen by the compiler. */
+	final Map<String, Object> m_compilerConsts = new ConstTableMap();
+	
+	boolean m_debugInfo;
+	boolean m_notifyAllExceptions;
+	/** Called for compile errors when sq_compilebuffer raises them, null to only set the last error. */
+	JSqCompilerErrorHandler m_compilerErrorHandler;
+	private long m_nextPointer = 0x10;
+	
+	JSqSharedState(JSqMemoryLimit limit) {
+		m_limit = limit;
+		m_hostArena = new JSqHostArena(Squirrel.sq_getallocator(), limit, this);
+		m_tableDelegate = JSqBaseLib.tableDelegate();
+		m_arrayDelegate = JSqBaseLib.arrayDelegate();
+		m_stringDelegate = JSqBaseLib.stringDelegate();
+		m_numberDelegate = JSqBaseLib.numberDelegate();
+		m_closureDelegate = JSqBaseLib.closureDelegate();
+		m_generatorDelegate = JSqBaseLib.generatorDelegate();
+		m_threadDelegate = JSqBaseLib.threadDelegate();
+		m_classDelegate = JSqBaseLib.classDelegate();
+		m_instanceDelegate = JSqBaseLib.instanceDelegate();
+		m_weakRefDelegate = JSqBaseLib.weakRefDelegate();
+	}
+	
+	int getMetaMethodIdx(String name) {
+		if (name.length() < 2 || name.charAt(0) != '_')
+			return -1;
+		for (int i = 0; i < MT_LAST; i++)
+			if (METAMETHOD_NAMES[i].equals(name))
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Hands out a unique, aligned value standing in for the address of a userdata block.
+	 */
+	synchronized long newPointer() {
+		long p = m_nextPointer;
+		m_nextPointer += 0x10;
+		return p;
+	}
+	
+	/**
+	 * The delegate used for values of a type that has no delegate of its own.
+	 */
+	JSqTable getDefaultDelegate(int type) {
+		switch (type) {
+			case OT_TABLE: return m_tableDelegate;
+			case OT_ARRAY: return m_arrayDelegate;
+			case OT_STRING: return m_stringDelegate;
+			case OT_INTEGER:
+			case OT_FLOAT:
+			case OT_BOOL: return m_numberDelegate;
+			case OT_GENERATOR: return m_generatorDelegate;
+			case OT_CLOSURE:
+			case OT_NATIVECLOSURE: return m_closureDelegate;
+			case OT_THREAD: return m_threadDelegate;
+			case OT_CLASS: return m_classDelegate;
+			case OT_INSTANCE: return m_instanceDelegate;
+			case OT_WEAKREF: return m_weakRefDelegate;
+			default: return null;
+		}
+	}
+	
+	/**
+	 * Converts a constant produced by the compiler (Integer, Float, String or a Map for an enum) into a tagged value.
+	 */
+	static int constType(Object o) {
+		if (o instanceof Integer)
+			return OT_INTEGER;
+		if (o instanceof Float)
+			return OT_FLOAT;
+		if (o instanceof String)
+			return OT_STRING;
+		if (o instanceof Boolean)
+			return OT_BOOL;
+		if (o instanceof JSqTable)
+			return OT_TABLE;
+		return OT_NULL;
+	}
+	
+	static int constValue(Object o) {
+		if (o instanceof Integer)
+			return (Integer) o;
+		if (o instanceof Float)
+			return Float.floatToRawIntBits((Float) o);
+		if (o instanceof Boolean)
+			return ((Boolean) o) ? 1 : 0;
+		return 0;
+	}
+	
+	/**
+	 * Converts a tagged value into the form the compiler uses for constants.
+	 */
+	static Object toConst(int t, int v, Object r) {
+		switch (t) {
+			case OT_INTEGER: return v;
+			case OT_FLOAT: return Float.intBitsToFloat(v);
+			case OT_BOOL: return v != 0;
+			case OT_STRING: return r;
+			case OT_TABLE: return new TableMap((JSqTable) r);
+			default: return null;
+		}
+	}
+	
+	static JSqTable toTable(Map<?, ?> map) {
+		if (map instanceof TableMap)
+			return ((TableMap) map).table();
+		JSqTable t = new JSqTable(map.size());
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			Object k = e.getKey(), val = e.getValue();
+			if (val instanceof Map)
+				val = toTable((Map<?, ?>) val);
+			t.newSlot(constType(k), constValue(k), refOf(k), constType(val), constValue(val), refOf(val));
+		}
+		return t;
+	}
+	
+	private static Object refOf(Object o) {
+		return (o instanceof String || o instanceof JSqTable) ? o : null;
+	}
+	
+	/**
+	 * A live Map view of a table holding compile time constants.
+	 */
+	static class TableMap extends AbstractMap<String, Object> {
+		
+		final JSqTable m_table;
+		
+		TableMap(JSqTable table) {
+			m_table = table;
+		}
+		
+		JSqTable table() {
+			return m_table;
+		}
+		
+		@Override
+		public Object get(Object key) {
+			if (!(key instanceof String))
+				return null;
+			JSqTable t = table();
+			int slot = t.findString((String) key);
+			return slot < 0 ? null : toConst(t.m_types[slot], t.m_values[slot], t.m_refs[slot]);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && table().findString((String) key) >= 0;
+		}
+		
+		@Override
+		public Object put(String key, Object value) {
+			Object old = get(key);
+			if (value instanceof Map)
+				value = toTable((Map<?, ?>) value);
+			table().newSlot(key, constType(value), constValue(value), refOf(value));
+			return old;
+		}
+		
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final JSqTable t = table();
+					return new Iterator<Map.Entry<String, Object>>() {
+						
+						int m_slot = nextString(0);
+						
+						private int nextString(int pos) {
+							int slot = t.next(pos);
+							while (slot >= 0 && t.m_keyTypes[slot] != OT_STRING)
+								slot = t.next(slot + 1);
+							return slot;
+						}
+						
+						@Override
+						public boolean hasNext() {
+							return m_slot >= 0;
+						}
+						
+						@Override
+						public Map.Entry<String, Object> next() {
+							if (m_slot < 0)
+								throw new NoSuchElementException();
+							int slot = m_slot;
+							m_slot = nextString(slot + 1);
+							return new SimpleImmutableEntry<String, Object>((String) t.m_keyRefs[slot], toConst(t.m_types[slot], t.m_values[slot], t.m_refs[slot]));
+						}
+						
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+						
+					};
+				}
+				
+				@Override
+				public int size() {
+					return table().size();
+				}
+				
+			};
+		}
+		
+	}
+	
+	/**
+	 * The Map view of whatever table is currently installed as the constants table.
+	 */
+	private class ConstTableMap extends TableMap {
+		
+		ConstTableMap() {
+			super(null);
+		}
+		
+		@Override
+		JSqTable table() {
+			return m_consts;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,218 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * The Java backend's Squirrel table.
+ * <br><br>
+ * Keys and values are stored as tagged triples in parallel arrays. Slots are chained from a
+ * power of two bucket array; removed slots go on a free list so iteration order is the slot order.
+ * @author Christopher Foster
+ */
+final class JSqTable {
+	
+	JSqTable m_delegate;
+	
+	int[] m_keyTypes;
+	int[] m_keyValues;
+	Object[] m_keyRefs;
+	int[] m_types;
+	int[] m_values;
+	Object[] m_refs;
+	
+	private int[] m_next;
+	private int[] m_buckets;
+	/** High water mark of used slots. */
+	int m_used;
+	private int m_count;
+	private int m_free = -1;
+	
+	JSqTable(int capacity) {
+		int size = 4;
+		while (size < capacity)
+			size <<= 1;
+		allocate(size);
+	}
+	
+	private void allocate(int size) {
+		m_keyTypes = new int[size];
+		m_keyValues = new int[size];
+		m_keyRefs = new Object[size];
+		m_types = new int[size];
+		m_values = new int[size];
+		m_refs = new Object[size];
+		m_next = new int[size];
+		m_buckets = new int[size];
+		m_used = 0;
+		m_count = 0;
+		m_free = -1;
+	}
+	
+	int size() {
+		return m_count;
+	}
+	
+	/**
+	 * Finds the slot holding a key.
+	 * @return The slot index or -1 if the key isn't in the table.
+	 */
+	int find(int kt, int kv, Object kr) {
+		int slot = m_buckets[hash(kt, kv, kr) & (m_buckets.length - 1)] - 1;
+		while (slot >= 0) {
+			if (rawEquals(m_keyTypes[slot], m_keyValues[slot], m_keyRefs[slot], kt, kv, kr))
+				return slot;
+			slot = m_next[slot];
+		}
+		return -1;
+	}
+	
+	int findString(String key) {
+		return find(OT_STRING, 0, key);
+	}
+	
+	/**
+	 * Sets the value of an existing key.
+	 * @return False if the key doesn't exist.
+	 */
+	boolean set(int kt, int kv, Object kr, int vt, int vv, Object vr) {
+		int slot = find(kt, kv, kr);
+		if (slot < 0)
+			return false;
+		m_types[slot] = vt;
+		m_values[slot] = vv;
+		m_refs[slot] = vr;
+		return true;
+	}
+	
+	/**
+	 * @return The slots adding a new key grows the table by.
+	 */
+	int growth() {
+		return m_free < 0 && m_used == m_keyTypes.length ? m_used : 0;
+	}
+	
+	void newSlot(int kt, int kv, Object kr, int vt, int vv, Object vr) {
+		int slot = find(kt, kv, kr);
+		if (slot < 0) {
+			if (m_free < 0 && m_used == m_keyTypes.length)
+				rehash(m_keyTypes.length << 1);
+			if (m_free >= 0) {
+				slot = m_free;
+				m_free = m_next[slot];
+			}
+			else {
+				slot = m_used++;
+			}
+			int bucket = hash(kt, kv, kr) & (m_buckets.length - 1);
+			m_keyTypes[slot] = kt;
+			m_keyValues[slot] = kv;
+			m_keyRefs[slot] = kr;
+			m_next[slot] = m_buckets[bucket] - 1;
+			m_buckets[bucket] = slot + 1;
+			m_count++;
+		}
+		m_types[slot] = vt;
+		m_values[slot] = vv;
+		m_refs[slot] = vr;
+	}
+	
+	void newSlot(String key, int vt, int vv, Object vr) {
+		newSlot(OT_STRING, 0, key, vt, vv, vr);
+	}
+	
+	boolean remove(int kt, int kv, Object kr) {
+		int bucket = hash(kt, kv, kr) & (m_buckets.length - 1);
+		int prev = -1;
+		int slot = m_buckets[bucket] - 1;
+		while (slot >= 0) {
+			if (rawEquals(m_keyTypes[slot], m_keyValues[slot], m_keyRefs[slot], kt, kv, kr)) {
+				if (prev < 0)
+					m_buckets[bucket] = m_next[slot] + 1;
+				else
+					m_next[prev] = m_next[slot];
+				m_keyTypes[slot] = 0;
+				m_keyValues[slot] = 0;
+				m_keyRefs[slot] = null;
+				m_types[slot] = 0;
+				m_values[slot] = 0;
+				m_refs[slot] = null;
+				m_next[slot] = m_free;
+				m_free = slot;
+				m_count--;
+				return true;
+			}
+			prev = slot;
+			slot = m_next[slot];
+		}
+		return false;
+	}
+	
+	/**
+	 * Finds the first live slot at or after a position, used for iteration.
+	 * @return The slot index or -1 once the table is exhausted.
+	 */
+	int next(int pos) {
+		for (int i = pos; i < m_used; i++)
+			if (m_keyTypes[i] != 0)
+				return i;
+		return -1;
+	}
+	
+	void clear() {
+		allocate(m_keyTypes.length);
+	}
+	
+	JSqTable cloneTable() {
+		JSqTable t = new JSqTable(m_count);
+		for (int i = next(0); i >= 0; i = next(i + 1))
+			t.newSlot(m_keyTypes[i], m_keyValues[i], m_keyRefs[i], m_types[i], m_values[i], m_refs[i]);
+		t.m_delegate = m_delegate;
+		return t;
+	}
+	
+	/**
+	 * Sets the delegate unless doing so would create a cycle.
+	 */
+	boolean setDelegate(JSqTable delegate) {
+		for (JSqTable t = delegate; t != null; t = t.m_delegate)
+			if (t == this)
+				return false;
+		m_delegate = delegate;
+		return true;
+	}
+	
+	private void rehash(int size) {
+		int[] kt = m_keyTypes, kv = m_keyValues, vt = m_types, vv = m_values;
+		Object[] kr = m_keyRefs, vr = m_refs;
+		int used = m_used;
+		allocate(size);
+		for (int i = 0; i < used; i++)
+			if (kt[i] != 0)
+				newSlot(kt[i], kv[i], kr[i], vt[i], vv[i], vr[i]);
+	}
+	
+}
@@ -0,0 +1,195 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import static com.yourlocalfax.jsquirrel.Squirrel.*;
+
+/**
+ * Object type tags and value helpers shared by the Java backend.
+ * <br><br>
+ * The Java backend stores every Squirrel value as a tagged triple: an {@code int} type tag (the same
+ * OT_* values the native library uses, see {@link JSqObjectType#tag}), an {@code int} payload
+ * holding integers, bools and the raw bits of floats, and an {@code Object} reference for every
+ * other type. Stacks, tables and arrays keep the three parts in parallel arrays so numbers never get boxed.
+ * @author Christopher Foster
+ */
+final class JSqTypes {
+	
+	static final int OT_NULL =			RT_NULL | SQOBJECT_CANBEFALSE;
+	static final int OT_INTEGER =		RT_INTEGER | SQOBJECT_NUMERIC | SQOBJECT_CANBEFALSE;
+	static final int OT_FLOAT =			RT_FLOAT | SQOBJECT_NUMERIC | SQOBJECT_CANBEFALSE;
+	static final int OT_BOOL =			RT_BOOL | SQOBJECT_CANBEFALSE;
+	static final int OT_STRING =		RT_STRING | SQOBJECT_REF_COUNTED;
+	static final int OT_TABLE =			RT_TABLE | SQOBJECT_REF_COUNTED | SQOBJECT_DELEGABLE;
+	static final int OT_ARRAY =			RT_ARRAY | SQOBJECT_REF_COUNTED;
+	static final int OT_USERDATA =		RT_USERDATA | SQOBJECT_REF_COUNTED | SQOBJECT_DELEGABLE;
+	static final int OT_CLOSURE =		RT_CLOSURE | SQOBJECT_REF_COUNTED;
+	static final int OT_NATIVECLOSURE =	RT_NATIVECLOSURE | SQOBJECT_REF_COUNTED;
+	static final int OT_GENERATOR =		RT_GENERATOR | SQOBJECT_REF_COUNTED;
+	static final int OT_USERPOINTER =	RT_USERPOINTER;
+	static final int OT_THREAD =		RT_THREAD | SQOBJECT_REF_COUNTED;
+	static final int OT_FUNCPROTO =		RT_FUNCPROTO | SQOBJECT_REF_COUNTED;
+	static final int OT_CLASS =			RT_CLASS | SQOBJECT_REF_COUNTED;
+	static final int OT_INSTANCE =		RT_INSTANCE | SQOBJECT_REF_COUNTED | SQOBJECT_DELEGABLE;
+	static final int OT_WEAKREF =		RT_WEAKREF | SQOBJECT_REF_COUNTED;
+	static final int OT_OUTER =			RT_OUTER | SQOBJECT_REF_COUNTED;
+	
+	private JSqTypes() {
+	}
+	
+	static boolean isNumeric(int t) {
+		return (t & SQOBJECT_NUMERIC) != 0;
+	}
+	
+	static boolean isRefCounted(int t) {
+		return (t & SQOBJECT_REF_COUNTED) != 0;
+	}
+	
+	static boolean isFalse(int t, int v) {
+		if ((t & SQOBJECT_CANBEFALSE) == 0)
+			return false;
+		if (t == OT_FLOAT)
+			return Float.intBitsToFloat(v) == 0f;
+		return v == 0;
+	}
+	
+	static int toInteger(int t, int v) {
+		return t == OT_FLOAT ? (int) Float.intBitsToFloat(v) : v;
+	}
+	
+	static float toFloat(int t, int v) {
+		return t == OT_FLOAT ? Float.intBitsToFloat(v) : (float) v;
+	}
+	
+	/**
+	 * Converts a value to the raw value of type {@code to}, which is {@link #OT_INTEGER}, {@link #OT_FLOAT} or
+	 * {@link #OT_BOOL}. Values that aren't numbers or bools become 0, or true for a bool.
+	 */
+	static int coerce(int to, int t, int v) {
+		if (to == OT_BOOL)
+			return isFalse(t, v) ? 0 : 1;
+		if (t == OT_BOOL)
+			return to == OT_FLOAT ? Float.floatToRawIntBits(v) : v;
+		if (!isNumeric(t))
+			return 0;
+		return to == OT_FLOAT ? Float.floatToRawIntBits(toFloat(t, v)) : toInteger(t, v);
+	}
+	
+	/**
+	 * The raw equality used for table keys and by the VM when both types match.
+	 * Strings are interned in the native VM so comparing their contents gives the same result.
+	 */
+	static boolean rawEquals(int t1, int v1, Object r1, int t2, int v2, Object r2) {
+		if (t1 != t2 || v1 != v2)
+			return false;
+		if (r1 == r2)
+			return true;
+		return r1 != null && (t1 == OT_STRING || t1 == OT_USERPOINTER) && r1.equals(r2);
+	}
+	
+	static int hash(int t, int v, Object r) {
+		switch (t) {
+			case OT_STRING:
+			case OT_USERPOINTER:
+				return r.hashCode();
+			case OT_FLOAT:
+				return (int) Float.intBitsToFloat(v);
+			case OT_INTEGER:
+			case OT_BOOL:
+			case OT_NULL:
+				return v;
+			default:
+				return System.identityHashCode(r);
+		}
+	}
+	
+	static String typeName(int t) {
+		switch (t & RT_MASK) {
+			case RT_NULL: return "null";
+			case RT_INTEGER: return "integer";
+			case RT_FLOAT: return "float";
+			case RT_BOOL: return "bool";
+			case RT_STRING: return "string";
+			case RT_TABLE: return "table";
+			case RT_ARRAY: return "array";
+			case RT_GENERATOR: return "generator";
+			case RT_CLOSURE:
+			case RT_NATIVECLOSURE: return "function";
+			case RT_USERDATA: return "userdata";
+			case RT_USERPOINTER: return "userpointer";
+			case RT_THREAD: return "thread";
+			case RT_FUNCPROTO: return "function";
+			case RT_CLASS: return "class";
+			case RT_INSTANCE: return "instance";
+			case RT_WEAKREF: return "weakref";
+			case RT_OUTER: return "outer";
+			default: return null;
+		}
+	}
+	
+	/**
+	 * Formats a float the way printf's {@code %g} does.
+	 */
+	static String formatFloat(float f) {
+		if (Float.isNaN(f))
+			return "nan";
+		if (Float.isInfinite(f))
+			return f > 0 ? "inf" : "-inf";
+		if (f == 0)
+			return (Float.floatToRawIntBits(f) < 0) ? "-0" : "0";
+		double d = f;
+		int exp = (int) Math.floor(Math.log10(Math.abs(d)));
+		String s;
+		if (exp < -4 || exp >= 6) {
+			s = String.format("%.5e", d);
+			int e = s.indexOf('e');
+			String mantissa = stripZeros(s.substring(0, e));
+			String exponent = s.substring(e + 1);
+			char sign = exponent.charAt(0);
+			String digits = exponent.substring(1);
+			while (digits.length() > 2 && digits.charAt(0) == '0')
+				digits = digits.substring(1);
+			if (digits.length() < 2)
+				digits = "0" + digits;
+			s = mantissa + "e" + sign + digits;
+		}
+		else {
+			s = stripZeros(String.format("%." + Math.max(0, 5 - exp) + "f", d));
+		}
+		return s;
+	}
+	
+	private static String stripZeros(String s) {
+		if (s.indexOf('.') < 0)
+			return s;
+		int end = s.length();
+		while (s.charAt(end - 1) == '0')
+			end--;
+		if (s.charAt(end - 1) == '.')
+			end--;
+		return s.substring(0, end);
+	}
+	
+}
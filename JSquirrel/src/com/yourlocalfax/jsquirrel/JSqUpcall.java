@@ -0,0 +1,346 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Calls from scripts into {@link JSqNativeFunction}s.
+ * <br><br>
+ * Native VMs can't hold a Java object in a closure, so every function gets an id and the closure is created with
+ * the id as its last free variable. The SQFUNCTION shared by all of them pops the id and calls {@link #call(long, int)}.
+ * Ids are kept per VM and function, and are given back when the VM is closed.
+ * On the Java backend the function is held by a {@link JavaClosure} instead.
+ * @author Christopher Foster
+ */
+final class JSqUpcall {
+	
+	private static final class Entry {
+		final JSqNativeFunction m_function;
+		final JSqVM m_root;
+		/** The VM of the last call, reused while calls come from the same native thread. */
+		JSqVM m_last;
+		
+		Entry(JSqNativeFunction function, JSqVM root) {
+			m_function = function;
+			m_root = root;
+			m_last = root;
+		}
+	}
+	
+	private static final Object s_lock = new Object();
+	/** Written under the lock, an id is only called after the owner of its VM received it from register. */
+	private static volatile Entry[] s_entries = new Entry[64];
+	private static final Map<JSqOwner, Map<JSqNativeFunction, Integer>> s_ids = new IdentityHashMap<JSqOwner, Map<JSqNativeFunction, Integer>>();
+	private static int[] s_free = new int[16];
+	private static int s_freeCount;
+	private static int s_used;
+	
+	private static final MethodHandle GET_INT;
+	private static final MethodHandle GET_FLOAT;
+	private static final MethodHandle GET_BOOL;
+	private static final MethodHandle GET_STRING;
+	
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			GET_INT = lookup.findVirtual(JSqVM.class, "getInt", MethodType.methodType(int.class, int.class));
+			GET_FLOAT = lookup.findVirtual(JSqVM.class, "getFloat", MethodType.methodType(float.class, int.class));
+			GET_BOOL = lookup.findVirtual(JSqVM.class, "getBool", MethodType.methodType(boolean.class, int.class));
+			GET_STRING = lookup.findVirtual(JSqVM.class, "getString", MethodType.methodType(String.class, int.class));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private JSqUpcall() {
+	}
+	
+	/**
+	 * A native closure of the Java backend calling a {@link JSqNativeFunction}.
+	 */
+	static final class JavaClosure extends JSqNativeClosure {
+		
+		final JSqNativeFunction m_function;
+		
+		JavaClosure(JSqNativeFunction function) {
+			m_function = function;
+		}
+		
+		@Override
+		int call(JSqInterpreter v) {
+			return invoke(m_function, v.m_vm);
+		}
+		
+	}
+	
+	/**
+	 * A function calling a {@link MethodHandle} with its parameters read from the stack, built by {@link #adapt}.
+	 */
+	static final class Adapter implements JSqNativeFunction {
+		
+		/** (JSqVM)int, reading the arguments, calling the target and pushing its result. */
+		private final MethodHandle m_handle;
+		/** The parameters including {@code this}, for sq_setparamscheck. */
+		final int m_nparams;
+		final String m_typeMask;
+		
+		Adapter(MethodHandle handle, int nparams, String typeMask) {
+			m_handle = handle;
+			m_nparams = nparams;
+			m_typeMask = typeMask;
+		}
+		
+		@Override
+		public int call(JSqVM v) throws JSquirrelException {
+			try {
+				return (int) m_handle.invokeExact(v);
+			}
+			catch (RuntimeException | Error | JSquirrelException e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new JSquirrelException(t.toString());
+			}
+		}
+		
+	}
+	
+	/**
+	 * @return The id of {@code f} for closures created in {@code v} and its friend threads.
+	 */
+	static int register(JSqNativeFunction f, JSqVM v) {
+		synchronized (s_lock) {
+			Map<JSqNativeFunction, Integer> ids = s_ids.get(v.m_owner);
+			if (ids == null) {
+				ids = new IdentityHashMap<JSqNativeFunction, Integer>();
+				s_ids.put(v.m_owner, ids);
+			}
+			Integer id = ids.get(f);
+			if (id != null)
+				return id;
+			int i;
+			if (s_freeCount > 0)
+				i = s_free[--s_freeCount];
+			else {
+				i = s_used++;
+				if (i == s_entries.length) {
+					Entry[] grown = new Entry[i << 1];
+					System.arraycopy(s_entries, 0, grown, 0, i);
+					s_entries = grown;
+				}
+			}
+			s_entries[i] = new Entry(f, v);
+			ids.put(f, i);
+			return i;
+		}
+	}
+	
+	/**
+	 * Gives back the ids of the functions of a VM that is being closed.
+	 */
+	static void release(JSqOwner owner) {
+		synchronized (s_lock) {
+			Map<JSqNativeFunction, Integer> ids = s_ids.remove(owner);
+			if (ids == null)
+				return;
+			for (int i : ids.values()) {
+				s_entries[i] = null;
+				if (s_freeCount == s_free.length) {
+					int[] grown = new int[s_freeCount << 1];
+					System.arraycopy(s_free, 0, grown, 0, s_freeCount);
+					s_free = grown;
+				}
+				s_free[s_freeCount++] = i;
+			}
+		}
+	}
+	
+	/**
+	 * Called by the SQFUNCTION of every native closure created with
+	 * {@link Squirrel#sq_newclosure(JSqVM, JSqNativeFunction, int)}, after it popped the id.
+	 * Nothing is thrown back through the native frames, every exception becomes a Squirrel error.
+	 */
+	static int call(long v, int id) {
+		Entry e = s_entries[id];
+		JSqVM vm = e.m_last;
+		if (vm.m_nativeHandle != v)
+			e.m_last = vm = new JSqVM(v, e.m_root);
+		try {
+			return invoke(e.m_function, vm);
+		}
+		catch (Throwable t) {
+			Squirrel.NATIVE.sq_throwerror(v, t.toString());
+			return JSqInterpreter.SQ_ERROR;
+		}
+	}
+	
+	static int invoke(JSqNativeFunction f, JSqVM v) {
+		JSqExecutor.Call<?> call = v.m_owner.m_call;
+		if (call != null && call.isCancelled()) {
+			Squirrel.sq_throwerror(v, JSqExecutor.CANCELLED);
+			return JSqInterpreter.SQ_ERROR;
+		}
+		JSqBudget budget = v.m_owner.m_budget;
+		if (budget != null && budget.expired()) {
+			Squirrel.sq_throwerror(v, JSqBudget.ERROR);
+			return JSqInterpreter.SQ_ERROR;
+		}
+		try {
+			return f.call(v);
+		}
+		catch (JSqInterpreter.ScriptError e) {
+			throw e;
+		}
+		catch (JSquirrelException e) {
+			Squirrel.sq_throwerror(v, e.getMessage());
+			return JSqInterpreter.SQ_ERROR;
+		}
+		catch (RuntimeException e) {
+			Squirrel.sq_throwerror(v, e.toString());
+			return JSqInterpreter.SQ_ERROR;
+		}
+	}
+	
+	/**
+	 * Builds a function that reads the parameters of {@code target} from the stack, starting after {@code this},
+	 * and pushes its return value. The type mask for sq_setparamscheck is worked out here once, so the VM checks
+	 * the argument types before every call and the adapter reads them without checking.
+	 * <br><br>
+	 * Parameters can be int, long, float, double, boolean or String, each taking an argument, or JSqVM, receiving
+	 * the calling VM. The return type can be any of those except JSqVM, or void.
+	 * @throws IllegalArgumentException If a parameter or the return type isn't supported.
+	 */
+	static Adapter adapt(MethodHandle target) {
+		MethodType type = target.type();
+		int n = type.parameterCount();
+		MethodHandle[] getters = new MethodHandle[n];
+		StringBuilder mask = new StringBuilder(".");
+		int idx = 2;
+		for (int i = 0; i < n; i++) {
+			Class<?> p = type.parameterType(i);
+			if (p == JSqVM.class) {
+				getters[i] = MethodHandles.identity(JSqVM.class);
+				continue;
+			}
+			MethodHandle getter;
+			if (p == int.class || p == long.class) {
+				getter = GET_INT;
+				mask.append('n');
+			}
+			else if (p == float.class || p == double.class) {
+				getter = GET_FLOAT;
+				mask.append('n');
+			}
+			else if (p == boolean.class) {
+				getter = GET_BOOL;
+				mask.append('b');
+			}
+			else if (p == String.class) {
+				getter = GET_STRING;
+				mask.append('s');
+			}
+			else
+				throw new IllegalArgumentException("parameter type " + p.getName() + " can't be read from the stack");
+			getters[i] = MethodHandles.insertArguments(getter, 1, idx++).asType(MethodType.methodType(p, JSqVM.class));
+		}
+		MethodHandle h = MethodHandles.filterArguments(target, 0, getters);
+		h = MethodHandles.permuteArguments(h, MethodType.methodType(type.returnType(), JSqVM.class), new int[n]);
+		h = MethodHandles.foldArguments(returner(type.returnType()), h);
+		return new Adapter(h, idx - 1, mask.toString());
+	}
+	
+	/**
+	 * @return (R, JSqVM)int pushing a return value of type R, or (JSqVM)int for void.
+	 */
+	private static MethodHandle returner(Class<?> r) {
+		String name;
+		if (r == void.class)
+			name = "returnVoid";
+		else if (r == int.class)
+			name = "returnInt";
+		else if (r == long.class)
+			name = "returnLong";
+		else if (r == float.class)
+			name = "returnFloat";
+		else if (r == double.class)
+			name = "returnDouble";
+		else if (r == boolean.class)
+			name = "returnBool";
+		else if (r == String.class)
+			name = "returnString";
+		else
+			throw new IllegalArgumentException("return type " + r.getName() + " can't be pushed on the stack");
+		MethodType mt = r == void.class ? MethodType.methodType(int.class, JSqVM.class) : MethodType.methodType(int.class, r, JSqVM.class);
+		try {
+			return MethodHandles.lookup().findStatic(JSqUpcall.class, name, mt);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private static int returnVoid(JSqVM v) {
+		return 0;
+	}
+	
+	private static int returnInt(int r, JSqVM v) {
+		v.pushInteger(r);
+		return 1;
+	}
+	
+	private static int returnLong(long r, JSqVM v) {
+		v.pushInteger((int) r);
+		return 1;
+	}
+	
+	private static int returnFloat(float r, JSqVM v) {
+		v.pushFloat(r);
+		return 1;
+	}
+	
+	private static int returnDouble(double r, JSqVM v) {
+		v.pushFloat((float) r);
+		return 1;
+	}
+	
+	private static int returnBool(boolean r, JSqVM v) {
+		v.pushBool(r);
+		return 1;
+	}
+	
+	private static int returnString(String r, JSqVM v) {
+		if (r == null)
+			return 0;
+		v.pushString(r);
+		return 1;
+	}
+	
+}
@@ -24,17 +24,408 @@ THE SOFTWARE.
 
 package com.yourlocalfax.jsquirrel;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The wrapper class for an HSQUIRRELVM.
- * Stores a pointer the the memory location of the VM in C++ code.
+ * Stores a pointer the the memory location of the VM in C++ code,
+ * or the {@link JSqInterpreter} when the VM runs on the Java backend.
+ * <br><br>
+ * Besides the {@link Squirrel} methods, the most used stack operations are available as instance methods that
+ * allocate nothing. They return a status of {@link #SQ_OK} or a negative value on failure instead of a
+ * {@link JSqResult}, and user pointers and type tags as raw values instead of {@link JSqUserPointer}.
  * @author Christopher Foster
  */
 public class JSqVM {
 	
+	public static final int SQ_OK = 0;
+	public static final int SQ_ERROR = -1;
+	
 	long m_nativeHandle;
 	
-	JSqVM(long handle) {
+	/** Mirrors sq_enabledebuginfo for native VMs, so compiled script caching can tell the two outputs apart. */
+	boolean m_debugInfo;
+	
+	/** The Java backend's VM, null for native VMs. */
+	final JSqInterpreter m_interp;
+	
+	/** Shared with all friend threads. */
+	final JSqOwner m_owner;
+	/** The object handles of a native VM and its friend threads, null for the Java backend. */
+	final JSqHandles m_handles;
+	/** Shared with all friend threads. */
+	final JSqHostArena m_hostArena;
+	/** Shared with all friend threads, null if the VM has no memory limit. */
+	final JSqMemoryLimit m_limit;
+	/** Shared with all friend threads. */
+	final JSqMemberCache m_memberCache;
+	/** Direct memory the bulk array operations stage values in, only touched by the owner of the VM. */
+	private ByteBuffer m_scratch;
+	
+	/**
+	 * A new native VM.
+	 */
+	JSqVM(long handle, JSqMemoryLimit limit) {
+		m_nativeHandle = handle;
+		m_interp = null;
+		m_owner = new JSqOwner();
+		m_handles = new JSqHandles();
+		m_hostArena = new JSqHostArena(Squirrel.sq_getallocator(), limit, handle);
+		m_limit = limit;
+		m_memberCache = new JSqMemberCache(false);
+	}
+	
+	/**
+	 * A native thread sharing the state of {@code friend}.
+	 */
+	JSqVM(long handle, JSqVM friend) {
 		m_nativeHandle = handle;
+		m_interp = null;
+		m_owner = friend.m_owner;
+		m_handles = friend.m_handles;
+		m_hostArena = friend.m_hostArena;
+		m_limit = friend.m_limit;
+		m_memberCache = friend.m_memberCache;
+	}
+	
+	JSqVM(JSqInterpreter interp) {
+		m_nativeHandle = 0;
+		m_interp = interp;
+		m_owner = interp.m_ss.m_owner;
+		m_handles = null;
+		m_hostArena = interp.m_ss.m_hostArena;
+		m_limit = interp.m_ss.m_limit;
+		m_memberCache = interp.m_ss.m_memberCache;
+	}
+	
+	/**
+	 * @return The ownership token of this VM and its friend threads. Calls are only checked against it while a
+	 * thread has acquired it.
+	 */
+	public JSqOwner getOwner() {
+		return m_owner;
+	}
+	
+	/**
+	 * @return The object handles of this VM and its friend threads, null on the Java backend.
+	 */
+	public JSqHandles getHandles() {
+		return m_handles;
+	}
+	
+	/**
+	 * @return The host buffers allocated for this VM and its friend threads with {@link Squirrel#sq_malloc(JSqVM, long)},
+	 * which don't include the memory of Squirrel's own objects.
+	 */
+	public JSqHostArena getHostArena() {
+		return m_hostArena;
+	}
+	
+	/**
+	 * @return The memory budget of this VM and its friend threads, null if it was opened without one.
+	 */
+	public JSqMemoryLimit getMemoryLimit() {
+		return m_limit;
+	}
+	
+	/**
+	 * @return The member handles resolved by name for this VM and its friend threads.
+	 */
+	public JSqMemberCache getMemberCache() {
+		return m_memberCache;
+	}
+	
+	/**
+	 * @return A cleared direct buffer in native byte order with room for {@code count} 32 bit values.
+	 */
+	ByteBuffer scratch(int count) {
+		int bytes = count << 2;
+		if (m_scratch == null || m_scratch.capacity() < bytes)
+			m_scratch = ByteBuffer.allocateDirect(Math.max(Integer.highestOneBit(Math.max(bytes, 256) - 1) << 1, bytes)).order(ByteOrder.nativeOrder());
+		((Buffer) m_scratch).clear();
+		((Buffer) m_scratch).limit(bytes);
+		return m_scratch;
+	}
+	
+	/**
+	 * Iterates over the table or array at {@code idx}, copying its entries out 64 at a time.
+	 * @see JSqCursor
+	 */
+	public JSqCursor cursor(int idx) {
+		return new JSqCursor(this, idx, 64);
+	}
+	
+	/**
+	 * Iterates over the table or array at {@code idx}, copying its entries out {@code chunkSize} at a time.
+	 * @see JSqCursor
+	 */
+	public JSqCursor cursor(int idx, int chunkSize) {
+		return new JSqCursor(this, idx, chunkSize);
+	}
+	
+	/**
+	 * Fails if another Java thread owns the VM, kept small so it inlines into every call. A VM nobody acquired
+	 * passes for every thread, see {@link JSqOwner}.
+	 */
+	final void checkOwner() {
+		Thread t = m_owner.m_thread;
+		if (t != null && t != Thread.currentThread())
+			throw m_owner.owned();
+	}
+	
+	// Stack Operations
+	
+	public void push(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.pushCopy(m_interp.stackIndex(idx));
+		else
+			Squirrel.NATIVE.sq_push(m_nativeHandle, idx);
+	}
+	
+	public void pop(int numElementsToPop) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.pop(numElementsToPop);
+		else
+			Squirrel.NATIVE.sq_pop(m_nativeHandle, numElementsToPop);
+	}
+	
+	public void popTop() {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.pop(1);
+		else
+			Squirrel.NATIVE.sq_poptop(m_nativeHandle);
+	}
+	
+	public void remove(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.remove(idx);
+		else
+			Squirrel.NATIVE.sq_remove(m_nativeHandle, idx);
+	}
+	
+	public int getTop() {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getTop();
+		return Squirrel.NATIVE.sq_gettop(m_nativeHandle);
+	}
+	
+	public void setTop(int newtop) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.setTop(newtop);
+		else
+			Squirrel.NATIVE.sq_settop(m_nativeHandle, newtop);
+	}
+	
+	// Object Creation Handling
+	
+	public void newTable() {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.newTable(0);
+		else
+			Squirrel.NATIVE.sq_newtable(m_nativeHandle);
+	}
+	
+	public void newArray(int size) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.newArray(size);
+		else
+			Squirrel.NATIVE.sq_newarray(m_nativeHandle, size);
+	}
+	
+	public void pushString(String s) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.pushString(s);
+		else
+			Squirrel.NATIVE.sq_pushstring(m_nativeHandle, s, s.length());
+	}
+	
+	public void pushInteger(int i) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_INTEGER, i, null);
+		else
+			Squirrel.NATIVE.sq_pushinteger(m_nativeHandle, i);
+	}
+	
+	public void pushFloat(float f) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_FLOAT, Float.floatToRawIntBits(f), null);
+		else
+			Squirrel.NATIVE.sq_pushfloat(m_nativeHandle, f);
+	}
+	
+	public void pushBool(boolean b) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_BOOL, b ? 1 : 0, null);
+		else
+			Squirrel.NATIVE.sq_pushbool(m_nativeHandle, b);
+	}
+	
+	/**
+	 * Pushes a user pointer, which is boxed on the Java backend.
+	 */
+	public void pushUserPointer(long up) {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_USERPOINTER, 0, up);
+		else
+			Squirrel.NATIVE.sq_pushserpointer(m_nativeHandle, up);
+	}
+	
+	public void pushNull() {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_NULL, 0, null);
+		else
+			Squirrel.NATIVE.sq_pushnull(m_nativeHandle);
+	}
+	
+	/**
+	 * @return The raw type of the value at {@code idx}, one of the {@link JSqObjectType} values.
+	 */
+	public int getType(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.type(idx);
+		return Squirrel.NATIVE.sq_gettype(m_nativeHandle, idx);
+	}
+	
+	public int getSize(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getSize(idx);
+		return Squirrel.NATIVE.sq_getsize(m_nativeHandle, idx);
+	}
+	
+	public String getString(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getString(idx);
+		return Squirrel.NATIVE.sq_getstring(m_nativeHandle, idx);
+	}
+	
+	public int getInt(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getInteger(idx);
+		return Squirrel.NATIVE.sq_getinteger(m_nativeHandle, idx);
+	}
+	
+	public float getFloat(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getFloat(idx);
+		return Squirrel.NATIVE.sq_getfloat(m_nativeHandle, idx);
+	}
+	
+	public boolean getBool(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getBool(idx);
+		return Squirrel.NATIVE.sq_getbool(m_nativeHandle, idx);
+	}
+	
+	public long getUserPointer(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getUserPointer(idx);
+		return Squirrel.NATIVE.sq_getuserpointer(m_nativeHandle, idx);
+	}
+	
+	public long getTypeTag(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getTypeTag(idx);
+		return Squirrel.NATIVE.sq_gettypetag(m_nativeHandle, idx);
+	}
+	
+	// Object Manipulation
+	
+	public void pushRootTable() {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.pushRoot();
+		else
+			Squirrel.NATIVE.sq_pushroottable(m_nativeHandle);
+	}
+	
+	public void pushRegistryTable() {
+		checkOwner();
+		if (m_interp != null)
+			m_interp.push(JSqTypes.OT_TABLE, 0, m_interp.m_ss.m_registry);
+		else
+			Squirrel.NATIVE.sq_pushregistrytable(m_nativeHandle);
+	}
+	
+	public int newSlot(int idx, boolean bStatic) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.newSlotIdx(idx, bStatic);
+		return Squirrel.NATIVE.sq_newslot(m_nativeHandle, idx, bStatic);
+	}
+	
+	public int set(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.setIdx(idx);
+		return Squirrel.NATIVE.sq_set(m_nativeHandle, idx);
+	}
+	
+	public int get(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.getIdx(idx);
+		return Squirrel.NATIVE.sq_get(m_nativeHandle, idx);
+	}
+	
+	public int rawSet(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.rawSet(idx);
+		return Squirrel.NATIVE.sq_rawset(m_nativeHandle, idx);
+	}
+	
+	public int rawGet(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.rawGet(idx);
+		return Squirrel.NATIVE.sq_rawget(m_nativeHandle, idx);
+	}
+	
+	public int arrayAppend(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.arrayAppend(idx);
+		return Squirrel.NATIVE.sq_arrayappend(m_nativeHandle, idx);
+	}
+	
+	public int next(int idx) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.next(idx);
+		return Squirrel.NATIVE.sq_next(m_nativeHandle, idx);
+	}
+	
+	// Calls
+	
+	public int call(int numParams, boolean retval, boolean raiseError) {
+		checkOwner();
+		if (m_interp != null)
+			return m_interp.call(numParams, retval, raiseError);
+		return Squirrel.NATIVE.sq_call(m_nativeHandle, numParams, retval, raiseError);
 	}
 	
 }
@@ -0,0 +1,490 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of initialized Squirrel VMs, handed out with {@link #borrow()} and given back with {@link #release(JSqVM)}.
+ * <br><br>
+ * Every VM is set up once by the pool's {@link Initializer}, which would register bindings and run shared
+ * scripts. The slots the initializer leaves in the root table are the template every borrower starts from: on
+ * release the root table gets exactly those slots back, globals a borrower added are removed and the ones it
+ * replaced or deleted are put back. The restore is shallow, an object a slot refers to, such as a table kept in a
+ * global, is the same object for every borrower and keeps the changes made to it. On release the stack is also
+ * reset to the size it had after initialization, the last error is cleared and the {@link Cleanup} hook runs.
+ * A VM that is still suspended, or whose cleanup throws, is closed instead of being pooled again.
+ * <br><br>
+ * Sizing: the pool keeps at least {@code minIdle} VMs ready and never holds more than {@code maxSize}. When all
+ * of them are borrowed, {@link #borrow()} waits up to the borrow timeout. VMs idle for longer than the idle
+ * timeout are closed with {@link Squirrel#sq_close(JSqVM)} while more than {@code minIdle} are idle. The pool
+ * has no thread of its own, so eviction runs during borrow and release, or when {@link #evict()} is called.
+ * <br><br>
+ * A borrowed VM belongs to the borrowing thread until it is released, the pool does not make VMs thread safe.
+ * @author Christopher Foster
+ */
+public final class JSqVMPool implements Closeable {
+	
+	/**
+	 * Sets up a new VM before the pool hands it out for the first time.
+	 */
+	public interface Initializer {
+		void initialize(JSqVM v) throws JSquirrelException;
+	}
+	
+	/**
+	 * Called with every released VM after its stack has been reset.
+	 */
+	public interface Cleanup {
+		void cleanup(JSqVM v);
+	}
+	
+	private static final class Entry {
+		final JSqVM m_vm;
+		final int m_top;
+		/** The keys and values of the root table after initialization, alternating. */
+		final JSqObject[] m_root;
+		boolean m_borrowed;
+		long m_idleSince;
+		
+		Entry(JSqVM vm, int top, JSqObject[] root) {
+			m_vm = vm;
+			m_top = top;
+			m_root = root;
+		}
+	}
+	
+	private final JSqBackend m_backend;
+	private final int m_initialStackSize;
+	private final Initializer m_init;
+	private final int m_minIdle;
+	private final int m_maxSize;
+	
+	private volatile Cleanup m_cleanup;
+	private volatile long m_borrowTimeout = TimeUnit.SECONDS.toNanos(30);
+	private volatile long m_idleTimeout = TimeUnit.MINUTES.toNanos(5);
+	
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_available = m_lock.newCondition();
+	/** Idle VMs, most recently released first. */
+	private final ArrayDeque<Entry> m_idle = new ArrayDeque<Entry>();
+	private final IdentityHashMap<JSqVM, Entry> m_entries = new IdentityHashMap<JSqVM, Entry>();
+	/** VMs that exist or are being created. */
+	private int m_size;
+	private boolean m_closed;
+	
+	private final AtomicLong m_borrows = new AtomicLong();
+	private final AtomicLong m_borrowNanos = new AtomicLong();
+	private final AtomicLong m_maxBorrowNanos = new AtomicLong();
+	private final AtomicLong m_exhausted = new AtomicLong();
+	private final AtomicLong m_timeouts = new AtomicLong();
+	private final AtomicLong m_created = new AtomicLong();
+	private final AtomicLong m_evicted = new AtomicLong();
+	
+	/**
+	 * Creates the pool and initializes {@code minIdle} VMs.
+	 * @param backend The backend VMs are opened with.
+	 * @param initialStackSize
+	 * @param init Sets up each new VM, may be null.
+	 * @param minIdle The number of VMs kept ready.
+	 * @param maxSize The maximum number of VMs, borrowed or idle.
+	 * @throws JSquirrelException If a VM can't be opened or initialized.
+	 */
+	public JSqVMPool(JSqBackend backend, int initialStackSize, Initializer init, int minIdle, int maxSize) throws JSquirrelException {
+		if (minIdle < 0 || maxSize < 1 || minIdle > maxSize)
+			throw new IllegalArgumentException("Invalid pool size: minIdle " + minIdle + ", maxSize " + maxSize);
+		m_backend = backend;
+		m_initialStackSize = initialStackSize;
+		m_init = init;
+		m_minIdle = minIdle;
+		m_maxSize = maxSize;
+		try {
+			for (int i = 0; i < minIdle; i++) {
+				Entry e = create();
+				m_lock.lock();
+				try {
+					m_size++;
+					m_entries.put(e.m_vm, e);
+					e.m_idleSince = System.nanoTime();
+					m_idle.addFirst(e);
+				}
+				finally {
+					m_lock.unlock();
+				}
+			}
+		}
+		catch (JSquirrelException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param cleanup Called with every released VM, or null for none.
+	 */
+	public void setCleanup(Cleanup cleanup) {
+		m_cleanup = cleanup;
+	}
+	
+	/**
+	 * @param timeout How long {@link #borrow()} waits when every VM is borrowed.
+	 */
+	public void setBorrowTimeout(long timeout, TimeUnit unit) {
+		m_borrowTimeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * @param timeout How long a VM above {@code minIdle} may stay idle before it is closed.
+	 */
+	public void setIdleTimeout(long timeout, TimeUnit unit) {
+		m_idleTimeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Takes an idle VM, or opens a new one if the pool isn't full.
+	 * @return A VM that belongs to the caller until {@link #release(JSqVM)}.
+	 * @throws JSquirrelException If no VM became available within the borrow timeout, or a new one failed to initialize.
+	 */
+	public JSqVM borrow() throws JSquirrelException {
+		long start = System.nanoTime();
+		evict();
+		Entry e = null;
+		m_lock.lock();
+		try {
+			boolean waited = false;
+			long remaining = m_borrowTimeout;
+			while (true) {
+				if (m_closed)
+					throw new IllegalStateException("The pool is closed");
+				e = m_idle.pollFirst();
+				if (e != null)
+					break;
+				if (m_size < m_maxSize) {
+					m_size++;
+					break;
+				}
+				if (!waited) {
+					waited = true;
+					m_exhausted.incrementAndGet();
+				}
+				if (remaining <= 0) {
+					m_timeouts.incrementAndGet();
+					throw new JSquirrelException("No VM became available within the borrow timeout");
+				}
+				try {
+					remaining = m_available.awaitNanos(remaining);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new JSquirrelException("Interrupted while waiting for a VM");
+				}
+			}
+			if (e != null)
+				e.m_borrowed = true;
+		}
+		finally {
+			m_lock.unlock();
+		}
+		if (e == null) {
+			// A slot was reserved above, create the VM without holding the lock
+			try {
+				e = create();
+			}
+			catch (JSquirrelException | RuntimeException ex) {
+				discarded();
+				throw ex;
+			}
+			m_lock.lock();
+			try {
+				e.m_borrowed = true;
+				m_entries.put(e.m_vm, e);
+			}
+			finally {
+				m_lock.unlock();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		m_borrows.incrementAndGet();
+		m_borrowNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = m_maxBorrowNanos.get()) && !m_maxBorrowNanos.compareAndSet(max, nanos));
+		return e.m_vm;
+	}
+	
+	/**
+	 * Resets a borrowed VM and returns it to the pool.
+	 * @param v A VM borrowed from this pool.
+	 */
+	public void release(JSqVM v) {
+		Entry e = returned(v);
+		boolean keep = Squirrel.sq_getvmstate(v) != JSqVMState.Suspended;
+		if (keep) {
+			Squirrel.sq_settop(v, e.m_top);
+			Squirrel.sq_reseterror(v);
+			restoreRoot(v, e.m_root);
+			Cleanup cleanup = m_cleanup;
+			if (cleanup != null) {
+				try {
+					cleanup.cleanup(v);
+					Squirrel.sq_settop(v, e.m_top);
+				}
+				catch (RuntimeException ex) {
+					keep = false;
+				}
+			}
+		}
+		m_lock.lock();
+		try {
+			if (keep && !m_closed) {
+				e.m_idleSince = System.nanoTime();
+				m_idle.addFirst(e);
+				m_available.signal();
+				return;
+			}
+			m_entries.remove(v);
+		}
+		finally {
+			m_lock.unlock();
+		}
+		Squirrel.sq_close(v);
+		discarded();
+	}
+	
+	/**
+	 * Closes a borrowed VM instead of returning it, for VMs left in an unknown state.
+	 * @param v A VM borrowed from this pool.
+	 */
+	public void invalidate(JSqVM v) {
+		returned(v);
+		m_lock.lock();
+		try {
+			m_entries.remove(v);
+		}
+		finally {
+			m_lock.unlock();
+		}
+		Squirrel.sq_close(v);
+		discarded();
+	}
+	
+	/**
+	 * Closes VMs that have been idle for longer than the idle timeout, keeping at least {@code minIdle}.
+	 * @return The number of VMs closed.
+	 */
+	public int evict() {
+		List<JSqVM> evicted = null;
+		long now = System.nanoTime();
+		long timeout = m_idleTimeout;
+		m_lock.lock();
+		try {
+			Entry e;
+			while (m_idle.size() > m_minIdle && (e = m_idle.peekLast()) != null && now - e.m_idleSince > timeout) {
+				m_idle.pollLast();
+				m_entries.remove(e.m_vm);
+				m_size--;
+				if (evicted == null)
+					evicted = new ArrayList<JSqVM>();
+				evicted.add(e.m_vm);
+			}
+			if (evicted != null)
+				m_available.signalAll();
+		}
+		finally {
+			m_lock.unlock();
+		}
+		if (evicted == null)
+			return 0;
+		for (JSqVM v : evicted)
+			Squirrel.sq_close(v);
+		m_evicted.addAndGet(evicted.size());
+		return evicted.size();
+	}
+	
+	/**
+	 * Closes every idle VM. Borrowed VMs are closed when they are released.
+	 */
+	@Override
+	public void close() {
+		List<JSqVM> idle = new ArrayList<JSqVM>();
+		m_lock.lock();
+		try {
+			m_closed = true;
+			for (Entry e : m_idle) {
+				m_entries.remove(e.m_vm);
+				idle.add(e.m_vm);
+			}
+			m_size -= m_idle.size();
+			m_idle.clear();
+			m_available.signalAll();
+		}
+		finally {
+			m_lock.unlock();
+		}
+		for (JSqVM v : idle)
+			Squirrel.sq_close(v);
+	}
+	
+	// Metrics
+	
+	/** @return The number of VMs, borrowed or idle. */
+	public int getSize() {
+		m_lock.lock();
+		try {
+			return m_size;
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+	
+	/** @return The number of VMs ready to be borrowed. */
+	public int getIdleCount() {
+		m_lock.lock();
+		try {
+			return m_idle.size();
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+	
+	/** @return The number of successful borrows. */
+	public long getBorrowCount() {
+		return m_borrows.get();
+	}
+	
+	/** @return The total time spent in successful borrows, including waiting and initializing new VMs. */
+	public long getBorrowTime(TimeUnit unit) {
+		return unit.convert(m_borrowNanos.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	/** @return The longest successful borrow. */
+	public long getMaxBorrowTime(TimeUnit unit) {
+		return unit.convert(m_maxBorrowNanos.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	/** @return The number of borrows that found the pool exhausted and had to wait. */
+	public long getExhaustedCount() {
+		return m_exhausted.get();
+	}
+	
+	/** @return The number of borrows that gave up after the borrow timeout. */
+	public long getTimeoutCount() {
+		return m_timeouts.get();
+	}
+	
+	/** @return The number of VMs opened by the pool. */
+	public long getCreatedCount() {
+		return m_created.get();
+	}
+	
+	/** @return The number of VMs closed by idle eviction. */
+	public long getEvictedCount() {
+		return m_evicted.get();
+	}
+	
+	private Entry create() throws JSquirrelException {
+		JSqVM v = Squirrel.sq_open(m_initialStackSize, m_backend);
+		try {
+			if (m_init != null)
+				m_init.initialize(v);
+		}
+		catch (JSquirrelException | RuntimeException e) {
+			Squirrel.sq_close(v);
+			throw e;
+		}
+		m_created.incrementAndGet();
+		return new Entry(v, Squirrel.sq_gettop(v), snapshotRoot(v));
+	}
+	
+	private static JSqObject[] snapshotRoot(JSqVM v) throws JSquirrelException {
+		List<JSqObject> slots = new ArrayList<JSqObject>();
+		int top = Squirrel.sq_gettop(v);
+		try {
+			Squirrel.sq_pushroottable(v);
+			Squirrel.sq_pushnull(v);
+			while (Squirrel.SQ_SUCCEDED(Squirrel.sq_next(v, -2))) {
+				slots.add(Squirrel.sq_getstackobj(v, -2));
+				slots.add(Squirrel.sq_getstackobj(v, -1));
+				Squirrel.sq_pop(v, 2);
+			}
+		}
+		finally {
+			Squirrel.sq_settop(v, top);
+		}
+		return slots.toArray(new JSqObject[slots.size()]);
+	}
+	
+	private static void restoreRoot(JSqVM v, JSqObject[] slots) {
+		int top = Squirrel.sq_gettop(v);
+		Squirrel.sq_pushroottable(v);
+		Squirrel.sq_clear(v, -1);
+		for (int i = 0; i < slots.length; i += 2) {
+			Squirrel.sq_pushobject(v, slots[i]);
+			Squirrel.sq_pushobject(v, slots[i + 1]);
+			Squirrel.sq_newslot(v, -3, false);
+		}
+		Squirrel.sq_settop(v, top);
+	}
+	
+	/**
+	 * Checks that {@code v} is borrowed and marks it as given back, so of two threads releasing the same VM only one
+	 * gets through.
+	 */
+	private Entry returned(JSqVM v) {
+		m_lock.lock();
+		try {
+			Entry e = m_entries.get(v);
+			if (e == null || !e.m_borrowed)
+				throw new IllegalArgumentException("The VM was not borrowed from this pool");
+			e.m_borrowed = false;
+			return e;
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+	
+	/** Frees the slot of a VM that was closed or never created. */
+	private void discarded() {
+		m_lock.lock();
+		try {
+			m_size--;
+			m_available.signal();
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+	
+}
@@ -0,0 +1,54 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2014 Christopher Foster
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+
+package com.yourlocalfax.jsquirrel;
+
+import java.lang.ref.WeakReference;
+
+import static com.yourlocalfax.jsquirrel.JSqTypes.*;
+
+/**
+ * The Java backend's weak reference. The referent is dropped by the Java garbage collector
+ * rather than by reference counting, so it can outlive the last Squirrel reference for a while.
+ * @author Christopher Foster
+ */
+final class JSqWeakRef {
+	
+	private final int m_type;
+	private final WeakReference<Object> m_obj;
+	
+	JSqWeakRef(int type, Object obj) {
+		m_type = type;
+		m_obj = new WeakReference<Object>(obj);
+	}
+	
+	int type() {
+		return m_obj.get() != null ? m_type : OT_NULL;
+	}
+	
+	Object get() {
+		return m_obj.get();
+	}
+	
+}
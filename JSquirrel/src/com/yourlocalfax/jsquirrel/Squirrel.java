@@ -24,6 +24,16 @@ THE SOFTWARE.
 
 package com.yourlocalfax.jsquirrel;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * The core Squirrel wrapper class.
  * Most methods in here will directly represent a native Squirrel function call in the squirrel.h file.
@@ -33,9 +43,14 @@ package com.yourlocalfax.jsquirrel;
  */
 public class Squirrel {
 	
-	static {
-		System.loadLibrary("JSquirrel");
-	}
+	/** The bridge native VMs are called through, null when no native library could be loaded. */
+	static final JSqNativeBridge NATIVE = JSqNativeBridge.load();
+	
+	/** False when the JSquirrel library couldn't be loaded, only the Java backend can be used then. */
+	static final boolean NATIVE_AVAILABLE = NATIVE != null;
+	
+	private static volatile JSqScriptCache s_scriptCache;
+	private static volatile JSqAllocator s_allocator = JSqAllocator.SYSTEM;
 
 	private static final int SQ_VMSTATE_IDLE =			0;
 	private static final int SQ_VMSTATE_RUNNING =		1;
@@ -92,13 +107,54 @@ public class Squirrel {
 	 * @throws JSquirrelException
 	 */
 	public static JSqVM sq_open(int initialStackSize) throws JSquirrelException {
-		long handle = sq_open_native(initialStackSize);
+		return sq_open(initialStackSize, JSqBackend.Native);
+	}
+	
+	/**
+	 * Creates a new instance of a Squirrel VM with a new execution stack on the given backend.
+	 * <br><br>
+	 * VMs on the {@link JSqBackend#Java Java} backend never cross into native code, so any {@link JSqVM}
+	 * passed to another method has to come from the same backend as the other VMs and objects it's used with.
+	 * @param initialStackSize THe size of the stack in slots for the VM.
+	 * @param backend The backend that runs the VM.
+	 * @return The new Squirrel VM.
+	 * @throws JSquirrelException
+	 */
+	public static JSqVM sq_open(int initialStackSize, JSqBackend backend) throws JSquirrelException {
+		return open(initialStackSize, backend, null);
+	}
+	
+	/**
+	 * Creates a new instance of a Squirrel VM with a memory budget, see {@link JSqMemoryLimit}.
+	 * <br><br>
+	 * Allocations that would go over the limit fail, in scripts with a runtime error. The VM is collected when usage
+	 * passes the soft limit, 75% of the limit unless changed with {@link JSqMemoryLimit#setSoftLimit(long)}.
+	 * @param initialStackSize THe size of the stack in slots for the VM.
+	 * @param backend The backend that runs the VM.
+	 * @param memoryLimit The budget in bytes for the VM and its friend threads.
+	 * @return The new Squirrel VM.
+	 * @throws JSquirrelException If the VM can't be created, or its stack alone doesn't fit the limit.
+	 */
+	public static JSqVM sq_open(int initialStackSize, JSqBackend backend, long memoryLimit) throws JSquirrelException {
+		return open(initialStackSize, backend, new JSqMemoryLimit(memoryLimit));
+	}
+	
+	private static JSqVM open(int initialStackSize, JSqBackend backend, JSqMemoryLimit limit) throws JSquirrelException {
+		if (backend == JSqBackend.Java) {
+			JSqInterpreter interp = new JSqInterpreter(new JSqSharedState(limit), null, initialStackSize);
+			if (limit != null && !limit.charge(interp, JSqMemoryMeter.measure(interp)))
+				throw new JSquirrelException("A new VM doesn't fit in a memory limit of " + limit.getLimit() + " bytes.");
+			return interp.m_vm;
+		}
+		if (!NATIVE_AVAILABLE)
+			throw new JSquirrelException("Neither the JSquirrel JNI library nor libsquirrel is available.");
+		long handle = NATIVE.sq_open(initialStackSize);
 		if (handle == 0)
 			throw new JSquirrelException("Could not create a new Squirrel VM.");
-		return new JSqVM(handle);
+		return new JSqVM(handle, limit);
 	}
 	
-	private static native long sq_open_native(int initialStackSize);
+	static native long sq_open_native(int initialStackSize);
 	
 	/**
 	 * Creates a new VM friend of the one passed and pushes it to the stack as a "thread" object.
@@ -108,23 +164,41 @@ public class Squirrel {
 	 * @throws JSquirrelException
 	 */
 	public static JSqVM sq_newthread(JSqVM friend, int initialStackSize) throws JSquirrelException {
-		long handle = sq_newthread_native(friend.m_nativeHandle, initialStackSize);
+		friend.checkOwner();
+		if (friend.m_interp != null)
+			return friend.m_interp.newThread(initialStackSize).m_vm;
+		long handle = NATIVE.sq_newthread(friend.m_nativeHandle, initialStackSize);
 		if (handle == 0)
 			throw new JSquirrelException("Could not create a new thread.");
-		return new JSqVM(handle);
+		JSqVM thread = new JSqVM(handle, friend);
+		thread.m_debugInfo = friend.m_debugInfo;
+		return thread;
 	}
 	
-	private static native long sq_newthread_native(long v, int initialStackSize);
+	static native long sq_newthread_native(long v, int initialStackSize);
 	
 	/**
 	 * Releases the Squirrel VM and all related friend VMs.
 	 * @param v The Squirrel VM to close.
 	 */
 	public static void sq_close(JSqVM v) {
-		sq_close_native(v.m_nativeHandle);
+		v.checkOwner();
+		// The budgets of native VMs are looked up by handle, a VM opened later could get the same one
+		JSqBudget budget = v.m_owner.m_budget;
+		if (budget != null)
+			budget.remove();
+		if (v.m_interp != null) {
+			v.m_interp.close();
+			v.m_hostArena.close();
+			return;
+		}
+		v.m_handles.releaseAll(v.m_nativeHandle);
+		NATIVE.sq_close(v.m_nativeHandle);
+		JSqUpcall.release(v.m_owner);
+		v.m_hostArena.close();
 	}
 	
-	private static native void sq_close_native(long v);
+	static native void sq_close_native(long v);
 	
 	/**
 	 * Suspends the execution of the target Squirrel VM.
@@ -134,10 +208,13 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_suspendvm(JSqVM v) {
-		return new JSqResult(sq_suspendvm_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.suspendVM());
+		return new JSqResult(NATIVE.sq_suspendvm(v.m_nativeHandle));
 	}
 	
-	private static native int sq_suspendvm_native(long v);
+	static native int sq_suspendvm_native(long v);
 	
 	/**
 	 * Wake up the execution of the previously suspended Squirrel VM.
@@ -160,17 +237,21 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_wakeupvm(JSqVM v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError) {
-		return new JSqResult(sq_wakeupvm_native(v.m_nativeHandle, resumedRet, retVal, raiseError, throwError));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.wakeupVM(resumedRet, retVal, raiseError, throwError));
+		return new JSqResult(NATIVE.sq_wakeupvm(v.m_nativeHandle, resumedRet, retVal, raiseError, throwError));
 	}
 	
-	private static native int sq_wakeupvm_native(long v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError);
+	static native int sq_wakeupvm_native(long v, boolean resumedRet, boolean retVal, boolean raiseError, boolean throwError);
 	
 	/**
 	 * @param v The Squirrel VM in question.
 	 * @return The execution state of the given Squirrel VM.
 	 */
 	public static JSqVMState sq_getvmstate(JSqVM v) {
-		int res = sq_getvmstate_native(v.m_nativeHandle);
+		v.checkOwner();
+		int res = v.m_interp != null ? v.m_interp.getVMState() : NATIVE.sq_getvmstate(v.m_nativeHandle);
 		switch (res) {
 			case SQ_VMSTATE_IDLE:
 				return JSqVMState.Idle;
@@ -182,16 +263,18 @@ public class Squirrel {
 		}
 	}
 	
-	private static native int sq_getvmstate_native(long v);
+	static native int sq_getvmstate_native(long v);
 	
 	/**
 	 * @return The version number of the Squirrel VM.
 	 */
 	public static int sq_getversion() {
-		return sq_getversion_native();
+		if (!NATIVE_AVAILABLE)
+			return JSqInterpreter.VERSION_NUMBER;
+		return NATIVE.sq_getversion();
 	}
 	
-	public static native int sq_getversion_native();
+	static native int sq_getversion_native();
 	
 	// TODO Compiler
 	
@@ -209,16 +292,37 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_compilebuffer(JSqVM v, String source, String sourceName, boolean raiseError) {
-		return new JSqResult(sq_compilebuffer_native(v.m_nativeHandle, source, sourceName, raiseError));
+		v.checkOwner();
+		JSqScriptCache cache = s_scriptCache;
+		if (cache != null)
+			return cache.compile(v, source, sourceName, raiseError);
+		return compileBuffer(v, source, sourceName, raiseError);
+	}
+	
+	/**
+	 * {@link #sq_compilebuffer(JSqVM, String, String, boolean)} without going through the script cache.
+	 */
+	static JSqResult compileBuffer(JSqVM v, String source, String sourceName, boolean raiseError) {
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.compileBuffer(source, sourceName, raiseError));
+		return new JSqResult(NATIVE.sq_compilebuffer(v.m_nativeHandle, source, sourceName, raiseError));
 	}
 	
-	private static native int sq_compilebuffer_native(long v, String source, String sourceName, boolean raiseError);
+	static native int sq_compilebuffer_native(long v, String source, String sourceName, boolean raiseError);
 	
 	public static void sq_enabledebuginfo(JSqVM v, boolean enable) {
-		sq_enabledebuginfo_native(v.m_nativeHandle, enable);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.m_ss.m_debugInfo = enable;
+			return;
+		}
+		v.m_debugInfo = enable;
+		NATIVE.sq_enabledebuginfo(v.m_nativeHandle, enable);
 	}
 	
-	private static native void sq_enabledebuginfo_native(long v, boolean enable);
+	static native void sq_enabledebuginfo_native(long v, boolean enable);
+	
+	static native void sq_setnativedebughook_native(long v, boolean enable); // Installs a native debug hook calling JSqBudget.hook(v) for every event, or removes it
 	
 	/**
 	 * Enable/disable the error callback notification of handled exceptions.
@@ -226,10 +330,31 @@ public class Squirrel {
 	 * @param enable
 	 */
 	public static void sq_notifyallexceptions(JSqVM v, boolean enable) {
-		sq_notifyallexceptions_native(v.m_nativeHandle, enable);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.m_ss.m_notifyAllExceptions = enable;
+			return;
+		}
+		NATIVE.sq_notifyallexceptions(v.m_nativeHandle, enable);
 	}
 	
-	private static native void sq_notifyallexceptions_native(long v, boolean enable);
+	static native void sq_notifyallexceptions_native(long v, boolean enable);
+	
+	/**
+	 * Sets the function called for compile errors when {@link #sq_compilebuffer(JSqVM, String, String, boolean)}
+	 * is called with raiseError set. Without one compile errors only become the last error of the VM.
+	 * <br><br>
+	 * Native VMs report compile errors through the handler installed by the JSquirrel library,
+	 * so this is only available on the Java backend.
+	 * @param v The target Squirrel VM.
+	 * @param f The handler, or null to remove it.
+	 */
+	public static void sq_setcompilererrorhandler(JSqVM v, JSqCompilerErrorHandler f) {
+		v.checkOwner();
+		if (v.m_interp == null)
+			throw new UnsupportedOperationException("Native VMs report compile errors through the JSquirrel library.");
+		v.m_interp.m_ss.m_compilerErrorHandler = f;
+	}
 	
 	// TODO Stack Operations
 	
@@ -239,10 +364,15 @@ public class Squirrel {
 	 * @param idx
 	 */
 	public static void sq_push(JSqVM v, int idx) {
-		sq_push_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pushCopy(v.m_interp.stackIndex(idx));
+			return;
+		}
+		NATIVE.sq_push(v.m_nativeHandle, idx);
 	}
 	
-	private static native void sq_push_native(long v, int idx);
+	static native void sq_push_native(long v, int idx);
 	
 	/**
 	 * Pops n elements form the stack.
@@ -250,20 +380,30 @@ public class Squirrel {
 	 * @param numElementsToPop n elements to pop.
 	 */
 	public static void sq_pop(JSqVM v, int numElementsToPop) {
-		sq_pop_native(v.m_nativeHandle, numElementsToPop);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pop(numElementsToPop);
+			return;
+		}
+		NATIVE.sq_pop(v.m_nativeHandle, numElementsToPop);
 	}
 	
-	private static native void sq_pop_native(long v, int numElementsToPop);
+	static native void sq_pop_native(long v, int numElementsToPop);
 	
 	/**
 	 * Pops one object from the top of the stack.
 	 * @param v The target Squirrel VM.
 	 */
 	public static void sq_poptop(JSqVM v) {
-		sq_poptop_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pop(1);
+			return;
+		}
+		NATIVE.sq_poptop(v.m_nativeHandle);
 	}
 	
-	private static native void sq_poptop_native(long v);
+	static native void sq_poptop_native(long v);
 	
 	/**
 	 * Removes the element at {@code idx} in the stack.
@@ -271,20 +411,28 @@ public class Squirrel {
 	 * @param idx
 	 */
 	public static void sq_remove(JSqVM v, int idx) {
-		sq_remove_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.remove(idx);
+			return;
+		}
+		NATIVE.sq_remove(v.m_nativeHandle, idx);
 	}
 	
-	private static native void sq_remove_native(long v, int idx);
+	static native void sq_remove_native(long v, int idx);
 	
 	/**
 	 * @param v The target Squirrel VM.
 	 * @return The index of the top of the stack.
 	 */
 	public static int sq_gettop(JSqVM v) {
-		return sq_gettop_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getTop();
+		return NATIVE.sq_gettop(v.m_nativeHandle);
 	}
 	
-	private static native int sq_gettop_native(long v);
+	static native int sq_gettop_native(long v);
 	
 	/**
 	 * Resize the stack.
@@ -293,10 +441,15 @@ public class Squirrel {
 	 * @param newtop The new top index.
 	 */
 	public static void sq_settop(JSqVM v, int newtop) {
-		sq_settop_native(v.m_nativeHandle, newtop);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.setTop(newtop);
+			return;
+		}
+		NATIVE.sq_settop(v.m_nativeHandle, newtop);
 	}
 	
-	private static native void sq_settop_native(long v, int newtop);
+	static native void sq_settop_native(long v, int newtop);
 	
 	/**
 	 * Ensure that the stack space left is at least of specified size.
@@ -309,10 +462,13 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_reservestack(JSqVM v, int nSize) {
-		return new JSqResult(sq_reservestack_native(v.m_nativeHandle, nSize));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.reserveStack(nSize));
+		return new JSqResult(NATIVE.sq_reservestack(v.m_nativeHandle, nSize));
 	}
 	
-	private static native int sq_reservestack_native(long v, int nSize);
+	static native int sq_reservestack_native(long v, int nSize);
 
 	/**
 	 * Compares two objects from the stack.
@@ -323,10 +479,13 @@ public class Squirrel {
 	 * @return The result of the comparing.
 	 */
 	public static int sq_cmp(JSqVM v) {
-		return sq_cmp_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.cmp();
+		return NATIVE.sq_cmp(v.m_nativeHandle);
 	}
 	
-	private static native int sq_cmp_native(long v);
+	static native int sq_cmp_native(long v);
 	
 	/**
 	 * Pushes the object at the position {@code idx} in the source VM stack to the destination VM stack.
@@ -335,42 +494,110 @@ public class Squirrel {
 	 * @param idx The index in the source stack of the value that should be moved.
 	 */
 	public static void sq_move(JSqVM dest, JSqVM src, int idx) {
-		sq_move_native(dest.m_nativeHandle, src.m_nativeHandle, idx);
+		dest.checkOwner();
+		src.checkOwner();
+		if (dest.m_interp != null || src.m_interp != null) {
+			if (dest.m_interp == null || src.m_interp == null)
+				throw new IllegalArgumentException("Cannot move values between VMs of different backends.");
+			dest.m_interp.move(src.m_interp, idx);
+			return;
+		}
+		NATIVE.sq_move(dest.m_nativeHandle, src.m_nativeHandle, idx);
 	}
 	
-	private static native void sq_move_native(long v1, long v2, int idx);
+	static native void sq_move_native(long v1, long v2, int idx);
 	
 	// TODO Object Creation Handling
 	
 	public static JSqUserPointer sq_newuserdata(JSqVM v, long size) {
-		return new JSqUserPointer(sq_newuserdata_native(v.m_nativeHandle, size));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqUserPointer(v.m_interp.newUserData((int) size));
+		return new JSqUserPointer(NATIVE.sq_newuserdata(v.m_nativeHandle, size));
 	}
 	
-	private static native long sq_newuserdata_native(long v, long size);
+	static native long sq_newuserdata_native(long v, long size);
 	
 	public static void sq_newtable(JSqVM v) {
-		sq_newtable_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.newTable(0);
+			return;
+		}
+		NATIVE.sq_newtable(v.m_nativeHandle);
 	}
 	
-	private static native void sq_newtable_native(long v);
+	static native void sq_newtable_native(long v);
 	
 	public static void sq_newtableex(JSqVM v, int initialCapacity) {
-		sq_newtableex_native(v.m_nativeHandle, initialCapacity);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.newTable(initialCapacity);
+			return;
+		}
+		NATIVE.sq_newtableex(v.m_nativeHandle, initialCapacity);
 	}
 	
-	private static native void sq_newtableex_native(long v, int initialCapacity);
+	static native void sq_newtableex_native(long v, int initialCapacity);
 	
 	public static void sq_newarray(JSqVM v, int size) {
-		sq_newarray_native(v.m_nativeHandle, size);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.newArray(size);
+			return;
+		}
+		NATIVE.sq_newarray(v.m_nativeHandle, size);
+	}
+	
+	static native void sq_newarray_native(long v, int size);
+	
+	/**
+	 * Pops {@code nfreevars} values and pushes a native closure calling {@code f} with them as its free variables.
+	 * <br><br>
+	 * The closure stays valid for as long as the VM is open, creating more closures for the same function costs nothing extra.
+	 * @param v The target Squirrel VM.
+	 * @param f The Java function to call.
+	 * @param nfreevars The number of free variables, they follow the arguments on the stack of {@code f}.
+	 */
+	public static void sq_newclosure(JSqVM v, JSqNativeFunction f, int nfreevars) {
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.newNativeClosure(new JSqUpcall.JavaClosure(f), nfreevars);
+			return;
+		}
+		NATIVE.sq_pushinteger(v.m_nativeHandle, JSqUpcall.register(f, v));
+		NATIVE.sq_newclosure(v.m_nativeHandle, nfreevars + 1);
 	}
 	
-	private static native void sq_newarray_native(long v, int size);
+	static native void sq_newclosure_native(long v, int nfreevars); // The last free variable is the JSqUpcall id, the SQFUNCTION pops it and returns JSqUpcall.call(v, id)
+	
+	/**
+	 * Pushes a native closure calling {@code target} with its arguments read straight from the stack.
+	 * <br><br>
+	 * Parameters of type int, long, float, double, boolean and String each take one script argument,
+	 * a JSqVM parameter receives the calling VM. The result is pushed unless the handle returns void or a null String.
+	 * The argument count and types are set up with sq_setparamscheck here, calls with the wrong arguments fail before reaching Java.
+	 * @param v The target Squirrel VM.
+	 * @param target The method to call.
+	 * @return The result of sq_setparamscheck on the new closure.
+	 * @throws IllegalArgumentException If a parameter or the return type of {@code target} can't be passed through the stack.
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_newclosure(JSqVM v, MethodHandle target) {
+		JSqUpcall.Adapter f = JSqUpcall.adapt(target);
+		sq_newclosure(v, f, 0);
+		return sq_setparamscheck(v, f.m_nparams, f.m_typeMask);
+	}
 	
 	public static JSqResult sq_setparamscheck(JSqVM v, int nParamsCheck, String typeMask) {
-		return new JSqResult(sq_setparamscheck_native(v.m_nativeHandle, nParamsCheck, typeMask));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setParamsCheck(nParamsCheck, typeMask));
+		return new JSqResult(NATIVE.sq_setparamscheck(v.m_nativeHandle, nParamsCheck, typeMask));
 	}
 	
-	private static native int sq_setparamscheck_native(long v, int nParamsCheck, String typeMask); 
+	static native int sq_setparamscheck_native(long v, int nParamsCheck, String typeMask);
 	
 	/**
 	 * Pops an object from the stack (must be a table, instance or class), clones the closure at position {@code idx}
@@ -383,114 +610,247 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_bindenv(JSqVM v, int idx) {
-		return new JSqResult(sq_bindenv_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.bindEnv(idx));
+		return new JSqResult(NATIVE.sq_bindenv(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_bindenv_native(long v, int idx);
+	static native int sq_bindenv_native(long v, int idx);
 	
 	public static void sq_pushstring(JSqVM v, String s) {
-		sq_pushstring_native(v.m_nativeHandle, s, s.length());
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pushString(s);
+			return;
+		}
+		NATIVE.sq_pushstring(v.m_nativeHandle, s, s.length());
 	}
 	
-	private static native void sq_pushstring_native(long v, String s, int len);
+	static native void sq_pushstring_native(long v, String s, int len);
+	
+	/**
+	 * Pushes a string given as UTF-8 bytes, which native VMs take as is instead of transcoding a {@link String}.
+	 * <br><br>
+	 * Direct buffers are read in place without copying them first. On the {@link JSqBackend#Java Java} backend the
+	 * bytes are decoded, as strings are stored as {@link String}s there.
+	 * @param v The target Squirrel VM.
+	 * @param utf8 The buffer holding the string from its position to its limit. Its position and limit are not changed.
+	 */
+	public static void sq_pushstring(JSqVM v, ByteBuffer utf8) {
+		v.checkOwner();
+		ByteBuffer slice = utf8.slice();
+		if (v.m_interp != null) {
+			v.m_interp.pushString(StandardCharsets.UTF_8.decode(slice).toString());
+			return;
+		}
+		if (!slice.isDirect()) {
+			ByteBuffer direct = ByteBuffer.allocateDirect(slice.remaining());
+			direct.put(slice);
+			slice = direct;
+			((Buffer) slice).flip();
+		}
+		NATIVE.sq_pushstring(v.m_nativeHandle, slice, slice.remaining());
+	}
+	
+	static native void sq_pushstringbuffer_native(long v, ByteBuffer utf8, int len); // Pushes len bytes from the start of the direct buffer
 	
 	public static void sq_pushfloat(JSqVM v, float f) {
-		sq_pushfloat_native(v.m_nativeHandle, f);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_FLOAT, Float.floatToRawIntBits(f), null);
+			return;
+		}
+		NATIVE.sq_pushfloat(v.m_nativeHandle, f);
 	}
 	
-	private static native void sq_pushfloat_native(long v, float f);
+	static native void sq_pushfloat_native(long v, float f);
 	
 	public static void sq_pushinteger(JSqVM v, int i) {
-		sq_pushinteger_native(v.m_nativeHandle, i);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_INTEGER, i, null);
+			return;
+		}
+		NATIVE.sq_pushinteger(v.m_nativeHandle, i);
 	}
 	
-	private static native void sq_pushinteger_native(long v, int i);
+	static native void sq_pushinteger_native(long v, int i);
 	
 	public static void sq_pushbool(JSqVM v, boolean b) {
-		sq_pushbool_native(v.m_nativeHandle, b);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_BOOL, b ? 1 : 0, null);
+			return;
+		}
+		NATIVE.sq_pushbool(v.m_nativeHandle, b);
 	}
 	
-	private static native void sq_pushbool_native(long v, boolean b);
+	static native void sq_pushbool_native(long v, boolean b);
 	
 	public static void sq_pushserpointer(JSqVM v, JSqUserPointer up) {
-		sq_pushserpointer_native(v.m_nativeHandle, up.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_USERPOINTER, 0, up.m_nativeHandle);
+			return;
+		}
+		NATIVE.sq_pushserpointer(v.m_nativeHandle, up.m_nativeHandle);
 	}
 	
-	private static native void sq_pushserpointer_native(long v, long up);
+	static native void sq_pushserpointer_native(long v, long up);
 	
 	public static void sq_pushnull(JSqVM v) {
-		sq_pushnull_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_NULL, 0, null);
+			return;
+		}
+		NATIVE.sq_pushnull(v.m_nativeHandle);
 	}
 	
-	private static native void sq_pushnull_native(long v);
+	static native void sq_pushnull_native(long v);
 	
 	public static JSqObjectType sq_gettype(JSqVM v, int idx) {
-		int res = sq_gettype_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return JSqObjectType.getFromValue(v.m_interp.type(idx));
+		int res = NATIVE.sq_gettype(v.m_nativeHandle, idx);
 		return JSqObjectType.getFromValue(res);
 	}
 	
-	private static native int sq_gettype_native(long v, int idx); // Returns int because SQObjectType stores ints
+	static native int sq_gettype_native(long v, int idx); // Returns int because SQObjectType stores ints
 	
 	public static JSqResult sq_typeof(JSqVM v, int idx) {
-		return new JSqResult(sq_typeof_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.typeOfIdx(idx));
+		return new JSqResult(NATIVE.sq_typeof(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_typeof_native(long v, int idx);
+	static native int sq_typeof_native(long v, int idx);
 	
 	public static int sq_getsize(JSqVM v, int idx) {
-		return sq_getsize_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getSize(idx);
+		return NATIVE.sq_getsize(v.m_nativeHandle, idx);
 	}
 	
-	private static native int sq_getsize_native(long v, int idx);
+	static native int sq_getsize_native(long v, int idx);
 	
 	public static long sq_gethash(JSqVM v, int idx) {
-		return sq_gethash_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getHash(idx);
+		return NATIVE.sq_gethash(v.m_nativeHandle, idx);
 	}
 	
-	private static native long sq_gethash_native(long v, int idx);
+	static native long sq_gethash_native(long v, int idx);
 	
 	public static JSqResult sq_getbase(JSqVM v, int idx) {
-		return new JSqResult(sq_getbase_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getBase(idx));
+		return new JSqResult(NATIVE.sq_getbase(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getbase_native(long v, int idx);
+	static native int sq_getbase_native(long v, int idx);
 	
 	public static boolean sq_instanceof(JSqVM v) {
-		return sq_instanceof_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.instanceOf();
+		return NATIVE.sq_instanceof(v.m_nativeHandle);
 	}
 	
-	private static native boolean sq_instanceof_native(long v);
+	static native boolean sq_instanceof_native(long v);
 	
 	public static JSqResult sq_tostring(JSqVM v, int idx) {
-		int res = sq_tostring_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.toStringIdx(idx));
+		int res = NATIVE.sq_tostring(v.m_nativeHandle, idx);
 		return new JSqResult(res);
 	}
 	
-	private static native int sq_tostring_native(long v, int idx);
+	static native int sq_tostring_native(long v, int idx);
 	
 	public static boolean sq_tobool(JSqVM v, int idx) {
-		return sq_tobool_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.toBool(idx);
+		return NATIVE.sq_tobool(v.m_nativeHandle, idx);
 	}
 	
-	private static native boolean sq_tobool_native(long v, int idx);
+	static native boolean sq_tobool_native(long v, int idx);
 	
 	public static String sq_getstring(JSqVM v, int idx) {
-		return sq_getstring_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getString(idx);
+		return NATIVE.sq_getstring(v.m_nativeHandle, idx);
+	}
+	
+	static native String sq_getstring_native(long v, int idx);
+	
+	/**
+	 * Copies the string at {@code idx} into {@code dst} as UTF-8, without creating a {@link String} on native VMs.
+	 * Nothing is copied if the string doesn't fit in the remaining space of {@code dst}, so the return value can be
+	 * used to size the buffer for another attempt.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @param dst The buffer to copy the string to, its position is advanced past the copied bytes.
+	 * @return The length of the string in bytes, or -1 if the value at {@code idx} isn't a string.
+	 */
+	public static int sq_getstring(JSqVM v, int idx, ByteBuffer dst) {
+		ByteBuffer view = sq_getstringview(v, idx);
+		if (view == null)
+			return -1;
+		int len = view.remaining();
+		if (len <= dst.remaining())
+			dst.put(view);
+		return len;
+	}
+	
+	/**
+	 * Borrows the string at {@code idx} as a read-only buffer of UTF-8 bytes.
+	 * <br><br>
+	 * On native VMs the buffer is a direct view of the string owned by the VM and nothing is copied. It is only valid
+	 * while the string is alive and the VM isn't otherwise changed: pop or replace the value, run any code, or collect
+	 * garbage and the buffer may point to freed memory. Copy the bytes out before doing any of that.
+	 * On the {@link JSqBackend#Java Java} backend the buffer holds a freshly encoded copy and stays valid.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @return The bytes of the string, or null if the value at {@code idx} isn't a string.
+	 */
+	public static ByteBuffer sq_getstringview(JSqVM v, int idx) {
+		v.checkOwner();
+		if (v.m_interp != null) {
+			String s = v.m_interp.getString(idx);
+			return s == null ? null : ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		}
+		return NATIVE.sq_getstringview(v.m_nativeHandle, idx);
 	}
 	
-	private static native String sq_getstring_native(long v, int idx);
+	static native ByteBuffer sq_getstringview_native(long v, int idx); // A direct buffer over the characters of the string, null if it isn't one
 	
 	public static int sq_getinteger(JSqVM v, int idx) {
-		return sq_getinteger_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getInteger(idx);
+		return NATIVE.sq_getinteger(v.m_nativeHandle, idx);
 	}
 	
-	private static native int sq_getinteger_native(long v, int idx);
+	static native int sq_getinteger_native(long v, int idx);
 	
 	public static float sq_getfloat(JSqVM v, int idx) {
-		return sq_getfloat_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getFloat(idx);
+		return NATIVE.sq_getfloat(v.m_nativeHandle, idx);
 	}
 	
-	private static native float sq_getfloat_native(long v, int idx);
+	static native float sq_getfloat_native(long v, int idx);
 	
 	/**
 	 * Gets the value of the bool at position {@code idx} in the stack.
@@ -499,99 +859,152 @@ public class Squirrel {
 	 * @return The retrieved bool.
 	 */
 	public static boolean sq_getbool(JSqVM v, int idx) {
-		return sq_getbool_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getBool(idx);
+		return NATIVE.sq_getbool(v.m_nativeHandle, idx);
 	}
 	
-	private static native boolean sq_getbool_native(long v, int idx);
+	static native boolean sq_getbool_native(long v, int idx);
 	
 	public static JSqVM sq_getthread(JSqVM v, int idx) {
-		return new JSqVM(sq_getthread_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null) {
+			JSqInterpreter thread = v.m_interp.getThread(idx);
+			return thread != null ? thread.m_vm : null;
+		}
+		return new JSqVM(NATIVE.sq_getthread(v.m_nativeHandle, idx), v);
 	}
 	
-	private static native long sq_getthread_native(long v, int idx);
+	static native long sq_getthread_native(long v, int idx);
 	
 	public static JSqUserPointer sq_getuserpointer(JSqVM v, int idx) {
-		return new JSqUserPointer(sq_getuserpointer_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqUserPointer(v.m_interp.getUserPointer(idx));
+		return new JSqUserPointer(NATIVE.sq_getuserpointer(v.m_nativeHandle, idx));
 	}
 	
-	private static native long sq_getuserpointer_native(long v, int idx);
+	static native long sq_getuserpointer_native(long v, int idx);
 	
 	public static JSqUserData sq_getuserdata(JSqVM v, int idx) {
-		long[] res = sq_getuserdata_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			JSqUserDataBlock ud = v.m_interp.getUserData(idx);
+			if (ud == null)
+				return new JSqUserData(new JSqUserPointer(0), new JSqUserPointer(0));
+			return new JSqUserData(new JSqUserPointer(ud.m_pointer), new JSqUserPointer(ud.m_typeTag));
+		}
+		long[] res = NATIVE.sq_getuserdata(v.m_nativeHandle, idx);
 		return new JSqUserData(new JSqUserPointer(res[0]), new JSqUserPointer(res[1]));
 	}
 	
-	private static native long[] sq_getuserdata_native(long v, int idx);
+	static native long[] sq_getuserdata_native(long v, int idx);
 	
 	public static JSqResult sq_settypetag(JSqVM v, int idx) {
-		return new JSqResult(sq_settypetag_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setTypeTag(idx, 0));
+		return new JSqResult(NATIVE.sq_settypetag(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_settypetag_native(long v, int idx);
+	static native int sq_settypetag_native(long v, int idx);
 	
 	public static JSqUserPointer sq_gettypetag(JSqVM v, int idx) {
-		return new JSqUserPointer(sq_gettypetag_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqUserPointer(v.m_interp.getTypeTag(idx));
+		return new JSqUserPointer(NATIVE.sq_gettypetag(v.m_nativeHandle, idx));
 	}
 	
-	private static native long sq_gettypetag_native(long v, int idx);
+	static native long sq_gettypetag_native(long v, int idx);
 	
 	// releasehook, scratchpad
 	
 	// TODO DOES NOT WORK!
 	public static JSqFunctionInfo sq_getfunctioninfo(JSqVM v, int idx) {
+		v.checkOwner();
+		if (v.m_interp != null) {
+			JSqFunctionInfo res = new JSqFunctionInfo();
+			v.m_interp.getFunctionInfo(idx, res);
+			return res;
+		}
 		JSqFunctionInfo res = new JSqFunctionInfo();
-		long upid = sq_getfunctioninfo_native(v.m_nativeHandle, idx, res);
+		long upid = NATIVE.sq_getfunctioninfo(v.m_nativeHandle, idx, res);
 		res.m_funcid = new JSqUserPointer(upid);
 		return res;
 	}
 	
-	private static native long sq_getfunctioninfo_native(long v, int idx, JSqFunctionInfo info);
+	static native long sq_getfunctioninfo_native(long v, int idx, JSqFunctionInfo info);
 
 	// TODO PROBABLY DOES NOT WORK!
 	public static JSqClosureInfo sq_getclosureinfo(JSqVM v, int idx) {
-		int[] res = sq_getclosureinfo_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			int[] res = v.m_interp.getClosureInfo(idx);
+			return new JSqClosureInfo(res[0], res[1]);
+		}
+		int[] res = NATIVE.sq_getclosureinfo(v.m_nativeHandle, idx);
 		return new JSqClosureInfo(res[0], res[1]);
 	}
 	
-	private static native int[] sq_getclosureinfo_native(long v, int idx);
+	static native int[] sq_getclosureinfo_native(long v, int idx);
 
 	// TODO PROBABLY DOES NOT WORK!
 	public static JSqResult sq_getclosurename(JSqVM v, int idx) {
-		return new JSqResult(sq_getclosurename_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getClosureName(idx));
+		return new JSqResult(NATIVE.sq_getclosurename(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getclosurename_native(long v, int idx);
+	static native int sq_getclosurename_native(long v, int idx);
 
 	// TODO PROBABLY DOES NOT WORK!
 	public static JSqResult sq_setnativeclosurename(JSqVM v, int idx, String name) {
-		return new JSqResult(sq_setnativeclosurename_native(v.m_nativeHandle, idx, name));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setNativeClosureName(idx, name));
+		return new JSqResult(NATIVE.sq_setnativeclosurename(v.m_nativeHandle, idx, name));
 	}
 	
-	private static native int sq_setnativeclosurename_native(long v, int idx, String name);
+	static native int sq_setnativeclosurename_native(long v, int idx, String name);
 	
 	public static JSqResult sq_setinstanceup(JSqVM v, int idx, JSqUserPointer up) {
-		return new JSqResult(sq_setinstanceup_native(v.m_nativeHandle, idx, up.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setInstanceUp(idx, up.m_nativeHandle));
+		return new JSqResult(NATIVE.sq_setinstanceup(v.m_nativeHandle, idx, up.m_nativeHandle));
 	}
 	
-	private static native int sq_setinstanceup_native(long v, int idx, long up);
+	static native int sq_setinstanceup_native(long v, int idx, long up);
 	
 	public static JSqUserPointer sq_getinstanceup(JSqVM v, int idx, JSqUserPointer typetag) {
-		return new JSqUserPointer(sq_getinstanceup_native(v.m_nativeHandle, idx, typetag.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqUserPointer(v.m_interp.getInstanceUp(idx, typetag.m_nativeHandle));
+		return new JSqUserPointer(NATIVE.sq_getinstanceup(v.m_nativeHandle, idx, typetag.m_nativeHandle));
 	}
 	
-	private static native long sq_getinstanceup_native(long v, int idx, long typetag);
+	static native long sq_getinstanceup_native(long v, int idx, long typetag);
 	
 	public static JSqResult sq_setclassudsize(JSqVM v, int idx, int udSize) {
-		return new JSqResult(sq_setclassudsize_native(v.m_nativeHandle, idx, udSize));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setClassUdSize(idx, udSize));
+		return new JSqResult(NATIVE.sq_setclassudsize(v.m_nativeHandle, idx, udSize));
 	}
 	
-	private static native int sq_setclassudsize_native(long vmHaldne, int idx, int udSize);
+	static native int sq_setclassudsize_native(long vmHaldne, int idx, int udSize);
 	
 	public static JSqResult sq_newclass(JSqVM v, boolean hasBase) {
-		return new JSqResult(sq_newclass_native(v.m_nativeHandle, hasBase));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.newClass(hasBase));
+		return new JSqResult(NATIVE.sq_newclass(v.m_nativeHandle, hasBase));
 	}
 	
-	private static native int sq_newclass_native(long v, boolean hasBase);
+	static native int sq_newclass_native(long v, boolean hasBase);
 	
 	/**
 	 * Creates an instance of the class at position {@code idx} in the stack.
@@ -603,46 +1016,71 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_createinstance(JSqVM v, int idx) {
-		return new JSqResult(sq_createinstance_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.createInstance(idx));
+		return new JSqResult(NATIVE.sq_createinstance(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_createinstance_native(long v, int idx);
+	static native int sq_createinstance_native(long v, int idx);
 	
 	public static JSqResult sq_setattributes(JSqVM v, int idx) {
-		return new JSqResult(sq_setattributes_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setAttributes(idx));
+		return new JSqResult(NATIVE.sq_setattributes(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_setattributes_native(long v, int idx);
+	static native int sq_setattributes_native(long v, int idx);
 	
 	public static JSqResult sq_getattributes(JSqVM v, int idx) {
-		return new JSqResult(sq_getattributes_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getAttributes(idx));
+		return new JSqResult(NATIVE.sq_getattributes(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getattributes_native(long v, int idx);
+	static native int sq_getattributes_native(long v, int idx);
 	
 	public static JSqResult sq_getclass(JSqVM v, int idx) {
-		return new JSqResult(sq_getclass_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getClassIdx(idx));
+		return new JSqResult(NATIVE.sq_getclass(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getclass_native(long v, int idx);
+	static native int sq_getclass_native(long v, int idx);
+	
+	static native long sq_getclassid_native(long v, int idx); // The address of the class at idx or of the class of the instance at idx, 0 for other values
 	
 	public static void sq_weakref(JSqVM v, int idx) {
-		sq_weakref_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.weakRef(idx);
+			return;
+		}
+		NATIVE.sq_weakref(v.m_nativeHandle, idx);
 	}
 	
-	private static native void sq_weakref_native(long v, int idx);
+	static native void sq_weakref_native(long v, int idx);
 	
 	public static JSqResult sq_getdefaultdelegate(JSqVM v, JSqObjectType t) {
-		return new JSqResult(sq_getdefaultdelegate_native(v.m_nativeHandle, t.tag));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getDefaultDelegate(t.tag));
+		return new JSqResult(NATIVE.sq_getdefaultdelegate(v.m_nativeHandle, t.tag));
 	}
 	
-	private static native int sq_getdefaultdelegate_native(long v, int tag);
+	static native int sq_getdefaultdelegate_native(long v, int tag);
 	
 	public static JSqMemberHandle sq_getmemberhandle(JSqVM v, int idx) {
-		return new JSqMemberHandle(sq_getmemberhandle_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqMemberHandle(v.m_interp.getMemberHandle(idx));
+		return new JSqMemberHandle(NATIVE.sq_getmemberhandle(v.m_nativeHandle, idx));
 	}
 	
-	private static native long sq_getmemberhandle_native(long v, int idx);
+	static native long sq_getmemberhandle_native(long v, int idx);
 	
 	/**
 	 * Pushes the value of a class or instance member using a member handle.
@@ -655,16 +1093,22 @@ public class Squirrel {
 	 * @see #sq_getmemberhandle(JSqVM, int)
 	 */
 	public static JSqResult sq_getbyhandle(JSqVM v, int idx, JSqMemberHandle memberHandle) {
-		return new JSqResult(sq_getbyhandle_native(v.m_nativeHandle, idx, memberHandle.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getByHandle(idx, memberHandle.m_nativeHandle));
+		return new JSqResult(NATIVE.sq_getbyhandle(v.m_nativeHandle, idx, memberHandle.m_nativeHandle));
 	}
 	
-	private static native int sq_getbyhandle_native(long v, int idx, long member);
+	static native int sq_getbyhandle_native(long v, int idx, long member);
 	
 	public static JSqResult sq_setbyhandle(JSqVM v, int idx, JSqMemberHandle memberHandle) {
-		return new JSqResult(sq_setbyhandle_native(v.m_nativeHandle, idx, memberHandle.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setByHandle(idx, memberHandle.m_nativeHandle));
+		return new JSqResult(NATIVE.sq_setbyhandle(v.m_nativeHandle, idx, memberHandle.m_nativeHandle));
 	}
 	
-	private static native int sq_setbyhandle_native(long v, int idx, long member);
+	static native int sq_setbyhandle_native(long v, int idx, long member);
 	
 	// TODO Object Manipulation
 
@@ -673,30 +1117,45 @@ public class Squirrel {
 	 * @param v The target Squirrel VM.
 	 */
 	public static void sq_pushroottable(JSqVM v) {
-		sq_pushroottable_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pushRoot();
+			return;
+		}
+		NATIVE.sq_pushroottable(v.m_nativeHandle);
 	}
 	
-	private static native void sq_pushroottable_native(long v);
+	static native void sq_pushroottable_native(long v);
 
 	/**
 	 * Pushes the current registry table in the stack.
 	 * @param v The target Squirrel VM.
 	 */
 	public static void sq_pushregistrytable(JSqVM v) {
-		sq_pushregistrytable_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_TABLE, 0, v.m_interp.m_ss.m_registry);
+			return;
+		}
+		NATIVE.sq_pushregistrytable(v.m_nativeHandle);
 	}
 	
-	private static native void sq_pushregistrytable_native(long v);
+	static native void sq_pushregistrytable_native(long v);
 	
 	/**
 	 * Pushes the current const table in the stack.
 	 * @param v The target Squirrel VM.
 	 */
 	public static void sq_pushconsttable(JSqVM v) {
-		sq_pushconsttable_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_TABLE, 0, v.m_interp.m_ss.m_consts);
+			return;
+		}
+		NATIVE.sq_pushconsttable(v.m_nativeHandle);
 	}
 	
-	private static native void sq_pushconsttable_native(long v);
+	static native void sq_pushconsttable_native(long v);
 	
 	/**
 	 * Pops a table from the stack and sets it as the root table.
@@ -706,10 +1165,13 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_setroottable(JSqVM v) {
-		return new JSqResult(sq_setroottable_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setRootTable());
+		return new JSqResult(NATIVE.sq_setroottable(v.m_nativeHandle));
 	}
 	
-	private static native int sq_setroottable_native(long v);
+	static native int sq_setroottable_native(long v);
 	
 	/**
 	 * Pops a table from the stack and sets it as a const table.
@@ -719,410 +1181,1036 @@ public class Squirrel {
 	 * @see #SQ_FAILED(JSqResult)
 	 */
 	public static JSqResult sq_setconsttable(JSqVM v) {
-		return new JSqResult(sq_setconsttable_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setConstTable());
+		return new JSqResult(NATIVE.sq_setconsttable(v.m_nativeHandle));
 	}
 	
-	private static native int sq_setconsttable_native(long v);
+	static native int sq_setconsttable_native(long v);
 	
 	public static JSqResult sq_newslot(JSqVM v, int idx, boolean bStatic) {
-		return new JSqResult(sq_newslot_native(v.m_nativeHandle, idx, bStatic));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.newSlotIdx(idx, bStatic));
+		return new JSqResult(NATIVE.sq_newslot(v.m_nativeHandle, idx, bStatic));
 	}
 	
-	private static native int sq_newslot_native(long v, int idx, boolean bStatic);
+	static native int sq_newslot_native(long v, int idx, boolean bStatic);
 	
 	public static JSqResult sq_deleteslot(JSqVM v, int idx, boolean pushVal) {
-		return new JSqResult(sq_deleteslot_native(v.m_nativeHandle, idx, pushVal));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.deleteSlotIdx(idx, pushVal));
+		return new JSqResult(NATIVE.sq_deleteslot(v.m_nativeHandle, idx, pushVal));
 	}
 	
-	private static native int sq_deleteslot_native(long v, int idx, boolean pushVal);
+	static native int sq_deleteslot_native(long v, int idx, boolean pushVal);
 	
 	public static JSqResult sq_set(JSqVM v, int idx) {
-		return new JSqResult(sq_set_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setIdx(idx));
+		return new JSqResult(NATIVE.sq_set(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_set_native(long v, int idx);
+	static native int sq_set_native(long v, int idx);
 	
 	public static JSqResult sq_get(JSqVM v, int idx) {
-		return new JSqResult(sq_get_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getIdx(idx));
+		return new JSqResult(NATIVE.sq_get(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_get_native(long v, int idx);
+	static native int sq_get_native(long v, int idx);
 	
 	public static JSqResult sq_rawset(JSqVM v, int idx) {
-		return new JSqResult(sq_rawset_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.rawSet(idx));
+		return new JSqResult(NATIVE.sq_rawset(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_rawset_native(long v, int idx);
+	static native int sq_rawset_native(long v, int idx);
 	
 	public static JSqResult sq_rawget(JSqVM v, int idx) {
-		return new JSqResult(sq_rawget_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.rawGet(idx));
+		return new JSqResult(NATIVE.sq_rawget(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_rawget_native(long v, int idx);
+	static native int sq_rawget_native(long v, int idx);
 	
 	public static JSqResult sq_rawdeleteslot(JSqVM v, int idx, boolean pushVal) {
-		return new JSqResult(sq_rawdeleteslot_native(v.m_nativeHandle, idx, pushVal));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.rawDeleteSlot(idx, pushVal));
+		return new JSqResult(NATIVE.sq_rawdeleteslot(v.m_nativeHandle, idx, pushVal));
 	}
 	
-	private static native int sq_rawdeleteslot_native(long v, int idx, boolean pushVal);
+	static native int sq_rawdeleteslot_native(long v, int idx, boolean pushVal);
 	
 	public static JSqResult sq_newmenber(JSqVM v, int idx, boolean bStatic) {
-		return new JSqResult(sq_newmember_native(v.m_nativeHandle, idx, bStatic));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.newMember(idx, bStatic, false));
+		return new JSqResult(NATIVE.sq_newmember(v.m_nativeHandle, idx, bStatic));
 	}
 	
-	private static native int sq_newmember_native(long v, int idx, boolean bStatic);
+	static native int sq_newmember_native(long v, int idx, boolean bStatic);
 	
 	public static JSqResult sq_rawnewmenber(JSqVM v, int idx, boolean bStatic) {
-		return new JSqResult(sq_rawnewmember_native(v.m_nativeHandle, idx, bStatic));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.newMember(idx, bStatic, true));
+		return new JSqResult(NATIVE.sq_rawnewmember(v.m_nativeHandle, idx, bStatic));
 	}
 	
-	private static native int sq_rawnewmember_native(long v, int idx, boolean bStatic);
+	static native int sq_rawnewmember_native(long v, int idx, boolean bStatic);
 	
 	public static JSqResult sq_arrayappend(JSqVM v, int idx) {
-		return new JSqResult(sq_arrayappend_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayAppend(idx));
+		return new JSqResult(NATIVE.sq_arrayappend(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_arrayappend_native(long v, int idx);
+	static native int sq_arrayappend_native(long v, int idx);
 	
 	public static JSqResult sq_arraypop(JSqVM v, int idx, boolean pushVal) {
-		return new JSqResult(sq_arraypop_native(v.m_nativeHandle, idx, pushVal));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayPop(idx, pushVal));
+		return new JSqResult(NATIVE.sq_arraypop(v.m_nativeHandle, idx, pushVal));
 	}
 	
-	private static native int sq_arraypop_native(long v, int idx, boolean pushVal);
+	static native int sq_arraypop_native(long v, int idx, boolean pushVal);
 	
 	public static JSqResult sq_arrayresize(JSqVM v, int idx, int newSize) {
-		return new JSqResult(sq_arrayresize_native(v.m_nativeHandle, idx, newSize));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayResize(idx, newSize));
+		return new JSqResult(NATIVE.sq_arrayresize(v.m_nativeHandle, idx, newSize));
 	}
 	
-	private static native int sq_arrayresize_native(long v, int idx, int newSize);
+	static native int sq_arrayresize_native(long v, int idx, int newSize);
 	
 	public static JSqResult sq_arrayreverse(JSqVM v, int idx) {
-		return new JSqResult(sq_arrayreverse_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayReverse(idx));
+		return new JSqResult(NATIVE.sq_arrayreverse(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_arrayreverse_native(long v, int idx);
+	static native int sq_arrayreverse_native(long v, int idx);
 	
 	public static JSqResult sq_arrayremove(JSqVM v, int idx, int itemIdx) {
-		return new JSqResult(sq_arrayremove_native(v.m_nativeHandle, idx, itemIdx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayRemove(idx, itemIdx));
+		return new JSqResult(NATIVE.sq_arrayremove(v.m_nativeHandle, idx, itemIdx));
 	}
 	
-	private static native int sq_arrayremove_native(long v, int idx, int itemIdx);
+	static native int sq_arrayremove_native(long v, int idx, int itemIdx);
 	
 	public static JSqResult sq_arrayinsert(JSqVM v, int idx, int destPos) {
-		return new JSqResult(sq_arrayinsert_native(v.m_nativeHandle, idx, destPos));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.arrayInsert(idx, destPos));
+		return new JSqResult(NATIVE.sq_arrayinsert(v.m_nativeHandle, idx, destPos));
 	}
 	
-	private static native int sq_arrayinsert_native(long v, int idx, int destPos);
+	static native int sq_arrayinsert_native(long v, int idx, int destPos);
 	
 	public static JSqResult sq_setdelegate(JSqVM v, int idx) {
-		return new JSqResult(sq_setdelegate_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setDelegate(idx));
+		return new JSqResult(NATIVE.sq_setdelegate(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_setdelegate_native(long v, int idx);
+	static native int sq_setdelegate_native(long v, int idx);
 	
 	public static JSqResult sq_getdelegate(JSqVM v, int idx) {
-		return new JSqResult(sq_getdelegate_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getDelegate(idx));
+		return new JSqResult(NATIVE.sq_getdelegate(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getdelegate_native(long v, int idx);
+	static native int sq_getdelegate_native(long v, int idx);
 	
 	public static JSqResult sq_clone(JSqVM v, int idx) {
-		return new JSqResult(sq_clone_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.cloneIdx(idx));
+		return new JSqResult(NATIVE.sq_clone(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_clone_native(long v, int idx);
+	static native int sq_clone_native(long v, int idx);
 	
 	public static JSqResult sq_setfreevariable(JSqVM v, int idx, long nVal) {
-		return new JSqResult(sq_setfreevariable_native(v.m_nativeHandle, idx, nVal));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.setFreeVariable(idx, (int) nVal));
+		return new JSqResult(NATIVE.sq_setfreevariable(v.m_nativeHandle, idx, nVal));
 	}
 	
-	private static native int sq_setfreevariable_native(long v, int idx, long nVal);
+	static native int sq_setfreevariable_native(long v, int idx, long nVal);
 	
 	public static JSqResult sq_next(JSqVM v, int idx) {
-		return new JSqResult(sq_next_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.next(idx));
+		return new JSqResult(NATIVE.sq_next(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_next_native(long v, int idx);
+	static native int sq_next_native(long v, int idx);
 	
 	public static JSqResult sq_getweakrefval(JSqVM v, int idx) {
-		return new JSqResult(sq_getweakrefval_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getWeakRefVal(idx));
+		return new JSqResult(NATIVE.sq_getweakrefval(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_getweakrefval_native(long v, int idx);
+	static native int sq_getweakrefval_native(long v, int idx);
 	
 	public static JSqResult sq_clear(JSqVM v, int idx) {
-		return new JSqResult(sq_clear_native(v.m_nativeHandle, idx));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.clear(idx));
+		return new JSqResult(NATIVE.sq_clear(v.m_nativeHandle, idx));
 	}
 	
-	private static native int sq_clear_native(long v, int idx);
+	static native int sq_clear_native(long v, int idx);
 	
 	// TODO Calls
 	
 	public static JSqResult sq_call(JSqVM v, int numParams, boolean retval, boolean raiseError) {
-		return new JSqResult(sq_call_native(v.m_nativeHandle, numParams, retval, raiseError));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.call(numParams, retval, raiseError));
+		v.m_handles.releasePending(v.m_nativeHandle);
+		return new JSqResult(NATIVE.sq_call(v.m_nativeHandle, numParams, retval, raiseError));
 	}
 	
-	private static native int sq_call_native(long v, int numParams, boolean retval, boolean raiseError);
+	static native int sq_call_native(long v, int numParams, boolean retval, boolean raiseError);
 	
 	public static JSqResult sq_resume(JSqVM v, boolean retval, boolean raiseError) {
-		return new JSqResult(sq_resume_native(v.m_nativeHandle, retval, raiseError));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.resume(retval, raiseError));
+		return new JSqResult(NATIVE.sq_resume(v.m_nativeHandle, retval, raiseError));
 	}
 	
-	private static native int sq_resume_native(long v, boolean retval, boolean raiseError);
+	static native int sq_resume_native(long v, boolean retval, boolean raiseError);
 	
 	public static String sq_getlocal(JSqVM v, long level, long idx) {
-		return sq_getlocal_native(v.m_nativeHandle, level, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getLocal((int) level, (int) idx);
+		return NATIVE.sq_getlocal(v.m_nativeHandle, level, idx);
 	}
 	
-	private static native String sq_getlocal_native(long v, long level, long idx);
+	static native String sq_getlocal_native(long v, long level, long idx);
 	
 	public static JSqResult sq_getcallee(JSqVM v) {
-		return new JSqResult(sq_getcallee_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.getCallee());
+		return new JSqResult(NATIVE.sq_getcallee(v.m_nativeHandle));
 	}
 	
-	private static native int sq_getcallee_native(long v);
+	static native int sq_getcallee_native(long v);
 	
 	public static String sq_getfreevariable(JSqVM v, int idx, long nVal) {
-		return sq_getfreevariable_native(v.m_nativeHandle, idx, nVal);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getFreeVariable(idx, (int) nVal);
+		return NATIVE.sq_getfreevariable(v.m_nativeHandle, idx, nVal);
 	}
 	
-	private static native String sq_getfreevariable_native(long v, int idx, long nVal);
+	static native String sq_getfreevariable_native(long v, int idx, long nVal);
 	
 	public static JSqResult sq_throwerror(JSqVM v, String err) {
-		return new JSqResult(sq_throwerror_native(v.m_nativeHandle, err));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.throwError(err));
+		return new JSqResult(NATIVE.sq_throwerror(v.m_nativeHandle, err));
 	}
 	
-	private static native int sq_throwerror_native(long v, String err);
+	static native int sq_throwerror_native(long v, String err);
 	
 	public static JSqResult sq_throwobject(JSqVM v) {
-		return new JSqResult(sq_throwobject_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.throwObject());
+		return new JSqResult(NATIVE.sq_throwobject(v.m_nativeHandle));
 	}
 	
-	private static native int sq_throwobject_native(long v);
+	static native int sq_throwobject_native(long v);
 	
 	public static void sq_reseterror(JSqVM v) {
-		sq_reseterror_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.resetError();
+			return;
+		}
+		NATIVE.sq_reseterror(v.m_nativeHandle);
 	}
 	
-	private static native void sq_reseterror_native(long v);
+	static native void sq_reseterror_native(long v);
 	
 	public static void sq_getlasterror(JSqVM v) {
-		sq_getlasterror_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.pushLastError();
+			return;
+		}
+		NATIVE.sq_getlasterror(v.m_nativeHandle);
 	}
 	
-	private static native void sq_getlasterror_native(long v);
+	static native void sq_getlasterror_native(long v);
 	
 	// Raw Object Handling
 	
 	public static JSqObject sq_getstackobj(JSqVM v, int idx) throws JSquirrelException {
-		long handle = sq_getstackobj_native(v.m_nativeHandle, idx);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return v.m_interp.getStackObj(idx);
+		v.m_handles.releasePending(v.m_nativeHandle);
+		long handle = NATIVE.sq_getstackobj(v.m_nativeHandle, idx);
 		if (handle == 0)
 			throw new JSquirrelException("Could not get stack object.");
-		return new JSqObject(handle);
+		JSqObject obj = new JSqObject(handle);
+		v.m_handles.register(obj);
+		return obj;
 	}
 	
-	private static native long sq_getstackobj_native(long v, int idx);
+	static native long sq_getstackobj_native(long v, int idx);
 	
 	public static void sq_pushobject(JSqVM v, JSqObject obj) {
-		sq_pushobject_native(v.m_nativeHandle, obj.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(obj.m_type, obj.m_value, obj.m_ref);
+			return;
+		}
+		NATIVE.sq_pushobject(v.m_nativeHandle, obj.m_nativeHandle);
 	}
 	
-	private static native void sq_pushobject_native(long v, long obj);
+	static native void sq_pushobject_native(long v, long obj);
 	
 	// sq_addref
 	
+	/**
+	 * Releases the reference held by an object taken with {@link #sq_getstackobj(JSqVM, int)} and frees its handle,
+	 * the object can't be used afterwards. Objects that are never released are released once they are garbage
+	 * collected, see {@link JSqHandles}.
+	 * @param v The VM the object was taken from, or one of its friend threads.
+	 * @param obj
+	 * @return True if the Squirrel object was deleted.
+	 */
 	public static boolean sq_release(JSqVM v, JSqObject obj) {
-		return sq_release_native(v.m_nativeHandle, obj.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return true;
+		return v.m_handles.release(v.m_nativeHandle, obj);
 	}
 	
-	private static native boolean sq_release_native(long v, long obj);
+	static native boolean sq_release_native(long v, long obj);
+	
+	/**
+	 * Releases the references of {@code count} object handles and frees the handles.
+	 * @return The number of Squirrel objects deleted.
+	 */
+	static native int sq_releaseobjects_native(long v, long[] objs, int count);
 	
 	public static int sq_getrefcount(JSqVM v, JSqObject obj) {
-		return (int) sq_getrefcount_native(v.m_nativeHandle, obj.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null)
+			return 0;
+		return (int) NATIVE.sq_getrefcount(v.m_nativeHandle, obj.m_nativeHandle);
 	}
 	
-	private static native long sq_getrefcount_native(long v, long obj);
+	static native long sq_getrefcount_native(long v, long obj);
 	
 	public static void sq_resetobject(JSqObject obj) {
-		sq_resetobject_native(obj.m_nativeHandle);
+		if (obj.m_type != 0) {
+			obj.m_type = JSqTypes.OT_NULL;
+			obj.m_value = 0;
+			obj.m_ref = null;
+			return;
+		}
+		NATIVE.sq_resetobject(obj.m_nativeHandle);
 	}
 	
-	private static native void sq_resetobject_native(long obj);
+	static native void sq_resetobject_native(long obj);
 	
 	public static String sq_objtostring(JSqObject obj) {
-		return sq_objtostring_native(obj.m_nativeHandle);
+		if (obj.m_type != 0)
+			return obj.m_type == JSqTypes.OT_STRING ? (String) obj.m_ref : null;
+		return NATIVE.sq_objtostring(obj.m_nativeHandle);
 	}
 	
-	private static native String sq_objtostring_native(long obj);
+	static native String sq_objtostring_native(long obj);
 	
 	public static boolean sq_objtobool(JSqObject obj) {
-		return sq_objtobool_native(obj.m_nativeHandle);
+		if (obj.m_type != 0)
+			return obj.m_type == JSqTypes.OT_BOOL && obj.m_value != 0;
+		return NATIVE.sq_objtobool(obj.m_nativeHandle);
 	}
 	
-	private static native boolean sq_objtobool_native(long obj);
+	static native boolean sq_objtobool_native(long obj);
 	
 	public static int sq_objtointeger(JSqObject obj) {
-		return sq_objtointeger_native(obj.m_nativeHandle);
+		if (obj.m_type != 0)
+			return JSqTypes.isNumeric(obj.m_type) ? JSqTypes.toInteger(obj.m_type, obj.m_value) : 0;
+		return NATIVE.sq_objtointeger(obj.m_nativeHandle);
 	}
 	
-	private static native int sq_objtointeger_native(long obj);
+	static native int sq_objtointeger_native(long obj);
 	
 	public static float sq_objtofloat(JSqObject obj) {
-		return sq_objtofloat_native(obj.m_nativeHandle);
+		if (obj.m_type != 0)
+			return JSqTypes.isNumeric(obj.m_type) ? JSqTypes.toFloat(obj.m_type, obj.m_value) : 0f;
+		return NATIVE.sq_objtofloat(obj.m_nativeHandle);
 	}
 	
-	private static native float sq_objtofloat_native(long obj);
+	static native float sq_objtofloat_native(long obj);
 	
 	public static JSqUserPointer sq_objtouserpointer(JSqObject obj) {
-		return new JSqUserPointer(sq_objtouserpointer_native(obj.m_nativeHandle));
+		if (obj.m_type != 0)
+			return new JSqUserPointer(obj.m_type == JSqTypes.OT_USERPOINTER ? (Long) obj.m_ref : 0);
+		return new JSqUserPointer(NATIVE.sq_objtouserpointer(obj.m_nativeHandle));
 	}
 	
-	private static native long sq_objtouserpointer_native(long obj);
+	static native long sq_objtouserpointer_native(long obj);
 	
 	public static JSqUserPointer sq_getobjtypetag(JSqObject obj) {
-		return new JSqUserPointer(sq_getobjtypetag_native(obj.m_nativeHandle));
+		if (obj.m_type != 0)
+			return new JSqUserPointer(JSqInterpreter.typeTagOf(obj.m_type, obj.m_ref));
+		return new JSqUserPointer(NATIVE.sq_getobjtypetag(obj.m_nativeHandle));
 	}
 	
-	private static native long sq_getobjtypetag_native(long obj);
+	static native long sq_getobjtypetag_native(long obj);
 	
 	// GC
 	
+	/**
+	 * On the Java backend the JVM frees unreachable objects on its own, this re-measures a memory limited VM.
+	 * @return The number of objects freed, -1 with the last error set if what the VM still reaches is over its memory limit.
+	 */
 	public static int sq_collectgarbage(JSqVM v) {
-		return sq_collectgarbage_native(v.m_nativeHandle);
+		v.checkOwner();
+		if (v.m_interp != null) {
+			if (v.m_limit != null && !v.m_limit.measure(v.m_interp)) {
+				v.m_interp.throwError(v.m_limit.errorMessage());
+				return -1;
+			}
+			return 0;
+		}
+		v.m_handles.releasePending(v.m_nativeHandle);
+		return NATIVE.sq_collectgarbage(v.m_nativeHandle);
 	}
 	
-	private static native int sq_collectgarbage_native(long v);
+	static native int sq_collectgarbage_native(long v);
 	
 	public static JSqResult sq_resurrectunreachable(JSqVM v) {
-		return new JSqResult(sq_resurrectunreachable_native(v.m_nativeHandle));
+		v.checkOwner();
+		if (v.m_interp != null) {
+			v.m_interp.push(JSqTypes.OT_NULL, 0, null);
+			return new JSqResult(JSqInterpreter.SQ_OK);
+		}
+		return new JSqResult(NATIVE.sq_resurrectunreachable(v.m_nativeHandle));
 	}
 	
-	private static native int sq_resurrectunreachable_native(long v);
+	static native int sq_resurrectunreachable_native(long v);
 	
 	// Serialization
 	
+	/**
+	 * Serializes the closure on top of the stack, without popping it.
+	 * <br><br>
+	 * Both backends write the stream format of the native sq_writeclosure, so a closure written by one backend can be read by the other.
+	 * @param v The target Squirrel VM.
+	 * @param out The channel the closure is written to.
+	 * @return The result of this operation.
+	 * @throws IOException If writing to the channel fails.
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_writeclosure(JSqVM v, WritableByteChannel out) throws IOException {
+		v.checkOwner();
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.writeClosure(out));
+		byte[] res = NATIVE.sq_writeclosure(v.m_nativeHandle);
+		if (res == null)
+			return new JSqResult(-1);
+		ByteBuffer buf = ByteBuffer.wrap(res);
+		while (buf.hasRemaining())
+			out.write(buf);
+		return new JSqResult(0);
+	}
+	
+	static native byte[] sq_writeclosure_native(long v); // Returns null and sets the last error on failure
+	
+	/**
+	 * Reads a closure written by {@link #sq_writeclosure(JSqVM, WritableByteChannel)} and pushes it on the stack.
+	 * @param v The target Squirrel VM.
+	 * @param in The channel the closure is read from. It's read in blocks, so it can be left positioned past the end of the closure.
+	 * @return The result of this operation.
+	 * @throws IOException If reading from the channel fails.
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_readclosure(JSqVM v, ReadableByteChannel in) throws IOException {
+		v.checkOwner();
+		if (v.m_interp != null) {
+			ByteBuffer buf = ByteBuffer.allocate(8192);
+			((Buffer) buf).limit(0);
+			return new JSqResult(v.m_interp.readClosure(buf, in));
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+		while (in.read(buf) >= 0) {
+			if (!buf.hasRemaining()) {
+				ByteBuffer grown = ByteBuffer.allocateDirect(buf.capacity() << 1);
+				((Buffer) buf).flip();
+				grown.put(buf);
+				buf = grown;
+			}
+		}
+		return new JSqResult(NATIVE.sq_readclosure(v.m_nativeHandle, buf, buf.position()));
+	}
+	
+	static native int sq_readclosure_native(long v, ByteBuffer buf, int len); // Reads len bytes from the start of the direct buffer
+	
+	/**
+	 * Reads a closure written by {@link #sq_writeclosure(JSqVM, WritableByteChannel)} from a buffer and pushes it on the stack.
+	 * <br><br>
+	 * Direct buffers, including mapped files, are read in place without copying them first.
+	 * @param v The target Squirrel VM.
+	 * @param buf The buffer holding the closure from its position. Its position and limit are not changed.
+	 * @return The result of this operation.
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_readclosure(JSqVM v, ByteBuffer buf) {
+		v.checkOwner();
+		ByteBuffer slice = buf.slice();
+		if (v.m_interp != null) {
+			try {
+				return new JSqResult(v.m_interp.readClosure(slice, null));
+			}
+			catch (IOException e) {
+				throw new AssertionError(e); // there is no channel to read from
+			}
+		}
+		if (!slice.isDirect()) {
+			ByteBuffer direct = ByteBuffer.allocateDirect(slice.remaining());
+			direct.put(slice);
+			slice = direct;
+			((Buffer) slice).flip();
+		}
+		return new JSqResult(NATIVE.sq_readclosure(v.m_nativeHandle, slice, slice.remaining()));
+	}
+	
+	/**
+	 * Sets the cache {@link #sq_compilebuffer(JSqVM, String, String, boolean)} loads compiled scripts from, for every VM.
+	 * @param cache The cache to use, or null to always compile.
+	 */
+	public static void sq_setscriptcache(JSqScriptCache cache) {
+		s_scriptCache = cache;
+	}
+	
+	/**
+	 * @return The cache set with {@link #sq_setscriptcache(JSqScriptCache)}, or null.
+	 */
+	public static JSqScriptCache sq_getscriptcache() {
+		return s_scriptCache;
+	}
+	
+	// Batching
+	
+	/**
+	 * Runs the operations recorded in a batch in a single call into the VM, stopping at the first one that fails.
+	 * <br><br>
+	 * The values read by the batch can be read back from it afterwards in order.
+	 * @param v The target Squirrel VM.
+	 * @param batch The batch to run.
+	 * @return The result of this operation, failing if an operation failed.
+	 * @see JSqBatch#getFailedOperation()
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_runbatch(JSqVM v, JSqBatch batch) {
+		v.checkOwner();
+		return batch.run(v);
+	}
+	
+	static int runBatch(JSqVM v, ByteBuffer commands, int len, ByteBuffer results) {
+		return NATIVE.sq_runbatch(v.m_nativeHandle, commands, len, results, results.capacity());
+	}
+	
+	static native int sq_runbatch_native(long v, ByteBuffer commands, int len, ByteBuffer results, int capacity);
+	
+	// Bulk Arrays
+	
+	/**
+	 * Creates a new array holding {@code len} integers of {@code values} and pushes it on the stack, in a single call
+	 * into the VM instead of a push and an append for each element.
+	 * @param v The target Squirrel VM.
+	 * @param values The values of the array.
+	 * @param off The index of the first value in {@code values}.
+	 * @param len The number of values.
+	 * @return The result of this operation, failing if the array doesn't fit in the memory limit of the VM.
+	 * @see #SQ_SUCCEDED(JSqResult)
+	 * @see #SQ_FAILED(JSqResult)
+	 */
+	public static JSqResult sq_newarray(JSqVM v, int[] values, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		raw.asIntBuffer().put(values, off, len);
+		return newArray(v, JSqTypes.OT_INTEGER, raw, len);
+	}
+	
+	public static JSqResult sq_newarray(JSqVM v, int[] values) {
+		return sq_newarray(v, values, 0, values.length);
+	}
+	
+	/**
+	 * Creates a new array of floats, see {@link #sq_newarray(JSqVM, int[], int, int)}.
+	 */
+	public static JSqResult sq_newarray(JSqVM v, float[] values, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		raw.asFloatBuffer().put(values, off, len);
+		return newArray(v, JSqTypes.OT_FLOAT, raw, len);
+	}
+	
+	public static JSqResult sq_newarray(JSqVM v, float[] values) {
+		return sq_newarray(v, values, 0, values.length);
+	}
+	
+	/**
+	 * Creates a new array of floats, narrowing the values to the 32 bit floats Squirrel uses.
+	 * @see #sq_newarray(JSqVM, int[], int, int)
+	 */
+	public static JSqResult sq_newarray(JSqVM v, double[] values, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		FloatBuffer f = raw.asFloatBuffer();
+		for (int i = 0; i < len; i++)
+			f.put((float) values[off + i]);
+		return newArray(v, JSqTypes.OT_FLOAT, raw, len);
+	}
+	
+	public static JSqResult sq_newarray(JSqVM v, double[] values) {
+		return sq_newarray(v, values, 0, values.length);
+	}
+	
+	/**
+	 * Creates a new array of integers, narrowing the values to the 32 bit integers Squirrel uses.
+	 * @see #sq_newarray(JSqVM, int[], int, int)
+	 */
+	public static JSqResult sq_newarray(JSqVM v, long[] values, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		IntBuffer b = raw.asIntBuffer();
+		for (int i = 0; i < len; i++)
+			b.put((int) values[off + i]);
+		return newArray(v, JSqTypes.OT_INTEGER, raw, len);
+	}
+	
+	public static JSqResult sq_newarray(JSqVM v, long[] values) {
+		return sq_newarray(v, values, 0, values.length);
+	}
+	
+	/**
+	 * Creates a new array of bools, see {@link #sq_newarray(JSqVM, int[], int, int)}.
+	 */
+	public static JSqResult sq_newarray(JSqVM v, boolean[] values, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		IntBuffer b = raw.asIntBuffer();
+		for (int i = 0; i < len; i++)
+			b.put(values[off + i] ? 1 : 0);
+		return newArray(v, JSqTypes.OT_BOOL, raw, len);
+	}
+	
+	public static JSqResult sq_newarray(JSqVM v, boolean[] values) {
+		return sq_newarray(v, values, 0, values.length);
+	}
+	
+	/**
+	 * Creates a new array of the integers from the position to the limit of {@code values}, which are not changed.
+	 * @see #sq_newarray(JSqVM, int[], int, int)
+	 */
+	public static JSqResult sq_newarray(JSqVM v, IntBuffer values) {
+		v.checkOwner();
+		int len = values.remaining();
+		ByteBuffer raw = v.scratch(len);
+		raw.asIntBuffer().put(values.duplicate());
+		return newArray(v, JSqTypes.OT_INTEGER, raw, len);
+	}
+	
+	/**
+	 * Creates a new array of the floats from the position to the limit of {@code values}, which are not changed.
+	 * @see #sq_newarray(JSqVM, int[], int, int)
+	 */
+	public static JSqResult sq_newarray(JSqVM v, FloatBuffer values) {
+		v.checkOwner();
+		int len = values.remaining();
+		ByteBuffer raw = v.scratch(len);
+		raw.asFloatBuffer().put(values.duplicate());
+		return newArray(v, JSqTypes.OT_FLOAT, raw, len);
+	}
+	
+	private static JSqResult newArray(JSqVM v, int type, ByteBuffer raw, int len) {
+		if (v.m_interp != null)
+			return new JSqResult(v.m_interp.newArray(type, raw.asIntBuffer(), len));
+		return new JSqResult(NATIVE.sq_newarray(v.m_nativeHandle, raw, type, len));
+	}
+	
+	static native int sq_newarraybuffer_native(long v, ByteBuffer values, int type, int count); // count raw values of the type from the start of the direct buffer
+	
+	/**
+	 * Copies the elements of the array at {@code idx} to {@code dst} as integers, in a single call into the VM.
+	 * Floats are truncated, bools become 0 or 1 and any other value becomes 0.
+	 * @param v The target Squirrel VM.
+	 * @param idx
+	 * @param dst The array to copy to.
+	 * @param off The index in {@code dst} of the first element.
+	 * @param len The most elements to copy, fewer are copied if the array is smaller.
+	 * @return The size of the array, or -1 if the value at {@code idx} isn't an array.
+	 */
+	public static int sq_getarray(JSqVM v, int idx, int[] dst, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_INTEGER, raw, len);
+		if (size > 0)
+			raw.asIntBuffer().get(dst, off, Math.min(size, len));
+		return size;
+	}
+	
+	public static int sq_getarray(JSqVM v, int idx, int[] dst) {
+		return sq_getarray(v, idx, dst, 0, dst.length);
+	}
+	
+	/**
+	 * Copies the elements of an array as floats, see {@link #sq_getarray(JSqVM, int, int[], int, int)}.
+	 */
+	public static int sq_getarray(JSqVM v, int idx, float[] dst, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_FLOAT, raw, len);
+		if (size > 0)
+			raw.asFloatBuffer().get(dst, off, Math.min(size, len));
+		return size;
+	}
+	
+	public static int sq_getarray(JSqVM v, int idx, float[] dst) {
+		return sq_getarray(v, idx, dst, 0, dst.length);
+	}
+	
+	/**
+	 * Copies the elements of an array as floats, see {@link #sq_getarray(JSqVM, int, int[], int, int)}.
+	 */
+	public static int sq_getarray(JSqVM v, int idx, double[] dst, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_FLOAT, raw, len);
+		FloatBuffer f = raw.asFloatBuffer();
+		for (int i = 0, n = Math.min(size, len); i < n; i++)
+			dst[off + i] = f.get(i);
+		return size;
+	}
+	
+	public static int sq_getarray(JSqVM v, int idx, double[] dst) {
+		return sq_getarray(v, idx, dst, 0, dst.length);
+	}
+	
+	/**
+	 * Copies the elements of an array as integers, see {@link #sq_getarray(JSqVM, int, int[], int, int)}.
+	 */
+	public static int sq_getarray(JSqVM v, int idx, long[] dst, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_INTEGER, raw, len);
+		IntBuffer b = raw.asIntBuffer();
+		for (int i = 0, n = Math.min(size, len); i < n; i++)
+			dst[off + i] = b.get(i);
+		return size;
+	}
+	
+	public static int sq_getarray(JSqVM v, int idx, long[] dst) {
+		return sq_getarray(v, idx, dst, 0, dst.length);
+	}
+	
+	/**
+	 * Copies the elements of an array as bools, each being false only if Squirrel considers it false.
+	 * @see #sq_getarray(JSqVM, int, int[], int, int)
+	 */
+	public static int sq_getarray(JSqVM v, int idx, boolean[] dst, int off, int len) {
+		v.checkOwner();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_BOOL, raw, len);
+		IntBuffer b = raw.asIntBuffer();
+		for (int i = 0, n = Math.min(size, len); i < n; i++)
+			dst[off + i] = b.get(i) != 0;
+		return size;
+	}
+	
+	public static int sq_getarray(JSqVM v, int idx, boolean[] dst) {
+		return sq_getarray(v, idx, dst, 0, dst.length);
+	}
+	
+	/**
+	 * Copies the elements of an array as integers to the remaining space of {@code dst}, advancing its position.
+	 * @see #sq_getarray(JSqVM, int, int[], int, int)
+	 */
+	public static int sq_getarray(JSqVM v, int idx, IntBuffer dst) {
+		v.checkOwner();
+		int len = dst.remaining();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_INTEGER, raw, len);
+		if (size > 0) {
+			IntBuffer b = raw.asIntBuffer();
+			((Buffer) b).limit(Math.min(size, len));
+			dst.put(b);
+		}
+		return size;
+	}
+	
+	/**
+	 * Copies the elements of an array as floats to the remaining space of {@code dst}, advancing its position.
+	 * @see #sq_getarray(JSqVM, int, int[], int, int)
+	 */
+	public static int sq_getarray(JSqVM v, int idx, FloatBuffer dst) {
+		v.checkOwner();
+		int len = dst.remaining();
+		ByteBuffer raw = v.scratch(len);
+		int size = getArray(v, idx, JSqTypes.OT_FLOAT, raw, len);
+		if (size > 0) {
+			FloatBuffer f = raw.asFloatBuffer();
+			((Buffer) f).limit(Math.min(size, len));
+			dst.put(f);
+		}
+		return size;
+	}
+	
+	private static int getArray(JSqVM v, int idx, int type, ByteBuffer raw, int len) {
+		if (v.m_interp != null)
+			return v.m_interp.getArray(idx, type, raw.asIntBuffer(), len);
+		return NATIVE.sq_getarray(v.m_nativeHandle, idx, raw, type, len);
+	}
+	
+	static native int sq_getarraybuffer_native(long v, int idx, ByteBuffer dst, int type, int count); // Writes up to count raw values to the start of the direct buffer, returns the size of the array or -1
+	
 	// Memory Allocation
 	
+	/**
+	 * Sets the allocator the {@link JSqHostArena}s of VMs opened afterwards take their memory from.
+	 * @param allocator The allocator, or null for {@link JSqAllocator#SYSTEM}.
+	 */
+	public static void sq_setallocator(JSqAllocator allocator) {
+		s_allocator = allocator != null ? allocator : JSqAllocator.SYSTEM;
+	}
+	
+	public static JSqAllocator sq_getallocator() {
+		return s_allocator;
+	}
+	
+	// The JSquirrel library's own allocation functions, which need it loaded. Through either bridge, allocate with
+	// sq_getallocator() or sq_malloc(JSqVM, long) instead.
+	
 	public static native long sq_malloc(long size); // the long return is a pointer to the void *
 	
 	public static native void sq_realloc(long p, long oldSize, long newSize);
 	
 	public static native void sq_free(long p, long size);
 	
+	static native void sq_copymemory_native(long dst, long src, long size);
+	
+	/**
+	 * Allocates memory owned by the VM, freed at the latest when the VM is closed.
+	 * @param v The VM, or one of its friend threads.
+	 * @param size
+	 * @return The address of the new block, 0 if it couldn't be allocated.
+	 * @see JSqVM#getHostArena()
+	 */
+	public static long sq_malloc(JSqVM v, long size) {
+		v.checkOwner();
+		return v.m_hostArena.malloc(size);
+	}
+	
+	/**
+	 * @return The address of the resized block, or 0 if it couldn't be resized and {@code p} is still valid.
+	 */
+	public static long sq_realloc(JSqVM v, long p, long oldSize, long newSize) {
+		v.checkOwner();
+		return v.m_hostArena.realloc(p, oldSize, newSize);
+	}
+	
+	public static void sq_free(JSqVM v, long p, long size) {
+		v.checkOwner();
+		v.m_hostArena.free(p, size);
+	}
+	
 	// Utility Macro
 	
 	public static boolean sq_isnumeric(JSqObject o) {
-		return sq_isnumeric_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return JSqTypes.isNumeric(o.m_type);
+		return NATIVE.sq_isnumeric(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isnumeric_native(long o);
+	static native boolean sq_isnumeric_native(long o);
 	
 	public static boolean sq_istable(JSqObject o) {
-		return sq_istable_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_TABLE;
+		return NATIVE.sq_istable(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_istable_native(long o);
+	static native boolean sq_istable_native(long o);
 	
 	public static boolean sq_isarray(JSqObject o) {
-		return sq_isarray_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_ARRAY;
+		return NATIVE.sq_isarray(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isarray_native(long o);
+	static native boolean sq_isarray_native(long o);
 	
 	public static boolean sq_isfunction(JSqObject o) {
-		return sq_isfunction_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_FUNCPROTO;
+		return NATIVE.sq_isfunction(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isfunction_native(long o);
+	static native boolean sq_isfunction_native(long o);
 	
 	public static boolean sq_isclosure(JSqObject o) {
-		return sq_isclosure_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_CLOSURE;
+		return NATIVE.sq_isclosure(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isclosure_native(long o);
+	static native boolean sq_isclosure_native(long o);
 	
 	public static boolean sq_isgenerator(JSqObject o) {
-		return sq_isgenerator_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_GENERATOR;
+		return NATIVE.sq_isgenerator(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isgenerator_native(long o);
+	static native boolean sq_isgenerator_native(long o);
 	
 	public static boolean sq_isnativeclosure(JSqObject o) {
-		return sq_isnativeclosure_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_NATIVECLOSURE;
+		return NATIVE.sq_isnativeclosure(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isnativeclosure_native(long o);
+	static native boolean sq_isnativeclosure_native(long o);
 	
 	public static boolean sq_isstring(JSqObject o) {
-		return sq_isstring_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_STRING;
+		return NATIVE.sq_isstring(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isstring_native(long o);
+	static native boolean sq_isstring_native(long o);
 	
 	public static boolean sq_isinteger(JSqObject o) {
-		return sq_isinteger_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_INTEGER;
+		return NATIVE.sq_isinteger(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isinteger_native(long o);
+	static native boolean sq_isinteger_native(long o);
 	
 	public static boolean sq_isfloat(JSqObject o) {
-		return sq_isfloat_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_FLOAT;
+		return NATIVE.sq_isfloat(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isfloat_native(long o);
+	static native boolean sq_isfloat_native(long o);
 	
 	public static boolean sq_isuserpointer(JSqObject o) {
-		return sq_isuserpointer_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_USERPOINTER;
+		return NATIVE.sq_isuserpointer(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isuserpointer_native(long o);
+	static native boolean sq_isuserpointer_native(long o);
 	
 	public static boolean sq_isuserdata(JSqObject o) {
-		return sq_isnumeric_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_USERDATA;
+		return NATIVE.sq_isnumeric(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isuserdata_native(long o);
+	static native boolean sq_isuserdata_native(long o);
 	
 	public static boolean sq_isthread(JSqObject o) {
-		return sq_isthread_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_THREAD;
+		return NATIVE.sq_isthread(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isthread_native(long o);
+	static native boolean sq_isthread_native(long o);
 	
 	public static boolean sq_isnull(JSqObject o) {
-		return sq_isnull_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_NULL;
+		return NATIVE.sq_isnull(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isnull_native(long o);
+	static native boolean sq_isnull_native(long o);
 	
 	public static boolean sq_isclass(JSqObject o) {
-		return sq_isclass_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_CLASS;
+		return NATIVE.sq_isclass(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isclass_native(long o);
+	static native boolean sq_isclass_native(long o);
 	
 	public static boolean sq_isinstance(JSqObject o) {
-		return sq_isinstance_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_INSTANCE;
+		return NATIVE.sq_isinstance(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isinstance_native(long o);
+	static native boolean sq_isinstance_native(long o);
 	
 	public static boolean sq_isbool(JSqObject o) {
-		return sq_isbool_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_BOOL;
+		return NATIVE.sq_isbool(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isbool_native(long o);
+	static native boolean sq_isbool_native(long o);
 	
 	public static boolean sq_issweakref(JSqObject o) {
-		return sq_isweakref_native(o.m_nativeHandle);
+		if (o.m_type != 0)
+			return o.m_type == JSqTypes.OT_WEAKREF;
+		return NATIVE.sq_isweakref(o.m_nativeHandle);
 	}
 	
-	private static native boolean sq_isweakref_native(long o);
+	static native boolean sq_isweakref_native(long o);
 	
 	public static JSqObjectType sq_type(JSqObject o) {
-		return JSqObjectType.getFromValue(sq_type_native(o.m_nativeHandle));
+		if (o.m_type != 0)
+			return JSqObjectType.getFromValue(o.m_type);
+		return JSqObjectType.getFromValue(NATIVE.sq_type(o.m_nativeHandle));
 	}
 	
-	private static native int sq_type_native(long o);
+	static native int sq_type_native(long o);
 	
 }